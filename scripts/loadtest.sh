@@ -0,0 +1,9 @@
+#!/bin/sh
+
+# usage: scripts/loadtest.sh [-Dloadtest.<setting>=<value> ...] [-Dtraprelay.<setting>=<value> ...]
+
+OLDPWD=$(pwd)
+
+cd scripts
+java -Dloadtest.keystores=. "$@" -cp ../trap-relay-benchmarks/target/benchmarks.jar org.gobuki.net.snmp.traprelay.TrapLoadTest
+cd "$OLDPWD"
@@ -0,0 +1,71 @@
+package org.gobuki.net.snmp.traprelay;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a received trap in the client, for the traps the daemon's converters produce:
+ *
+ *   objectMapper  JsonObjectTrapHandler.handleTrap(String): binds the JSON line to a new JsonTrapInfo
+ *   trapView      the TrapViewHandler path: JsonTrapParser fills the reused TrapView from the received bytes
+ *   binary        BinaryTrapDecoder fills the reused TrapView from a frame of the binary format
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientDecodeBenchmark {
+
+    @Param({"1", "10", "50"})
+    int varbinds;
+
+    // as received, without the "JSONTRAP:" prefix
+    String json;
+    byte[] jsonLine;
+    byte[] binary;
+
+    ObjectMapper mapper;
+    JsonTrapParser parser;
+    BinaryTrapDecoder decoder;
+    TrapView view;
+
+    @Setup
+    public void setUp() {
+        TrapPayloadPool pool = new TrapPayloadPool(16);
+        TrapPayload payload = new TrapEventJsonConverter(pool).convertTrap(TrapEvents.create(varbinds, "10.1.2.3/161"));
+        jsonLine = new byte[payload.length()];
+        payload.buffer().get(jsonLine);
+        json = new String(jsonLine, ClientSession.UTF8).substring(TrapRelayClient.JSON_PREFIX.length);
+        payload = new TrapEventBinaryConverter(pool).convertTrap(TrapEvents.create(varbinds, "10.1.2.3/161"));
+        binary = new byte[payload.length()];
+        payload.buffer().get(binary);
+
+        mapper = new ObjectMapper();
+        parser = new JsonTrapParser();
+        decoder = new BinaryTrapDecoder();
+        view = new TrapView();
+    }
+
+    @Benchmark
+    public JsonTrapInfo objectMapper() throws IOException {
+        return mapper.readValue(json, JsonTrapInfo.class);
+    }
+
+    @Benchmark
+    public int trapView() throws IOException {
+        int jsonStart = TrapRelayClient.JSON_PREFIX.length;
+        parser.parse(jsonLine, jsonStart, jsonLine.length - jsonStart, view);
+        return view.getVariableCount();
+    }
+
+    @Benchmark
+    public int binary() throws IOException {
+        decoder.decode(binary, 0, binary.length, view);
+        return view.getVariableCount();
+    }
+}
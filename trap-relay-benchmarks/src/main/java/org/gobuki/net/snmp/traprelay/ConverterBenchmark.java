@@ -0,0 +1,67 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.openjdk.jmh.annotations.*;
+import org.snmp4j.CommandResponderEvent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting a received trap, what each receiver thread does once per trap and format in use.
+ * The payload is released right away, so the pool recycles it like the ring does in the daemon.
+ * json-names adds the names of the OIDs of TrapEvents, resolved from the MIB symbol cache after the first trap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConverterBenchmark {
+
+    @Param({"1", "10", "50"})
+    int varbinds;
+
+    @Param({"json", "json-names", "binary"})
+    String format;
+
+    static final String SYMBOLS = "1.3.6.1.2.1.1.2 sysObjectID\n"
+            + "1.3.6.1.2.1.1.3 sysUpTime\n"
+            + "1.3.6.1.2.1.2.2.1.2 ifDescr\n"
+            + "1.3.6.1.2.1.2.2.1.5 ifSpeed\n"
+            + "1.3.6.1.2.1.2.2.1.7 ifAdminStatus 1=up 2=down 3=testing\n"
+            + "1.3.6.1.2.1.2.2.1.9 ifLastChange\n"
+            + "1.3.6.1.2.1.2.2.1.10 ifInOctets\n"
+            + "1.3.6.1.2.1.4.20.1.1 ipAdEntAddr\n"
+            + "1.3.6.1.2.1.31.1.1.1.6 ifHCInOctets\n"
+            + "1.3.6.1.6.3.1.1.4.1 snmpTrapOID\n"
+            + "1.3.6.1.6.3.1.1.5.3 linkDown\n";
+
+    CommandResponderEvent event;
+    TrapEventConverter<TrapPayload> converter;
+
+    @Setup
+    public void setUp() throws IOException {
+        event = TrapEvents.create(varbinds, "10.1.2.3/161");
+        TrapPayloadPool pool = new TrapPayloadPool(1024);
+        if ("binary".equals(format)) {
+            converter = new TrapEventBinaryConverter(pool);
+        } else if ("json-names".equals(format)) {
+            MibSymbolTable symbols = new MibSymbolTable(4096);
+            symbols.read(new BufferedReader(new StringReader(SYMBOLS)));
+            converter = new TrapEventJsonConverter(pool, symbols);
+        } else {
+            converter = new TrapEventJsonConverter(pool);
+        }
+    }
+
+    @Benchmark
+    public int convertTrap() {
+        TrapPayload payload = converter.convertTrap(event);
+        int length = payload.length();
+        payload.release();
+        return length;
+    }
+}
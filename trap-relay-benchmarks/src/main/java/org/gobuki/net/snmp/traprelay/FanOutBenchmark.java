@@ -0,0 +1,98 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.openjdk.jmh.annotations.*;
+import org.snmp4j.CommandResponderEvent;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A received trap going out to many clients: TrapRelayDaemon.handleTrapEvent() converts and publishes it and
+ * wakes up the subscribed sessions, then each session copies it into its output batch like sendTraps() does.
+ *
+ * The sessions are registered with the engine, but not connected and their selector loops don't run. The
+ * benchmark plays the loops' part, without TLS and socket writes, so it measures the daemon's own work per trap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    @Param({"1", "10", "100", "500"})
+    int sessions;
+
+    @Param({"10"})
+    int varbinds;
+
+    TrapRelayDaemon daemon;
+    DeliveryEngine engine;
+    ClientSession[] clientSessions;
+    CommandResponderEvent event;
+
+    @Setup
+    public void setUp() throws Exception {
+        TrapRelayConfig config = new TrapRelayConfig();
+        config.set("selectorThreads", "4");
+        config.set("jmx", "false");
+        config.set("statsIntervalSeconds", "0");
+        daemon = new TrapRelayDaemon(config);
+        daemon.setTrapEventConverter(TrapFormat.JSON, new TrapEventJsonConverter(daemon.payloadPool));
+        daemon.setTrapEventConverter(TrapFormat.BINARY, new TrapEventBinaryConverter(daemon.payloadPool));
+        engine = new DeliveryEngine(config, new AtomicInteger(), daemon.statistics, daemon.trapEventConverters);
+        daemon.deliveryEngine = engine;
+
+        SSLContext sslContext = SSLContext.getDefault();
+        clientSessions = new ClientSession[sessions];
+        for (int i = 0; i < sessions; i++) {
+            SSLEngine sslEngine = sslContext.createSSLEngine();
+            sslEngine.setUseClientMode(false);
+            ClientSession session = new ClientSession(engine.loops[i % engine.loops.length],
+                    new TlsConnection(SocketChannel.open(), sslEngine), engine.getMaxAckWindow());
+            // half of the clients subscribe to the generic traps, the others to a vendor's traps and linkDown
+            session.filter = TrapFilter.parse(i % 2 == 0 ? Arrays.asList("1.3.6.1.6.3.1.1.5")
+                    : Arrays.asList("1.3.6.1.4.1.9", "1.3.6.1.6.3.1.1.5.3"));
+            session.state = ClientSession.State.REGISTERED;
+            session.liveFrom = engine.registered(session);
+            clientSessions[i] = session;
+        }
+        event = TrapEvents.create(varbinds, "10.1.2.3/161");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (ClientSession session : clientSessions) {
+            session.tls.getChannel().close();
+        }
+    }
+
+    @Benchmark
+    public long handleTrapEvent() {
+        daemon.handleTrapEvent(event);
+        TrapRingBuffer ring = engine.getRing();
+        long sequence = ring.getPublished();
+        TrapRecord record = ring.slot(sequence);
+        TrapRoute route = record.getRoute();
+        long written = 0;
+        for (ClientSession session : clientSessions) {
+            if (route.isRecipient(session.slot)) {
+                TrapPayload payload = ring.acquire(sequence, session.format);
+                session.writeTrap(sequence, payload);
+                payload.release();
+                written += session.outBuffer.position();
+                session.outBuffer.clear();
+            }
+            session.signalled.set(false);
+        }
+        for (SelectorLoop loop : engine.loops) {
+            loop.signalledSessions.clear();
+        }
+        return written;
+    }
+}
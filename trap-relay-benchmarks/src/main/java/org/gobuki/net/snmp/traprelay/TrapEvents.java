@@ -0,0 +1,67 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.security.SecurityModel;
+import org.snmp4j.smi.*;
+
+/**
+ * Realistic traps for the benchmarks: an SNMPv2c notification of a link state change, filled up with the kind of
+ * values agents send (interface names, counters, addresses, OIDs).
+ */
+public class TrapEvents {
+
+    // IF-MIB::linkDown
+    static final OID LINK_DOWN = new OID("1.3.6.1.6.3.1.1.5.3");
+
+    // IF-MIB::ifEntry
+    static final String IF_ENTRY = "1.3.6.1.2.1.2.2.1.";
+
+    /**
+     * @param varbinds number of variable bindings including snmpTrapOID.0 and sysUpTime.0, at least 1
+     * @param source agent address, e.g. "10.1.2.3/161"
+     * @return the event SNMP4J would pass to the TrapListener
+     */
+    public static CommandResponderEvent create(int varbinds, String source) {
+        PDU pdu = new PDU();
+        pdu.setType(PDU.NOTIFICATION);
+        pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, LINK_DOWN));
+        if (varbinds > 1) {
+            pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(123456789L)));
+        }
+        for (int i = 2; i < varbinds; i++) {
+            pdu.add(variable(i));
+        }
+        return new CommandResponderEvent(new MessageDispatcherImpl(), null, new UdpAddress(source),
+                MPv2c.ID, SecurityModel.SECURITY_MODEL_SNMPv2c, "public".getBytes(), SecurityLevel.NOAUTH_NOPRIV,
+                null, pdu, 65535, null);
+    }
+
+    private static VariableBinding variable(int i) {
+        int ifIndex = 10100 + i;
+        switch (i % 8) {
+            case 0:
+                return new VariableBinding(new OID(IF_ENTRY + "2." + ifIndex),
+                        new OctetString("GigabitEthernet1/0/" + i));
+            case 1:
+                return new VariableBinding(new OID(IF_ENTRY + "7." + ifIndex), new Integer32(2));
+            case 2:
+                return new VariableBinding(new OID(IF_ENTRY + "10." + ifIndex), new Counter32(3735928559L));
+            case 3:
+                return new VariableBinding(new OID("1.3.6.1.2.1.4.20.1.1.10.1.2." + i), new IpAddress("10.1.2." + i));
+            case 4:
+                return new VariableBinding(new OID(IF_ENTRY + "9." + ifIndex), new TimeTicks(12345678L));
+            case 5:
+                return new VariableBinding(new OID("1.3.6.1.2.1.1.2.0"), new OID("1.3.6.1.4.1.9.1.1208"));
+            case 6:
+                return new VariableBinding(new OID(IF_ENTRY + "5." + ifIndex), new Gauge32(1000000000L));
+            default:
+                return new VariableBinding(new OID("1.3.6.1.2.1.31.1.1.1.6." + ifIndex),
+                        new Counter64(98765432109876L));
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.gobuki.net.snmp.traprelay.handler.RawTrapHandler;
+import org.gobuki.net.snmp.traprelay.handler.TrapViewHandler;
+import org.snmp4j.PDU;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.Variable;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test on localhost, to find the rate of traps the daemon can sustain.
+ *
+ * Starts a daemon in this JVM on unprivileged ports, connects clients over TLS with the key stores of
+ * scripts/create-keystores.sh and sends traps with SNMP4J, in steps of increasing rates. Each step reports the rate
+ * the senders reached, the traps the daemon didn't receive (UDP loss, of that dropped by the kernel), the rate the
+ * clients got them and the latency from sending to the client's handler, measured with the send time the traps
+ * carry. The test stops at the first step that loses more than maxLoss percent or where the senders fall behind.
+ *
+ * Settings are system properties prefixed with "loadtest.", the daemon reads its own ("traprelay.") as usual:
+ *
+ *   rates           traps per second of the steps, separated by commas (1000,2000,5000,10000,20000,50000)
+ *   stepSeconds     duration of each step (10)
+ *   warmupSeconds   traps sent at the first rate before the first step, not reported (5)
+ *   versions        SNMP versions sent in turn, v1, v2c and/or v3 (v2c), v3 traps are authPriv
+ *   varbinds        variable bindings of each trap (10)
+ *   senders         threads sending traps, each from its own UDP port (1)
+ *   clients         connected clients, each subscribed to all traps (4)
+ *   format          json, binary or raw (json), raw runs the daemon in passthrough mode
+ *   compression     deflate to compress the connections of the clients (none)
+ *   ackWindow       acknowledgement window of the clients (64)
+ *   pipelineThreads handler threads of each client (0)
+ *   udpPort         trap port of the daemon (10162)
+ *   tcpPort         client port of the daemon (11162)
+ *   keystores       directory with the key and trust stores (scripts)
+ *   maxLoss         percent of traps lost that ends the test (1)
+ */
+public class TrapLoadTest {
+
+    static final String PROPERTY_PREFIX = "loadtest.";
+
+    // password of the key and trust stores, see scripts/create-keystores.sh
+    static final char[] KEYSTORE_PASSWORD = "password".toCharArray();
+
+    // how long to wait for the clients to get all traps of a step, after the last one was sent
+    static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // a step fails if the senders reach less of the rate
+    static final double MIN_SEND_RATIO = 0.95;
+
+    double[] rates;
+    int stepSeconds;
+    int warmupSeconds;
+    String[] versions;
+    int varbinds;
+    int senderCount;
+    int clientCount;
+    String format;
+    // null without compression
+    String compression;
+    int ackWindow;
+    int pipelineThreads;
+    int udpPort;
+    int tcpPort;
+    File keystores;
+    double maxLoss;
+
+    // the time send times are relative to
+    final long epoch = System.nanoTime();
+
+    // from sending a trap to a client's handler, of all clients
+    final LatencyHistogram latency = new LatencyHistogram("sendToHandler");
+
+    TrapRelayDaemon daemon;
+    List<LatencyHandler> handlers;
+    List<TrapSender> senders;
+    ExecutorService senderThreads;
+
+    /**
+     * Counts the traps a client got and records how long ago they were sent
+     */
+    class LatencyHandler implements TrapViewHandler, RawTrapHandler {
+
+        final String sendTimeOid = TrapSender.SEND_TIME.toString();
+
+        final AtomicLong received = new AtomicLong();
+
+        @Override
+        public void handleTrap(TrapView trap) {
+            long now = System.nanoTime();
+            received.incrementAndGet();
+            for (int i = 0; i < trap.getVariableCount(); i++) {
+                if (trap.getOid(i).contentEquals(sendTimeOid)) {
+                    latency.record(now - epoch - parseLong(trap.getValue(i)));
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void handleTrap(RawTrap trap) {
+            long now = System.nanoTime();
+            received.incrementAndGet();
+            try {
+                // null for SNMPv3, only counted
+                PDU pdu = trap.decode();
+                Variable sendTime = pdu != null ? pdu.getVariable(TrapSender.SEND_TIME) : null;
+                if (sendTime != null) {
+                    latency.record(now - epoch - parseLong(sendTime.toString()));
+                }
+            } catch (IOException e) {
+                // counted, without latency
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        TrapLoadTest test = new TrapLoadTest();
+        test.configure();
+        // the daemon and the clients don't stop on their own
+        try {
+            test.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    void configure() {
+        String[] rateList = property("rates", "1000,2000,5000,10000,20000,50000").split(",");
+        rates = new double[rateList.length];
+        for (int i = 0; i < rateList.length; i++) {
+            rates[i] = Double.parseDouble(rateList[i].trim());
+        }
+        stepSeconds = Integer.parseInt(property("stepSeconds", "10"));
+        warmupSeconds = Integer.parseInt(property("warmupSeconds", "5"));
+        versions = property("versions", "v2c").split(",");
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = versions[i].trim();
+        }
+        varbinds = Math.max(2, Integer.parseInt(property("varbinds", "10")));
+        senderCount = Math.max(1, Integer.parseInt(property("senders", "1")));
+        clientCount = Math.max(1, Integer.parseInt(property("clients", "4")));
+        format = property("format", "json");
+        compression = property("compression", "none");
+        if ("none".equals(compression)) {
+            compression = null;
+        }
+        ackWindow = Integer.parseInt(property("ackWindow", String.valueOf(TrapRelayClient.DEFAULT_ACK_WINDOW)));
+        pipelineThreads = Integer.parseInt(property("pipelineThreads", "0"));
+        udpPort = Integer.parseInt(property("udpPort", "10162"));
+        tcpPort = Integer.parseInt(property("tcpPort", "11162"));
+        keystores = new File(property("keystores", "scripts"));
+        maxLoss = Double.parseDouble(property("maxLoss", "1"));
+    }
+
+    private static String property(String name, String defaultValue) {
+        return System.getProperty(PROPERTY_PREFIX + name, defaultValue).trim();
+    }
+
+    void run() throws Exception {
+        startDaemon();
+        startClients();
+        senders = new ArrayList<TrapSender>();
+        for (int i = 0; i < senderCount; i++) {
+            senders.add(new TrapSender(new UdpAddress("127.0.0.1/" + udpPort), versions, varbinds, epoch));
+        }
+        senderThreads = Executors.newFixedThreadPool(senderCount);
+
+        System.out.println();
+        System.out.println("Sending " + join(versions) + " traps with " + varbinds + " varbinds from " + senderCount
+                + " sender(s) to " + clientCount + " " + format + " client(s)");
+        if (warmupSeconds > 0) {
+            System.out.println("Warming up for " + warmupSeconds + " s at " + format(rates[0], 0) + " traps/s");
+            runStep(rates[0], warmupSeconds);
+        }
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%10s %10s %10s %8s %8s %12s %9s %9s %9s %9s",
+                "rate/s", "sent/s", "received", "lost %", "drops", "delivered/s", "p50 ms", "p99 ms",
+                "p99.9 ms", "max ms"));
+        double sustained = 0;
+        for (double rate : rates) {
+            Step step = runStep(rate, stepSeconds);
+            System.out.println(step);
+            if (step.getLossPercent() > maxLoss || step.getSendRate() < rate * MIN_SEND_RATIO) {
+                System.out.println();
+                System.out.println(step.getLossPercent() > maxLoss
+                        ? "Lost more than " + format(maxLoss, 1) + "% of the traps at " + format(rate, 0) + " traps/s"
+                        : "The senders can't reach " + format(rate, 0) + " traps/s, add some with -Dloadtest.senders");
+                break;
+            }
+            sustained = rate;
+        }
+        System.out.println();
+        System.out.println(sustained > 0 ? "Sustained " + format(sustained, 0) + " traps/s"
+                : "No rate sustained");
+        if (compression != null) {
+            long uncompressed = 0;
+            long compressed = 0;
+            long sent = 0;
+            for (ClientSession session : daemon.deliveryEngine.getRegisteredSessions()) {
+                uncompressed += session.uncompressedBytes;
+                compressed += session.compressedBytes;
+                sent += session.sent;
+            }
+            System.out.println("Compressed " + format((double) uncompressed / Math.max(1, sent), 1) + " bytes per trap to "
+                    + format((double) compressed / Math.max(1, sent), 1) + " (" + compression + ")");
+        }
+
+        senderThreads.shutdown();
+        for (TrapSender sender : senders) {
+            sender.close();
+        }
+    }
+
+    /**
+     * Results of sending at one rate
+     */
+    class Step {
+        double rate;
+        long sent;
+        long received;
+        long drops;
+        // the least traps a client got
+        long delivered;
+        long sendNanos;
+        long deliverNanos;
+
+        double getSendRate() {
+            return sent / (sendNanos / 1e9);
+        }
+
+        double getLossPercent() {
+            return sent == 0 ? 0 : (sent - received) * 100.0 / sent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%10.0f %10.0f %10d %8.2f %8d %12.0f %9.2f %9.2f %9.2f %9.2f",
+                    rate, getSendRate(), received, getLossPercent(), drops, delivered / (deliverNanos / 1e9),
+                    latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6,
+                    latency.getValueAtPercentile(99.9) / 1e6, latency.max.get() / 1e6);
+        }
+    }
+
+    /**
+     * Sends traps at a rate and waits for the clients to get them
+     */
+    Step runStep(final double rate, int seconds) throws InterruptedException, ExecutionException {
+        Step step = new Step();
+        step.rate = rate;
+        long receivedBefore = daemon.statistics.received.get();
+        long dropsBefore = UdpSocketStatistics.totalDrops(udpPort);
+        long[] deliveredBefore = new long[handlers.size()];
+        for (int i = 0; i < handlers.size(); i++) {
+            deliveredBefore[i] = handlers.get(i).received.get();
+        }
+        latency.reset();
+
+        final long duration = TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Long>> sending = new ArrayList<Future<Long>>();
+        long start = System.nanoTime();
+        for (final TrapSender sender : senders) {
+            sending.add(senderThreads.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return sender.send(rate / senders.size(), duration);
+                }
+            }));
+        }
+        for (Future<Long> sent : sending) {
+            step.sent += sent.get();
+        }
+        step.sendNanos = System.nanoTime() - start;
+
+        // the clients are done when each got all traps the daemon received, or got nothing for a second
+        long lastProgress = System.nanoTime();
+        long lastDelivered = -1;
+        while (true) {
+            step.received = daemon.statistics.received.get() - receivedBefore;
+            step.delivered = Long.MAX_VALUE;
+            long total = 0;
+            for (int i = 0; i < handlers.size(); i++) {
+                long delivered = handlers.get(i).received.get() - deliveredBefore[i];
+                step.delivered = Math.min(step.delivered, delivered);
+                total += delivered;
+            }
+            long now = System.nanoTime();
+            step.deliverNanos = now - start;
+            if (total != lastDelivered) {
+                lastDelivered = total;
+                lastProgress = now;
+            }
+            if (step.delivered >= step.received || now - lastProgress > TimeUnit.SECONDS.toNanos(1)
+                    || now - start - step.sendNanos > DRAIN_NANOS) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        step.drops = UdpSocketStatistics.totalDrops(udpPort) - dropsBefore;
+        return step;
+    }
+
+    void startDaemon() throws GeneralSecurityException, IOException, InterruptedException {
+        TrapRelayConfig config = TrapRelayConfig.load(TrapRelayConfig.DEFAULT_CONFIG_FILE);
+        config.set("trapListenAddress", "udp:127.0.0.1/" + udpPort);
+        // the clients are on this host
+        config.set("compressLoopback", "true");
+        if ("raw".equals(format)) {
+            config.set("passthrough", "true");
+        }
+        daemon = new TrapRelayDaemon(config);
+        daemon.setSslContext(createSslContext(new File(keystores, "sslserverkeys.p12"),
+                new File(keystores, "sslservertrust.p12")));
+        daemon.setTrapEventConverter(TrapFormat.JSON, new TrapEventJsonConverter(daemon.payloadPool,
+                daemon.mibSymbols));
+        daemon.setTrapEventConverter(TrapFormat.BINARY, new TrapEventBinaryConverter(daemon.payloadPool));
+        daemon.trapListener.addTrapEventHandler(daemon);
+        daemon.trapListener.addRawTrapHandler(daemon);
+        daemon.trapListener.run(config.getString("trapListenAddress", null));
+        if (!daemon.trapListener.isPassthrough()) {
+            daemon.trapListener.usm.addUser(TrapSender.USER, TrapSender.createUser());
+        }
+
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                daemon.listenForClientConnections("127.0.0.1", tcpPort);
+            }
+        }, "Client Connection Listener");
+        listener.setDaemon(true);
+        listener.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (daemon.serverSocketChannel == null || !daemon.serverSocketChannel.socket().isBound()) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("The daemon didn't start within 30 s");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    void startClients() throws GeneralSecurityException, IOException, InterruptedException {
+        SSLContext sslContext = createSslContext(new File(keystores, "sslclientkeys.p12"),
+                new File(keystores, "sslclienttrust.p12"));
+        handlers = new ArrayList<LatencyHandler>();
+        for (int i = 0; i < clientCount; i++) {
+            final TrapRelayClient client = new TrapRelayClient();
+            client.setSocketFactory(sslContext.getSocketFactory());
+            client.setFormat(format);
+            client.setCompression(compression);
+            client.setAckWindow(ackWindow);
+            client.setPipelineThreads(pipelineThreads);
+            LatencyHandler handler = new LatencyHandler();
+            client.addTrapViewHandler(handler);
+            client.addRawTrapHandler(handler);
+            handlers.add(handler);
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client.connectToServer("127.0.0.1", tcpPort);
+                }
+            }, "Load Test Client " + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (daemon.deliveryEngine.getRegisteredSessions().size() < clientCount) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("The clients didn't register within 30 s");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * @param keyStore PKCS12 key store with the own certificate
+     * @param trustStore PKCS12 trust store with the certificate of the other side
+     * @return a TLS context with these stores, like the javax.net.ssl system properties configure the default one
+     */
+    static SSLContext createSslContext(File keyStore, File trustStore) throws GeneralSecurityException, IOException {
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(loadKeyStore(keyStore), KEYSTORE_PASSWORD);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(loadKeyStore(trustStore));
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    private static KeyStore loadKeyStore(File file) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(file);
+        try {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        } finally {
+            in.close();
+        }
+        return keyStore;
+    }
+
+    /**
+     * @param text decimal digits
+     * @return their value, parsed without creating a String
+     */
+    static long parseLong(CharSequence text) {
+        long value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            value = value * 10 + (text.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static String join(String[] values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            joined.append(joined.length() > 0 ? "/" : "").append(value);
+        }
+        return joined.toString();
+    }
+
+    private static String format(double value, int decimals) {
+        return String.format(Locale.ROOT, "%." + decimals + "f", value);
+    }
+}
@@ -0,0 +1,177 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.*;
+import org.snmp4j.mp.CounterSupport;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.*;
+import org.snmp4j.smi.*;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An agent sending traps at a fixed rate for the TrapLoadTest, from its own UDP socket. The SNMP versions take
+ * turns, each trap carries the time it was sent in a varbind.
+ */
+public class TrapSender {
+
+    // NET-SNMP-MIB::netSnmpPlaypen.1.1, System.nanoTime() when the trap was sent relative to the start of the test,
+    // as decimal string: SNMPv1 has no Counter64
+    public static final OID SEND_TIME = new OID("1.3.6.1.4.1.8072.9999.9999.1.1");
+
+    // the SNMPv3 user the traps are sent as, authPriv with SHA and AES-128
+    public static final OctetString USER = new OctetString("loadtest");
+    static final OctetString PASSPHRASE = new OctetString("loadtest-passphrase");
+
+    // how long the sender sleeps when it is ahead of its rate
+    static final long PACING_NANOS = 100000;
+
+    Snmp snmp;
+
+    // one trap and target per SNMP version, sent in turn
+    List<PDU> pdus;
+    List<Target> targets;
+
+    // the send time varbind of each trap, updated before each send
+    List<VariableBinding> sendTimes;
+
+    final long epoch;
+
+    /**
+     * @param address where the daemon receives traps
+     * @param versions "v1", "v2c" and/or "v3"
+     * @param varbinds variable bindings of each trap including snmpTrapOID.0 and the send time, at least 2
+     * @param epoch System.nanoTime() the send times are relative to
+     * @throws IOException if the UDP socket can't be opened
+     */
+    public TrapSender(UdpAddress address, String[] versions, int varbinds, long epoch) throws IOException {
+        this.epoch = epoch;
+        pdus = new ArrayList<PDU>();
+        targets = new ArrayList<Target>();
+        sendTimes = new ArrayList<VariableBinding>();
+
+        // a USM of its own, the daemon's in this JVM is the global one
+        byte[] engineId = MPv3.createLocalEngineID();
+        USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(engineId), 0);
+        // the sender of a trap is the authoritative engine
+        usm.addUser(USER, new OctetString(engineId), createUser());
+        MessageDispatcher dispatcher = new MessageDispatcherImpl();
+        dispatcher.addMessageProcessingModel(new MPv1());
+        dispatcher.addMessageProcessingModel(new MPv2c());
+        dispatcher.addMessageProcessingModel(new MPv3(engineId, null, SecurityProtocols.getInstance(),
+                SecurityModels.getCollection(new SecurityModel[]{usm}), CounterSupport.getInstance()));
+        snmp = new Snmp(dispatcher, new DefaultUdpTransportMapping());
+
+        for (String version : versions) {
+            if ("v1".equals(version)) {
+                addV1Trap(address, varbinds);
+            } else if ("v2c".equals(version)) {
+                CommunityTarget target = new CommunityTarget(address, new OctetString("public"));
+                target.setVersion(SnmpConstants.version2c);
+                addTrap(new PDU(), target, varbinds);
+            } else if ("v3".equals(version)) {
+                UserTarget target = new UserTarget();
+                target.setAddress(address);
+                target.setVersion(SnmpConstants.version3);
+                target.setSecurityLevel(SecurityLevel.AUTH_PRIV);
+                target.setSecurityName(USER);
+                addTrap(new ScopedPDU(), target, varbinds);
+            } else {
+                throw new IllegalArgumentException("Unknown SNMP version: " + version);
+            }
+        }
+    }
+
+    /**
+     * @return the user SNMPv3 traps are sent as, the daemon needs to know it
+     */
+    public static UsmUser createUser() {
+        return new UsmUser(USER, AuthSHA.ID, PASSPHRASE, PrivAES128.ID, PASSPHRASE);
+    }
+
+    private void addTrap(PDU pdu, Target target, int varbinds) {
+        pdu.setType(PDU.NOTIFICATION);
+        pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, TrapEvents.LINK_DOWN));
+        VariableBinding sendTime = addVariables(pdu, varbinds - 2, false);
+        pdus.add(pdu);
+        targets.add(target);
+        sendTimes.add(sendTime);
+    }
+
+    private void addV1Trap(UdpAddress address, int varbinds) {
+        PDUv1 pdu = new PDUv1();
+        pdu.setType(PDU.V1TRAP);
+        pdu.setEnterprise(new OID("1.3.6.1.6.3.1.1.5"));
+        pdu.setAgentAddress(new IpAddress("127.0.0.1"));
+        pdu.setGenericTrap(PDUv1.LINKDOWN);
+        pdu.setTimestamp(123456789L);
+        // the trap OID is part of the v1 header
+        VariableBinding sendTime = addVariables(pdu, varbinds - 1, true);
+        CommunityTarget target = new CommunityTarget(address, new OctetString("public"));
+        target.setVersion(SnmpConstants.version1);
+        pdus.add(pdu);
+        targets.add(target);
+        sendTimes.add(sendTime);
+    }
+
+    /**
+     * Adds the send time and the variables of TrapEvents
+     *
+     * @param count variables after the send time
+     * @param v1 true to replace the Counter64 values, which SNMPv1 doesn't have
+     * @return the send time varbind
+     */
+    private VariableBinding addVariables(PDU pdu, int count, boolean v1) {
+        VariableBinding sendTime = new VariableBinding(SEND_TIME, new OctetString());
+        pdu.add(sendTime);
+        PDU variables = TrapEvents.create(count + 1, "127.0.0.1/161").getPDU();
+        // skip snmpTrapOID.0
+        for (int i = 1; i < variables.size(); i++) {
+            VariableBinding variable = variables.get(i);
+            if (v1 && variable.getVariable() instanceof Counter64) {
+                variable = new VariableBinding(variable.getOid(),
+                        new Counter32(variable.getVariable().toLong() & 0xffffffffL));
+            }
+            pdu.add(variable);
+        }
+        return sendTime;
+    }
+
+    /**
+     * Sends traps at the given rate, as fast as possible if the rate can't be reached
+     *
+     * @param rate traps per second
+     * @param durationNanos
+     * @return traps sent
+     */
+    public long send(double rate, long durationNanos) throws IOException {
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long count = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long due = (long) ((now - start) * rate / 1e9);
+            if (count >= due) {
+                LockSupport.parkNanos(PACING_NANOS);
+                continue;
+            }
+            while (count < due) {
+                int next = (int) (count % pdus.size());
+                sendTimes.get(next).setVariable(new OctetString(String.valueOf(System.nanoTime() - epoch)));
+                snmp.send(pdus.get(next), targets.get(next));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void close() throws IOException {
+        snmp.close();
+    }
+}
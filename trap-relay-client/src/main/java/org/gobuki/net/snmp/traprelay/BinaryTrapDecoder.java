@@ -0,0 +1,380 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.smi.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes traps of the binary format (REGISTER ... FORMAT binary) into a reusable TrapView.
+ *
+ * Values are formatted like the server formats them for the JSON format, as SNMP4J's Variable.toString() does,
+ * so handlers get the same view from both formats. Numbers, time ticks, OIDs, IPv4 addresses and octet strings are
+ * formatted into the view directly, like the daemon's TrapEventJsonConverter does; the remaining syntaxes through
+ * their SNMP4J Variable.
+ *
+ * Layout of a trap, see TrapEventBinaryConverter of the daemon:
+ *
+ *   byte version | varint timestamp | source address | varint security level | varint security model |
+ *   varint length | security name | varint count | count * (varint arc count | varint arcs | byte syntax | value)
+ */
+public class BinaryTrapDecoder {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int VERSION = 1;
+
+    static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    byte[] buf;
+    int position;
+    int limit;
+
+    /**
+     * @param data
+     * @param offset start of the trap
+     * @param length length of the trap
+     * @param view is reset and filled with the trap
+     * @throws ProtocolException if the trap is malformed
+     */
+    public void decode(byte[] data, int offset, int length, TrapView view) throws IOException {
+        buf = data;
+        position = offset;
+        limit = offset + length;
+        view.reset();
+
+        int version = readByte();
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported binary trap version " + version);
+        }
+        view.setTimestampMillis(readVarint());
+        readAddress(view);
+        view.begin(view.secLevel);
+        view.appendDecimal(view.secLevel, readVarint());
+        view.begin(view.secModel);
+        view.appendDecimal(view.secModel, readVarint());
+        view.set(view.secName, readUtf8());
+
+        long count = readVarint();
+        for (long i = 0; i < count; i++) {
+            int index = view.addVariable();
+            view.begin(view.oids[index]);
+            readArcs(view, view.oids[index]);
+            view.begin(view.values[index]);
+            readValue(view, view.values[index]);
+        }
+    }
+
+    private void readAddress(TrapView view) throws IOException {
+        int addressLength = readByte();
+        if (addressLength == 0) {
+            view.set(view.trapSrc, readUtf8());
+            return;
+        }
+        byte[] address = readBytes(addressLength);
+        int port = (int) readVarint();
+        view.begin(view.trapSrc);
+        if (addressLength == 4) {
+            // same as UdpAddress.toString()
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) {
+                    view.append(view.trapSrc, '.');
+                }
+                view.appendDecimal(view.trapSrc, address[i] & 0xFF);
+            }
+            view.append(view.trapSrc, '/');
+            view.appendDecimal(view.trapSrc, port);
+        } else {
+            view.appendString(view.trapSrc, new UdpAddress(InetAddress.getByAddress(address), port).toString());
+        }
+    }
+
+    private void readValue(TrapView view, TrapView.Text text) throws IOException {
+        if (position >= limit) {
+            throw new ProtocolException("Truncated trap");
+        }
+        int syntax = buf[position] & 0xFF;
+        switch (syntax) {
+            case SMIConstants.SYNTAX_INTEGER:
+                position++;
+                long zigzag = readVarint();
+                view.appendDecimal(text, (int) ((zigzag >>> 1) ^ -(zigzag & 1)));
+                return;
+            case SMIConstants.SYNTAX_COUNTER32:
+            case SMIConstants.SYNTAX_GAUGE32:
+                position++;
+                view.appendDecimal(text, readVarint());
+                return;
+            case SMIConstants.SYNTAX_COUNTER64:
+                long counter = readVarintAt(position + 1);
+                if (counter < 0) {
+                    // unsigned, beyond the range of a long
+                    break;
+                }
+                position++;
+                view.appendDecimal(text, readVarint());
+                return;
+            case SMIConstants.SYNTAX_TIMETICKS:
+                long hundredths = readVarintAt(position + 1);
+                if (hundredths / 8640000 >= 1000) {
+                    // TimeTicks' MessageFormat groups the digits of the days
+                    break;
+                }
+                position++;
+                readVarint();
+                appendTimeTicks(view, text, hundredths);
+                return;
+            case SMIConstants.SYNTAX_OCTET_STRING:
+                position++;
+                int length = readLength();
+                appendOctetString(view, text, length);
+                position += length;
+                return;
+            case SMIConstants.SYNTAX_IPADDRESS:
+                if (position + 6 <= limit && buf[position + 1] == 4) {
+                    position += 2;
+                    for (int i = 0; i < 4; i++) {
+                        if (i > 0) {
+                            view.append(text, '.');
+                        }
+                        view.appendDecimal(text, buf[position++] & 0xFF);
+                    }
+                    return;
+                }
+                break;
+            case SMIConstants.SYNTAX_OBJECT_IDENTIFIER:
+                position++;
+                readArcs(view, text);
+                return;
+            default:
+                break;
+        }
+        // rare syntaxes and values, formatted by SNMP4J
+        view.appendString(text, readVariable().toString());
+    }
+
+    /**
+     * Same as TimeTicks.toString(): "[&lt;d&gt; day(s), ]&lt;h&gt;:mm:ss.hh"
+     */
+    private static void appendTimeTicks(TrapView view, TrapView.Text text, long hundredths) {
+        long days = hundredths / 8640000;
+        if (days == 1) {
+            view.appendString(text, "1 day, ");
+        } else if (days > 1) {
+            view.appendDecimal(text, days);
+            view.appendString(text, " days, ");
+        }
+        view.appendDecimal(text, hundredths / 360000 % 24);
+        view.append(text, ':');
+        appendTwoDigits(view, text, hundredths / 6000 % 60);
+        view.append(text, ':');
+        appendTwoDigits(view, text, hundredths / 100 % 60);
+        view.append(text, '.');
+        appendTwoDigits(view, text, hundredths % 100);
+    }
+
+    private static void appendTwoDigits(TrapView view, TrapView.Text text, long value) {
+        view.append(text, (char) ('0' + value / 10));
+        view.append(text, (char) ('0' + value % 10));
+    }
+
+    /**
+     * Same as OctetString.toString(): the text if all bytes are printable, otherwise hex "0a:1b:..."
+     */
+    private void appendOctetString(TrapView view, TrapView.Text text, int length) {
+        boolean printable = true;
+        for (int i = position; i < position + length && printable; i++) {
+            printable = isPrintable(buf[i] & 0xFF);
+        }
+        for (int i = position; i < position + length; i++) {
+            int b = buf[i] & 0xFF;
+            if (printable) {
+                // printable bytes are ASCII
+                view.append(text, (char) b);
+            } else {
+                if (i > position) {
+                    view.append(text, ':');
+                }
+                view.append(text, HEX[b >>> 4]);
+                view.append(text, HEX[b & 0xF]);
+            }
+        }
+    }
+
+    /**
+     * Same rule as OctetString.isPrintable()
+     */
+    static boolean isPrintable(int b) {
+        char c = (char) b;
+        return !((Character.isISOControl(c) || b >= 0x80) && (!Character.isWhitespace(c) || (b >= 0x1C && b <= 0x1F)));
+    }
+
+    private int readLength() throws IOException {
+        long length = readVarint();
+        if (length > limit - position) {
+            throw new ProtocolException("Truncated trap");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Reads a varint ahead without moving the position
+     */
+    private long readVarintAt(int at) throws IOException {
+        int saved = position;
+        position = at;
+        try {
+            return readVarint();
+        } finally {
+            position = saved;
+        }
+    }
+
+    private void readArcs(TrapView view, TrapView.Text text) throws IOException {
+        int count = (int) readVarint();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                view.append(text, '.');
+            }
+            view.appendDecimal(text, readVarint() & 0xFFFFFFFFL);
+        }
+    }
+
+    private String readUtf8() throws IOException {
+        long length = readVarint();
+        if (length > limit - position) {
+            throw new ProtocolException("Truncated trap");
+        }
+        String s = new String(buf, position, (int) length, UTF8);
+        position += (int) length;
+        return s;
+    }
+
+    private Variable readVariable() throws IOException {
+        int syntax = readByte();
+        switch (syntax) {
+            case SMIConstants.SYNTAX_INTEGER:
+                long zigzag = readVarint();
+                return new Integer32((int) ((zigzag >>> 1) ^ -(zigzag & 1)));
+            case SMIConstants.SYNTAX_COUNTER32:
+                return new Counter32(readVarint());
+            case SMIConstants.SYNTAX_GAUGE32:
+                return new Gauge32(readVarint());
+            case SMIConstants.SYNTAX_TIMETICKS:
+                return new TimeTicks(readVarint());
+            case SMIConstants.SYNTAX_COUNTER64:
+                return new Counter64(readVarint());
+            case SMIConstants.SYNTAX_OCTET_STRING:
+                return new OctetString(readBytes());
+            case SMIConstants.SYNTAX_OPAQUE:
+                return new Opaque(readBytes());
+            case SMIConstants.SYNTAX_IPADDRESS:
+                return new IpAddress(InetAddress.getByAddress(readBytes()));
+            case SMIConstants.SYNTAX_OBJECT_IDENTIFIER:
+                return new OID(readArcs());
+            case SMIConstants.SYNTAX_NULL:
+            case SMIConstants.EXCEPTION_NO_SUCH_OBJECT:
+            case SMIConstants.EXCEPTION_NO_SUCH_INSTANCE:
+            case SMIConstants.EXCEPTION_END_OF_MIB_VIEW:
+                return new Null(syntax);
+            default:
+                throw new ProtocolException("Unknown syntax " + syntax);
+        }
+    }
+
+    private int[] readArcs() throws IOException {
+        int count = (int) readVarint();
+        if (count > limit - position) {
+            throw new ProtocolException("Truncated OID");
+        }
+        int[] arcs = new int[count];
+        for (int i = 0; i < count; i++) {
+            arcs[i] = (int) readVarint();
+        }
+        return arcs;
+    }
+
+    private byte[] readBytes() throws IOException {
+        long length = readVarint();
+        if (length > limit - position) {
+            throw new ProtocolException("Truncated trap");
+        }
+        return readBytes((int) length);
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        if (position + length > limit) {
+            throw new ProtocolException("Truncated trap");
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(buf, position, bytes, 0, length);
+        position += length;
+        return bytes;
+    }
+
+    private int readByte() throws IOException {
+        if (position >= limit) {
+            throw new ProtocolException("Truncated trap");
+        }
+        return buf[position++] & 0xFF;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    /**
+     * Reads a varint from a stream, e.g. a frame length
+     *
+     * @param in
+     * @return the value, -1 at the end of the stream
+     */
+    public static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Connection closed within a frame");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    /**
+     * Reads a varint from a buffer
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return the value, the number of bytes read is available with getPosition()
+     */
+    public long readVarint(byte[] data, int offset, int length) throws IOException {
+        buf = data;
+        position = offset;
+        limit = offset + length;
+        return readVarint();
+    }
+
+    public int getPosition() {
+        return position;
+    }
+}
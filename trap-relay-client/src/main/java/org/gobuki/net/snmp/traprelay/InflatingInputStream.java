@@ -0,0 +1,110 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the raw DEFLATE stream a server sends after "OK ... COMPRESS deflate".
+ *
+ * Unlike java.util.zip.InflaterInputStream, available() counts only inflated bytes which can be read without
+ * blocking. The server ends each batch with a sync flush, an empty block which inflates to nothing, so the reader
+ * sees the end of a batch and acknowledges it instead of waiting for more traps.
+ */
+public class InflatingInputStream extends FilterInputStream {
+
+    final Inflater inflater;
+
+    final byte[] input;
+
+    // inflated bytes not read yet are output[outputStart..outputEnd)
+    final byte[] output;
+    int outputStart;
+    int outputEnd;
+
+    public InflatingInputStream(InputStream in) {
+        super(in);
+        inflater = new Inflater(true);
+        input = new byte[16 * 1024];
+        output = new byte[64 * 1024];
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (outputStart == outputEnd) {
+            if (!inflate(true)) {
+                return -1;
+            }
+        }
+        return output[outputStart++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (outputStart == outputEnd) {
+            if (!inflate(true)) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, outputEnd - outputStart);
+        System.arraycopy(output, outputStart, b, off, n);
+        outputStart += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        while (outputStart == outputEnd && (inflater.getRemaining() > 0 || in.available() > 0)) {
+            if (!inflate(false)) {
+                break;
+            }
+        }
+        return outputEnd - outputStart;
+    }
+
+    /**
+     * Inflates into the empty output buffer, reads more compressed bytes if the inflater needs them
+     *
+     * @param block false to only read what the underlying stream has available
+     * @return false at the end of the stream or, without block, if nothing can be read without blocking
+     */
+    private boolean inflate(boolean block) throws IOException {
+        try {
+            int n = inflater.inflate(output, 0, output.length);
+            if (n > 0) {
+                outputStart = 0;
+                outputEnd = n;
+                return true;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data: " + e.getMessage(), e);
+        }
+        if (inflater.finished()) {
+            return false;
+        }
+        if (inflater.needsInput()) {
+            int available = in.available();
+            if (!block && available == 0) {
+                return false;
+            }
+            int n = in.read(input, 0, block ? input.length : Math.min(input.length, available));
+            if (n < 0) {
+                // the connection was closed
+                return false;
+            }
+            inflater.setInput(input, 0, n);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        super.close();
+    }
+}
@@ -12,9 +12,14 @@ public class JsonTrapInfo {
     private String secModel;
     private String secName;
     private Map<String, String> variables;
+    // symbols of the OIDs and labels of the values, by OID, if the server has a mibSymbolFile
+    private Map<String, String> names;
+    private Map<String, String> labels;
 
     public JsonTrapInfo() {
         variables = new HashMap<String, String>();
+        names = new HashMap<String, String>();
+        labels = new HashMap<String, String>();
     }
 
     public Date getTimestamp() {
@@ -64,4 +69,20 @@ public class JsonTrapInfo {
     public void setVariables(Map<String, String> variables) {
         this.variables = variables;
     }
+
+    public Map<String, String> getNames() {
+        return names;
+    }
+
+    public void setNames(Map<String, String> names) {
+        this.names = names;
+    }
+
+    public Map<String, String> getLabels() {
+        return labels;
+    }
+
+    public void setLabels(Map<String, String> labels) {
+        this.labels = labels;
+    }
 }
@@ -0,0 +1,147 @@
+package org.gobuki.net.snmp.traprelay;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+
+/**
+ * Parses JSON traps straight from the bytes received, into a reusable TrapView.
+ *
+ * Uses one non-blocking Jackson parser for the whole connection, fed with the JSON part of each trap line. The
+ * parser reads the caller's array, nothing is copied before parsing and no String is created for the values.
+ * Field names are canonicalized by Jackson, OIDs seen before don't allocate either.
+ */
+public class JsonTrapParser {
+
+    JsonFactory factory;
+    JsonParser parser;
+    ByteArrayFeeder feeder;
+
+    public JsonTrapParser() {
+        factory = new JsonFactory();
+    }
+
+    /**
+     * @param buf
+     * @param offset start of the JSON object, after "JSONTRAP:"
+     * @param length length up to the end of the line
+     * @param view is reset and filled with the trap
+     * @throws ProtocolException if the trap is malformed
+     */
+    public void parse(byte[] buf, int offset, int length, TrapView view) throws IOException {
+        if (parser == null) {
+            parser = factory.createNonBlockingByteArrayParser();
+            feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        }
+        view.reset();
+        try {
+            feeder.feedInput(buf, offset, offset + length);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new ProtocolException("Trap isn't a JSON object");
+            }
+            JsonToken token;
+            while ((token = nextToken()) == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                token = nextToken();
+                if ("variables".equals(name) && token == JsonToken.START_OBJECT) {
+                    parseVariables(view);
+                } else if (token != JsonToken.VALUE_STRING) {
+                    skipValue(token);
+                } else if ("trapSrc".equals(name)) {
+                    setText(view, view.trapSrc);
+                } else if ("timestamp".equals(name)) {
+                    setText(view, view.timestamp);
+                    view.timestampTextSet();
+                } else if ("secLevel".equals(name)) {
+                    setText(view, view.secLevel);
+                } else if ("secModel".equals(name)) {
+                    setText(view, view.secModel);
+                } else if ("secName".equals(name)) {
+                    setText(view, view.secName);
+                }
+            }
+            if (token != JsonToken.END_OBJECT) {
+                throw new ProtocolException("Malformed trap");
+            }
+            // consume the rest of the line, the parser only takes new input once everything was read
+            if (parser.nextToken() != JsonToken.NOT_AVAILABLE) {
+                throw new ProtocolException("Unexpected data after the trap");
+            }
+        } catch (JsonProcessingException e) {
+            reset();
+            throw new ProtocolException("Malformed trap: " + e.getOriginalMessage());
+        } catch (ProtocolException e) {
+            reset();
+            throw e;
+        }
+    }
+
+    private void parseVariables(TrapView view) throws IOException {
+        JsonToken token;
+        while ((token = nextToken()) == JsonToken.FIELD_NAME) {
+            int i = view.addVariable();
+            // the canonical name, getTextCharacters() of the non-blocking parser may return a previous name
+            view.set(view.oids[i], parser.getCurrentName());
+            token = nextToken();
+            if (token == JsonToken.VALUE_STRING) {
+                setText(view, view.values[i]);
+            } else {
+                skipValue(token);
+                view.begin(view.values[i]);
+            }
+        }
+        if (token != JsonToken.END_OBJECT) {
+            throw new ProtocolException("Malformed variables");
+        }
+    }
+
+    /**
+     * Skips a value of a field not known. Unlike JsonParser.skipChildren() it stops at the end of the input.
+     */
+    private void skipValue(JsonToken token) throws IOException {
+        if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+            return;
+        }
+        int depth = 1;
+        while (depth > 0) {
+            token = nextToken();
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                depth++;
+            } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                depth--;
+            }
+        }
+    }
+
+    private JsonToken nextToken() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.NOT_AVAILABLE || token == null) {
+            throw new ProtocolException("Incomplete trap");
+        }
+        return token;
+    }
+
+    private void setText(TrapView view, TrapView.Text text) throws IOException {
+        view.set(text, parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+    }
+
+    /**
+     * Drops the parser after an error, it can't continue in the middle of a document
+     */
+    private void reset() {
+        if (parser != null) {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // nothing to release
+            }
+        }
+        parser = null;
+        feeder = null;
+    }
+}
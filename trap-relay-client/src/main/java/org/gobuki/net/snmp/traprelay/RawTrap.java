@@ -0,0 +1,172 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.asn1.BERInputStream;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.GenericAddress;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A trap in RAW format, the SNMP message as the agent sent it, for clients with SNMP stacks of their own:
+ *
+ *   byte version | varint timestamp | source address | the BER encoded message up to the end of the frame
+ *
+ * with the source address as in the binary format. The client reuses it for every trap, the message is only valid
+ * until handleTrap() returns. decode() parses SNMPv1 and SNMPv2c messages with SNMP4J, only if a handler needs it.
+ */
+public class RawTrap {
+
+    static final int VERSION = 1;
+
+    long sequence;
+    long timestampMillis;
+
+    byte[] data;
+
+    // the source address, IPv4/IPv6 address bytes, or text for other transports
+    int addressOffset;
+    int addressLength;
+    boolean ip;
+    int port;
+
+    // the SNMP message
+    int messageOffset;
+    int messageLength;
+
+    // read position in the frame
+    int position;
+    int limit;
+
+    // decoded on demand
+    boolean decoded;
+    PDU pdu;
+    OctetString community;
+
+    /**
+     * @param data
+     * @param offset start of the trap
+     * @param length length of the trap
+     * @throws ProtocolException if the trap is malformed
+     */
+    void read(byte[] data, int offset, int length) throws ProtocolException {
+        this.data = data;
+        decoded = false;
+        pdu = null;
+        community = null;
+        position = offset;
+        limit = offset + length;
+        if (length == 0 || data[position++] != VERSION) {
+            throw new ProtocolException("Unsupported raw trap version " + (length == 0 ? -1 : data[offset]));
+        }
+        timestampMillis = readVarint();
+        addressLength = data[position++] & 0xFF;
+        ip = addressLength != 0;
+        if (!ip) {
+            addressLength = (int) readVarint();
+        }
+        addressOffset = position;
+        position += addressLength;
+        port = ip ? (int) readVarint() : 0;
+        if (position > limit) {
+            throw new ProtocolException("Truncated trap");
+        }
+        messageOffset = position;
+        messageLength = limit - position;
+    }
+
+    private long readVarint() throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= limit) {
+                throw new ProtocolException("Truncated trap");
+            }
+            int b = data[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Invalid varint");
+    }
+
+    /**
+     * @return sequence number the server assigned
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return when the server received the trap, ms since the epoch
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return the agent's address, a UdpAddress for IP transports. null if the server's text can't be parsed.
+     */
+    public Address getSource() throws IOException {
+        if (ip) {
+            byte[] address = Arrays.copyOfRange(data, addressOffset, addressOffset + addressLength);
+            return new UdpAddress(InetAddress.getByAddress(address), port);
+        }
+        return GenericAddress.parse(new String(data, addressOffset, addressLength, BinaryTrapDecoder.UTF8));
+    }
+
+    /**
+     * @return the BER encoded message, a view of the receive buffer
+     */
+    public ByteBuffer getMessage() {
+        return ByteBuffer.wrap(data, messageOffset, messageLength).slice();
+    }
+
+    /**
+     * @return a copy of the BER encoded message, to keep it after handleTrap() returns
+     */
+    public byte[] copyMessage() {
+        return Arrays.copyOfRange(data, messageOffset, messageOffset + messageLength);
+    }
+
+    /**
+     * Decodes the message with SNMP4J, once
+     *
+     * @return the PDU, a PDUv1 for SNMPv1 traps. null for SNMPv3 messages, they need the USM of the client's stack.
+     * @throws IOException if the message isn't valid BER
+     */
+    public PDU decode() throws IOException {
+        if (decoded) {
+            return pdu;
+        }
+        BERInputStream in = new BERInputStream(getMessage());
+        BER.decodeHeader(in, new BER.MutableByte());
+        Integer32 version = new Integer32();
+        version.decodeBER(in);
+        if (version.getValue() == SnmpConstants.version1 || version.getValue() == SnmpConstants.version2c) {
+            community = new OctetString();
+            community.decodeBER(in);
+            pdu = version.getValue() == SnmpConstants.version1 ? new PDUv1() : new PDU();
+            pdu.decodeBER(in);
+        }
+        decoded = true;
+        return pdu;
+    }
+
+    /**
+     * @return the community of an SNMPv1 or SNMPv2c message, null before decode()
+     */
+    public OctetString getCommunity() {
+        return community;
+    }
+}
@@ -0,0 +1,217 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs the trap handlers on a pool of worker threads, so a slow handler doesn't hold up the connection.
+ *
+ * Traps are partitioned by the address of their source agent (trapSrc without the port, agents send from changing
+ * ports): all traps of one agent are handled by the same worker, in the order they were received, traps of
+ * different agents in parallel.
+ *
+ * The socket reader takes an entry for each trap, fills its view and submits it. There are at most pipelineDepth
+ * entries, when all are in use take() blocks the reader. The server then stops sending once the acknowledgement
+ * window is used up, so a busy pipeline slows down the connection instead of buffering without limit.
+ *
+ * With AckMode.COMPLETED traps are acknowledged once they and all traps received before them were handled, with
+ * AckMode.ENQUEUED the reader acknowledges them as soon as they are submitted. The latter is faster, but traps still
+ * in the pipeline are lost if the client stops; the server only replays unacknowledged traps.
+ */
+public class TrapPipeline {
+
+    public enum AckMode {
+        // acknowledge traps when the handlers are done with them
+        COMPLETED,
+        // acknowledge traps when they are handed to the pipeline
+        ENQUEUED
+    }
+
+    public static final int DEFAULT_DEPTH = 1024;
+
+    /**
+     * A trap in the pipeline, reused
+     */
+    static class Entry {
+
+        final TrapView view = new TrapView();
+
+        // the trap line for TrapHandlers, null if there are none
+        String line;
+
+        // whether the view was filled, false if the trap couldn't be parsed
+        boolean parsed;
+
+        // position in the order of submission
+        long ticket;
+    }
+
+    // tells a worker to stop
+    static final Entry STOP = new Entry();
+
+    final TrapRelayClient client;
+    final AckMode ackMode;
+    final int depth;
+
+    // window granted by the server, 0 to acknowledge each trap with a plain ACK
+    final int grantedWindow;
+    final int ackThreshold;
+
+    final BlockingQueue<Entry> freeEntries;
+    int createdEntries;
+
+    final BlockingQueue<Entry>[] partitions;
+    final Thread[] workers;
+
+    // completion of the submitted traps, a ring indexed by ticket. With AckMode.COMPLETED an entry is only freed
+    // once all traps before it are completed, so at most depth tickets are pending.
+    final Entry[] pending;
+    final boolean[] completed;
+    long submitted;
+    // first ticket not completed yet
+    long nextTicket;
+    long unacknowledged;
+    long lastCompletedSequence;
+
+    @SuppressWarnings("unchecked")
+    public TrapPipeline(TrapRelayClient client, int threads, int depth, AckMode ackMode, int grantedWindow) {
+        this.client = client;
+        this.depth = depth;
+        this.ackMode = ackMode;
+        this.grantedWindow = grantedWindow;
+        this.ackThreshold = Math.max(1, grantedWindow / 2);
+        freeEntries = new ArrayBlockingQueue<Entry>(depth);
+        pending = new Entry[depth];
+        completed = new boolean[depth];
+        partitions = new BlockingQueue[threads];
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final BlockingQueue<Entry> partition = new LinkedBlockingQueue<Entry>();
+            partitions[i] = partition;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(partition);
+                }
+            }, "trap-handler-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Takes a free entry for the next trap, blocks while the pipeline is full. Reader thread only.
+     */
+    Entry take() throws InterruptedIOException {
+        Entry entry = freeEntries.poll();
+        if (entry == null) {
+            if (createdEntries < depth) {
+                createdEntries++;
+                return new Entry();
+            }
+            try {
+                entry = freeEntries.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for the trap pipeline");
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Hands a trap taken with take() to the worker of its source. Reader thread only.
+     */
+    void submit(Entry entry) {
+        synchronized (this) {
+            entry.ticket = submitted++;
+            if (ackMode == AckMode.COMPLETED) {
+                int slot = (int) (entry.ticket % depth);
+                pending[slot] = entry;
+                completed[slot] = false;
+            }
+        }
+        // unbounded, the number of entries limits the traps in the pipeline
+        partitions[entry.parsed ? partition(entry.view) : 0].add(entry);
+    }
+
+    private int partition(TrapView view) {
+        TrapView.Text source = view.getTrapSrc();
+        int hash = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '/') {
+                break;
+            }
+            hash = 31 * hash + c;
+        }
+        return (hash & 0x7FFFFFFF) % partitions.length;
+    }
+
+    private void work(BlockingQueue<Entry> partition) {
+        try {
+            Entry entry;
+            while ((entry = partition.take()) != STOP) {
+                try {
+                    client.handleTrap(entry.view, entry.line, entry.parsed);
+                } catch (RuntimeException e) {
+                    System.err.println("Trap handler failed: " + e);
+                }
+                completed(entry);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void completed(Entry entry) {
+        entry.line = null;
+        if (ackMode == AckMode.ENQUEUED) {
+            synchronized (this) {
+                nextTicket++;
+                notifyAll();
+            }
+            freeEntries.add(entry);
+            return;
+        }
+        synchronized (this) {
+            completed[(int) (entry.ticket % depth)] = true;
+            // advance over the traps completed in order, their entries can be reused
+            while (nextTicket < submitted && completed[(int) (nextTicket % depth)]) {
+                int slot = (int) (nextTicket % depth);
+                Entry done = pending[slot];
+                pending[slot] = null;
+                completed[slot] = false;
+                lastCompletedSequence = done.view.getSequence();
+                nextTicket++;
+                unacknowledged++;
+                freeEntries.add(done);
+            }
+            // acknowledge cumulatively, when half of the window is handled or the pipeline ran empty.
+            // Under the lock, so acknowledgements of different workers go out in order.
+            if (unacknowledged > 0 && (unacknowledged >= ackThreshold || nextTicket == submitted)) {
+                client.acknowledge(grantedWindow > 0 ? String.valueOf(lastCompletedSequence) : null);
+                unacknowledged = 0;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all submitted traps are handled and stops the workers
+     */
+    void shutdown() throws InterruptedException {
+        synchronized (this) {
+            while (nextTicket < submitted) {
+                wait();
+            }
+        }
+        for (int i = 0; i < workers.length; i++) {
+            partitions[i].add(STOP);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package org.gobuki.net.snmp.traprelay;
 
 import org.gobuki.net.snmp.traprelay.handler.JsonObjectTrapHandler;
+import org.gobuki.net.snmp.traprelay.handler.RawTrapHandler;
+import org.gobuki.net.snmp.traprelay.handler.SimpleLoggingRawTrapHandler;
 import org.gobuki.net.snmp.traprelay.handler.SimpleLoggingTrapHandler;
 import org.gobuki.net.snmp.traprelay.handler.TrapHandler;
+import org.gobuki.net.snmp.traprelay.handler.TrapInfoHandler;
+import org.gobuki.net.snmp.traprelay.handler.TrapViewHandler;
 
 import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -20,12 +26,76 @@ import java.util.concurrent.TimeUnit;
  */
 public class TrapRelayClient {
 
+    // number of unacknowledged traps the server may send ahead, 0 for one trap per round trip
+    public static final int DEFAULT_ACK_WINDOW = 64;
+
+    // longest frame accepted in binary format
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // frame types of the binary format
+    static final int FRAME_TRAP = 1;
+    static final int FRAME_GAP = 2;
+    static final int FRAME_TEXT = 3;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final byte[] TRAP_PREFIX = "TRAP ".getBytes(UTF8);
+    static final byte[] JSON_PREFIX = "JSONTRAP:".getBytes(UTF8);
+
     Socket socket;
-    BufferedReader in;
+    BufferedInputStream rawIn;
     PrintStream out;
 
+    // get the traps as text lines, JSON format only
     List<TrapHandler> trapHandlers;
 
+    // get a copy of each trap, both formats
+    List<TrapInfoHandler> trapInfoHandlers;
+
+    // get the reused view of each trap, both formats
+    List<TrapViewHandler> trapViewHandlers;
+
+    // get the undecoded SNMP messages, raw format only
+    List<RawTrapHandler> rawTrapHandlers;
+
+    // the trap passed to the handlers, reused
+    TrapView trapView;
+
+    // the raw trap passed to the handlers, reused
+    RawTrap rawTrap;
+
+    // requested acknowledgement window, the server may grant a smaller one
+    int ackWindow = DEFAULT_ACK_WINDOW;
+
+    // OID prefixes and source networks of the traps to receive, separated by spaces
+    String selectors = "all";
+
+    // sequence number or timestamp of the first trap to receive, null for the next one the server receives
+    String from;
+
+    // condition on the variables of the traps to receive, null for all
+    String where;
+
+    // "json", "binary" or "raw"
+    String format = "json";
+
+    // "deflate" to ask the server to compress the traps, null for no compression
+    String compression;
+
+    // worker threads running the handlers, 0 to run them on the socket reader thread
+    int pipelineThreads;
+
+    // traps in the pipeline before the reader blocks
+    int pipelineDepth = TrapPipeline.DEFAULT_DEPTH;
+
+    TrapPipeline.AckMode ackMode = TrapPipeline.AckMode.COMPLETED;
+
+    // runs the handlers of the current connection, null without pipelineThreads
+    TrapPipeline pipeline;
+
+    // creates the TLS connection, null for the default one configured with the javax.net.ssl system properties
+    SSLSocketFactory socketFactory;
+
     public static void main(String[] args) {
 
         System.setProperty("javax.net.ssl.keyStore", "sslclientkeys.p12");
@@ -40,8 +110,22 @@ public class TrapRelayClient {
         }
 
         TrapRelayClient client = new TrapRelayClient();
-        client.addTrapHandler(new SimpleLoggingTrapHandler());
-        client.addTrapHandler(new JsonObjectTrapHandler());
+        client.setAckWindow(Integer.getInteger("traprelay.ackWindow", DEFAULT_ACK_WINDOW));
+        client.setSelectors(System.getProperty("traprelay.selectors", "all"));
+        client.setFrom(System.getProperty("traprelay.from"));
+        client.setWhere(System.getProperty("traprelay.where"));
+        client.setFormat(System.getProperty("traprelay.format", "json"));
+        client.setCompression(System.getProperty("traprelay.compression"));
+        client.setPipelineThreads(Integer.getInteger("traprelay.pipelineThreads", 0));
+        client.setPipelineDepth(Integer.getInteger("traprelay.pipelineDepth", TrapPipeline.DEFAULT_DEPTH));
+        client.setAckMode(TrapPipeline.AckMode.valueOf(
+                System.getProperty("traprelay.ackMode", "completed").toUpperCase()));
+        if ("raw".equals(client.format)) {
+            client.addRawTrapHandler(new SimpleLoggingRawTrapHandler());
+        } else if (!"binary".equals(client.format)) {
+            client.addTrapHandler(new SimpleLoggingTrapHandler());
+        }
+        client.addTrapViewHandler(new JsonObjectTrapHandler());
         client.connectToServer(args[0], Integer.parseInt(args[1]));
     }
 
@@ -52,7 +136,8 @@ public class TrapRelayClient {
             public void run() {
                 if (out != null) { // if out isnt null socket must also be != null
                     try {
-                        out.println("QUIT");
+                        out.print("QUIT\n");
+                        out.flush();
                         socket.close();
                     } catch (IOException e) {
                         // ignore
@@ -61,16 +146,24 @@ public class TrapRelayClient {
             }
         }));
         trapHandlers = new ArrayList<TrapHandler>();
+        trapInfoHandlers = new ArrayList<TrapInfoHandler>();
+        trapViewHandlers = new ArrayList<TrapViewHandler>();
+        rawTrapHandlers = new ArrayList<RawTrapHandler>();
+        trapView = new TrapView();
+        rawTrap = new RawTrap();
     }
 
     public void connectToServer(String serverAddress, int serverPort) {
-        SSLSocketFactory sslSocketFactory =
-                (SSLSocketFactory) SSLSocketFactory.getDefault();
+        SSLSocketFactory sslSocketFactory = socketFactory != null
+                ? socketFactory : (SSLSocketFactory) SSLSocketFactory.getDefault();
 
         try {
             socket = sslSocketFactory.createSocket(serverAddress, serverPort);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintStream(socket.getOutputStream());
+            // ACKs and commands are small, don't hold them back until the previous segment is acknowledged
+            socket.setTcpNoDelay(true);
+            rawIn = new BufferedInputStream(socket.getInputStream());
+            // commands are flushed explicitly, each one goes out in a single TLS record
+            out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, "UTF-8");
 
         } catch (UnknownHostException e) {
             System.err.println("Unknown host: " + serverAddress);
@@ -78,31 +171,77 @@ public class TrapRelayClient {
             System.err.println("Failed connecting with " + serverAddress + ". Is the relay service running?");
         }
 
-        if (socket != null && in != null && out != null) {
+        if (socket != null && rawIn != null && out != null) {
             try {
-                out.println("REGISTER all");
+                StringBuilder register = new StringBuilder("REGISTER ").append(selectors);
+                if (ackWindow > 0) {
+                    register.append(" WINDOW ").append(ackWindow);
+                }
+                if (from != null) {
+                    register.append(" FROM ").append(from);
+                }
+                if (!"json".equals(format)) {
+                    register.append(" FORMAT ").append(format);
+                }
+                if (compression != null) {
+                    register.append(" COMPRESS ").append(compression);
+                }
+                if (where != null) {
+                    // takes the rest of the line
+                    register.append(" WHERE ").append(where);
+                }
+                out.print(register.append('\n'));
+                out.flush();
 
+                // window granted by the server, 0 if it only supports one trap per round trip
+                int grantedWindow = 0;
+                boolean binary = false;
+                boolean raw = false;
+                // the server may decline compression, e.g. for clients on the same host
+                boolean compressed = false;
+
+                // read byte by byte, binary frames may follow the response line
                 String responseLine;
-                waitForResigsterResponse: while ((responseLine = in.readLine()) != null) {
+                waitForResigsterResponse: while ((responseLine = readResponseLine()) != null) {
                     System.out.println("Server: " + responseLine);
                     if (responseLine.indexOf("OK") != -1) {
+                        String[] tokens = responseLine.trim().split("\\s+");
+                        for (int i = 1; i + 1 < tokens.length; i++) {
+                            if ("WINDOW".equals(tokens[i])) {
+                                grantedWindow = Integer.parseInt(tokens[i + 1]);
+                            } else if ("FORMAT".equals(tokens[i])) {
+                                raw = "raw".equals(tokens[i + 1]);
+                                binary = "binary".equals(tokens[i + 1]) || raw;
+                            } else if ("COMPRESS".equals(tokens[i])) {
+                                compressed = "deflate".equals(tokens[i + 1]);
+                            }
+                        }
                         System.out.println("registered");
+                        if (compressed) {
+                            // everything after the response line is one DEFLATE stream, the bytes of it
+                            // already buffered are passed on
+                            rawIn = new BufferedInputStream(new InflatingInputStream(rawIn), 64 * 1024);
+                        }
                         break waitForResigsterResponse;
                     }
                 }
 
-                // event loop
-                receiveTraps: while ((responseLine = in.readLine()) != null) {
-                    for (TrapHandler handler : trapHandlers) {
-                        handler.handleTrap(responseLine);
+                if (pipelineThreads > 0) {
+                    pipeline = new TrapPipeline(this, pipelineThreads, pipelineDepth, ackMode, grantedWindow);
+                }
+                try {
+                    if (binary) {
+                        receiveFrames(grantedWindow, raw);
+                    } else {
+                        receiveLines(grantedWindow);
                     }
-                    //System.out.println("Sending ACK");
-                    out.println("ACK");
+                } finally {
+                    stopPipeline();
                 }
 
                 // close everything
                 out.close();
-                in.close();
+                rawIn.close();
                 socket.close();
             } catch (UnknownHostException e) {
                 System.err.println("Unknown host: " + e);
@@ -112,7 +251,416 @@ public class TrapRelayClient {
         }
     }
 
+    /**
+     * @return a line sent by the server, null at the end of the stream
+     */
+    private String readResponseLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = rawIn.read()) != '\n') {
+            if (b < 0) {
+                return line.size() > 0 ? line.toString("UTF-8") : null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Receives traps in JSON format, one per line. Lines are split and parsed in the receive buffer, a String is
+     * only created for TrapHandlers.
+     *
+     * @param grantedWindow
+     */
+    private void receiveLines(int grantedWindow) throws IOException {
+        // in windowed mode acknowledge cumulatively, when no more traps are buffered
+        // or half of the window is used up
+        int ackThreshold = Math.max(1, grantedWindow / 2);
+        int unacknowledged = 0;
+        long lastSequence = 0;
+
+        JsonTrapParser parser = new JsonTrapParser();
+        byte[] buf = new byte[64 * 1024];
+        // unprocessed bytes are buf[start..end)
+        int start = 0;
+        int end = 0;
+        // where the search for the next line terminator continues
+        int scan = 0;
+
+        // event loop
+        receiveTraps: while (true) {
+            int lineEnd = indexOf(buf, scan, end, (byte) '\n');
+            if (lineEnd == -1) {
+                scan = end;
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    scan -= start;
+                    start = 0;
+                }
+                if (end == buf.length) {
+                    byte[] enlarged = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, enlarged, 0, end);
+                    buf = enlarged;
+                }
+                int n = rawIn.read(buf, end, buf.length - end);
+                if (n < 0) {
+                    break receiveTraps;
+                }
+                end += n;
+                continue receiveTraps;
+            }
+            int lineStart = start;
+            start = lineEnd + 1;
+            scan = start;
+            if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+
+            int trapStart = lineStart;
+            long sequence = 0;
+            if (grantedWindow > 0) {
+                // TRAP <seq> <trap>
+                int sequenceEnd = startsWith(buf, lineStart, lineEnd, TRAP_PREFIX)
+                        ? indexOf(buf, lineStart + TRAP_PREFIX.length, lineEnd, (byte) ' ') : -1;
+                if (sequenceEnd == -1) {
+                    System.out.println("Server: " + new String(buf, lineStart, lineEnd - lineStart, UTF8));
+                    continue receiveTraps;
+                }
+                sequence = parseDecimal(buf, lineStart + TRAP_PREFIX.length, sequenceEnd);
+                lastSequence = sequence;
+                trapStart = sequenceEnd + 1;
+            }
+
+            TrapPipeline.Entry entry = pipeline != null ? pipeline.take() : null;
+            TrapView view = entry != null ? entry.view : trapView;
+            String line = trapHandlers.isEmpty() ? null : new String(buf, trapStart, lineEnd - trapStart, UTF8);
+            boolean parsed = false;
+            // the pipeline needs the source of the trap to keep the traps of an agent in order
+            if ((entry != null || !trapViewHandlers.isEmpty() || !trapInfoHandlers.isEmpty())
+                    && startsWith(buf, trapStart, lineEnd, JSON_PREFIX)) {
+                int jsonStart = trapStart + JSON_PREFIX.length;
+                try {
+                    parser.parse(buf, jsonStart, lineEnd - jsonStart, view);
+                    parsed = true;
+                } catch (ProtocolException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+            view.sequence = sequence;
+            dispatch(entry, view, line, parsed);
+
+            if (!readerAcknowledges()) {
+                continue receiveTraps;
+            }
+            if (grantedWindow > 0) {
+                unacknowledged++;
+                if (unacknowledged >= ackThreshold
+                        || (indexOf(buf, start, end, (byte) '\n') == -1 && rawIn.available() == 0)) {
+                    acknowledge(String.valueOf(lastSequence));
+                    unacknowledged = 0;
+                }
+            } else {
+                acknowledge(null);
+            }
+        }
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] buf, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseDecimal(byte[] buf, int from, int to) throws ProtocolException {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                throw new ProtocolException("Invalid sequence number");
+            }
+            value = value * 10 + (buf[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Runs the handlers of a trap, on the reader thread or hands it to the pipeline
+     *
+     * @param entry entry of the pipeline the view belongs to, null without pipeline
+     */
+    private void dispatch(TrapPipeline.Entry entry, TrapView view, String line, boolean parsed) {
+        if (entry == null) {
+            handleTrap(view, line, parsed);
+            return;
+        }
+        entry.line = line;
+        entry.parsed = parsed;
+        pipeline.submit(entry);
+    }
+
+    /**
+     * Passes a trap to the handlers
+     *
+     * @param view the trap
+     * @param line the trap line for TrapHandlers, null if there are none
+     * @param parsed false if the view couldn't be filled, only TrapHandlers get the trap then
+     */
+    void handleTrap(TrapView view, String line, boolean parsed) {
+        if (line != null) {
+            for (TrapHandler handler : trapHandlers) {
+                handler.handleTrap(line);
+            }
+        }
+        if (!parsed) {
+            return;
+        }
+        for (TrapViewHandler handler : trapViewHandlers) {
+            handler.handleTrap(view);
+        }
+        if (!trapInfoHandlers.isEmpty()) {
+            JsonTrapInfo trapInfo = view.toTrapInfo();
+            for (TrapInfoHandler handler : trapInfoHandlers) {
+                handler.handleTrap(trapInfo);
+            }
+        }
+    }
+
+    /**
+     * @return false if the pipeline acknowledges the traps once they are handled
+     */
+    private boolean readerAcknowledges() {
+        return pipeline == null || ackMode == TrapPipeline.AckMode.ENQUEUED;
+    }
+
+    private void stopPipeline() {
+        if (pipeline == null) {
+            return;
+        }
+        try {
+            pipeline.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pipeline = null;
+    }
+
+    /**
+     * Sends an acknowledgement, from the reader or a pipeline worker
+     *
+     * @param sequence the last trap received, cumulative. null for the one trap sent without a window.
+     */
+    void acknowledge(String sequence) {
+        synchronized (out) {
+            out.print(sequence != null ? "ACK " + sequence + "\n" : "ACK\n");
+            out.flush();
+        }
+    }
+
+    /**
+     * Asks the server for its statistics. The answer ("STAT ..." lines and "END") is printed like other lines from
+     * the server; needs an acknowledgement window or the binary format, otherwise the lines would be taken as traps.
+     */
+    public void requestStatistics() {
+        synchronized (out) {
+            out.print("STATS\n");
+            out.flush();
+        }
+    }
+
+    /**
+     * Receives traps in binary or raw format, as length prefixed frames. Raw traps are handled by the reader, they
+     * are only valid until the handlers return.
+     *
+     * @param grantedWindow
+     * @param raw true for the raw format
+     */
+    private void receiveFrames(int grantedWindow, boolean raw) throws IOException {
+        int ackThreshold = Math.max(1, grantedWindow / 2);
+        int unacknowledged = 0;
+        long lastSequence = 0;
+
+        BinaryTrapDecoder decoder = new BinaryTrapDecoder();
+        DataInputStream frames = new DataInputStream(rawIn);
+        byte[] frame = new byte[1024];
+
+        long frameLength;
+        receiveTraps: while ((frameLength = BinaryTrapDecoder.readVarint(rawIn)) >= 0) {
+            if (frameLength == 0 || frameLength > MAX_FRAME_LENGTH) {
+                throw new ProtocolException("Invalid frame length " + frameLength);
+            }
+            if (frameLength > frame.length) {
+                frame = new byte[(int) frameLength];
+            }
+            frames.readFully(frame, 0, (int) frameLength);
+            int length = (int) frameLength;
+
+            switch (frame[0]) {
+                case FRAME_TRAP:
+                    lastSequence = decoder.readVarint(frame, 1, length - 1);
+                    int trapStart = decoder.getPosition();
+                    if (raw) {
+                        rawTrap.read(frame, trapStart, length - trapStart);
+                        rawTrap.sequence = lastSequence;
+                        for (RawTrapHandler handler : rawTrapHandlers) {
+                            handler.handleTrap(rawTrap);
+                        }
+                        break;
+                    }
+                    TrapPipeline.Entry entry = pipeline != null ? pipeline.take() : null;
+                    TrapView view = entry != null ? entry.view : trapView;
+                    decoder.decode(frame, trapStart, length - trapStart, view);
+                    view.sequence = lastSequence;
+                    dispatch(entry, view, null, true);
+                    break;
+                case FRAME_GAP:
+                    long first = decoder.readVarint(frame, 1, length - 1);
+                    long last = decoder.readVarint(frame, decoder.getPosition(), length - decoder.getPosition());
+                    System.out.println("Server: GAP " + first + " " + last);
+                    continue receiveTraps;
+                case FRAME_TEXT:
+                    System.out.println("Server: " + new String(frame, 1, length - 1, "UTF-8"));
+                    continue receiveTraps;
+                default:
+                    // frame types of newer servers
+                    continue receiveTraps;
+            }
+
+            if (!raw && !readerAcknowledges()) {
+                continue receiveTraps;
+            }
+            if (grantedWindow > 0) {
+                unacknowledged++;
+                if (unacknowledged >= ackThreshold || rawIn.available() == 0) {
+                    acknowledge(String.valueOf(lastSequence));
+                    unacknowledged = 0;
+                }
+            } else {
+                acknowledge(null);
+            }
+        }
+    }
+
+    /**
+     * @param compression "deflate" to ask the server to compress the traps, a DEFLATE stream with a sync flush
+     *                    after each batch. null (default) for no compression.
+     */
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @param ackWindow number of traps the server may send without waiting for an acknowledgement,
+     *                  0 to acknowledge every trap before the next one is sent
+     */
+    public void setAckWindow(int ackWindow) {
+        this.ackWindow = ackWindow;
+    }
+
+    /**
+     * @param selectors "all", or OID prefixes (1.3.6.1.4.1.9) and source networks (10.0.0.0/8) of the traps to
+     *                  receive, separated by spaces
+     */
+    public void setSelectors(String selectors) {
+        this.selectors = selectors;
+    }
+
+    /**
+     * @param from sequence number or timestamp (yyyy-MM-dd'T'HH:mm:ss.SSSZ) of the first trap to receive,
+     *             null to start with the next trap the server receives. Needs the trap journal on the server.
+     */
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    /**
+     * @param where expression on the variables of the traps to receive, e.g. "$1.3.6.1.2.1.2.2.1.8 == 2", evaluated
+     *              by the server for the traps the selectors match. null (default) to receive all of them.
+     */
+    public void setWhere(String where) {
+        this.where = where;
+    }
+
+    /**
+     * @param format "json" (default), "binary" or "raw". Traps in binary format are not passed to TrapHandlers, traps
+     *               in raw format only to RawTrapHandlers. The server relays them in raw format only in passthrough
+     *               mode.
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    /**
+     * @param pipelineThreads number of threads running the handlers, traps of one source are handled by the same
+     *                        thread in the order received. 0 (default) runs the handlers on the thread reading
+     *                        the connection.
+     */
+    public void setPipelineThreads(int pipelineThreads) {
+        this.pipelineThreads = pipelineThreads;
+    }
+
+    /**
+     * @param pipelineDepth number of traps in the pipeline before reading from the server pauses
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * @param ackMode whether traps are acknowledged when the handlers are done with them (default) or when they are
+     *                handed to the pipeline. Only used with pipelineThreads.
+     */
+    public void setAckMode(TrapPipeline.AckMode ackMode) {
+        this.ackMode = ackMode;
+    }
+
+    /**
+     * @param socketFactory creates the TLS connection to the server, e.g. of an SSLContext with its own key and
+     *                      trust store. By default the javax.net.ssl system properties configure it.
+     */
+    public void setSocketFactory(SSLSocketFactory socketFactory) {
+        this.socketFactory = socketFactory;
+    }
+
     public void addTrapHandler(TrapHandler trapHandler) {
         this.trapHandlers.add(trapHandler);
     }
+
+    public void addTrapInfoHandler(TrapInfoHandler trapInfoHandler) {
+        this.trapInfoHandlers.add(trapInfoHandler);
+    }
+
+    /**
+     * Adds a handler of the undecoded SNMP messages, raw format only. It runs on the thread reading the connection.
+     *
+     * @param rawTrapHandler
+     */
+    public void addRawTrapHandler(RawTrapHandler rawTrapHandler) {
+        this.rawTrapHandlers.add(rawTrapHandler);
+    }
+
+    /**
+     * Adds a handler on the fast path, it gets a reused view of each trap instead of a new object
+     *
+     * @param trapViewHandler
+     */
+    public void addTrapViewHandler(TrapViewHandler trapViewHandler) {
+        this.trapViewHandlers.add(trapViewHandler);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,378 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * A received trap, reused for every trap of a connection.
+ *
+ * The text of all fields is kept in one char array, the fields are CharSequence views of it. Filling the view
+ * doesn't allocate once the arrays have grown to the size of the largest trap. A view and its fields are only
+ * valid until the handler returns, copy what has to be kept (toString(), toTrapInfo()).
+ */
+public class TrapView {
+
+    /**
+     * A field of the view, characters of the view's text
+     */
+    public final class Text implements CharSequence {
+
+        int offset;
+        int length;
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        /**
+         * @param s
+         * @return true if the text equals s, without creating a String
+         */
+        public boolean contentEquals(CharSequence s) {
+            if (s.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (chars[offset + i] != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, length);
+        }
+    }
+
+    // text of all fields
+    char[] chars = new char[1024];
+    int charCount;
+
+    long sequence;
+
+    final Text trapSrc = new Text();
+    final Text timestamp = new Text();
+    final Text secLevel = new Text();
+    final Text secModel = new Text();
+    final Text secName = new Text();
+
+    // the timestamp is either received as text (JSON) or as ms (binary), the other form is made on demand
+    boolean timestampTextValid;
+    long timestampMillis;
+    boolean timestampMillisValid;
+    Calendar calendar;
+
+    Text[] oids = new Text[0];
+    Text[] values = new Text[0];
+    int variableCount;
+
+    void reset() {
+        charCount = 0;
+        sequence = 0;
+        trapSrc.length = 0;
+        timestamp.length = 0;
+        secLevel.length = 0;
+        secModel.length = 0;
+        secName.length = 0;
+        timestampTextValid = false;
+        timestampMillisValid = false;
+        variableCount = 0;
+    }
+
+    void set(Text text, char[] src, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(src, offset, chars, charCount, length);
+        text.offset = charCount;
+        text.length = length;
+        charCount += length;
+    }
+
+    void set(Text text, String s) {
+        ensureCapacity(s.length());
+        s.getChars(0, s.length(), chars, charCount);
+        text.offset = charCount;
+        text.length = s.length();
+        charCount += s.length();
+    }
+
+    /**
+     * Starts a text that is appended char by char
+     */
+    void begin(Text text) {
+        text.offset = charCount;
+        text.length = 0;
+    }
+
+    void append(Text text, char c) {
+        ensureCapacity(1);
+        chars[charCount++] = c;
+        text.length++;
+    }
+
+    void appendDecimal(Text text, long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                appendString(text, Long.toString(value));
+                return;
+            }
+            append(text, '-');
+            value = -value;
+        }
+        ensureCapacity(20);
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = charCount + digits - 1; i >= charCount; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        charCount += digits;
+        text.length += digits;
+    }
+
+    void appendString(Text text, String s) {
+        ensureCapacity(s.length());
+        s.getChars(0, s.length(), chars, charCount);
+        charCount += s.length();
+        text.length += s.length();
+    }
+
+    /**
+     * Adds a variable binding, its OID and value texts are filled by the caller
+     *
+     * @return index of the variable binding
+     */
+    int addVariable() {
+        if (variableCount == oids.length) {
+            int size = Math.max(8, oids.length * 2);
+            Text[] newOids = new Text[size];
+            Text[] newValues = new Text[size];
+            System.arraycopy(oids, 0, newOids, 0, variableCount);
+            System.arraycopy(values, 0, newValues, 0, variableCount);
+            for (int i = variableCount; i < size; i++) {
+                newOids[i] = new Text();
+                newValues[i] = new Text();
+            }
+            oids = newOids;
+            values = newValues;
+        }
+        return variableCount++;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (charCount + additional > chars.length) {
+            // the texts only store offsets, they see the new array
+            char[] enlarged = new char[Math.max(chars.length * 2, charCount + additional)];
+            System.arraycopy(chars, 0, enlarged, 0, charCount);
+            chars = enlarged;
+        }
+    }
+
+    void setTimestampMillis(long millis) {
+        timestampMillis = millis;
+        timestampMillisValid = true;
+    }
+
+    void timestampTextSet() {
+        timestampTextValid = true;
+    }
+
+    /**
+     * @return sequence number of the trap, 0 if the server didn't send one (no acknowledgement window)
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Text getTrapSrc() {
+        return trapSrc;
+    }
+
+    /**
+     * @return receive time as yyyy-MM-dd'T'HH:mm:ss.SSSZ
+     */
+    public Text getTimestamp() {
+        if (!timestampTextValid && timestampMillisValid) {
+            formatTimestamp();
+        }
+        return timestamp;
+    }
+
+    /**
+     * @return receive time in ms since the epoch, -1 if the timestamp is missing or malformed
+     */
+    public long getTimestampMillis() {
+        if (!timestampMillisValid) {
+            timestampMillis = timestampTextValid ? parseTimestamp() : -1;
+            timestampMillisValid = true;
+        }
+        return timestampMillis;
+    }
+
+    public Text getSecLevel() {
+        return secLevel;
+    }
+
+    public Text getSecModel() {
+        return secModel;
+    }
+
+    public Text getSecName() {
+        return secName;
+    }
+
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    public Text getOid(int index) {
+        checkVariableIndex(index);
+        return oids[index];
+    }
+
+    public Text getValue(int index) {
+        checkVariableIndex(index);
+        return values[index];
+    }
+
+    private void checkVariableIndex(int index) {
+        if (index < 0 || index >= variableCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+    }
+
+    /**
+     * @return a copy of the trap, which stays valid. Names and labels of the OIDs aren't kept by the view, they
+     *         are left empty.
+     */
+    public JsonTrapInfo toTrapInfo() {
+        JsonTrapInfo trapInfo = new JsonTrapInfo();
+        long millis = getTimestampMillis();
+        if (millis >= 0) {
+            trapInfo.setTimestamp(new Date(millis));
+        }
+        trapInfo.setTrapSrc(trapSrc.toString());
+        trapInfo.setSecLevel(secLevel.toString());
+        trapInfo.setSecModel(secModel.toString());
+        trapInfo.setSecName(secName.toString());
+        Map<String, String> variables = trapInfo.getVariables();
+        for (int i = 0; i < variableCount; i++) {
+            variables.put(oids[i].toString(), values[i].toString());
+        }
+        return trapInfo;
+    }
+
+    private Calendar calendar() {
+        if (calendar == null) {
+            calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        }
+        return calendar;
+    }
+
+    /**
+     * Parses yyyy-MM-dd'T'HH:mm:ss[.SSS]Z (Z as +hhmm) without creating objects
+     */
+    private long parseTimestamp() {
+        Text t = timestamp;
+        if (t.length < 24 || t.charAt(4) != '-' || t.charAt(7) != '-' || t.charAt(10) != 'T') {
+            return -1;
+        }
+        int position = 19;
+        int millis = 0;
+        if (t.charAt(position) == '.') {
+            millis = digits(t, 20, 3);
+            position = 23;
+        }
+        if (t.length != position + 5 || millis < 0) {
+            return -1;
+        }
+        int year = digits(t, 0, 4);
+        int month = digits(t, 5, 2);
+        int day = digits(t, 8, 2);
+        int hour = digits(t, 11, 2);
+        int minute = digits(t, 14, 2);
+        int second = digits(t, 17, 2);
+        int offsetHours = digits(t, position + 1, 2);
+        int offsetMinutes = digits(t, position + 3, 2);
+        char sign = t.charAt(position);
+        if ((year | month | day | hour | minute | second | offsetHours | offsetMinutes) < 0
+                || (sign != '+' && sign != '-')) {
+            return -1;
+        }
+        Calendar c = calendar();
+        c.clear();
+        c.set(year, month - 1, day, hour, minute, second);
+        long offset = (offsetHours * 60L + offsetMinutes) * 60000L;
+        return c.getTimeInMillis() + millis - (sign == '+' ? offset : -offset);
+    }
+
+    private static int digits(Text t, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = t.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Formats the timestamp in the default time zone, like the server does for the JSON format
+     */
+    private void formatTimestamp() {
+        Calendar c = calendar();
+        c.setTimeZone(TimeZone.getDefault());
+        c.setTimeInMillis(timestampMillis);
+        begin(timestamp);
+        appendDigits(c.get(Calendar.YEAR), 4);
+        append(timestamp, '-');
+        appendDigits(c.get(Calendar.MONTH) + 1, 2);
+        append(timestamp, '-');
+        appendDigits(c.get(Calendar.DAY_OF_MONTH), 2);
+        append(timestamp, 'T');
+        appendDigits(c.get(Calendar.HOUR_OF_DAY), 2);
+        append(timestamp, ':');
+        appendDigits(c.get(Calendar.MINUTE), 2);
+        append(timestamp, ':');
+        appendDigits(c.get(Calendar.SECOND), 2);
+        append(timestamp, '.');
+        appendDigits(c.get(Calendar.MILLISECOND), 3);
+        int offsetMinutes = (c.get(Calendar.ZONE_OFFSET) + c.get(Calendar.DST_OFFSET)) / 60000;
+        append(timestamp, offsetMinutes < 0 ? '-' : '+');
+        offsetMinutes = Math.abs(offsetMinutes);
+        appendDigits(offsetMinutes / 60, 2);
+        appendDigits(offsetMinutes % 60, 2);
+        c.setTimeZone(TimeZone.getTimeZone("UTC"));
+        timestampTextValid = true;
+    }
+
+    private void appendDigits(int value, int minDigits) {
+        for (int limit = 10; minDigits > 1; minDigits--, limit *= 10) {
+            if (value < limit) {
+                append(timestamp, '0');
+            }
+        }
+        appendDecimal(timestamp, value);
+    }
+}
@@ -2,10 +2,11 @@ package org.gobuki.net.snmp.traprelay.handler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.gobuki.net.snmp.traprelay.JsonTrapInfo;
+import org.gobuki.net.snmp.traprelay.TrapView;
 
 import java.io.IOException;
 
-public class JsonObjectTrapHandler implements TrapHandler {
+public class JsonObjectTrapHandler implements TrapHandler, TrapInfoHandler, TrapViewHandler {
 
     ObjectMapper mapper;
 
@@ -21,12 +22,7 @@ public class JsonObjectTrapHandler implements TrapHandler {
 
 
             try {
-                JsonTrapInfo trapInfo = mapper.readValue(strJsonTrapInfo, JsonTrapInfo.class);
-
-                System.out.println("Trap source: " + trapInfo.getTrapSrc());
-                for (String strOid : trapInfo.getVariables().keySet()) {
-                    System.out.println("\t" + strOid + ": " + trapInfo.getVariables().get(strOid));
-                }
+                handleTrap(mapper.readValue(strJsonTrapInfo, JsonTrapInfo.class));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -34,4 +30,20 @@ public class JsonObjectTrapHandler implements TrapHandler {
             // not a json trap
         }
     }
+
+    @Override
+    public void handleTrap(JsonTrapInfo trapInfo) {
+        System.out.println("Trap source: " + trapInfo.getTrapSrc());
+        for (String strOid : trapInfo.getVariables().keySet()) {
+            System.out.println("\t" + strOid + ": " + trapInfo.getVariables().get(strOid));
+        }
+    }
+
+    @Override
+    public void handleTrap(TrapView trap) {
+        System.out.println("Trap source: " + trap.getTrapSrc());
+        for (int i = 0; i < trap.getVariableCount(); i++) {
+            System.out.println("\t" + trap.getOid(i) + ": " + trap.getValue(i));
+        }
+    }
 }
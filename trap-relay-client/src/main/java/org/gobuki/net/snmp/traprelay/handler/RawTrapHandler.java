@@ -0,0 +1,13 @@
+package org.gobuki.net.snmp.traprelay.handler;
+
+import org.gobuki.net.snmp.traprelay.RawTrap;
+
+/**
+ * Handles traps in RAW format, the undecoded SNMP messages a server relays in passthrough mode.
+ *
+ * The client reuses the trap for every message, it is only valid until handleTrap() returns.
+ */
+public interface RawTrapHandler {
+
+    public void handleTrap(RawTrap trap);
+}
@@ -0,0 +1,18 @@
+package org.gobuki.net.snmp.traprelay.handler;
+
+import org.gobuki.net.snmp.traprelay.RawTrap;
+
+import java.io.IOException;
+
+public class SimpleLoggingRawTrapHandler implements RawTrapHandler {
+
+    @Override
+    public void handleTrap(RawTrap trap) {
+        try {
+            System.out.println("RAWTRAP " + trap.getSequence() + " " + trap.getSource() + " "
+                    + trap.getMessage().remaining() + " bytes: " + trap.decode());
+        } catch (IOException e) {
+            System.out.println("RAWTRAP " + trap.getSequence() + " undecodable: " + e.getMessage());
+        }
+    }
+}
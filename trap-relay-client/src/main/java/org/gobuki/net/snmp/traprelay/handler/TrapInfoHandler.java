@@ -0,0 +1,11 @@
+package org.gobuki.net.snmp.traprelay.handler;
+
+import org.gobuki.net.snmp.traprelay.JsonTrapInfo;
+
+/**
+ * Handles traps already decoded by the client, e.g. received in the binary format
+ */
+public interface TrapInfoHandler {
+
+    public void handleTrap(JsonTrapInfo trapInfo);
+}
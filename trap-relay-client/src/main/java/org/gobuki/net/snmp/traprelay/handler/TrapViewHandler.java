@@ -0,0 +1,13 @@
+package org.gobuki.net.snmp.traprelay.handler;
+
+import org.gobuki.net.snmp.traprelay.TrapView;
+
+/**
+ * Handles traps without creating objects per trap.
+ *
+ * The client reuses the view for every trap, it is only valid until handleTrap() returns.
+ */
+public interface TrapViewHandler {
+
+    public void handleTrap(TrapView trap);
+}
@@ -0,0 +1,915 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+
+/**
+ * State of one trap relay client connection.
+ *
+ * Replaces the former thread per client. A session is owned by exactly one SelectorLoop, all methods are only
+ * called from that loop's thread. Traps are read from the engine's TrapRingBuffer, the session only keeps the
+ * sequence number of the next trap to send.
+ *
+ * Protocol:
+ *  1. the client sends "REGISTER ...", the server answers "OK"
+ *  2. the server sends a trap line, the client acknowledges it with "ACK" before the next trap is sent
+ *  3. the client sends "QUIT" to close the connection
+ *
+ * Clients registering with "WINDOW n" (see RegisterCommand) get "OK WINDOW n" as answer. The server then keeps up
+ * to n unacknowledged traps in flight, sent as "TRAP &lt;seq&gt; &lt;trap&gt;", and the client acknowledges
+ * cumulatively with "ACK &lt;seq&gt;".
+ *
+ * A client which falls behind by more than the ring size is handled according to the SlowConsumerPolicy. When
+ * traps are skipped, windowed clients are told with "GAP &lt;first seq&gt; &lt;last seq&gt;".
+ * With the TrapJournal enabled, traps no longer in the ring are read from the journal instead, so a client
+ * registering with "FROM" first gets the traps it missed and then continues with the live ones.
+ *
+ * Clients registering with "FORMAT binary" get "OK ... FORMAT binary". After that line the server only sends
+ * frames, the client's commands stay text lines:
+ *
+ *   varint frame length | byte frame type | content
+ *
+ *   1 TRAP  varint sequence | trap encoded by the TrapEventBinaryConverter
+ *   2 GAP   varint first sequence | varint last sequence
+ *   3 TEXT  UTF-8 encoded line, without terminator
+ *
+ * Traps are written in batches: everything that is ready to be sent is collected in the output buffer and handed
+ * over to TLS at once, so a burst goes out in few TLS records and write calls instead of one per trap. A batch is
+ * flushed when it reaches batchBytes (one TLS record holds up to 16 KiB), and otherwise when no more traps are
+ * ready. With a batch linger time, windowed sessions wait up to that long for more traps before flushing a small
+ * batch.
+ *
+ * Clients registering with "COMPRESS deflate" get "OK ... COMPRESS deflate", unless compressionLevel is 0 or the
+ * client connects from this host (compressLoopback). Everything after that line goes through one Deflater kept for
+ * the whole session, so repeated keys and OID prefixes compress against all earlier traps. Each batch ends with a
+ * sync flush: the client can inflate all of it right away, compression adds no latency beyond the batch.
+ *
+ * A client, which doesn't acknowledge a trap within maximumAckWaitTime ms, is considered dead and disconnected.
+ * A client which hasn't finished the TLS handshake and sent REGISTER within registerTimeoutMillis of connecting is
+ * disconnected as well, so idle or half open connections don't hold on to a session and its buffers.
+ *
+ * "STATS" may be sent at any time after the handshake, the server answers with the TrapRelayStatistics as
+ * "STAT &lt;name&gt; &lt;value&gt;" lines followed by "END" (TEXT frames in binary format).
+ */
+public class ClientSession {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // longest command line a client may send
+    static final int MAX_COMMAND_LENGTH = 8192;
+
+    enum State {
+        HANDSHAKE, AWAITING_REGISTER, REGISTERED, CLOSED
+    }
+
+    enum ClientCommand {
+        REGISTER, ACK, QUIT, STATS
+    }
+
+    // frame types of the binary format
+    static final int FRAME_TRAP = 1;
+    static final int FRAME_GAP = 2;
+    static final int FRAME_TEXT = 3;
+
+    SelectorLoop loop;
+    TlsConnection tls;
+    SelectionKey key;
+
+    volatile State state = State.HANDSHAKE;
+
+    TrapRingBuffer ring;
+
+    // sequence number of the next trap to send, read by the engine for the BLOCK policy
+    volatile long cursor;
+
+    // the traps the client subscribed to, null for all traps
+    TrapFilter filter;
+
+    // condition on the variables of the traps, null for none. Only live traps are checked against it.
+    FilterExpression expression;
+
+    // subscription slot in the engine, -1 while not registered
+    int slot = -1;
+
+    // sequence number of the first trap published after the client registered. The engine matched later traps
+    // against the subscription, earlier ones are matched by the filter.
+    long liveFrom;
+
+    // sequence number of the last published trap the client subscribed to, written by the engine
+    volatile long lastMatched;
+
+    // reads traps which are no longer in the ring, null without journal
+    JournalReader journalReader;
+
+    // sequence numbers of sent, but not yet acknowledged traps, oldest first, with System.nanoTime() of sending
+    SequenceQueue inFlight;
+
+    // maximum number of traps in flight, 1 for clients without windowed acknowledgement
+    int ackWindow = 1;
+    boolean windowed;
+
+    // wire format of the traps
+    TrapFormat format = TrapFormat.JSON;
+
+    // set once the client was told that it gets binary frames from now on
+    boolean framed;
+
+    // upper limit for the window a client may request
+    int maxAckWindow;
+
+    // set while the session is queued in its loop for processing new traps
+    AtomicBoolean signalled;
+
+    // application data not yet handed over to the TLS engine, kept in write mode
+    ByteBuffer outBuffer;
+
+    // compresses the output, null without compression
+    Deflater deflater;
+
+    // output ready for TLS, compressed, but not written yet. Kept in write mode, null without compression.
+    ByteBuffer compressedOut;
+
+    // bytes of output before and after compression, for the statistics
+    long uncompressedBytes;
+    long compressedBytes;
+
+    // a batch is handed over to TLS once it has this many bytes
+    int batchBytes;
+
+    // how long a small batch may wait for more traps, 0 to flush as soon as no more traps are ready
+    long batchLingerNanos;
+
+    // System.nanoTime() when the lingering batch in outBuffer has to be flushed, 0 if none is lingering
+    long flushDeadline;
+
+    long ackDeadline;
+    long maximumAckWaitTime = 5000;
+
+    // System.currentTimeMillis() by which the client has to be registered
+    long registerDeadline;
+
+    TrapRelayStatistics statistics;
+
+    // traps sent and skipped because the client was too slow, written by the loop thread, read for the statistics
+    long sent;
+    long skipped;
+
+    String clientName;
+
+    // when the connection was accepted, System.nanoTime() and System.currentTimeMillis()
+    long acceptedAt;
+    long acceptedAtMillis;
+
+    public ClientSession(SelectorLoop loop, TlsConnection tls, int maxAckWindow) {
+        this.loop = loop;
+        this.tls = tls;
+        this.maxAckWindow = maxAckWindow;
+        this.ring = loop.getEngine().getRing();
+        if (loop.getEngine().getJournal() != null) {
+            this.journalReader = new JournalReader(loop.getEngine().getJournal());
+        }
+        this.inFlight = new SequenceQueue(16);
+        this.outBuffer = ByteBuffer.allocate(tls.getEngine().getSession().getApplicationBufferSize());
+        this.batchBytes = loop.getEngine().getBatchBytes();
+        this.batchLingerNanos = loop.getEngine().getBatchLingerNanos();
+        this.signalled = new AtomicBoolean(false);
+        this.statistics = loop.getEngine().getStatistics();
+        this.clientName = tls.getChannel().socket().getInetAddress() + ":" + tls.getChannel().socket().getPort();
+        this.acceptedAt = System.nanoTime();
+        this.acceptedAtMillis = System.currentTimeMillis();
+        this.registerDeadline = acceptedAtMillis + loop.getEngine().getRegisterTimeoutMillis();
+        if (loop.getEngine().getHandshakeExecutor() != null) {
+            tls.setTaskExecutor(loop.getEngine().getHandshakeExecutor(), new Runnable() {
+                @Override
+                public void run() {
+                    ClientSession.this.loop.signal(ClientSession.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Called by the selector loop when the socket is readable or writable
+     *
+     * @param readyOps the ready operations of the selection key
+     */
+    void handleIo(int readyOps) throws IOException {
+        boolean readable = (readyOps & SelectionKey.OP_READ) != 0;
+        if (state == State.HANDSHAKE) {
+            if (!tls.handshake()) {
+                updateInterest();
+                return;
+            }
+            handshakeFinished();
+            state = State.AWAITING_REGISTER;
+            // the REGISTER command may have arrived together with the last handshake message
+            readable = true;
+        }
+
+        if (readable) {
+            int n = tls.read();
+            processCommands();
+            if (n < 0) {
+                log("connection closed by client");
+                close();
+                return;
+            }
+        }
+
+        if (state != State.CLOSED) {
+            sendTraps();
+        }
+    }
+
+    private void handshakeFinished() {
+        statistics.handshake.record(System.nanoTime() - acceptedAt);
+        // a resumed session was created by an earlier connection
+        boolean resumed = tls.getEngine().getSession().getCreationTime() < acceptedAtMillis;
+        if (resumed) {
+            statistics.resumedHandshakes.incrementAndGet();
+        }
+        log("TLS handshake finished" + (resumed ? " (session resumed)" : "") + ", waiting for REGISTER command");
+    }
+
+    /**
+     * Parses complete command lines received from the client
+     */
+    void processCommands() throws IOException {
+        ByteBuffer appIn = tls.getAppIn();
+        appIn.flip();
+        try {
+            int lineStart = appIn.position();
+            for (int i = appIn.position(); i < appIn.limit() && state != State.CLOSED; i++) {
+                if (appIn.get(i) == '\n') {
+                    int lineEnd = i;
+                    if (lineEnd > lineStart && appIn.get(lineEnd - 1) == '\r') {
+                        lineEnd--;
+                    }
+                    handleCommand(decodeLine(appIn, lineStart, lineEnd));
+                    lineStart = i + 1;
+                    appIn.position(lineStart);
+                }
+            }
+            if (appIn.remaining() > MAX_COMMAND_LENGTH) {
+                log("command line too long");
+                close();
+            }
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    private static String decodeLine(ByteBuffer buffer, int start, int end) {
+        byte[] line = new byte[end - start];
+        for (int i = 0; i < line.length; i++) {
+            line[i] = buffer.get(start + i);
+        }
+        return new String(line, UTF8);
+    }
+
+    void handleCommand(String clientCommand) throws IOException {
+        String command = clientCommand;
+        int spacePos = clientCommand.indexOf(' ');
+        if (spacePos != -1) {
+            command = clientCommand.substring(0, spacePos);
+        }
+
+        if (ClientCommand.ACK.name().equals(command)) {
+            acknowledge(spacePos != -1 ? clientCommand.substring(spacePos + 1).trim() : null);
+        } else if (ClientCommand.REGISTER.name().equals(command)) {
+            if (state == State.AWAITING_REGISTER) {
+                register(clientCommand);
+            }
+        } else if (ClientCommand.QUIT.name().equals(command)) {
+            log("disconnected");
+            close();
+        } else if (ClientCommand.STATS.name().equals(command)) {
+            for (String line : statistics.report()) {
+                putLine(line);
+            }
+            writeLine("END");
+        } else {
+            log("received unknown command '" + clientCommand + "'");
+        }
+    }
+
+    private void register(String clientCommand) throws IOException {
+        RegisterCommand registerCommand;
+        try {
+            registerCommand = RegisterCommand.parse(clientCommand);
+            filter = TrapFilter.parse(registerCommand.getSelectors());
+            expression = registerCommand.getExpression() != null
+                    ? FilterExpression.parse(registerCommand.getExpression()) : null;
+        } catch (ProtocolException e) {
+            log("invalid REGISTER command: " + e.getMessage());
+            writeLine("ERROR " + e.getMessage());
+            return;
+        }
+        format = registerCommand.getFormat();
+        String error = null;
+        if (loop.getEngine().isPassthrough() != (format == TrapFormat.RAW)) {
+            error = loop.getEngine().isPassthrough() ? "traps are relayed undecoded, only FORMAT raw is available"
+                    : "FORMAT raw is only available in passthrough mode";
+        } else if (expression != null && loop.getEngine().isPassthrough()) {
+            error = "traps are relayed undecoded, WHERE is not available";
+        }
+        if (error != null) {
+            log("invalid REGISTER command: " + error);
+            writeLine("ERROR " + error);
+            return;
+        }
+        StringBuilder response = new StringBuilder("OK");
+        if (registerCommand.getAckWindow() > 0) {
+            windowed = true;
+            ackWindow = Math.min(registerCommand.getAckWindow(), maxAckWindow);
+            log("registered with an acknowledgement window of " + ackWindow + ", format " + format.getKeyword()
+                    + (expression != null ? ", where " + expression : ""));
+            response.append(" WINDOW ").append(ackWindow);
+        } else {
+            log("registered, format " + format.getKeyword() + (expression != null ? ", where " + expression : ""));
+        }
+        if (format != TrapFormat.JSON) {
+            response.append(" FORMAT ").append(format.getKeyword());
+        }
+        boolean compress = registerCommand.isCompress() && loop.getEngine().getCompressionLevel() > 0
+                && (loop.getEngine().isCompressLoopback()
+                || !tls.getChannel().socket().getInetAddress().isLoopbackAddress());
+        if (compress) {
+            response.append(" COMPRESS deflate");
+        }
+        writeLine(response.toString());
+        if (compress) {
+            startCompression();
+        }
+        framed = format != TrapFormat.JSON;
+        cursor = firstSequence(registerCommand);
+        if (cursor <= ring.getPublished()) {
+            log("resuming with trap " + cursor);
+        }
+        state = State.REGISTERED;
+        liveFrom = loop.getEngine().registered(this);
+    }
+
+    /**
+     * Compresses all further output
+     */
+    private void startCompression() {
+        deflater = new Deflater(loop.getEngine().getCompressionLevel(), true);
+        compressedOut = ByteBuffer.allocate(outBuffer.capacity());
+        // what the socket didn't take of the response goes out first, uncompressed
+        outBuffer.flip();
+        compressedOut.put(outBuffer);
+        outBuffer.clear();
+        log("compressing with DEFLATE level " + loop.getEngine().getCompressionLevel());
+    }
+
+    /**
+     * @param registerCommand
+     * @return sequence number of the first trap to send, the next one received unless the client asked for older
+     *         traps with FROM. Requested traps which are neither in the ring nor in the journal anymore are
+     *         announced as a gap and skipped.
+     */
+    private long firstSequence(RegisterCommand registerCommand) {
+        long next = ring.getPublished() + 1;
+        TrapJournal journal = loop.getEngine().getJournal();
+        long from;
+        if (registerCommand.getFromTimestamp() >= 0) {
+            if (journal == null) {
+                log("FROM a timestamp needs the trap journal, starting with the next trap");
+                return next;
+            }
+            from = journal.sequenceAt(registerCommand.getFromTimestamp());
+        } else if (registerCommand.getFromSequence() > 0) {
+            from = registerCommand.getFromSequence();
+        } else {
+            return next;
+        }
+        long oldest = ring.getOldestAvailable();
+        if (journal != null && journal.getFirstSequence() > 0) {
+            oldest = Math.min(oldest, journal.getFirstSequence());
+        }
+        oldest = Math.min(next, oldest);
+        if (from < oldest) {
+            log("traps " + from + " to " + (oldest - 1) + " are not available anymore");
+            writeGap(from, oldest - 1);
+            return oldest;
+        }
+        return Math.min(next, from);
+    }
+
+    /**
+     * Removes acknowledged traps from the in flight list
+     *
+     * @param strSequence sequence number of the last trap acknowledged, cumulative.
+     *                    null acknowledges the oldest trap in flight.
+     */
+    void acknowledge(String strSequence) {
+        long now = System.nanoTime();
+        if (strSequence == null || strSequence.isEmpty()) {
+            if (!inFlight.isEmpty()) {
+                statistics.writeToAck.record(now - inFlight.peekTimestamp());
+                inFlight.poll();
+            }
+        } else {
+            long sequence;
+            try {
+                sequence = Long.parseLong(strSequence);
+            } catch (NumberFormatException e) {
+                log("invalid ACK '" + strSequence + "'");
+                return;
+            }
+            while (!inFlight.isEmpty() && inFlight.peek() <= sequence) {
+                statistics.writeToAck.record(now - inFlight.peekTimestamp());
+                inFlight.poll();
+            }
+        }
+        // the client is alive, give the remaining traps in flight a new deadline
+        ackDeadline = System.currentTimeMillis() + maximumAckWaitTime;
+    }
+
+    /**
+     * Sends traps from the ring while the acknowledgement window has room and the socket isn't congested
+     */
+    void sendTraps() throws IOException {
+        if (!flushPending()) {
+            // the socket is congested, continue when it is writable
+            updateInterest();
+            return;
+        }
+
+        while (state == State.REGISTERED && inFlight.size() < ackWindow) {
+            long published = ring.getPublished();
+            if (cursor > published) {
+                break;
+            }
+            long sequence = cursor;
+            if (isSelective() && sequence >= liveFrom && lastMatched < sequence) {
+                // lastMatched is written before a trap is published: none of the remaining traps is for this client
+                cursor = published + 1;
+                break;
+            }
+            TrapRecord record = ring.slot(sequence);
+            TrapRoute route = record.getRoute();
+            long publishedNanos = record.getPublishedNanos();
+            if (record.getSequence() == sequence && !isSubscribed(sequence, route)) {
+                // the route is the trap's, it was read before the sequence. Skipped without converting the trap.
+                cursor = sequence + 1;
+                continue;
+            }
+            TrapPayload payload = record.acquire(sequence, format);
+            if (payload == null) {
+                ByteBuffer journalled = journalReader != null ? journalReader.read(sequence, format) : null;
+                if (journalled == null) {
+                    if (record.getSequence() == sequence) {
+                        // no converter for the client's format
+                        cursor = sequence + 1;
+                        continue;
+                    }
+                    skipOverwrittenTraps(sequence);
+                    continue;
+                }
+                cursor = sequence + 1;
+                if (filter == null || journalReader.matches(filter)) {
+                    // not published just now, no enqueueToWrite latency
+                    addInFlight(sequence, System.nanoTime());
+                    writeTrap(sequence, journalled);
+                    if (outBuffer.position() >= batchBytes && !flushOutput()) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            try {
+                cursor = sequence + 1;
+                long now = System.nanoTime();
+                statistics.enqueueToWrite.record(now - publishedNanos);
+                addInFlight(sequence, now);
+                writeTrap(sequence, payload);
+            } finally {
+                payload.release();
+            }
+            if (outBuffer.position() >= batchBytes && !flushOutput()) {
+                break;
+            }
+        }
+        if (outBuffer.position() > 0) {
+            finishBatch();
+        }
+        updateInterest();
+    }
+
+    /**
+     * Flushes the traps collected by sendTraps(), unless the batch may wait for more traps
+     */
+    private void finishBatch() throws IOException {
+        if (batchLingerNanos > 0 && windowed && state == State.REGISTERED && inFlight.size() < ackWindow
+                && outBuffer.position() < batchBytes) {
+            if (flushDeadline == 0) {
+                flushDeadline = System.nanoTime() + batchLingerNanos;
+                loop.lingering(this);
+            }
+            return;
+        }
+        flushOutput();
+    }
+
+    /**
+     * Called by the selector loop when the linger time of the batch passed
+     *
+     * @param now System.nanoTime()
+     * @return false while the batch has to wait longer
+     */
+    boolean flushExpiredBatch(long now) throws IOException {
+        if (flushDeadline == 0) {
+            return true;
+        }
+        if (now - flushDeadline < 0) {
+            return false;
+        }
+        flushOutput();
+        updateInterest();
+        return true;
+    }
+
+    /**
+     * @param sequence
+     * @param route
+     * @return true if the trap is for this client
+     */
+    private boolean isSubscribed(long sequence, TrapRoute route) {
+        if (!isSelective()) {
+            return true;
+        }
+        if (sequence >= liveFrom) {
+            // matched by the engine when the trap was published
+            return route.isRecipient(slot);
+        }
+        // the expression isn't checked for traps received before the client registered
+        return filter == null || filter.matches(route);
+    }
+
+    /**
+     * @return true if the client doesn't get all traps
+     */
+    private boolean isSelective() {
+        return filter != null || expression != null;
+    }
+
+    private void addInFlight(long sequence, long now) {
+        if (inFlight.isEmpty()) {
+            ackDeadline = System.currentTimeMillis() + maximumAckWaitTime;
+        }
+        inFlight.add(sequence, now);
+        sent++;
+    }
+
+    /**
+     * Called when the client fell so far behind, that the next trap for it was overwritten in the ring and isn't
+     * in the journal either
+     *
+     * @param sequence the overwritten trap
+     */
+    private void skipOverwrittenTraps(long sequence) throws IOException {
+        long oldest = ring.getOldestAvailable();
+        TrapJournal journal = loop.getEngine().getJournal();
+        if (journal != null && journal.getFirstSequence() > sequence) {
+            oldest = Math.min(oldest, journal.getFirstSequence());
+        }
+        oldest = Math.max(oldest, sequence + 1);
+        if (isSelective() && sequence >= liveFrom && lastMatched < oldest) {
+            // none of the lost traps was for this client
+            cursor = oldest;
+            return;
+        }
+        if (sequence < liveFrom) {
+            // received before the client registered and asked for with FROM, the ring didn't overrun the client
+            log("traps " + sequence + " to " + (oldest - 1) + " were dropped from the journal before they could be sent");
+        } else if (loop.getEngine().getSlowConsumerPolicy() == SlowConsumerPolicy.DISCONNECT) {
+            log("too slow, trap " + sequence + " was overwritten before it could be sent");
+            statistics.slowConsumerDisconnects.incrementAndGet();
+            close();
+            return;
+        } else {
+            log("too slow, skipping traps " + sequence + " to " + (oldest - 1));
+        }
+        // an upper bound, with a filter some of them weren't for this client
+        skipped += oldest - sequence;
+        statistics.skipped.addAndGet(oldest - sequence);
+        writeGap(sequence, oldest - 1);
+        cursor = oldest;
+    }
+
+    /**
+     * Tells windowed clients about traps they won't get
+     *
+     * @param first sequence number of the first missing trap
+     * @param last sequence number of the last missing trap
+     */
+    private void writeGap(long first, long last) {
+        if (framed) {
+            ensureOutputCapacity(32);
+            putVarint(outBuffer, 1 + varintSize(first) + varintSize(last));
+            outBuffer.put((byte) FRAME_GAP);
+            putVarint(outBuffer, first);
+            putVarint(outBuffer, last);
+        } else if (windowed) {
+            ensureOutputCapacity(48);
+            putAscii(outBuffer, "GAP ");
+            putDecimal(outBuffer, first);
+            outBuffer.put((byte) ' ');
+            putDecimal(outBuffer, last);
+            outBuffer.put((byte) '\n');
+        }
+    }
+
+    /**
+     * Copies the shared, already encoded trap into the output buffer
+     *
+     * @param sequence
+     * @param payload
+     */
+    void writeTrap(long sequence, TrapPayload payload) {
+        writeTrapPrefix(sequence, payload.length());
+        payload.writeTo(outBuffer);
+        if (!framed) {
+            outBuffer.put((byte) '\n');
+        }
+    }
+
+    /**
+     * Copies a trap read from the journal into the output buffer
+     *
+     * @param sequence
+     * @param payload view of the mapped journal segment
+     */
+    void writeTrap(long sequence, ByteBuffer payload) {
+        writeTrapPrefix(sequence, payload.remaining());
+        outBuffer.put(payload);
+        if (!framed) {
+            outBuffer.put((byte) '\n');
+        }
+    }
+
+    private void writeTrapPrefix(long sequence, int payloadLength) {
+        // "TRAP " + sequence + " " + payload + "\n", or frame length + type + sequence + payload
+        ensureOutputCapacity(payloadLength + 32);
+        if (framed) {
+            putVarint(outBuffer, 1 + varintSize(sequence) + payloadLength);
+            outBuffer.put((byte) FRAME_TRAP);
+            putVarint(outBuffer, sequence);
+        } else if (windowed) {
+            putAscii(outBuffer, "TRAP ");
+            putDecimal(outBuffer, sequence);
+            outBuffer.put((byte) ' ');
+        }
+    }
+
+    void writeLine(String line) throws IOException {
+        putLine(line);
+        flushOutput();
+    }
+
+    /**
+     * Adds a line to the output buffer, as TEXT frame in binary format
+     */
+    private void putLine(String line) {
+        byte[] data = line.getBytes(UTF8);
+        ensureOutputCapacity(data.length + 16);
+        if (framed) {
+            putVarint(outBuffer, 1 + data.length);
+            outBuffer.put((byte) FRAME_TEXT).put(data);
+        } else {
+            outBuffer.put(data).put((byte) '\n');
+        }
+    }
+
+    /**
+     * Hands the output buffer over to the TLS engine and writes as much as the socket takes
+     *
+     * @return true if nothing is pending anymore
+     */
+    boolean flushOutput() throws IOException {
+        flushDeadline = 0;
+        if (deflater != null) {
+            compress();
+            return flushPending();
+        }
+        outBuffer.flip();
+        try {
+            return tls.write(outBuffer);
+        } finally {
+            outBuffer.compact();
+        }
+    }
+
+    /**
+     * Moves the output buffer through the deflater, ending with a sync flush so the client gets the whole batch
+     */
+    private void compress() {
+        int length = outBuffer.position();
+        if (length == 0) {
+            return;
+        }
+        deflater.setInput(outBuffer.array(), outBuffer.arrayOffset(), length);
+        while (true) {
+            int n = deflater.deflate(compressedOut.array(), compressedOut.arrayOffset() + compressedOut.position(),
+                    compressedOut.remaining(), Deflater.SYNC_FLUSH);
+            compressedOut.position(compressedOut.position() + n);
+            compressedBytes += n;
+            if (compressedOut.hasRemaining()) {
+                // the deflater had room left, everything is flushed
+                break;
+            }
+            ByteBuffer enlarged = ByteBuffer.allocate(compressedOut.capacity() * 2);
+            compressedOut.flip();
+            enlarged.put(compressedOut);
+            compressedOut = enlarged;
+        }
+        uncompressedBytes += length;
+        outBuffer.clear();
+    }
+
+    /**
+     * Writes what the socket didn't take of earlier output
+     *
+     * @return true if nothing is pending anymore
+     */
+    private boolean flushPending() throws IOException {
+        if (!tls.flush()) {
+            return false;
+        }
+        if (compressedOut == null || compressedOut.position() == 0) {
+            return true;
+        }
+        compressedOut.flip();
+        try {
+            return tls.write(compressedOut);
+        } finally {
+            compressedOut.compact();
+        }
+    }
+
+    boolean hasPendingOutput() {
+        return tls.hasPendingOutput() || (compressedOut != null && compressedOut.position() > 0);
+    }
+
+    private void ensureOutputCapacity(int length) {
+        if (outBuffer.remaining() < length) {
+            ByteBuffer enlarged = ByteBuffer.allocate(Math.max(outBuffer.capacity() * 2, outBuffer.position() + length));
+            outBuffer.flip();
+            enlarged.put(outBuffer);
+            outBuffer = enlarged;
+        }
+    }
+
+    static void putAscii(ByteBuffer dst, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            dst.put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the decimal representation of a non negative number without creating a String
+     */
+    static void putDecimal(ByteBuffer dst, long value) {
+        if (value < 10) {
+            dst.put((byte) ('0' + value));
+            return;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        int end = dst.position() + digits;
+        for (int i = end - 1; i >= dst.position(); i--) {
+            dst.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        dst.position(end);
+    }
+
+    /**
+     * Writes an unsigned varint of the binary format, 7 bits per byte, least significant group first
+     */
+    static void putVarint(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * @return number of bytes putVarint() writes
+     */
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    void updateInterest() {
+        if (key.isValid()) {
+            if (tls.isRunningTasks()) {
+                // the handshake continues when the tasks are done, until then pending records stay unread
+                key.interestOps(0);
+                return;
+            }
+            int ops = SelectionKey.OP_READ;
+            // a lingering batch is flushed by the loop, not when the socket becomes writable
+            if (hasPendingOutput() || (outBuffer.position() > 0 && flushDeadline == 0)) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Checks the acknowledgement timeout, and the registration timeout of clients not registered yet
+     *
+     * @param now current time in ms
+     * @return true if the client is still alive
+     */
+    boolean checkTimeout(long now) {
+        if (isAwaitingRegister() && now - registerDeadline > 0) {
+            log((state == State.HANDSHAKE ? "TLS handshake not finished" : "no REGISTER command received")
+                    + " within " + loop.getEngine().getRegisterTimeoutMillis() + " ms of connecting");
+            close();
+            return false;
+        }
+        if (isAwaitingAck() && now - ackDeadline > 0) {
+            log("no ACK received within " + maximumAckWaitTime + " ms, client seems to be dead");
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (state == State.HANDSHAKE) {
+            statistics.failedHandshakes.incrementAndGet();
+        }
+        state = State.CLOSED;
+        if (key != null) {
+            key.cancel();
+        }
+        tls.close();
+        if (deflater != null) {
+            // frees the native memory right away
+            deflater.end();
+        }
+        inFlight.clear();
+        loop.getEngine().closed(this);
+    }
+
+    /**
+     * @return number of published traps the session hasn't looked at yet, 0 if none of them is for the client
+     */
+    public long getQueueDepth() {
+        long next = cursor;
+        if (state != State.REGISTERED || (isSelective() && next >= liveFrom && lastMatched < next)) {
+            return 0;
+        }
+        return Math.max(0, ring.getPublished() - next + 1);
+    }
+
+    public boolean isAwaitingAck() {
+        return !inFlight.isEmpty();
+    }
+
+    /**
+     * @return true during the TLS handshake and until the client registered
+     */
+    public boolean isAwaitingRegister() {
+        State current = state;
+        return current == State.HANDSHAKE || current == State.AWAITING_REGISTER;
+    }
+
+    public boolean isRegistered() {
+        return state == State.REGISTERED;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public void log(String message) {
+        System.out.println(getClientName() + ": " + message);
+    }
+
+    public String getClientName() {
+        return clientName;
+    }
+}
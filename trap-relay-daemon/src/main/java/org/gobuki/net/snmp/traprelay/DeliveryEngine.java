@@ -0,0 +1,435 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponderEvent;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Event driven delivery of traps to the connected clients.
+ *
+ * Client connections are spread round robin over a fixed number of selector threads, so the number of threads
+ * doesn't grow with the number of clients. The CPU heavy part of their TLS handshakes runs on a pool of
+ * handshakeThreads, so a storm of reconnecting clients doesn't hold up the delivery to the connected ones.
+ *
+ * Received traps are published once into a shared TrapRingBuffer. The sessions read them from there at their own
+ * pace, what happens to sessions which fall behind by more than the ring size is decided by the SlowConsumerPolicy.
+ * If the TrapJournal is enabled, traps are written to it first. Sessions which were overtaken by the ring or
+ * which resume from an older trap read from the journal then.
+ *
+ * Only the sessions subscribed to a trap are looked up (SubscriptionIndex) and woken up. Of these, sessions with a
+ * WHERE expression only get it if its variables satisfy the expression (ExpressionIndex). The trap's route records
+ * them, the other sessions skip the trap without further checks. The receiver threads match and evaluate traps at
+ * the same time, under the read lock of the indexes; registering and closing sessions takes the write lock. Only
+ * the journal append, setting the matched sessions' lastMatched and storing the trap in the ring are serialized
+ * by the ring's lock.
+ *
+ * A trap is converted to a TrapFormat when the first subscribed session reads it in that format, by the session's
+ * selector thread, and only once. Traps nobody is subscribed to are never converted. With the journal enabled the
+ * receiver threads convert each trap to all formats before it is published, clients may resume from the journal
+ * in any format later. In passthrough mode traps are not decoded at all, they are published as received in the RAW
+ * format only.
+ */
+public class DeliveryEngine {
+
+    SelectorLoop[] loops;
+    int nextLoop;
+
+    // runs the TLS handshake tasks, null to run them on the selector threads
+    ExecutorService handshakeExecutor;
+    int handshakeThreads;
+
+    // registered sessions, iterated for every trap, modified only on register/disconnect
+    List<ClientSession> registeredSessions;
+
+    AtomicInteger clientCount;
+
+    // upper limit for the acknowledgement window clients may request
+    int maxAckWindow;
+
+    // how long a client may take from connecting until it registered, TLS handshake included
+    long registerTimeoutMillis;
+
+    TrapRingBuffer ring;
+
+    // null if disabled
+    TrapJournal journal;
+
+    SlowConsumerPolicy slowConsumerPolicy;
+
+    // how long a publishing receiver thread waits for slow clients with the BLOCK policy
+    long blockBudgetNanos;
+
+    SubscriptionIndex subscriptions;
+
+    // WHERE expressions of the sessions, checked for the sessions the subscriptions matched
+    ExpressionIndex expressions;
+
+    // registered sessions by subscription slot
+    ClientSession[] sessionsBySlot;
+
+    // guards subscriptions, expressions and sessionsBySlot: read by the publishing receiver threads, written when a
+    // session is registered or closed. No trap is being published while the write lock is held.
+    ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    /**
+     * What a receiver thread needs to match traps
+     */
+    static class MatchState {
+        final SubscriptionIndex.Match match;
+        final ExpressionIndex.Evaluation evaluation;
+
+        MatchState(SubscriptionIndex.Match match, ExpressionIndex.Evaluation evaluation) {
+            this.match = match;
+            this.evaluation = evaluation;
+        }
+    }
+
+    ThreadLocal<MatchState> matchStates = new ThreadLocal<MatchState>() {
+        @Override
+        protected MatchState initialValue() {
+            return new MatchState(subscriptions.newMatch(), expressions.newEvaluation());
+        }
+    };
+
+    // batching of the traps written to a session, see ClientSession
+    int batchBytes;
+    long batchLingerNanos;
+
+    // DEFLATE level for clients asking for compression, 0 to decline; compress for clients on this host too
+    int compressionLevel;
+    boolean compressLoopback;
+
+    // traps are relayed as received, sessions have to use the RAW format
+    boolean passthrough;
+
+    TrapRelayStatistics statistics;
+
+    // lowest cursor of all sessions seen by the last check, avoids scanning the sessions for every trap
+    volatile long gatingSequence;
+
+    /**
+     * @param config
+     * @param clientCount
+     * @param statistics
+     * @param converters the converter of each format the sessions may choose
+     * @throws IOException if the journal can't be opened
+     */
+    public DeliveryEngine(TrapRelayConfig config, AtomicInteger clientCount, TrapRelayStatistics statistics,
+                          Map<TrapFormat, TrapEventConverter<TrapPayload>> converters) throws IOException {
+        this.clientCount = clientCount;
+        this.statistics = statistics;
+        this.maxAckWindow = config.getInt("maxAckWindow", 1024);
+        this.registerTimeoutMillis = Math.max(1, config.getLong("registerTimeoutMillis", 10000));
+        this.journal = TrapJournal.create(config);
+        // sequence numbers continue after the traps in the journal
+        this.ring = new TrapRingBuffer(config.getInt("ringSize", 16384), journal != null ? journal.getLastSequence() : 0,
+                converters);
+        this.slowConsumerPolicy = SlowConsumerPolicy.parse(config.getString("slowConsumerPolicy", "skip"));
+        this.blockBudgetNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("blockBudgetMillis", 100));
+        this.batchBytes = Math.max(1, config.getInt("batchBytes", 16384));
+        this.batchLingerNanos = TimeUnit.MICROSECONDS.toNanos(config.getLong("batchLingerMicros", 0));
+        this.compressionLevel = Math.max(0, Math.min(9, config.getInt("compressionLevel", 6)));
+        this.compressLoopback = config.getBoolean("compressLoopback", false);
+        this.passthrough = config.getBoolean("passthrough", false);
+        this.registeredSessions = new CopyOnWriteArrayList<ClientSession>();
+        this.subscriptions = new SubscriptionIndex();
+        this.expressions = new ExpressionIndex();
+        this.sessionsBySlot = new ClientSession[subscriptions.capacity()];
+        int selectorThreads = config.getInt("selectorThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.loops = new SelectorLoop[Math.max(1, selectorThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(this, "Client Selector " + i);
+        }
+        this.handshakeThreads = Math.max(0, config.getInt("handshakeThreads", Runtime.getRuntime().availableProcessors()));
+        if (handshakeThreads > 0) {
+            this.handshakeExecutor = Executors.newFixedThreadPool(handshakeThreads, new ThreadFactory() {
+                final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "TLS Handshake " + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public void start() {
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+        if (journal != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread("Trap Journal Shutdown") {
+                @Override
+                public void run() {
+                    journal.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Assigns an accepted client connection to one of the selector threads
+     *
+     * @param channel
+     * @param sslEngine
+     * @throws IOException
+     */
+    public void addConnection(SocketChannel channel, SSLEngine sslEngine) throws IOException {
+        SelectorLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        loop.addConnection(channel, sslEngine);
+        System.out.println("connection opened; client count: " + clientCount.incrementAndGet());
+    }
+
+    /**
+     * Publishes a trap to the subscribed clients. Called by the trap receiver threads.
+     *
+     * @param payloads the converted trap by format ordinal, all formats if the journal is enabled, otherwise null.
+     *                 The engine takes over the caller's references.
+     * @param event the received trap, converted when the sessions read it
+     * @param receivedMillis System.currentTimeMillis() when it was received
+     * @param route what the subscriptions are matched against
+     * @return the sequence number of the trap
+     */
+    public long publish(TrapPayload[] payloads, CommandResponderEvent event, long receivedMillis, TrapRoute route) {
+        // with a journal slow sessions continue from there, nobody has to wait for them
+        boolean block = journal == null && slowConsumerPolicy == SlowConsumerPolicy.BLOCK;
+        long blockDeadline = block ? System.nanoTime() + blockBudgetNanos : 0;
+        MatchState state = matchStates.get();
+        long sequence;
+        ClientSession[] sessions;
+        int filtered;
+        while (true) {
+            if (block) {
+                waitForSlowConsumers(blockDeadline);
+            }
+            indexLock.readLock().lock();
+            try {
+                // matched outside the ring's lock, the read lock keeps the slots from being reused meanwhile
+                state.match.match(route);
+                int[] matches = state.match.getMatches();
+                int matchCount = state.match.getMatchCount();
+                sessions = sessionsBySlot;
+                boolean evaluate = matchCount > 0 && event != null && !expressions.isEmpty();
+                if (evaluate) {
+                    state.evaluation.begin(event);
+                }
+                long[] recipients = null;
+                filtered = 0;
+                if (matchCount > 0) {
+                    recipients = new long[(sessions.length + 63) >>> 6];
+                    for (int i = 0; i < matchCount; i++) {
+                        int slot = matches[i];
+                        if (evaluate && !state.evaluation.matches(slot)) {
+                            filtered++;
+                            continue;
+                        }
+                        recipients[slot >>> 6] |= 1L << slot;
+                    }
+                }
+                synchronized (ring) {
+                    // another receiver thread may have published since, the trap about to be overwritten is a newer one
+                    if (block && ring.nextSequence() - ring.size() >= gatingSequence
+                            && System.nanoTime() - blockDeadline < 0) {
+                        continue;
+                    }
+                    if (journal != null) {
+                        try {
+                            journal.append(ring.nextSequence(), receivedMillis, payloads, route);
+                        } catch (IOException e) {
+                            System.err.println("Can't write trap to the journal: " + e.getMessage());
+                        }
+                    }
+                    if (recipients != null) {
+                        for (int word = 0; word < recipients.length; word++) {
+                            for (long bits = recipients[word]; bits != 0; bits &= bits - 1) {
+                                // before the trap is visible, see ClientSession.sendTraps
+                                sessions[(word << 6) + Long.numberOfTrailingZeros(bits)].lastMatched =
+                                        ring.nextSequence();
+                            }
+                        }
+                        route.recipients = recipients;
+                    }
+                    sequence = ring.publish(payloads, event, receivedMillis, route, System.nanoTime());
+                }
+            } finally {
+                indexLock.readLock().unlock();
+            }
+            break;
+        }
+        statistics.published.incrementAndGet();
+        if (filtered > 0) {
+            statistics.filtered.addAndGet(filtered);
+        }
+        long[] recipients = route.recipients;
+        if (recipients != null) {
+            for (int word = 0; word < recipients.length; word++) {
+                long bits = recipients[word];
+                while (bits != 0) {
+                    ClientSession session = sessions[(word << 6) + Long.numberOfTrailingZeros(bits)];
+                    // null if the session was closed in the meantime
+                    if (session != null) {
+                        session.loop.signal(session);
+                    }
+                    bits &= bits - 1;
+                }
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Waits until all sessions have read the trap which the next one published overwrites, or until the deadline.
+     * Called without holding the ring's or the indexes' lock, so the selector threads can register and close sessions and the other
+     * receiver threads can publish meanwhile. The caller checks again under the lock.
+     *
+     * @param deadline System.nanoTime() when the block budget is used up
+     */
+    private void waitForSlowConsumers(long deadline) {
+        while (true) {
+            long evictedSequence = ring.nextSequence() - ring.size();
+            if (evictedSequence < gatingSequence) {
+                return;
+            }
+            // sessions which got no trap since their cursor don't need any of the traps in the ring
+            long minimum = ring.nextSequence();
+            for (ClientSession session : registeredSessions) {
+                if (session.lastMatched >= session.cursor) {
+                    minimum = Math.min(minimum, session.cursor);
+                }
+            }
+            gatingSequence = minimum;
+            if (evictedSequence < minimum || System.nanoTime() - deadline >= 0) {
+                return;
+            }
+            LockSupport.parkNanos(50000);
+        }
+    }
+
+    /**
+     * Subscribes a session to the traps matching its filter
+     *
+     * @param session
+     * @return sequence number of the first trap matched against the session's subscription
+     */
+    long registered(ClientSession session) {
+        // no trap is being published while the write lock is held, the next sequence is the first matched
+        indexLock.writeLock().lock();
+        try {
+            int slot = subscriptions.add(session.filter);
+            expressions.add(slot, session.expression);
+            if (slot >= sessionsBySlot.length) {
+                ClientSession[] enlarged = new ClientSession[subscriptions.capacity()];
+                System.arraycopy(sessionsBySlot, 0, enlarged, 0, sessionsBySlot.length);
+                sessionsBySlot = enlarged;
+            }
+            sessionsBySlot[slot] = session;
+            session.slot = slot;
+            registeredSessions.add(session);
+            return ring.nextSequence();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    void closed(ClientSession session) {
+        if (session.slot >= 0) {
+            indexLock.writeLock().lock();
+            try {
+                subscriptions.remove(session.slot);
+                expressions.remove(session.slot);
+                sessionsBySlot[session.slot] = null;
+                session.slot = -1;
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+        }
+        registeredSessions.remove(session);
+        statistics.closed(session);
+        System.out.println("Connection closed; client count: " + clientCount.decrementAndGet());
+    }
+
+    /**
+     * @return the executor for the TLS handshake tasks, null if they run on the selector threads
+     */
+    public ExecutorService getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    public int getHandshakeThreads() {
+        return handshakeThreads;
+    }
+
+    public TrapRingBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * @return the journal, null if disabled
+     */
+    public TrapJournal getJournal() {
+        return journal;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public int getSelectorThreads() {
+        return loops.length;
+    }
+
+    public int getBatchBytes() {
+        return batchBytes;
+    }
+
+    public long getBatchLingerNanos() {
+        return batchLingerNanos;
+    }
+
+    /**
+     * @return DEFLATE level of the sessions asking for compression, 0 if compression is declined
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public boolean isCompressLoopback() {
+        return compressLoopback;
+    }
+
+    public boolean isPassthrough() {
+        return passthrough;
+    }
+
+    public int getMaxAckWindow() {
+        return maxAckWindow;
+    }
+
+    public long getRegisterTimeoutMillis() {
+        return registerTimeoutMillis;
+    }
+
+    public TrapRelayStatistics getStatistics() {
+        return statistics;
+    }
+
+    public List<ClientSession> getRegisteredSessions() {
+        return registeredSessions;
+    }
+}
@@ -0,0 +1,298 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.gobuki.net.snmp.traprelay.FilterExpression.Comparison;
+import org.gobuki.net.snmp.traprelay.FilterExpression.Junction;
+import org.gobuki.net.snmp.traprelay.FilterExpression.Literal;
+import org.gobuki.net.snmp.traprelay.FilterExpression.Node;
+import org.gobuki.net.snmp.traprelay.FilterExpression.Not;
+import org.gobuki.net.snmp.traprelay.FilterExpression.Reference;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.smi.Counter64;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.UnsignedInteger32;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * The WHERE expressions of all sessions, evaluated against each published trap after the SubscriptionIndex found
+ * the sessions subscribed to it.
+ *
+ * Expressions are merged into one graph: a sub-expression several sessions use (the same reference, the same
+ * comparison, the same conjunction) is a single node, found by its canonical text when an expression is added.
+ * Each node has an id, the result of a node and the value of a reference are kept per trap in arrays indexed by
+ * it, so each is computed once per trap no matter how many sessions use it, and only for sessions the trap is
+ * routed to.
+ *
+ * Adding and removing expressions isn't thread safe. Several threads may evaluate traps at the same time, each
+ * with its own Evaluation, while no expression is added or removed; the DeliveryEngine ensures that with a
+ * read/write lock. The trap's variables aren't modified by the evaluation.
+ */
+public class ExpressionIndex {
+
+    // shared nodes by canonical text
+    Map<String, Node> nodes = new HashMap<String, Node>();
+
+    // free ids below nextId
+    int[] freeIds = new int[16];
+    int freeCount;
+    int nextId;
+
+    // root of each subscription slot, null if the session has no expression
+    Node[] roots = new Node[64];
+    int rootCount;
+
+    /**
+     * The state of evaluating traps, one per thread
+     */
+    public class Evaluation {
+        // per node id: the node's result or the reference's value for the current trap, valid if the mark equals
+        // the epoch. Texts of the values are formatted on demand.
+        int[] marks = new int[0];
+        boolean[] results = new boolean[0];
+        Variable[] values = new Variable[0];
+        String[] texts = new String[0];
+        int epoch;
+
+        // variables of the current trap
+        Vector<? extends VariableBinding> variables;
+
+        /**
+         * Starts the evaluation for a trap, the results of the previous one are dropped
+         *
+         * @param event the trap
+         */
+        public void begin(CommandResponderEvent event) {
+            variables = event.getPDU().getVariableBindings();
+            if (marks.length < nextId) {
+                // expressions were added, the new marks are 0 like after an overflow
+                int size = Math.max(64, Integer.highestOneBit(nextId - 1) << 1);
+                marks = Arrays.copyOf(marks, size);
+                results = Arrays.copyOf(results, size);
+                values = Arrays.copyOf(values, size);
+                texts = Arrays.copyOf(texts, size);
+            }
+            if (++epoch == 0) {
+                // the marks start over after an overflow
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        /**
+         * @param slot a session subscribed to the trap passed to begin()
+         * @return true if the session has no expression or the trap satisfies it
+         */
+        public boolean matches(int slot) {
+            Node root = slot < roots.length ? roots[slot] : null;
+            return root == null || evaluate(root);
+        }
+
+        private boolean evaluate(Node node) {
+            int id = node.id;
+            if (marks[id] == epoch) {
+                return results[id];
+            }
+            boolean result;
+            if (node instanceof Junction) {
+                Junction junction = (Junction) node;
+                result = junction.and;
+                for (Node operand : junction.operands) {
+                    if (evaluate(operand) != junction.and) {
+                        result = !junction.and;
+                        break;
+                    }
+                }
+            } else if (node instanceof Not) {
+                result = !evaluate(((Not) node).operand);
+            } else {
+                result = compare((Comparison) node);
+            }
+            marks[id] = epoch;
+            results[id] = result;
+            return result;
+        }
+
+        private boolean compare(Comparison comparison) {
+            Node left = comparison.left;
+            Node right = comparison.right;
+            if (left instanceof Reference && value((Reference) left) == null
+                    || right instanceof Reference && value((Reference) right) == null) {
+                return false;
+            }
+            if (comparison.pattern != null) {
+                String text = text(left);
+                // the pattern was checked for nested quantifiers, the length bounds what is left of backtracking
+                boolean found = comparison.pattern.matcher(text)
+                        .region(0, Math.min(text.length(), FilterExpression.MAX_MATCHED_LENGTH)).find();
+                return found == "=~".equals(comparison.operator);
+            }
+            int order;
+            if (isNumeric(left) && isNumeric(right)) {
+                long a = number(left);
+                long b = number(right);
+                order = a < b ? -1 : (a == b ? 0 : 1);
+            } else {
+                order = text(left).compareTo(text(right));
+            }
+            String operator = comparison.operator;
+            if ("==".equals(operator)) {
+                return order == 0;
+            } else if ("!=".equals(operator)) {
+                return order != 0;
+            } else if ("<".equals(operator)) {
+                return order < 0;
+            } else if ("<=".equals(operator)) {
+                return order <= 0;
+            } else if (">".equals(operator)) {
+                return order > 0;
+            } else {
+                return order >= 0;
+            }
+        }
+
+        /**
+         * @return the value of the first variable starting with the reference's OID, null if the trap has none
+         */
+        private Variable value(Reference reference) {
+            int id = reference.id;
+            if (marks[id] != epoch) {
+                Variable value = null;
+                for (int i = 0; i < variables.size(); i++) {
+                    VariableBinding variable = variables.get(i);
+                    if (variable.getOid().startsWith(reference.oid)) {
+                        value = variable.getVariable();
+                        break;
+                    }
+                }
+                marks[id] = epoch;
+                values[id] = value;
+                texts[id] = null;
+            }
+            return values[id];
+        }
+
+        private boolean isNumeric(Node operand) {
+            if (operand instanceof Literal) {
+                return ((Literal) operand).numeric;
+            }
+            Variable value = values[operand.id];
+            return value instanceof Integer32 || value instanceof UnsignedInteger32 || value instanceof Counter64;
+        }
+
+        private long number(Node operand) {
+            if (operand instanceof Literal) {
+                return ((Literal) operand).number;
+            }
+            return values[operand.id].toLong();
+        }
+
+        private String text(Node operand) {
+            if (operand instanceof Literal) {
+                return ((Literal) operand).text;
+            }
+            int id = operand.id;
+            if (texts[id] == null) {
+                texts[id] = values[id].toString();
+            }
+            return texts[id];
+        }
+    }
+
+    /**
+     * Adds the expression of a session
+     *
+     * @param slot the session's subscription slot
+     * @param expression null for none
+     */
+    public void add(int slot, FilterExpression expression) {
+        if (slot >= roots.length) {
+            roots = Arrays.copyOf(roots, Math.max(slot + 1, roots.length * 2));
+        }
+        if (expression == null) {
+            return;
+        }
+        roots[slot] = share(expression.root);
+        rootCount++;
+    }
+
+    /**
+     * Removes the expression of a session, nodes no other session uses are dropped
+     *
+     * @param slot
+     */
+    public void remove(int slot) {
+        if (slot < 0 || slot >= roots.length || roots[slot] == null) {
+            return;
+        }
+        release(roots[slot]);
+        roots[slot] = null;
+        rootCount--;
+    }
+
+    /**
+     * @return the shared node equal to the node, which is shared with its children if there is none yet
+     */
+    private Node share(Node node) {
+        String key = node.toString();
+        Node shared = nodes.get(key);
+        if (shared != null) {
+            shared.references++;
+            return shared;
+        }
+        Node[] children = node.children();
+        for (int i = 0; i < children.length; i++) {
+            node.replaceChild(i, share(children[i]));
+        }
+        node.id = allocateId();
+        node.references = 1;
+        nodes.put(key, node);
+        return node;
+    }
+
+    private void release(Node node) {
+        if (--node.references > 0) {
+            return;
+        }
+        nodes.remove(node.toString());
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = node.id;
+        for (Node child : node.children()) {
+            release(child);
+        }
+    }
+
+    private int allocateId() {
+        if (freeCount > 0) {
+            return freeIds[--freeCount];
+        }
+        return nextId++;
+    }
+
+    /**
+     * @return false if no session has an expression
+     */
+    public boolean isEmpty() {
+        return rootCount == 0;
+    }
+
+    /**
+     * @return the state for evaluating traps on one thread
+     */
+    public Evaluation newEvaluation() {
+        return new Evaluation();
+    }
+
+    /**
+     * @return number of distinct sub-expressions of all sessions
+     */
+    public int size() {
+        return nodes.size();
+    }
+}
@@ -0,0 +1,504 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.smi.OID;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The WHERE expression of a REGISTER command, a condition on the values of the trap's variables:
+ *
+ *   $1.3.6.1.2.1.2.2.1.8 == 2 && ($1.3.6.1.4.1.9.9.41.1.2.3.1.2 =~ "^LINK" || !($1.3.6.1.4.1.9.9.41.1.2.3.1.3 < 4))
+ *
+ * $oid refers to the value of the first variable whose OID starts with oid, so a column like ifOperStatus matches
+ * the variable of any row. Operands are references, integers and double quoted strings (backslash escapes the next
+ * character). The operators are == != &lt; &lt;= &gt; &gt;= and the regular expression matches =~ and !~ (found anywhere
+ * in the value, the pattern is a string), combined with ! &amp;&amp; || and parentheses; &amp;&amp; binds stronger than ||.
+ * Patterns which repeat a group containing an unbounded quantifier, like (a+)+ or (\w*,){3}, are rejected since
+ * they may backtrack exponentially, and only the first MAX_MATCHED_LENGTH characters of a value are searched.
+ *
+ * Integer values (INTEGER, Counter, Gauge, TimeTicks) are compared as numbers with integers, everything else as
+ * the text SNMP4J gives the value, e.g. the dotted OID or the text of an octet string. A comparison with a
+ * variable the trap doesn't have is false.
+ *
+ * The expression is compiled once into a tree of Nodes. The ExpressionIndex shares equal sub-trees between
+ * sessions and evaluates each of them once per trap.
+ */
+public class FilterExpression {
+
+    // deepest nesting accepted, the parser and the evaluation recurse
+    static final int MAX_DEPTH = 64;
+
+    // characters of a value a pattern is searched in
+    static final int MAX_MATCHED_LENGTH = 1024;
+
+    static final String[] OPERATORS = {"==", "!=", "<=", ">=", "<", ">", "=~", "!~"};
+
+    /**
+     * Node of the tree. Its text is canonical: equal sub-expressions have equal texts.
+     */
+    abstract static class Node {
+        // index in the ExpressionIndex, -1 until the node is shared there
+        int id = -1;
+        // number of parents and sessions using the shared node
+        int references;
+
+        abstract Node[] children();
+
+        abstract void replaceChild(int index, Node child);
+    }
+
+    /**
+     * $oid, the value of the first variable starting with oid
+     */
+    static class Reference extends Node {
+        final OID oid;
+
+        Reference(OID oid) {
+            this.oid = oid;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[0];
+        }
+
+        @Override
+        void replaceChild(int index, Node child) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public String toString() {
+            return "$" + oid;
+        }
+    }
+
+    /**
+     * An integer or a string
+     */
+    static class Literal extends Node {
+        final String text;
+        final boolean numeric;
+        final long number;
+
+        Literal(String text, boolean numeric, long number) {
+            this.text = text;
+            this.numeric = numeric;
+            this.number = number;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[0];
+        }
+
+        @Override
+        void replaceChild(int index, Node child) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public String toString() {
+            if (numeric) {
+                return text;
+            }
+            return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+    }
+
+    static class Comparison extends Node {
+        Node left;
+        final String operator;
+        Node right;
+        // compiled pattern of =~ and !~
+        final Pattern pattern;
+
+        Comparison(Node left, String operator, Node right, Pattern pattern) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+            this.pattern = pattern;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{left, right};
+        }
+
+        @Override
+        void replaceChild(int index, Node child) {
+            if (index == 0) {
+                left = child;
+            } else {
+                right = child;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + operator + " " + right + ")";
+        }
+    }
+
+    static class Not extends Node {
+        Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Node[] children() {
+            return new Node[]{operand};
+        }
+
+        @Override
+        void replaceChild(int index, Node child) {
+            operand = child;
+        }
+
+        @Override
+        public String toString() {
+            return "!" + operand;
+        }
+    }
+
+    /**
+     * && or || of two or more operands, evaluated left to right until the result is known
+     */
+    static class Junction extends Node {
+        final boolean and;
+        final Node[] operands;
+
+        Junction(boolean and, Node[] operands) {
+            this.and = and;
+            this.operands = operands;
+        }
+
+        @Override
+        Node[] children() {
+            return operands;
+        }
+
+        @Override
+        void replaceChild(int index, Node child) {
+            operands[index] = child;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("(");
+            for (int i = 0; i < operands.length; i++) {
+                text.append(i > 0 ? (and ? " && " : " || ") : "").append(operands[i]);
+            }
+            return text.append(')').toString();
+        }
+    }
+
+    final String source;
+
+    Node root;
+
+    FilterExpression(String source, Node root) {
+        this.source = source;
+        this.root = root;
+    }
+
+    /**
+     * Compiles an expression
+     *
+     * @param source the text after WHERE
+     * @return the expression
+     * @throws ProtocolException if it is malformed
+     */
+    public static FilterExpression parse(String source) throws ProtocolException {
+        Parser parser = new Parser(source);
+        Node root = parser.parseOr(0);
+        parser.skipSpaces();
+        if (parser.position < source.length()) {
+            throw parser.error("unexpected '" + source.charAt(parser.position) + "'");
+        }
+        if (!isCondition(root)) {
+            throw parser.error("condition expected");
+        }
+        return new FilterExpression(source, root);
+    }
+
+    static boolean isCondition(Node node) {
+        return node instanceof Comparison || node instanceof Not || node instanceof Junction;
+    }
+
+    /**
+     * Recursive descent parser, one method per precedence level
+     */
+    static class Parser {
+        final String source;
+        int position;
+
+        Parser(String source) {
+            this.source = source;
+        }
+
+        Node parseOr(int depth) throws ProtocolException {
+            List<Node> operands = new ArrayList<Node>();
+            operands.add(parseAnd(depth));
+            while (consume("||")) {
+                operands.add(parseAnd(depth));
+            }
+            return junction(false, operands);
+        }
+
+        Node parseAnd(int depth) throws ProtocolException {
+            List<Node> operands = new ArrayList<Node>();
+            operands.add(parseUnary(depth));
+            while (consume("&&")) {
+                operands.add(parseUnary(depth));
+            }
+            return junction(true, operands);
+        }
+
+        private Node junction(boolean and, List<Node> operands) throws ProtocolException {
+            if (operands.size() == 1) {
+                return operands.get(0);
+            }
+            for (Node operand : operands) {
+                if (!isCondition(operand)) {
+                    throw error("condition expected before or after " + (and ? "&&" : "||"));
+                }
+            }
+            return new Junction(and, operands.toArray(new Node[operands.size()]));
+        }
+
+        Node parseUnary(int depth) throws ProtocolException {
+            if (depth > MAX_DEPTH) {
+                throw error("nested too deeply");
+            }
+            skipSpaces();
+            if (lookingAt("!") && !lookingAt("!=") && !lookingAt("!~")) {
+                position++;
+                Node operand = parseUnary(depth + 1);
+                if (!isCondition(operand)) {
+                    throw error("condition expected after !");
+                }
+                return new Not(operand);
+            }
+            if (consume("(")) {
+                Node node = parseOr(depth + 1);
+                if (!consume(")")) {
+                    throw error("')' expected");
+                }
+                return node;
+            }
+            Node left = parseOperand();
+            skipSpaces();
+            for (String operator : OPERATORS) {
+                if (consume(operator)) {
+                    Node right = parseOperand();
+                    Pattern pattern = null;
+                    if (operator.indexOf('~') != -1) {
+                        if (!(right instanceof Literal) || ((Literal) right).numeric) {
+                            throw error("pattern string expected after " + operator);
+                        }
+                        try {
+                            pattern = Pattern.compile(((Literal) right).text);
+                        } catch (PatternSyntaxException e) {
+                            throw error("invalid pattern " + right + ": " + e.getDescription());
+                        }
+                        if (hasNestedQuantifier(((Literal) right).text)) {
+                            throw error("pattern " + right + " repeats a group with an unbounded quantifier");
+                        }
+                    }
+                    if (left instanceof Literal && right instanceof Literal) {
+                        throw error("a comparison needs a $oid reference");
+                    }
+                    return new Comparison(left, operator, right, pattern);
+                }
+            }
+            return left;
+        }
+
+        Node parseOperand() throws ProtocolException {
+            skipSpaces();
+            if (position >= source.length()) {
+                throw error("operand expected");
+            }
+            char c = source.charAt(position);
+            if (c == '$') {
+                int start = ++position;
+                while (position < source.length()
+                        && (Character.isDigit(source.charAt(position)) || source.charAt(position) == '.')) {
+                    position++;
+                }
+                String oid = source.substring(start, position);
+                if (oid.startsWith(".")) {
+                    oid = oid.substring(1);
+                }
+                if (!oid.matches("[0-9]+(\\.[0-9]+)*")) {
+                    throw error("OID expected after $");
+                }
+                String[] arcs = oid.split("\\.");
+                int[] value = new int[arcs.length];
+                try {
+                    for (int i = 0; i < arcs.length; i++) {
+                        // arcs are unsigned 32 bit values, SNMP4J keeps them in ints
+                        long arc = Long.parseLong(arcs[i]);
+                        if (arc > 0xFFFFFFFFL) {
+                            throw new NumberFormatException();
+                        }
+                        value[i] = (int) arc;
+                    }
+                } catch (NumberFormatException e) {
+                    throw error("invalid OID " + oid);
+                }
+                return new Reference(new OID(value));
+            }
+            if (c == '"') {
+                StringBuilder text = new StringBuilder();
+                position++;
+                while (position < source.length() && source.charAt(position) != '"') {
+                    if (source.charAt(position) == '\\' && position + 1 < source.length()) {
+                        position++;
+                    }
+                    text.append(source.charAt(position++));
+                }
+                if (position >= source.length()) {
+                    throw error("unterminated string");
+                }
+                position++;
+                return new Literal(text.toString(), false, 0);
+            }
+            if (c == '-' || Character.isDigit(c)) {
+                int start = position++;
+                while (position < source.length() && Character.isDigit(source.charAt(position))) {
+                    position++;
+                }
+                String number = source.substring(start, position);
+                try {
+                    long value = Long.parseLong(number);
+                    return new Literal(Long.toString(value), true, value);
+                } catch (NumberFormatException e) {
+                    throw error("invalid number " + number);
+                }
+            }
+            throw error("unexpected '" + c + "'");
+        }
+
+        boolean consume(String token) {
+            skipSpaces();
+            if (lookingAt(token)) {
+                position += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        boolean lookingAt(String token) {
+            return source.startsWith(token, position);
+        }
+
+        void skipSpaces() {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position))) {
+                position++;
+            }
+        }
+
+        ProtocolException error(String message) {
+            return new ProtocolException("Invalid expression at " + (position + 1) + ": " + message);
+        }
+    }
+
+    /**
+     * Looks for a quantifier other than ? applied to a group which contains a * + or {n,} quantifier, directly or
+     * in a nested group. Such patterns may try exponentially many ways to match a value which almost matches.
+     *
+     * @param regex a valid pattern
+     * @return true if the pattern has nested quantifiers
+     */
+    static boolean hasNestedQuantifier(String regex) {
+        // per open group: whether it contains an unbounded quantifier
+        boolean[] unbounded = new boolean[regex.length() + 1];
+        int depth = 0;
+        // the previous element is a group containing an unbounded quantifier
+        boolean afterUnboundedGroup = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+                afterUnboundedGroup = false;
+            } else if (c == '[') {
+                i = endOfClass(regex, i);
+                afterUnboundedGroup = false;
+            } else if (c == '(') {
+                unbounded[++depth] = false;
+                afterUnboundedGroup = false;
+            } else if (c == ')') {
+                afterUnboundedGroup = depth > 0 && unbounded[depth];
+                if (depth > 0) {
+                    depth--;
+                }
+                unbounded[depth] |= afterUnboundedGroup;
+            } else if (c == '*' || c == '+' || c == '{') {
+                if (afterUnboundedGroup) {
+                    return true;
+                }
+                boolean open = c != '{';
+                if (c == '{') {
+                    int end = regex.indexOf('}', i);
+                    if (end == -1) {
+                        return false;
+                    }
+                    open = regex.charAt(end - 1) == ',';
+                    i = end;
+                }
+                unbounded[depth] |= open;
+            } else {
+                afterUnboundedGroup = false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the position of the ] closing the character class starting at start, classes may be nested
+     */
+    private static int endOfClass(String regex, int start) {
+        int depth = 0;
+        for (int i = start; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+                // a ] right after the opening [ or [^ is a member
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == ']' && --depth == 0) {
+                return i;
+            }
+        }
+        return regex.length();
+    }
+
+    /**
+     * @return the expression as sent by the client
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the canonical text of the compiled expression
+     */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+}
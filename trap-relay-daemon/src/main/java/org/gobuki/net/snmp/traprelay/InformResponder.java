@@ -0,0 +1,353 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.mp.MessageProcessingModel;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.Address;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers INFORM requests as soon as they are received, so agents stop retransmitting them, and drops the
+ * retransmissions which were sent before the agent got the response.
+ *
+ * SNMPv2c informs are answered on the transport's receive thread, once they are queued for a shard and before
+ * they are decoded: the response is the received message with the PDU type changed to Response and error-status and
+ * error-index set to 0, which RFC 3416 4.2.7 asks for, so it is patched into a copy of the BER encoding without
+ * decoding it. An inform dropped by a full shard queue isn't answered, the agent sends it again.
+ * SNMPv3 informs need the USM to authenticate and encrypt the response, they are answered by SNMP4J on their shard
+ * right after decoding.
+ *
+ * Each agent (address and port) keeps the request IDs of its last informRequestIds informs. A retransmission
+ * repeats the request ID, it is answered again, since the earlier response may have been lost, but not relayed a
+ * second time. The agents are kept in STRIPES independently locked LRU maps of at most informMaxAgents in total,
+ * so the receive threads rarely contend and an agent sending informs rarely is forgotten first.
+ */
+public class InformResponder {
+
+    static final int STRIPES = 64;
+
+    // BER tag of the Response PDU
+    static final int RESPONSE = 0xA2;
+
+    /**
+     * Request IDs of an agent's last informs, a ring
+     */
+    static class RecentRequests {
+        final int[] ids;
+        int next;
+        int count;
+
+        RecentRequests(int size) {
+            ids = new int[size];
+        }
+
+        /**
+         * Removes the request ID if it was the last one added
+         */
+        void removeLast(int requestId) {
+            int last = (next + ids.length - 1) % ids.length;
+            if (count > 0 && ids[last] == requestId) {
+                next = last;
+                count--;
+            }
+        }
+
+        /**
+         * @return false if the request ID is among the recent ones, it is added otherwise
+         */
+        boolean add(int requestId) {
+            // the count entries before next, the ring may have wrapped and removeLast() may have shortened it
+            for (int i = 1; i <= count; i++) {
+                if (ids[(next - i + ids.length) % ids.length] == requestId) {
+                    return false;
+                }
+            }
+            ids[next] = requestId;
+            next = (next + 1) % ids.length;
+            count = Math.min(count + 1, ids.length);
+            return true;
+        }
+    }
+
+    /**
+     * The SNMPv2c inform a receive thread found last
+     */
+    static class Inform {
+        // the position of the PDU tag, the request ID, the position and length of the value of error-status and of
+        // error-index
+        final int[] pdu = new int[6];
+        // tag and length of the element read last
+        final int[] header = new int[2];
+        long receivedAt;
+        byte[] response;
+    }
+
+    /**
+     * Agents whose address hashes to the stripe, least recently seen first
+     */
+    static class Stripe extends LinkedHashMap<Address, RecentRequests> {
+        final int maxSize;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Address, RecentRequests> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    final boolean enabled;
+
+    // request IDs kept per agent, 0 to relay retransmissions as well
+    final int requestIds;
+
+    final Stripe[] stripes;
+
+    final ThreadLocal<Inform> informs = new ThreadLocal<Inform>() {
+        @Override
+        protected Inform initialValue() {
+            return new Inform();
+        }
+    };
+
+    // informs answered and retransmissions not relayed
+    final AtomicLong responses = new AtomicLong();
+    final AtomicLong retransmits = new AtomicLong();
+
+    // receive (SNMPv3: decoded) to response sent
+    final LatencyHistogram latency = new LatencyHistogram("informResponse");
+
+    public InformResponder(TrapRelayConfig config) {
+        enabled = config.getBoolean("respondToInforms", true);
+        requestIds = Math.max(0, config.getInt("informRequestIds", 32));
+        int maxAgents = Math.max(STRIPES, config.getInt("informMaxAgents", 65536));
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(maxAgents / STRIPES);
+        }
+    }
+
+    /**
+     * @return false if informs are relayed without response
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Answers an SNMPv2c inform, on the receive thread. Other messages are passed on untouched.
+     *
+     * @param transport the transport which received the message, the response is sent with it
+     * @param source the agent's address
+     * @param message the SNMP message, not consumed and not kept
+     * @param stateReference of the transport, e.g. the socket which received the message
+     * @return false if the message is the retransmission of a recent inform and must not be relayed again
+     */
+    public boolean admit(TransportMapping transport, Address source, ByteBuffer message,
+                         TransportStateReference stateReference) {
+        if (!isInform(message)) {
+            return true;
+        }
+        respond(transport, source, stateReference);
+        return isFirst(source);
+    }
+
+    /**
+     * Looks for an SNMPv2c inform and prepares its response, which respond(), isFirst() and forget() refer to
+     * when called on the same thread.
+     *
+     * @param message the SNMP message, not consumed and not kept
+     * @return false if the message isn't an SNMPv2c inform
+     */
+    public boolean isInform(ByteBuffer message) {
+        Inform inform = informs.get();
+        inform.receivedAt = System.nanoTime();
+        inform.response = null;
+        int[] pdu = inform.pdu;
+        try {
+            if (!findInform(message, message.position(), pdu, inform.header)) {
+                return false;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // truncated, SNMP4J drops it
+            return false;
+        }
+        int offset = message.position();
+        byte[] response = new byte[message.remaining()];
+        message.duplicate().get(response);
+        response[pdu[0] - offset] = (byte) RESPONSE;
+        // error-status and error-index, any length: leading zero bytes still decode to 0
+        Arrays.fill(response, pdu[2] - offset, pdu[2] - offset + pdu[3], (byte) 0);
+        Arrays.fill(response, pdu[4] - offset, pdu[4] - offset + pdu[5], (byte) 0);
+        inform.response = response;
+        return true;
+    }
+
+    /**
+     * Sends the response to the inform found by isInform()
+     *
+     * @param transport the transport which received the inform
+     * @param source the agent's address
+     * @param stateReference of the transport
+     */
+    @SuppressWarnings("unchecked")
+    public void respond(TransportMapping transport, Address source, TransportStateReference stateReference) {
+        Inform inform = informs.get();
+        try {
+            transport.sendMessage(source, inform.response, stateReference);
+            responses.incrementAndGet();
+            latency.record(System.nanoTime() - inform.receivedAt);
+        } catch (IOException e) {
+            System.err.println("Responding to the inform of " + source + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return false if the agent sent the inform found by isInform() recently, it is remembered otherwise
+     */
+    public boolean isFirst(Address source) {
+        return isFirst(source, informs.get().pdu[1]);
+    }
+
+    /**
+     * Forgets the inform found by isInform() again, it wasn't relayed and its retransmission has to be
+     */
+    public void forget(Address source) {
+        if (requestIds == 0) {
+            return;
+        }
+        Stripe stripe = stripeOf(source);
+        synchronized (stripe) {
+            RecentRequests recent = stripe.get(source);
+            if (recent != null) {
+                recent.removeLast(informs.get().pdu[1]);
+            }
+        }
+    }
+
+    /**
+     * Finds the PDU of an SNMPv2c inform in the BER encoding
+     *
+     * @param pdu gets the position of the PDU tag, the request ID, the position and length of the value of
+     *            error-status and of error-index
+     * @param header used for the tag and length of each element read
+     * @return false if the message isn't an SNMPv2c inform
+     */
+    static boolean findInform(ByteBuffer message, int position, int[] pdu, int[] header) {
+        // message: version, community, PDU
+        if ((position = TrapRoute.readHeader(message, position, header)) < 0 || header[0] != TrapRoute.SEQUENCE
+                || (position = TrapRoute.readHeader(message, position, header)) < 0
+                || header[0] != TrapRoute.INTEGER || header[1] != 1
+                || TrapRoute.readInteger(message, position, 1) != 1) {
+            return false;
+        }
+        position += header[1];
+        if ((position = TrapRoute.readHeader(message, position, header)) < 0
+                || header[0] != TrapRoute.OCTET_STRING) {
+            return false;
+        }
+        position += header[1];
+        int tag = position;
+        if ((position = TrapRoute.readHeader(message, position, header)) < 0 || header[0] != TrapRoute.INFORM) {
+            return false;
+        }
+        // request-id, error-status, error-index
+        if ((position = TrapRoute.readHeader(message, position, header)) < 0 || header[0] != TrapRoute.INTEGER
+                || header[1] < 1 || header[1] > 4) {
+            return false;
+        }
+        pdu[0] = tag;
+        pdu[1] = (int) TrapRoute.readInteger(message, position, header[1]);
+        position += header[1];
+        for (int i = 0; i < 2; i++) {
+            if ((position = TrapRoute.readHeader(message, position, header)) < 0
+                    || header[0] != TrapRoute.INTEGER) {
+                return false;
+            }
+            pdu[2 + 2 * i] = position;
+            pdu[3 + 2 * i] = header[1];
+            position += header[1];
+        }
+        return position <= message.limit();
+    }
+
+    /**
+     * Answers an SNMPv3 inform after it was decoded, on its shard. SNMPv2c informs were answered when they were
+     * received, other PDUs are passed on untouched.
+     *
+     * @param event a decoded PDU
+     * @return false if it is the retransmission of a recent inform and must not be relayed again
+     */
+    public boolean admit(CommandResponderEvent event) {
+        PDU pdu = event.getPDU();
+        if (pdu == null || pdu.getType() != PDU.INFORM
+                || event.getMessageProcessingModel() != MessageProcessingModel.MPv3) {
+            return true;
+        }
+        long decodedAt = System.nanoTime();
+        PDU response = (PDU) pdu.clone();
+        response.setType(PDU.RESPONSE);
+        response.setErrorStatus(PDU.noError);
+        response.setErrorIndex(0);
+        try {
+            event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(),
+                    event.getSecurityModel(), event.getSecurityName(), event.getSecurityLevel(), response,
+                    event.getMaxSizeResponsePDU(), event.getStateReference(), new StatusInformation());
+            responses.incrementAndGet();
+            latency.record(System.nanoTime() - decodedAt);
+        } catch (MessageException e) {
+            System.err.println("Responding to the inform of " + event.getPeerAddress() + " failed: "
+                    + e.getMessage());
+        }
+        return isFirst(event.getPeerAddress(), pdu.getRequestID().toInt());
+    }
+
+    /**
+     * @return false if the agent sent an inform with the request ID recently, it is remembered otherwise
+     */
+    boolean isFirst(Address source, int requestId) {
+        if (requestIds == 0) {
+            return true;
+        }
+        Stripe stripe = stripeOf(source);
+        synchronized (stripe) {
+            RecentRequests recent = stripe.get(source);
+            if (recent == null) {
+                recent = new RecentRequests(requestIds);
+                stripe.put(source, recent);
+            }
+            if (recent.add(requestId)) {
+                return true;
+            }
+        }
+        retransmits.incrementAndGet();
+        return false;
+    }
+
+    private Stripe stripeOf(Address source) {
+        int hash = source.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[hash & (STRIPES - 1)];
+    }
+
+    public long getResponses() {
+        return responses.get();
+    }
+
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+}
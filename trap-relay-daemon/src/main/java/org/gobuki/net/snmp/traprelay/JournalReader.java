@@ -0,0 +1,96 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads traps of one session from the TrapJournal.
+ *
+ * Remembers the segment and position of the last trap read, so streaming history trap by trap doesn't need an
+ * index lookup each time. The returned buffers are views of the mapped segment, nothing is copied.
+ */
+public class JournalReader {
+
+    TrapJournal journal;
+
+    JournalSegment segment;
+
+    // private view of the segment's mapping
+    ByteBuffer view;
+
+    // position and sequence number of the next record in the segment
+    int position;
+    long nextSequence;
+
+    // position of the record read last
+    int recordPosition;
+
+    // route of the record read last, decoded on demand by matches()
+    int[] oid = new int[32];
+    byte[] address = new byte[16];
+
+    public JournalReader(TrapJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @param sequence
+     * @param format
+     * @return the encoded trap, valid until the next call. null if the trap isn't in the journal or not in the
+     *         format.
+     */
+    public ByteBuffer read(long sequence, TrapFormat format) {
+        if (segment == null || sequence != nextSequence || sequence > segment.lastSequence) {
+            if (!seek(sequence)) {
+                return null;
+            }
+        }
+        view.clear();
+        int end = position + 4 + view.getInt(position);
+        recordPosition = position;
+        position = end;
+        nextSequence = sequence + 1;
+        int payloadPosition = JournalSegment.payloadPosition(view, recordPosition, format);
+        if (payloadPosition < 0) {
+            return null;
+        }
+        view.position(payloadPosition);
+        view.limit(payloadPosition + view.getInt(payloadPosition - 4));
+        return view;
+    }
+
+    /**
+     * @param filter
+     * @return true if the trap read last matches the filter
+     */
+    public boolean matches(TrapFilter filter) {
+        int addressLength = view.get(recordPosition + 20) & 0xFF;
+        int oidLength = view.getShort(recordPosition + 21) & 0xFFFF;
+        int offset = recordPosition + JournalSegment.HEADER_SIZE;
+        for (int i = 0; i < addressLength && i < address.length; i++) {
+            address[i] = view.get(offset + i);
+        }
+        offset += addressLength;
+        if (oidLength > oid.length) {
+            oid = new int[oidLength];
+        }
+        for (int i = 0; i < oidLength; i++) {
+            oid[i] = view.getInt(offset + 4 * i);
+        }
+        return filter.matches(oid, oidLength, address, addressLength);
+    }
+
+    private boolean seek(long sequence) {
+        JournalSegment found = journal.segmentOf(sequence);
+        if (found == null) {
+            segment = null;
+            return false;
+        }
+        if (found != segment) {
+            segment = found;
+            view = found.buffer.duplicate();
+        }
+        position = found.positionOf(sequence);
+        nextSequence = sequence;
+        return position >= 0;
+    }
+}
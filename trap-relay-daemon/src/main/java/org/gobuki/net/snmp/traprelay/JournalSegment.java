@@ -0,0 +1,326 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One file of the TrapJournal, mapped into memory completely.
+ *
+ * The file is created with its full size and filled with records, each one
+ *
+ *   int length | long sequence | long timestamp | byte address length | short OID length |
+ *   source address | trap OID arcs (ints) | byte number of formats |
+ *   for each format: byte format ordinal | int payload length | converted trap
+ *
+ * where length is the number of bytes following it. The trap is stored in every TrapFormat, so clients resuming
+ * from the journal get it in the format they registered with. The route (address and OID) lets sessions with a filter
+ * select traps from the journal. A length of 0 marks the end of the written records. The length is written last,
+ * so a record is either complete or not there at all after a crash of the daemon.
+ *
+ * The segment is written by one thread at a time (the TrapJournal is synchronized) and read concurrently by the
+ * client sessions. Readers only look at records below the committed position.
+ */
+public class JournalSegment {
+
+    static final int HEADER_SIZE = 4 + 8 + 8 + 1 + 2;
+
+    // the sparse index has one entry for every INDEX_INTERVAL records
+    static final int INDEX_INTERVAL = 256;
+
+    final File file;
+    final MappedByteBuffer buffer;
+
+    // used by the writing thread only
+    final ByteBuffer appendBuffer;
+
+    final long firstSequence;
+    volatile long lastSequence;
+
+    // receive time of the first and last record, ms
+    volatile long firstTimestamp;
+    volatile long lastTimestamp;
+
+    // end of the complete records, readers never go beyond
+    volatile int committed;
+
+    // sparse index: sequence, timestamp and position of every INDEX_INTERVAL-th record
+    long[] indexSequences = new long[16];
+    long[] indexTimestamps = new long[16];
+    int[] indexPositions = new int[16];
+    volatile int indexSize;
+
+    private JournalSegment(File file, MappedByteBuffer buffer, long firstSequence) {
+        this.file = file;
+        this.buffer = buffer;
+        this.appendBuffer = buffer.duplicate();
+        this.firstSequence = firstSequence;
+        this.lastSequence = firstSequence - 1;
+    }
+
+    /**
+     * Creates a new, empty segment file
+     *
+     * @param directory
+     * @param firstSequence sequence number of the first trap, part of the file name
+     * @param size file size in bytes
+     */
+    static JournalSegment create(File directory, long firstSequence, int size) throws IOException {
+        File file = new File(directory, fileName(firstSequence));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return new JournalSegment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size), firstSequence);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps an existing segment file and rebuilds its index by scanning the records.
+     * Scanning stops at the first incomplete record or a gap in the sequence numbers.
+     *
+     * @param file
+     * @return null if the file name isn't a segment name
+     */
+    static JournalSegment open(File file) throws IOException {
+        long firstSequence = parseFileName(file.getName());
+        if (firstSequence <= 0) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        JournalSegment segment;
+        try {
+            segment = new JournalSegment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()),
+                    firstSequence);
+        } finally {
+            raf.close();
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        long expected = firstSequence;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            // a torn length may be anything, compared without overflowing
+            if (length < HEADER_SIZE - 4 || length > buffer.capacity() - position - 4
+                    || buffer.getLong(position + 4) != expected) {
+                break;
+            }
+            segment.recordWritten(expected, buffer.getLong(position + 12), position, position + 4 + length);
+            position += 4 + length;
+            expected++;
+        }
+        return segment;
+    }
+
+    static String fileName(long firstSequence) {
+        StringBuilder name = new StringBuilder(Long.toString(firstSequence));
+        while (name.length() < 20) {
+            name.insert(0, '0');
+        }
+        return name.append(".journal").toString();
+    }
+
+    private static long parseFileName(String name) {
+        if (!name.endsWith(".journal")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - ".journal".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Appends a record
+     *
+     * @return false if the segment is full
+     */
+    boolean append(long sequence, long timestamp, TrapPayload[] payloads, TrapRoute route) {
+        int position = committed;
+        int length = recordSize(payloads, route) - 4;
+        if (position + 4 + length > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer record = appendBuffer;
+        record.clear();
+        record.position(position + 4);
+        record.putLong(sequence);
+        record.putLong(timestamp);
+        record.put((byte) route.address.length);
+        record.putShort((short) route.oid.length);
+        record.put(route.address);
+        for (int arc : route.oid) {
+            record.putInt(arc);
+        }
+        int formatCountPosition = record.position();
+        record.put((byte) 0);
+        int formatCount = 0;
+        for (int format = 0; format < payloads.length; format++) {
+            if (payloads[format] != null) {
+                record.put((byte) format);
+                record.putInt(payloads[format].length());
+                payloads[format].writeTo(record);
+                formatCount++;
+            }
+        }
+        record.put(formatCountPosition, (byte) formatCount);
+        // terminates the following record, unless it is the end of the file
+        if (record.position() + 4 <= record.capacity()) {
+            record.putInt(0);
+        }
+        buffer.putInt(position, length);
+        recordWritten(sequence, timestamp, position, position + 4 + length);
+        return true;
+    }
+
+    /**
+     * @return bytes needed for a record, including its length
+     */
+    static int recordSize(TrapPayload[] payloads, TrapRoute route) {
+        int size = HEADER_SIZE + route.address.length + 4 * route.oid.length + 1;
+        for (TrapPayload payload : payloads) {
+            if (payload != null) {
+                size += 1 + 4 + payload.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param buffer
+     * @param position of the record
+     * @param format
+     * @return position of the converted trap in the record, its length is the int before it. -1 if the record
+     *         doesn't have the format.
+     */
+    static int payloadPosition(ByteBuffer buffer, int position, TrapFormat format) {
+        int offset = position + HEADER_SIZE + (buffer.get(position + 20) & 0xFF)
+                + 4 * (buffer.getShort(position + 21) & 0xFFFF);
+        int formatCount = buffer.get(offset++) & 0xFF;
+        for (int i = 0; i < formatCount; i++) {
+            int payloadLength = buffer.getInt(offset + 1);
+            if (buffer.get(offset) == format.ordinal()) {
+                return offset + 5;
+            }
+            offset += 5 + payloadLength;
+        }
+        return -1;
+    }
+
+    private void recordWritten(long sequence, long timestamp, int position, int end) {
+        if (sequence == firstSequence) {
+            firstTimestamp = timestamp;
+        }
+        if ((sequence - firstSequence) % INDEX_INTERVAL == 0) {
+            addIndexEntry(sequence, timestamp, position);
+        }
+        lastTimestamp = timestamp;
+        lastSequence = sequence;
+        committed = end;
+    }
+
+    private void addIndexEntry(long sequence, long timestamp, int position) {
+        int size = indexSize;
+        if (size == indexPositions.length) {
+            // readers may still use the old arrays, they only look at entries below the size they read
+            long[] sequences = new long[size * 2];
+            long[] timestamps = new long[size * 2];
+            int[] positions = new int[size * 2];
+            System.arraycopy(indexSequences, 0, sequences, 0, size);
+            System.arraycopy(indexTimestamps, 0, timestamps, 0, size);
+            System.arraycopy(indexPositions, 0, positions, 0, size);
+            indexSequences = sequences;
+            indexTimestamps = timestamps;
+            indexPositions = positions;
+        }
+        indexSequences[size] = sequence;
+        indexTimestamps[size] = timestamp;
+        indexPositions[size] = position;
+        indexSize = size + 1;
+    }
+
+    /**
+     * Finds the position of a record
+     *
+     * @param sequence must be in this segment
+     * @return the position, -1 if the record isn't there
+     */
+    int positionOf(long sequence) {
+        if (sequence < firstSequence || sequence > lastSequence) {
+            return -1;
+        }
+        int size = indexSize;
+        long[] sequences = indexSequences;
+        int[] positions = indexPositions;
+        // the index entries are evenly spaced
+        int entry = (int) Math.min(size - 1, (sequence - firstSequence) / INDEX_INTERVAL);
+        int position = positions[entry];
+        long current = sequences[entry];
+        while (current < sequence) {
+            position += 4 + buffer.getInt(position);
+            current++;
+        }
+        return position;
+    }
+
+    /**
+     * Finds the first record received at or after a time
+     *
+     * @param timestamp ms
+     * @return its sequence number, lastSequence + 1 if all records are older
+     */
+    long sequenceAt(long timestamp) {
+        int size = indexSize;
+        long[] timestamps = indexTimestamps;
+        int low = 0;
+        int high = size - 1;
+        // last index entry older than the timestamp
+        int entry = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp) {
+                entry = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (entry == -1) {
+            return firstSequence;
+        }
+        int position = indexPositions[entry];
+        long sequence = indexSequences[entry];
+        int end = committed;
+        while (position < end && buffer.getLong(position + 12) < timestamp) {
+            position += 4 + buffer.getInt(position);
+            sequence++;
+        }
+        return sequence;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    boolean delete() {
+        return file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + " [" + firstSequence + ".." + lastSequence + "]";
+    }
+}
@@ -0,0 +1,148 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in ns, in the style of an HdrHistogram: buckets are exact below 16 ns and cover 1/16 of a
+ * power of two above, so percentiles are accurate to about 6% over the whole range of a long.
+ *
+ * Recording is a few increments of preallocated atomic counters: lock-free, allocation-free and cheap enough to
+ * stay enabled in production. Any number of threads may record concurrently. Percentiles are computed from a
+ * snapshot of the counters, which is not atomic, but each counter is consistent.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    // 2^4 sub-buckets per power of two
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // values below 2^4 are exact, then 16 sub-buckets for each exponent 4 to 62
+    static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    final String name;
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final AtomicLong total = new AtomicLong();
+    final AtomicLong sum = new AtomicLong();
+    final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param nanos latency in ns, negative values (clock adjustments) are counted as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        total.incrementAndGet();
+        sum.addAndGet(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            // retry, another thread recorded a larger value in between
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value counted in a bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long mantissa = (bucket - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return latency in ns not exceeded by that percentage of the recorded values, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return total.get();
+    }
+
+    @Override
+    public long getMeanMicros() {
+        long count = total.get();
+        return count == 0 ? 0 : sum.get() / count / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return getValueAtPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getP99Micros() {
+        return getValueAtPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getP999Micros() {
+        return getValueAtPercentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return max.get() / 1000;
+    }
+
+    /**
+     * Starts over, values recorded concurrently may be lost
+     */
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + getMeanMicros() + "us p50=" + getP50Micros() + "us p99="
+                + getP99Micros() + "us p99.9=" + getP999Micros() + "us max=" + getMaxMicros() + "us";
+    }
+}
@@ -0,0 +1,21 @@
+package org.gobuki.net.snmp.traprelay;
+
+/**
+ * JMX view of a LatencyHistogram, registered as org.gobuki.net.snmp.traprelay:type=Latency,stage=&lt;stage&gt;
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    long getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+
+    void reset();
+}
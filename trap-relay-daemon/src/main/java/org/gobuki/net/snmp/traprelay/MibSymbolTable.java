@@ -0,0 +1,455 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.smi.OID;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+/**
+ * Names of OIDs and labels of enumerated values, for the JSON traps. The symbols are loaded at startup from the
+ * file mibSymbolFile, one per line:
+ *
+ *   # OID name [value=label ...]
+ *   1.3.6.1.2.1.2.2.1.8 ifOperStatus 1=up 2=down 3=testing
+ *   1.3.6.1.6.3.1.1.5.3 linkDown
+ *
+ * An OID resolves to the symbol of its longest prefix in the table, the remaining arcs (the instance) are appended:
+ * 1.3.6.1.2.1.2.2.1.8.3 is ifOperStatus.3.
+ *
+ * The symbols form an arc trie. Its nodes are ints, the edges are one open addressing table keyed by parent node
+ * and arc, so 100k symbols take a few MB and no object per node. Names and labels are kept UTF-8 encoded and
+ * JSON escaped, the converter copies them as they are.
+ *
+ * The resolutions of the OIDs seen last are kept in a direct mapped cache of mibCacheSize entries, shared by the
+ * receiver threads. Entries are immutable and replaced as a whole, so the threads need no locks. A hit compares
+ * the arcs and allocates nothing, a miss walks the trie and allocates the new entry.
+ *
+ * The table is filled before it is used and not modified afterwards.
+ */
+public class MibSymbolTable {
+
+    static final int ROOT = 0;
+
+    static final long NO_EDGE = -1L;
+
+    /**
+     * Resolution of an OID
+     */
+    public static class Match {
+        final int[] arcs;
+        final int hash;
+        // symbol of the longest prefix in the table, -1 if there is none
+        final int symbol;
+        // length of that prefix, the arcs after it are the instance
+        final int length;
+
+        Match(int[] arcs, int hash, int symbol, int length) {
+            this.arcs = arcs;
+            this.hash = hash;
+            this.symbol = symbol;
+            this.length = length;
+        }
+
+        public boolean isResolved() {
+            return symbol >= 0;
+        }
+
+        public int getSymbol() {
+            return symbol;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    // edges of the trie: key parent node << 32 | arc, value child node
+    long[] edgeKeys;
+    int[] edgeNodes;
+    int edgeMask;
+    int edgeCount;
+
+    // symbol of each node, -1 for inner nodes without one
+    int[] nodeSymbols;
+    int nodeCount;
+
+    // by symbol: name, enumerated values (sorted) and their labels, UTF-8 encoded and JSON escaped
+    byte[][] names;
+    int[][] enumValues;
+    byte[][][] enumLabels;
+    int symbolCount;
+
+    final Match[] cache;
+    final int cacheMask;
+
+    public MibSymbolTable(int cacheSize) {
+        edgeKeys = new long[1024];
+        Arrays.fill(edgeKeys, NO_EDGE);
+        edgeNodes = new int[1024];
+        edgeMask = 1023;
+        nodeSymbols = new int[1024];
+        nodeSymbols[ROOT] = -1;
+        nodeCount = 1;
+        names = new byte[256][];
+        enumValues = new int[256][];
+        enumLabels = new byte[256][][];
+        int capacity = Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1;
+        cache = new Match[capacity];
+        cacheMask = capacity - 1;
+    }
+
+    /**
+     * Loads the symbol file, if one is configured
+     *
+     * @param config
+     * @return null without mibSymbolFile, or if it can't be read
+     */
+    public static MibSymbolTable load(TrapRelayConfig config) {
+        String fileName = config.getString("mibSymbolFile", "");
+        if (fileName.isEmpty()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        MibSymbolTable table = new MibSymbolTable(config.getInt("mibCacheSize", 4096));
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), ClientSession.UTF8), 64 * 1024);
+            table.read(in);
+        } catch (IOException e) {
+            System.err.println("Can't load the MIB symbols from " + fileName + ": " + e.getMessage()
+                    + ", traps are relayed without names");
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        System.out.println("Loaded " + table.size() + " MIB symbols from " + fileName + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return table;
+    }
+
+    /**
+     * Adds the symbols of a symbol file. Invalid lines are reported and skipped, of a line with invalid labels
+     * only the name is added.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void read(BufferedReader in) throws IOException {
+        int[] arcs = new int[128];
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            int start = skipWhitespace(line, 0);
+            if (start == line.length() || line.charAt(start) == '#') {
+                continue;
+            }
+            try {
+                int end = tokenEnd(line, start);
+                int length = parseOid(line, start, end, arcs);
+                int nameStart = skipWhitespace(line, end);
+                int nameEnd = tokenEnd(line, nameStart);
+                if (nameStart == nameEnd) {
+                    throw new ProtocolException("name expected");
+                }
+                int symbol = add(arcs, length, line.substring(nameStart, nameEnd));
+                int enumStart = skipWhitespace(line, nameEnd);
+                if (enumStart < line.length()) {
+                    try {
+                        parseEnums(symbol, line, enumStart);
+                    } catch (ProtocolException e) {
+                        System.err.println("Invalid MIB symbol labels in line " + lineNumber + ": " + e.getMessage()
+                                + ", the name is kept");
+                    }
+                }
+            } catch (ProtocolException e) {
+                System.err.println("Invalid MIB symbol in line " + lineNumber + ": " + e.getMessage() + ", ignored");
+            }
+        }
+    }
+
+    private static int skipWhitespace(String line, int i) {
+        while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int tokenEnd(String line, int i) {
+        while (i < line.length() && !Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Parses dotted decimal arcs
+     *
+     * @return the number of arcs
+     */
+    private static int parseOid(String line, int start, int end, int[] arcs) throws ProtocolException {
+        int count = 0;
+        long arc = 0;
+        boolean digits = false;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? line.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                arc = arc * 10 + (c - '0');
+                if (arc > 0xFFFFFFFFL) {
+                    throw new ProtocolException("arc too large");
+                }
+                digits = true;
+            } else if (c == '.' && digits) {
+                if (count == arcs.length) {
+                    throw new ProtocolException("OID too long");
+                }
+                arcs[count++] = (int) arc;
+                arc = 0;
+                digits = false;
+            } else {
+                throw new ProtocolException("OID expected");
+            }
+        }
+        return count;
+    }
+
+    private void parseEnums(int symbol, String line, int start) throws ProtocolException {
+        int count = 0;
+        int[] values = new int[8];
+        byte[][] labels = new byte[8][];
+        for (int i = start; i < line.length(); i = skipWhitespace(line, i)) {
+            int end = tokenEnd(line, i);
+            int equals = line.indexOf('=', i);
+            if (equals == -1 || equals >= end - 1) {
+                throw new ProtocolException("value=label expected");
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                labels = Arrays.copyOf(labels, count * 2);
+            }
+            try {
+                values[count] = Integer.parseInt(line.substring(i, equals));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("invalid value " + line.substring(i, equals));
+            }
+            labels[count++] = jsonBytes(line.substring(equals + 1, end));
+            i = end;
+        }
+        // sorted by value for the binary search, insertion sort as there are only a few
+        for (int i = 1; i < count; i++) {
+            int value = values[i];
+            byte[] label = labels[i];
+            int j = i;
+            for (; j > 0 && values[j - 1] > value; j--) {
+                values[j] = values[j - 1];
+                labels[j] = labels[j - 1];
+            }
+            values[j] = value;
+            labels[j] = label;
+        }
+        int[] sortedValues = Arrays.copyOf(values, count);
+        byte[][] sortedLabels = Arrays.copyOf(labels, count);
+        enumValues[symbol] = sortedValues;
+        enumLabels[symbol] = sortedLabels;
+    }
+
+    /**
+     * Adds a symbol, replacing the one of the same OID
+     *
+     * @param arcs
+     * @param length number of arcs used
+     * @param name
+     * @return the symbol
+     */
+    int add(int[] arcs, int length, String name) {
+        int node = ROOT;
+        for (int i = 0; i < length; i++) {
+            int child = child(node, arcs[i]);
+            if (child == -1) {
+                child = addNode();
+                addEdge(node, arcs[i], child);
+            }
+            node = child;
+        }
+        int symbol = nodeSymbols[node];
+        if (symbol == -1) {
+            symbol = symbolCount++;
+            if (symbol == names.length) {
+                names = Arrays.copyOf(names, symbol * 2);
+                enumValues = Arrays.copyOf(enumValues, symbol * 2);
+                enumLabels = Arrays.copyOf(enumLabels, symbol * 2);
+            }
+            nodeSymbols[node] = symbol;
+        }
+        names[symbol] = jsonBytes(name);
+        enumValues[symbol] = null;
+        enumLabels[symbol] = null;
+        return symbol;
+    }
+
+    /**
+     * @return the UTF-8 encoded, JSON escaped string
+     */
+    static byte[] jsonBytes(String s) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                if (escaped == null) {
+                    escaped = new StringBuilder(s.length() + 8).append(s, 0, i);
+                }
+                escaped.append(c < 0x20 ? String.format("\\u%04x", (int) c) : "\\" + c);
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return (escaped != null ? escaped.toString() : s).getBytes(ClientSession.UTF8);
+    }
+
+    private int addNode() {
+        if (nodeCount == nodeSymbols.length) {
+            nodeSymbols = Arrays.copyOf(nodeSymbols, nodeCount * 2);
+        }
+        nodeSymbols[nodeCount] = -1;
+        return nodeCount++;
+    }
+
+    private void addEdge(int parent, int arc, int child) {
+        if (edgeCount * 2 >= edgeKeys.length) {
+            // at most half full, probe sequences stay short
+            long[] keys = edgeKeys;
+            int[] nodes = edgeNodes;
+            edgeKeys = new long[keys.length * 2];
+            Arrays.fill(edgeKeys, NO_EDGE);
+            edgeNodes = new int[keys.length * 2];
+            edgeMask = edgeKeys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != NO_EDGE) {
+                    insertEdge(keys[i], nodes[i]);
+                }
+            }
+        }
+        insertEdge(edgeKey(parent, arc), child);
+        edgeCount++;
+    }
+
+    private void insertEdge(long key, int child) {
+        int slot = hash(key) & edgeMask;
+        while (edgeKeys[slot] != NO_EDGE) {
+            slot = (slot + 1) & edgeMask;
+        }
+        edgeKeys[slot] = key;
+        edgeNodes[slot] = child;
+    }
+
+    /**
+     * @return the child of a node, -1 if it has none for that arc
+     */
+    private int child(int parent, int arc) {
+        long key = edgeKey(parent, arc);
+        for (int slot = hash(key) & edgeMask; edgeKeys[slot] != NO_EDGE; slot = (slot + 1) & edgeMask) {
+            if (edgeKeys[slot] == key) {
+                return edgeNodes[slot];
+            }
+        }
+        return -1;
+    }
+
+    private static long edgeKey(int parent, int arc) {
+        return ((long) parent << 32) | (arc & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Resolves an OID to the symbol of its longest prefix in the table
+     *
+     * @param oid
+     * @return the match, check isResolved()
+     */
+    public Match resolve(OID oid) {
+        // getValue() is the OID's own array, not a copy
+        return resolve(oid.getValue());
+    }
+
+    /**
+     * @param arcs the arcs of an OID, not modified
+     * @return the match, check isResolved()
+     */
+    public Match resolve(int[] arcs) {
+        int hash = 1;
+        for (int arc : arcs) {
+            hash = hash * 31 + arc;
+        }
+        hash ^= hash >>> 16;
+        int slot = hash & cacheMask;
+        Match match = cache[slot];
+        if (match != null && match.hash == hash && Arrays.equals(match.arcs, arcs)) {
+            return match;
+        }
+        match = lookup(arcs, hash);
+        cache[slot] = match;
+        return match;
+    }
+
+    private Match lookup(int[] arcs, int hash) {
+        int node = ROOT;
+        int symbol = -1;
+        int length = 0;
+        for (int i = 0; i < arcs.length; i++) {
+            node = child(node, arcs[i]);
+            if (node == -1) {
+                break;
+            }
+            if (nodeSymbols[node] != -1) {
+                symbol = nodeSymbols[node];
+                length = i + 1;
+            }
+        }
+        return new Match(arcs.clone(), hash, symbol, length);
+    }
+
+    /**
+     * @param symbol
+     * @return the name of a symbol, UTF-8 encoded and JSON escaped
+     */
+    public byte[] getName(int symbol) {
+        return names[symbol];
+    }
+
+    /**
+     * @param symbol
+     * @param value an INTEGER value of the symbol
+     * @return the label of the value, UTF-8 encoded and JSON escaped, null if it has none
+     */
+    public byte[] getLabel(int symbol, int value) {
+        int[] values = enumValues[symbol];
+        if (values == null) {
+            return null;
+        }
+        int i = Arrays.binarySearch(values, value);
+        return i >= 0 ? enumLabels[symbol][i] : null;
+    }
+
+    /**
+     * @return the number of symbols
+     */
+    public int size() {
+        return symbolCount;
+    }
+}
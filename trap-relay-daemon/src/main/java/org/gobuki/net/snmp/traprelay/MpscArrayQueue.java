@@ -0,0 +1,82 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for any number of producer threads and a single consumer thread.
+ *
+ * Producers claim a position by incrementing the tail and then store the element in its slot, the consumer takes
+ * the element at the head once its slot is filled and clears the slot before it moves on. So neither side waits
+ * for a lock, and an offer to a full queue fails at once instead of blocking the producer.
+ */
+public class MpscArrayQueue<E> {
+
+    final AtomicReferenceArray<E> elements;
+    final int mask;
+
+    // next position to claim, producers
+    final AtomicLong tail = new AtomicLong();
+
+    // next position to take, written by the consumer only
+    final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of 2
+     */
+    public MpscArrayQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        elements = new AtomicReferenceArray<E>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element, from any thread
+     *
+     * @param element not null
+     * @return false if the queue is full
+     */
+    public boolean offer(E element) {
+        long position;
+        do {
+            position = tail.get();
+            if (position - head.get() > mask) {
+                return false;
+            }
+        } while (!tail.compareAndSet(position, position + 1));
+        // a volatile write, the consumer may be about to park, see ShardedMessageDispatcher.Shard
+        elements.set((int) position & mask, element);
+        return true;
+    }
+
+    /**
+     * Takes the oldest element, from the consumer thread only
+     *
+     * @return null if the queue is empty, or the oldest element isn't stored yet
+     */
+    public E poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        E element = elements.get(index);
+        if (element == null) {
+            return null;
+        }
+        elements.lazySet(index, null);
+        head.lazySet(position + 1);
+        return element;
+    }
+
+    /**
+     * @return true if no element was offered since the last one was taken
+     */
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * @return number of elements, a snapshot
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+}
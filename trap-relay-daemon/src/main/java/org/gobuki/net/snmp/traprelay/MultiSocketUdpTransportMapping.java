@@ -0,0 +1,195 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives traps with several UDP sockets bound to the same port (SO_REUSEPORT), each read by its own thread.
+ *
+ * The kernel spreads the datagrams over the sockets by a hash of the sender's address, so each socket has its own
+ * receive buffer and traps of one agent still arrive in order. Received messages are handed over to the message
+ * dispatcher, which decodes them in its thread pool. Listeners which consume a message before they return, like
+ * the one of the passthrough mode, can get the receive buffer itself instead of a copy.
+ *
+ * SO_REUSEPORT is set by reflection, it is available with Java 9 and later on Linux and BSD. If it is not
+ * available, only one socket is opened.
+ */
+public class MultiSocketUdpTransportMapping extends UdpTransportMapping {
+
+    int socketCount;
+
+    // SO_RCVBUF of each socket, 0 for the system default
+    int receiveBufferSize;
+
+    List<DatagramChannel> channels;
+    List<Thread> readers;
+
+    volatile boolean listening;
+
+    // false to hand the receive buffer itself to the listeners, only valid until they return
+    boolean copyMessages = true;
+
+    public MultiSocketUdpTransportMapping(UdpAddress udpAddress, int socketCount, int receiveBufferSize) {
+        super(udpAddress);
+        this.socketCount = Math.max(1, socketCount);
+        this.receiveBufferSize = receiveBufferSize;
+        this.channels = new ArrayList<DatagramChannel>();
+        this.readers = new ArrayList<Thread>();
+    }
+
+    @Override
+    public synchronized void listen() throws IOException {
+        if (listening) {
+            return;
+        }
+        SocketAddress bindAddress = new InetSocketAddress(udpAddress.getInetAddress(), udpAddress.getPort());
+        for (int i = 0; i < socketCount; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            if (!setReusePort(channel)) {
+                if (i == 0 && socketCount > 1) {
+                    System.out.println("SO_REUSEPORT is not supported, receiving traps with a single socket");
+                }
+                socketCount = 1;
+            }
+            if (receiveBufferSize > 0) {
+                channel.socket().setReceiveBufferSize(receiveBufferSize);
+                int granted = channel.socket().getReceiveBufferSize();
+                if (i == 0 && granted < receiveBufferSize) {
+                    // Linux limits it to net.core.rmem_max (and reports twice the value)
+                    System.out.println("UDP receive buffer of " + receiveBufferSize + " bytes requested, got "
+                            + granted + ". Check net.core.rmem_max.");
+                }
+            }
+            channel.socket().bind(bindAddress);
+            channels.add(channel);
+        }
+        listening = true;
+        for (int i = 0; i < channels.size(); i++) {
+            Thread reader = new Thread(new Reader(channels.get(i)), "Trap Receiver Socket " + i);
+            reader.setDaemon(true);
+            readers.add(reader);
+            reader.start();
+        }
+        System.out.println("Receiving traps on " + udpAddress + " with " + channels.size() + " socket(s)");
+    }
+
+    /**
+     * @param channel
+     * @return false if SO_REUSEPORT isn't supported
+     */
+    static boolean setReusePort(DatagramChannel channel) {
+        try {
+            Object reusePort = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            Method setOption = DatagramChannel.class.getMethod("setOption",
+                    Class.forName("java.net.SocketOption"), Object.class);
+            setOption.invoke(channel, reusePort, Boolean.TRUE);
+            return true;
+        } catch (Exception e) {
+            // older Java version or the platform doesn't support it
+            return false;
+        }
+    }
+
+    /**
+     * Reads datagrams of one socket until it is closed
+     */
+    class Reader implements Runnable {
+
+        DatagramChannel channel;
+
+        Reader(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(Math.max(getMaxInboundMessageSize(), 65535));
+            while (listening) {
+                try {
+                    receiveBuffer.clear();
+                    InetSocketAddress sender = (InetSocketAddress) channel.receive(receiveBuffer);
+                    receiveBuffer.flip();
+                    ByteBuffer message = receiveBuffer;
+                    if (copyMessages) {
+                        // the dispatcher decodes the message in another thread, it needs its own copy
+                        byte[] copy = new byte[receiveBuffer.remaining()];
+                        receiveBuffer.get(copy);
+                        message = ByteBuffer.wrap(copy);
+                    }
+                    UdpAddress address = new UdpAddress(sender.getAddress(), sender.getPort());
+                    TransportStateReference stateReference = new TransportStateReference(
+                            MultiSocketUdpTransportMapping.this, udpAddress, null,
+                            SecurityLevel.undefined, SecurityLevel.undefined, false, channel);
+                    fireProcessMessage(address, message, stateReference);
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    if (listening) {
+                        System.err.println("Receiving trap failed: " + e.getMessage());
+                    }
+                } catch (RuntimeException e) {
+                    // a broken message must not stop the socket
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a message (e.g. a response) with the first socket
+     */
+    @Override
+    public void sendMessage(UdpAddress targetAddress, byte[] message, TransportStateReference tmStateReference)
+            throws IOException {
+        DatagramChannel channel;
+        if (tmStateReference != null && tmStateReference.getSessionID() instanceof DatagramChannel) {
+            channel = (DatagramChannel) tmStateReference.getSessionID();
+        } else if (!channels.isEmpty()) {
+            channel = channels.get(0);
+        } else {
+            throw new IOException("Transport mapping isn't listening");
+        }
+        channel.send(ByteBuffer.wrap(message), new InetSocketAddress(targetAddress.getInetAddress(), targetAddress.getPort()));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        listening = false;
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+        readers.clear();
+    }
+
+    @Override
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * @param copyMessages false if all listeners are done with a message when they return, it isn't copied then
+     */
+    public void setCopyMessages(boolean copyMessages) {
+        this.copyMessages = copyMessages;
+    }
+
+    /**
+     * @return number of sockets receiving traps
+     */
+    public int getSocketCount() {
+        return channels.size();
+    }
+}
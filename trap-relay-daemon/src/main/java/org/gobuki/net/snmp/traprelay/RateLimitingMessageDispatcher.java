@@ -0,0 +1,35 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Drops the datagrams of agents over their rate limit on the transport's receive thread, before they are queued
+ * for the shards. So they are never BER decoded or checked by the USM, and informs over the limit aren't answered.
+ */
+public class RateLimitingMessageDispatcher extends ShardedMessageDispatcher {
+
+    final TrapRateLimiter rateLimiter;
+
+    public RateLimitingMessageDispatcher(MessageDispatcher dispatcher, int shardCount, int queueSize,
+                                         InformResponder informResponder, TrapRateLimiter rateLimiter) {
+        super(dispatcher, shardCount, queueSize, informResponder);
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void processMessage(TransportMapping sourceTransport, Address incomingAddress, ByteBuffer wholeMessage,
+                               TransportStateReference tmStateReference) {
+        if (incomingAddress instanceof IpAddress
+                && !rateLimiter.tryAcquire(((IpAddress) incomingAddress).getInetAddress(),
+                System.nanoTime())) {
+            return;
+        }
+        super.processMessage(sourceTransport, incomingAddress, wholeMessage, tmStateReference);
+    }
+}
@@ -0,0 +1,91 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.TransportIpAddress;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames undecoded SNMP messages for the RAW format, for clients with SNMP stacks of their own:
+ *
+ *   byte    format version (1)
+ *   varint  receive time, ms since the epoch
+ *   byte    source address length (4 or 16) | address | varint port,
+ *           or 0 | varint length | address as text for other transports
+ *   bytes   the SNMP message as received, BER encoded, up to the end of the frame
+ *
+ * The header is the one of the TrapEventBinaryConverter. The message is copied once, from the transport's receive
+ * buffer straight into a pooled TrapPayload, which all sessions share. Nothing is decoded.
+ */
+public class RawTrapConverter {
+
+    public static final int VERSION = 1;
+
+    TrapPayloadPool payloadPool;
+
+    public RawTrapConverter(TrapPayloadPool payloadPool) {
+        this.payloadPool = payloadPool;
+    }
+
+    /**
+     * @param source the agent's address
+     * @param message the SNMP message, its remaining bytes are copied and not consumed
+     * @param timestamp System.currentTimeMillis() when it was received
+     * @return the framed message
+     */
+    public TrapPayload convert(Address source, ByteBuffer message, long timestamp) {
+        byte[] address = null;
+        int port = 0;
+        boolean ip = false;
+        if (source instanceof TransportIpAddress) {
+            InetAddress inetAddress = ((TransportIpAddress) source).getInetAddress();
+            if (inetAddress != null) {
+                address = inetAddress.getAddress();
+                port = ((TransportIpAddress) source).getPort();
+                ip = true;
+            }
+        }
+        if (!ip) {
+            address = String.valueOf(source).getBytes(ClientSession.UTF8);
+        }
+        int length = 1 + varintSize(timestamp) + 1 + (ip ? varintSize(port) : varintSize(address.length))
+                + address.length + message.remaining();
+
+        TrapPayload payload = payloadPool.allocate(length);
+        byte[] data = payload.data;
+        int position = 0;
+        data[position++] = VERSION;
+        position = putVarint(data, position, timestamp);
+        if (ip) {
+            data[position++] = (byte) address.length;
+            System.arraycopy(address, 0, data, position, address.length);
+            position = putVarint(data, position + address.length, port);
+        } else {
+            data[position++] = 0;
+            position = putVarint(data, position, address.length);
+            System.arraycopy(address, 0, data, position, address.length);
+            position += address.length;
+        }
+        message.duplicate().get(data, position, message.remaining());
+        return payload;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int putVarint(byte[] data, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,18 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.smi.Address;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Gets the traps the TrapListener receives in passthrough mode, as undecoded SNMP messages
+ */
+public interface RawTrapHandler {
+
+    /**
+     * @param source the agent's address
+     * @param message the SNMP message as received, BER encoded. It may be the transport's receive buffer, it is
+     *                only valid until the method returns.
+     */
+    public void handleRawTrap(Address source, ByteBuffer message);
+}
@@ -0,0 +1,175 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.net.ProtocolException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed arguments of the REGISTER command.
+ *
+ *   REGISTER &lt;selector&gt;... [WINDOW &lt;n&gt;] [FROM &lt;seq&gt;|&lt;timestamp&gt;] [FORMAT json|binary|raw]
+ *            [COMPRESS deflate] [WHERE &lt;expression&gt;]
+ *
+ * Selectors are free arguments like "all". Options are an upper case keyword followed by a value.
+ *
+ * WINDOW n   switches the session into windowed acknowledgement mode. The server sends up to n traps
+ *            without waiting, each prefixed with a sequence number: "TRAP &lt;seq&gt; &lt;trap&gt;".
+ *            The client acknowledges cumulatively with "ACK &lt;seq&gt;".
+ *            Without this option one trap is sent at a time and acknowledged with a plain "ACK".
+ *
+ * FROM seq   starts with the trap with that sequence number instead of the next one received, FROM timestamp
+ *            with the first trap received at or after that time. The timestamp has the format of the JSON traps,
+ *            yyyy-MM-dd'T'HH:mm:ss.SSSZ, the milliseconds are optional. Old traps are read from the TrapJournal.
+ *
+ * FORMAT f   the wire format of the traps, see TrapFormat. The default is json. The server confirms a binary
+ *            format with "OK ... FORMAT binary", after that line it only sends binary frames.
+ *
+ * COMPRESS deflate   asks for compression. If the server agrees, it answers "OK ... COMPRESS deflate" and
+ *            everything it sends after that line is a raw DEFLATE stream (RFC 1951), flushed with a sync flush
+ *            after each batch of traps. The client's commands stay uncompressed.
+ *
+ * WHERE expression   only sends traps whose variables satisfy the expression, see FilterExpression. It takes the
+ *            rest of the line, so it comes last.
+ */
+public class RegisterCommand {
+
+    public static final String COMMAND = "REGISTER";
+
+    static final Pattern WHERE = Pattern.compile("\\sWHERE(\\s|$)");
+
+    List<String> selectors;
+
+    // 0: stop-and-wait acknowledgement of old clients
+    int ackWindow;
+
+    // sequence number of the first trap to send, 0 if not requested
+    long fromSequence;
+
+    // receive time of the first trap to send in ms, -1 if not requested
+    long fromTimestamp = -1;
+
+    TrapFormat format = TrapFormat.JSON;
+
+    // the client asked for DEFLATE compression
+    boolean compress;
+
+    // text of the WHERE option, null without
+    String expression;
+
+    public RegisterCommand() {
+        selectors = new ArrayList<String>();
+    }
+
+    /**
+     * Parses a REGISTER command line
+     *
+     * @param commandLine the complete line, starting with REGISTER
+     * @return the parsed command
+     * @throws ProtocolException if an option is malformed
+     */
+    public static RegisterCommand parse(String commandLine) throws ProtocolException {
+        RegisterCommand command = new RegisterCommand();
+        Matcher where = WHERE.matcher(commandLine);
+        if (where.find()) {
+            command.expression = commandLine.substring(where.end()).trim();
+            if (command.expression.isEmpty()) {
+                throw new ProtocolException("Missing value for WHERE");
+            }
+            commandLine = commandLine.substring(0, where.start());
+        }
+        String[] tokens = commandLine.trim().split("\\s+");
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i];
+            if ("WINDOW".equals(token)) {
+                command.ackWindow = parsePositiveInt(token, optionValue(tokens, ++i, token));
+            } else if ("FROM".equals(token)) {
+                command.parseFrom(optionValue(tokens, ++i, token));
+            } else if ("FORMAT".equals(token)) {
+                command.format = TrapFormat.parse(optionValue(tokens, ++i, token));
+            } else if ("COMPRESS".equals(token)) {
+                String compression = optionValue(tokens, ++i, token);
+                if (!"deflate".equals(compression)) {
+                    throw new ProtocolException("Unsupported compression: " + compression);
+                }
+                command.compress = true;
+            } else {
+                command.selectors.add(token);
+            }
+        }
+        return command;
+    }
+
+    private void parseFrom(String value) throws ProtocolException {
+        if (value.indexOf('T') != -1) {
+            String pattern = value.indexOf('.') != -1 ? "yyyy-MM-dd'T'HH:mm:ss.SSSZ" : "yyyy-MM-dd'T'HH:mm:ssZ";
+            try {
+                fromTimestamp = new SimpleDateFormat(pattern).parse(value).getTime();
+                return;
+            } catch (ParseException e) {
+                throw new ProtocolException("Invalid timestamp for FROM: " + value);
+            }
+        }
+        try {
+            fromSequence = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            fromSequence = 0;
+        }
+        if (fromSequence <= 0) {
+            throw new ProtocolException("Invalid value for FROM: " + value);
+        }
+    }
+
+    private static String optionValue(String[] tokens, int index, String option) throws ProtocolException {
+        if (index >= tokens.length) {
+            throw new ProtocolException("Missing value for " + option);
+        }
+        return tokens[index];
+    }
+
+    private static int parsePositiveInt(String option, String value) throws ProtocolException {
+        try {
+            int i = Integer.parseInt(value);
+            if (i > 0) {
+                return i;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new ProtocolException("Invalid value for " + option + ": " + value);
+    }
+
+    public List<String> getSelectors() {
+        return selectors;
+    }
+
+    public int getAckWindow() {
+        return ackWindow;
+    }
+
+    public long getFromSequence() {
+        return fromSequence;
+    }
+
+    public long getFromTimestamp() {
+        return fromTimestamp;
+    }
+
+    public TrapFormat getFormat() {
+        return format;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * @return the WHERE expression, null if the client didn't send one
+     */
+    public String getExpression() {
+        return expression;
+    }
+}
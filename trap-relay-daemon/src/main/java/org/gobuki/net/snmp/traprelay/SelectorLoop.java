@@ -0,0 +1,255 @@
+package org.gobuki.net.snmp.traprelay;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A thread multiplexing many client sessions over one Selector.
+ *
+ * The loop only wakes up when a socket is readable/writable, a new trap was offered to one of its sessions,
+ * the earliest ACK or registration deadline of its sessions passed or a lingering batch of traps has to be flushed.
+ * There is no polling.
+ */
+public class SelectorLoop extends Thread {
+
+    DeliveryEngine engine;
+    Selector selector;
+
+    // accepted connections waiting to be registered with the selector
+    Queue<ClientSession> newSessions;
+
+    // sessions with new traps to send, or whose handshake tasks are done
+    Queue<ClientSession> signalledSessions;
+
+    // true while a selector.wakeup() is outstanding, avoids a wakeup syscall per trap
+    AtomicBoolean wakeupPending;
+
+    List<ClientSession> sessions;
+
+    // sessions holding back a small batch of traps, see ClientSession.finishBatch()
+    List<ClientSession> lingeringSessions;
+
+    public SelectorLoop(DeliveryEngine engine, String name) throws IOException {
+        super(name);
+        this.engine = engine;
+        this.selector = Selector.open();
+        this.newSessions = new ConcurrentLinkedQueue<ClientSession>();
+        this.signalledSessions = new ConcurrentLinkedQueue<ClientSession>();
+        this.wakeupPending = new AtomicBoolean(false);
+        this.sessions = new ArrayList<ClientSession>();
+        this.lingeringSessions = new ArrayList<ClientSession>();
+        setDaemon(true);
+    }
+
+    /**
+     * Hands a freshly accepted connection over to this loop. Called by the accepting thread.
+     *
+     * @param channel
+     * @param sslEngine
+     * @return the new session
+     */
+    public ClientSession addConnection(SocketChannel channel, SSLEngine sslEngine) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        ClientSession session = new ClientSession(this, new TlsConnection(channel, sslEngine), engine.getMaxAckWindow());
+        newSessions.offer(session);
+        wakeup();
+        return session;
+    }
+
+    /**
+     * Schedules a session for sending its queued traps. Can be called from any thread.
+     *
+     * @param session
+     */
+    public void signal(ClientSession session) {
+        if (session.signalled.compareAndSet(false, true)) {
+            signalledSessions.offer(session);
+            wakeup();
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                selector.select(selectTimeout());
+                wakeupPending.set(false);
+
+                registerNewSessions();
+
+                Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator();
+                while (keyIter.hasNext()) {
+                    SelectionKey key = keyIter.next();
+                    keyIter.remove();
+                    ClientSession session = (ClientSession) key.attachment();
+                    try {
+                        session.handleIo(key.readyOps());
+                    } catch (CancelledKeyException e) {
+                        session.close();
+                    } catch (IOException e) {
+                        session.log(e.toString());
+                        session.close();
+                    } catch (RuntimeException e) {
+                        failed(session, e);
+                    }
+                }
+
+                ClientSession session;
+                while ((session = signalledSessions.poll()) != null) {
+                    session.signalled.set(false);
+                    if (!session.isClosed()) {
+                        try {
+                            if (session.state == ClientSession.State.HANDSHAKE) {
+                                // the handshake tasks are done
+                                session.handleIo(0);
+                            } else {
+                                session.sendTraps();
+                            }
+                        } catch (IOException e) {
+                            session.log(e.toString());
+                            session.close();
+                        } catch (RuntimeException e) {
+                            failed(session, e);
+                        }
+                    }
+                }
+
+                flushLingeringBatches();
+                checkTimeouts();
+            } catch (IOException e) {
+                System.err.println(getName() + ": " + e);
+            } catch (RuntimeException e) {
+                // the sessions of the loop must not be abandoned
+                System.err.println(getName() + ": " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void registerNewSessions() {
+        ClientSession session;
+        while ((session = newSessions.poll()) != null) {
+            try {
+                session.key = session.tls.getChannel().register(selector, SelectionKey.OP_READ, session);
+                sessions.add(session);
+                // the client speaks first in a TLS handshake, but start it to get the engine going
+                session.handleIo(0);
+            } catch (IOException e) {
+                session.log(e.toString());
+                session.close();
+            } catch (RuntimeException e) {
+                failed(session, e);
+            }
+        }
+    }
+
+    /**
+     * Closes a session which ran into a bug, the other sessions of the loop go on
+     *
+     * @param session
+     * @param e what it threw
+     */
+    private void failed(ClientSession session, RuntimeException e) {
+        session.log("closing after an internal error: " + e);
+        e.printStackTrace();
+        session.close();
+    }
+
+    /**
+     * Called by a session of this loop, which holds back a batch until its flush deadline
+     *
+     * @param session
+     */
+    void lingering(ClientSession session) {
+        lingeringSessions.add(session);
+    }
+
+    private void flushLingeringBatches() {
+        if (lingeringSessions.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<ClientSession> sessionIter = lingeringSessions.iterator();
+        while (sessionIter.hasNext()) {
+            ClientSession session = sessionIter.next();
+            try {
+                if (session.isClosed() || session.flushExpiredBatch(now)) {
+                    sessionIter.remove();
+                }
+            } catch (IOException e) {
+                session.log(e.toString());
+                session.close();
+                sessionIter.remove();
+            } catch (RuntimeException e) {
+                failed(session, e);
+                sessionIter.remove();
+            }
+        }
+    }
+
+    /**
+     * @return ms until the earliest ACK, registration or flush deadline, 0 (forever) if no session waits for any
+     */
+    private long selectTimeout() {
+        long timeout = 0;
+        if (!lingeringSessions.isEmpty()) {
+            long nanoNow = System.nanoTime();
+            for (ClientSession session : lingeringSessions) {
+                long remaining = session.flushDeadline == 0 ? 1
+                        : Math.max(1, (session.flushDeadline - nanoNow + 999999) / 1000000);
+                if (timeout == 0 || remaining < timeout) {
+                    timeout = remaining;
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (ClientSession session : sessions) {
+            long deadline;
+            if (session.isAwaitingRegister()) {
+                deadline = session.registerDeadline;
+            } else if (session.isAwaitingAck()) {
+                deadline = session.ackDeadline;
+            } else {
+                continue;
+            }
+            long remaining = Math.max(1, deadline - now + 1);
+            if (timeout == 0 || remaining < timeout) {
+                timeout = remaining;
+            }
+        }
+        return timeout;
+    }
+
+    private void checkTimeouts() {
+        long now = System.currentTimeMillis();
+        Iterator<ClientSession> sessionIter = sessions.iterator();
+        while (sessionIter.hasNext()) {
+            ClientSession session = sessionIter.next();
+            if (session.isClosed() || !session.checkTimeout(now)) {
+                sessionIter.remove();
+            }
+        }
+    }
+
+    public DeliveryEngine getEngine() {
+        return engine;
+    }
+}
@@ -0,0 +1,76 @@
+package org.gobuki.net.snmp.traprelay;
+
+/**
+ * FIFO of sequence numbers without boxing, used for the traps a client hasn't acknowledged yet.
+ * Each sequence number has a timestamp, e.g. when the trap was sent.
+ */
+public class SequenceQueue {
+
+    long[] elements;
+    long[] timestamps;
+    int head;
+    int size;
+
+    public SequenceQueue(int initialCapacity) {
+        elements = new long[Math.max(1, initialCapacity)];
+        timestamps = new long[elements.length];
+    }
+
+    public void add(long sequence) {
+        add(sequence, 0);
+    }
+
+    public void add(long sequence, long timestamp) {
+        if (size == elements.length) {
+            long[] enlarged = new long[elements.length * 2];
+            long[] enlargedTimestamps = new long[elements.length * 2];
+            for (int i = 0; i < size; i++) {
+                enlarged[i] = elements[(head + i) % elements.length];
+                enlargedTimestamps[i] = timestamps[(head + i) % elements.length];
+            }
+            elements = enlarged;
+            timestamps = enlargedTimestamps;
+            head = 0;
+        }
+        elements[(head + size) % elements.length] = sequence;
+        timestamps[(head + size) % elements.length] = timestamp;
+        size++;
+    }
+
+    /**
+     * @return the timestamp of the oldest sequence number, 0 if the queue is empty
+     */
+    public long peekTimestamp() {
+        return size == 0 ? 0 : timestamps[head];
+    }
+
+    /**
+     * @return the oldest sequence number, -1 if the queue is empty
+     */
+    public long peek() {
+        return size == 0 ? -1 : elements[head];
+    }
+
+    public long poll() {
+        if (size == 0) {
+            return -1;
+        }
+        long sequence = elements[head];
+        head = (head + 1) % elements.length;
+        size--;
+        return sequence;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,333 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponder;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.Target;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.mp.MessageProcessingModel;
+import org.snmp4j.mp.PduHandle;
+import org.snmp4j.mp.PduHandleCallback;
+import org.snmp4j.mp.StateReference;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decodes received messages on a fixed set of single threaded shards, instead of a thread pool. Each agent is
+ * assigned to a shard by a hash of its address, the shard decodes its messages and runs the command responders
+ * (the daemon converts and publishes the traps) one after another. So the traps of an agent are published in the
+ * order they were received, while different agents are processed in parallel on all shards.
+ *
+ * The transport's receive threads hand the messages over through a bounded MpscArrayQueue per shard and wake the
+ * shard only if it is waiting. If a shard's queue is full, further messages for it are dropped and counted, like
+ * the kernel drops datagrams when the socket's buffer is full; the other shards are not held up.
+ *
+ * SNMPv2c informs are answered by the InformResponder once they are queued, their retransmissions are answered
+ * and dropped. An inform dropped by a full queue isn't answered, so the agent retransmits it.
+ *
+ * Other work which has to keep the order of an agent's traps, like the summaries of the TrapSuppressor, is queued
+ * for the agent's shard with execute().
+ *
+ * Everything but processMessage() is passed on to the wrapped dispatcher.
+ */
+public class ShardedMessageDispatcher implements MessageDispatcher {
+
+    /**
+     * A received message or a task waiting for its shard
+     */
+    static class Message {
+        final TransportMapping transport;
+        final Address address;
+        final ByteBuffer message;
+        final TransportStateReference stateReference;
+        // run instead of processing a message if not null
+        final Runnable task;
+
+        Message(TransportMapping transport, Address address, ByteBuffer message,
+                TransportStateReference stateReference) {
+            this.transport = transport;
+            this.address = address;
+            this.message = message;
+            this.stateReference = stateReference;
+            this.task = null;
+        }
+
+        Message(Runnable task) {
+            this.transport = null;
+            this.address = null;
+            this.message = null;
+            this.stateReference = null;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Thread processing the messages of its agents in order
+     */
+    class Shard implements Runnable {
+        final MpscArrayQueue<Message> queue;
+        Thread thread;
+        // set while the thread is about to park or parked, producers unpark it then
+        volatile boolean waiting;
+
+        Shard(int queueSize) {
+            queue = new MpscArrayQueue<Message>(queueSize);
+        }
+
+        void wakeUp() {
+            if (waiting) {
+                waiting = false;
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Message message = queue.poll();
+                if (message == null) {
+                    if (!queue.isEmpty()) {
+                        // a producer claimed the next slot but didn't store the message yet
+                        Thread.yield();
+                        continue;
+                    }
+                    waiting = true;
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                try {
+                    if (message.task != null) {
+                        message.task.run();
+                    } else {
+                        dispatcher.processMessage(message.transport, message.address, message.message,
+                                message.stateReference);
+                    }
+                } catch (RuntimeException e) {
+                    // a broken message must not stop the shard
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    final MessageDispatcher dispatcher;
+
+    final Shard[] shards;
+
+    // answers SNMPv2c informs on the receive thread, null to leave them to the command responders
+    final InformResponder informResponder;
+
+    // messages dropped because the queue of their shard was full
+    final AtomicLong dropped = new AtomicLong();
+
+    volatile boolean running = true;
+
+    /**
+     * @param dispatcher decodes the messages and passes them to the command responders
+     * @param shardCount number of shards, each with its own thread
+     * @param queueSize messages waiting per shard, rounded up to a power of 2
+     * @param informResponder null if informs aren't answered
+     */
+    public ShardedMessageDispatcher(MessageDispatcher dispatcher, int shardCount, int queueSize,
+                                    InformResponder informResponder) {
+        this.dispatcher = dispatcher;
+        this.informResponder = informResponder;
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(queueSize);
+            Thread thread = new Thread(shards[i], "Trap Shard " + i);
+            thread.setDaemon(true);
+            shards[i].thread = thread;
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Queues a received message for the shard of its source. Called by the transport's receive threads, the
+     * message must not be modified afterwards.
+     */
+    @Override
+    public void processMessage(TransportMapping sourceTransport, Address incomingAddress, ByteBuffer wholeMessage,
+                               TransportStateReference tmStateReference) {
+        // the response is prepared before the message is queued, the shard may consume it right away
+        boolean inform = informResponder != null && informResponder.isInform(wholeMessage);
+        if (inform && !informResponder.isFirst(incomingAddress)) {
+            // the earlier response may have been lost
+            informResponder.respond(sourceTransport, incomingAddress, tmStateReference);
+            return;
+        }
+        Shard shard = shards[shardIndex(incomingAddress, shards.length)];
+        if (!shard.queue.offer(new Message(sourceTransport, incomingAddress, wholeMessage, tmStateReference))) {
+            dropped.incrementAndGet();
+            if (inform) {
+                // not answered, the agent sends it again
+                informResponder.forget(incomingAddress);
+            }
+            return;
+        }
+        shard.wakeUp();
+        if (inform) {
+            informResponder.respond(sourceTransport, incomingAddress, tmStateReference);
+        }
+    }
+
+    /**
+     * Runs a task on the shard of an agent, after the agent's messages queued so far
+     *
+     * @param agent address of the agent, the port is ignored
+     * @param task
+     * @return false if the shard's queue is full, the task isn't run then
+     */
+    public boolean execute(Address agent, Runnable task) {
+        Shard shard = shards[shardIndex(agent, shards.length)];
+        if (!shard.queue.offer(new Message(task))) {
+            return false;
+        }
+        shard.wakeUp();
+        return true;
+    }
+
+    /**
+     * @return the shard of an agent, by its address without the port
+     */
+    static int shardIndex(Address address, int shardCount) {
+        int hash;
+        if (address instanceof IpAddress && ((IpAddress) address).getInetAddress() != null) {
+            // hashes the address bytes without copying them
+            hash = ((IpAddress) address).getInetAddress().hashCode();
+        } else {
+            hash = address.hashCode();
+        }
+        // addresses of a network differ in the last bytes only
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & 0x7fffffff) % shardCount;
+    }
+
+    /**
+     * Stops the shards, messages still queued are not processed
+     */
+    public void stop() {
+        running = false;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return messages waiting in the queues of all shards
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Shard shard : shards) {
+            queued += shard.queue.size();
+        }
+        return queued;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public int getNextRequestID() {
+        return dispatcher.getNextRequestID();
+    }
+
+    @Override
+    public void addMessageProcessingModel(MessageProcessingModel model) {
+        dispatcher.addMessageProcessingModel(model);
+    }
+
+    @Override
+    public void removeMessageProcessingModel(MessageProcessingModel model) {
+        dispatcher.removeMessageProcessingModel(model);
+    }
+
+    @Override
+    public MessageProcessingModel getMessageProcessingModel(int messageProcessingModel) {
+        return dispatcher.getMessageProcessingModel(messageProcessingModel);
+    }
+
+    @Override
+    public void addTransportMapping(TransportMapping<? extends Address> transport) {
+        dispatcher.addTransportMapping(transport);
+    }
+
+    @Override
+    public TransportMapping removeTransportMapping(TransportMapping<? extends Address> transport) {
+        return dispatcher.removeTransportMapping(transport);
+    }
+
+    @Override
+    public Collection<TransportMapping> getTransportMappings() {
+        return dispatcher.getTransportMappings();
+    }
+
+    @Override
+    public TransportMapping getTransport(Address destAddress) {
+        return dispatcher.getTransport(destAddress);
+    }
+
+    @Override
+    public void addCommandResponder(CommandResponder listener) {
+        dispatcher.addCommandResponder(listener);
+    }
+
+    @Override
+    public void removeCommandResponder(CommandResponder listener) {
+        dispatcher.removeCommandResponder(listener);
+    }
+
+    @Override
+    public PduHandle sendPdu(TransportMapping transportMapping, Target target, PDU pdu, boolean expectResponse)
+            throws MessageException {
+        return dispatcher.sendPdu(transportMapping, target, pdu, expectResponse);
+    }
+
+    @Override
+    public PduHandle sendPdu(TransportMapping transportMapping, Target target, PDU pdu, boolean expectResponse,
+                             PduHandleCallback<PDU> callback) throws MessageException {
+        return dispatcher.sendPdu(transportMapping, target, pdu, expectResponse, callback);
+    }
+
+    @Override
+    public PduHandle sendPdu(Target target, PDU pdu, boolean expectResponse) throws MessageException {
+        return dispatcher.sendPdu(target, pdu, expectResponse);
+    }
+
+    @Override
+    public int returnResponsePdu(int messageProcessingModel, int securityModel, byte[] securityName,
+                                 int securityLevel, PDU pdu, int maxSizeResponseScopedPDU,
+                                 StateReference stateReference, StatusInformation statusInformation)
+            throws MessageException {
+        return dispatcher.returnResponsePdu(messageProcessingModel, securityModel, securityName, securityLevel, pdu,
+                maxSizeResponseScopedPDU, stateReference, statusInformation);
+    }
+
+    @Override
+    public void releaseStateReference(int messageProcessingModel, PduHandle pduHandle) {
+        dispatcher.releaseStateReference(messageProcessingModel, pduHandle);
+    }
+}
@@ -0,0 +1,33 @@
+package org.gobuki.net.snmp.traprelay;
+
+/**
+ * What happens when a client falls so far behind, that traps it hasn't received yet are overwritten in the
+ * TrapRingBuffer
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Disconnect the client
+     */
+    DISCONNECT,
+
+    /**
+     * Continue with the oldest trap still available. Clients with an acknowledgement window are told which
+     * traps they missed with "GAP &lt;first seq&gt; &lt;last seq&gt;".
+     */
+    SKIP,
+
+    /**
+     * Let the trap receiver wait for the client up to blockBudgetMillis, then continue like SKIP
+     */
+    BLOCK;
+
+    public static SlowConsumerPolicy parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown slow consumer policy '" + name + "', using " + SKIP);
+            return SKIP;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the sessions subscribed to a trap without looking at the other sessions.
+ *
+ * Sessions are identified by a small slot number. The OID prefixes of all filters are stored in a trie over the
+ * OID arcs, the networks in a binary trie over the address bits, one for IPv4 and one for IPv6. Matching a trap
+ * walks the trap OID and the source address down the tries and collects the slots found on the way, so the cost
+ * depends on the length of the OID and the number of matching sessions only.
+ *
+ * Adding and removing subscriptions isn't thread safe. Several threads may match traps at the same time, each with
+ * its own Match, while no subscription is added or removed; the DeliveryEngine ensures that with a read/write lock.
+ */
+public class SubscriptionIndex {
+
+    /**
+     * Trie node, children are sorted by arc (OID trie) or are the 0 and 1 bit (address trie)
+     */
+    static class Node {
+        int[] arcs = new int[0];
+        Node[] children = new Node[0];
+        int[] slots = new int[0];
+
+        Node child(int arc, boolean create) {
+            int low = 0;
+            int high = arcs.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (arcs[middle] < arc) {
+                    low = middle + 1;
+                } else if (arcs[middle] > arc) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            Node child = new Node();
+            int[] newArcs = new int[arcs.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(arcs, 0, newArcs, 0, low);
+            System.arraycopy(children, 0, newChildren, 0, low);
+            newArcs[low] = arc;
+            newChildren[low] = child;
+            System.arraycopy(arcs, low, newArcs, low + 1, arcs.length - low);
+            System.arraycopy(children, low, newChildren, low + 1, children.length - low);
+            arcs = newArcs;
+            children = newChildren;
+            return child;
+        }
+
+        void addSlot(int slot) {
+            int[] newSlots = new int[slots.length + 1];
+            System.arraycopy(slots, 0, newSlots, 0, slots.length);
+            newSlots[slots.length] = slot;
+            slots = newSlots;
+        }
+
+        void removeSlot(int slot) {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] == slot) {
+                    int[] newSlots = new int[slots.length - 1];
+                    System.arraycopy(slots, 0, newSlots, 0, i);
+                    System.arraycopy(slots, i + 1, newSlots, i, slots.length - i - 1);
+                    slots = newSlots;
+                    return;
+                }
+            }
+        }
+    }
+
+    Node oidRoot = new Node();
+    Node ipv4Root = new Node();
+    Node ipv6Root = new Node();
+
+    // sessions without filter
+    Node wildcard = new Node();
+
+    // filter of each slot, null if the slot is free
+    TrapFilter[] filters = new TrapFilter[64];
+    boolean[] used = new boolean[64];
+
+    /**
+     * The state of matching traps, one per thread
+     */
+    public class Match {
+        // a slot was found in the OID trie / address trie if its mark equals the epoch
+        int[] oidMarks = new int[0];
+        int[] addressMarks = new int[0];
+        int epoch;
+
+        // slots found by the last match
+        int[] matches = new int[64];
+        int matchCount;
+
+        /**
+         * Finds the slots subscribed to a trap. The result is available with getMatches() and getMatchCount()
+         * until the next call.
+         *
+         * @param route
+         */
+        public void match(TrapRoute route) {
+            matchCount = 0;
+            if (oidMarks.length < used.length) {
+                // subscriptions were added, the new marks are 0 like after an overflow
+                oidMarks = new int[used.length];
+                addressMarks = new int[used.length];
+                epoch = 0;
+            }
+            if (++epoch == 0) {
+                // the marks start over after an overflow
+                Arrays.fill(oidMarks, 0);
+                Arrays.fill(addressMarks, 0);
+                epoch = 1;
+            }
+
+            for (int slot : wildcard.slots) {
+                addMatch(slot);
+            }
+
+            Node node = oidRoot;
+            int[] oid = route.oid;
+            for (int i = 0; node != null; i++) {
+                for (int slot : node.slots) {
+                    if (oidMarks[slot] != epoch) {
+                        oidMarks[slot] = epoch;
+                        if (!filters[slot].hasNetworks()) {
+                            addMatch(slot);
+                        }
+                    }
+                }
+                node = i < oid.length && node.arcs.length > 0 ? node.child(oid[i], false) : null;
+            }
+
+            byte[] address = route.address;
+            if (address.length == 4 || address.length == 16) {
+                node = address.length == 4 ? ipv4Root : ipv6Root;
+                int bits = address.length * 8;
+                for (int bit = 0; node != null; bit++) {
+                    for (int slot : node.slots) {
+                        if (addressMarks[slot] != epoch) {
+                            addressMarks[slot] = epoch;
+                            if (!filters[slot].hasOidPrefixes() || oidMarks[slot] == epoch) {
+                                addMatch(slot);
+                            }
+                        }
+                    }
+                    node = bit < bits && node.arcs.length > 0 ? node.child(TrapFilter.bit(address, bit), false) : null;
+                }
+            }
+        }
+
+        private void addMatch(int slot) {
+            if (matchCount == matches.length) {
+                int[] enlarged = new int[matches.length * 2];
+                System.arraycopy(matches, 0, enlarged, 0, matchCount);
+                matches = enlarged;
+            }
+            matches[matchCount++] = slot;
+        }
+
+        public int[] getMatches() {
+            return matches;
+        }
+
+        public int getMatchCount() {
+            return matchCount;
+        }
+    }
+
+    /**
+     * Adds a subscription
+     *
+     * @param filter null for all traps
+     * @return the slot of the subscription
+     */
+    public int add(TrapFilter filter) {
+        int slot = 0;
+        while (slot < used.length && used[slot]) {
+            slot++;
+        }
+        if (slot == used.length) {
+            grow();
+        }
+        used[slot] = true;
+        filters[slot] = filter;
+        if (filter == null) {
+            wildcard.addSlot(slot);
+            return slot;
+        }
+        for (int[] prefix : filter.getOidPrefixes()) {
+            oidNode(prefix, true).addSlot(slot);
+        }
+        List<byte[]> networks = filter.getNetworks();
+        for (int i = 0; i < networks.size(); i++) {
+            addressNode(networks.get(i), filter.getPrefixLengths().get(i), true).addSlot(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Removes a subscription, the slot may be reused afterwards
+     *
+     * @param slot
+     */
+    public void remove(int slot) {
+        if (slot < 0 || slot >= used.length || !used[slot]) {
+            return;
+        }
+        TrapFilter filter = filters[slot];
+        if (filter == null) {
+            wildcard.removeSlot(slot);
+        } else {
+            // empty nodes stay in the tries, subscribers mostly come back with the same selectors
+            for (int[] prefix : filter.getOidPrefixes()) {
+                oidNode(prefix, false).removeSlot(slot);
+            }
+            List<byte[]> networks = filter.getNetworks();
+            for (int i = 0; i < networks.size(); i++) {
+                addressNode(networks.get(i), filter.getPrefixLengths().get(i), false).removeSlot(slot);
+            }
+        }
+        used[slot] = false;
+        filters[slot] = null;
+    }
+
+    private void grow() {
+        int size = used.length * 2;
+        TrapFilter[] newFilters = new TrapFilter[size];
+        boolean[] newUsed = new boolean[size];
+        System.arraycopy(filters, 0, newFilters, 0, filters.length);
+        System.arraycopy(used, 0, newUsed, 0, used.length);
+        filters = newFilters;
+        used = newUsed;
+    }
+
+    private Node oidNode(int[] prefix, boolean create) {
+        Node node = oidRoot;
+        for (int arc : prefix) {
+            node = node.child(arc, create);
+        }
+        return node;
+    }
+
+    private Node addressNode(byte[] network, int prefixLength, boolean create) {
+        Node node = network.length == 4 ? ipv4Root : ipv6Root;
+        for (int bit = 0; bit < prefixLength; bit++) {
+            node = node.child(TrapFilter.bit(network, bit), create);
+        }
+        return node;
+    }
+
+    /**
+     * @return the state for matching traps on one thread
+     */
+    public Match newMatch() {
+        return new Match();
+    }
+
+    /**
+     * @return number of slots, all slots in use are smaller
+     */
+    public int capacity() {
+        return used.length;
+    }
+}
@@ -0,0 +1,319 @@
+package org.gobuki.net.snmp.traprelay;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking TLS on top of a SocketChannel using an SSLEngine.
+ *
+ * None of the methods block. They do as much work as the socket allows and report whether they have to be
+ * called again once the channel is readable or writable.
+ *
+ * Buffer states:
+ *  - netIn is kept in write mode, it holds encrypted bytes read from the socket which weren't unwrapped yet
+ *  - netOut is kept in read mode, it holds encrypted bytes which weren't written to the socket yet
+ *  - appIn is kept in write mode, it holds decrypted bytes for the session to consume
+ *
+ * The handshake tasks of the engine (key exchange, certificate validation) take milliseconds of CPU. With a task
+ * executor they run there instead of on the calling thread, handshake() returns false meanwhile and the
+ * connection's owner is called back when they are done.
+ */
+public class TlsConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    SocketChannel channel;
+    SSLEngine engine;
+
+    ByteBuffer netIn;
+    ByteBuffer netOut;
+    ByteBuffer appIn;
+
+    // runs the handshake tasks, null to run them on the calling thread
+    Executor taskExecutor;
+
+    // called by the executor's thread when the handshake tasks are done
+    Runnable tasksDone;
+
+    // true while the handshake tasks are running on the executor
+    volatile boolean runningTasks;
+
+    // set by the first call of handshake(), and once the initial handshake is finished
+    boolean handshakeStarted;
+    boolean handshakeFinished;
+
+    public TlsConnection(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut.flip();
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    /**
+     * Progresses the TLS handshake as far as possible without blocking.
+     *
+     * @return true when the handshake is finished and all handshake messages were written
+     * @throws IOException when the peer closed the connection or the handshake failed
+     */
+    public boolean handshake() throws IOException {
+        if (!handshakeStarted) {
+            // a new engine is NOT_HANDSHAKING until it is told to begin
+            engine.beginHandshake();
+            handshakeStarted = true;
+        }
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NOT_HANDSHAKING:
+                case FINISHED:
+                    handshakeFinished = flush();
+                    return handshakeFinished;
+                case NEED_TASK:
+                    if (taskExecutor == null || handshakeFinished) {
+                        // a renegotiation, rare enough to do it in one go
+                        runDelegatedTasks();
+                        break;
+                    }
+                    if (!runningTasks) {
+                        runningTasks = true;
+                        taskExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    runDelegatedTasks();
+                                } finally {
+                                    runningTasks = false;
+                                    tasksDone.run();
+                                }
+                            }
+                        });
+                    }
+                    return false;
+                case NEED_WRAP:
+                    if (!flush()) {
+                        return false;
+                    }
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                    if (!unwrap()) {
+                        // not enough data for a complete record
+                        if (!flush()) {
+                            return false;
+                        }
+                        int n = channel.read(netIn);
+                        if (n < 0) {
+                            throw new EOFException("Connection closed during handshake");
+                        }
+                        if (n == 0) {
+                            return false;
+                        }
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Runs the long running handshake tasks (key exchange, certificate validation) of the engine.
+     */
+    protected void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Reads and decrypts everything that is available on the socket into appIn.
+     *
+     * @return the number of bytes read from the socket, -1 if the peer closed the connection
+     * @throws IOException
+     */
+    public int read() throws IOException {
+        int n = channel.read(netIn);
+        while (unwrap()) {
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                // the peer started a renegotiation
+                handshake();
+            }
+        }
+        if (engine.isInboundDone()) {
+            return -1;
+        }
+        return n;
+    }
+
+    /**
+     * Unwraps one TLS record from netIn into appIn
+     *
+     * @return false if netIn doesn't contain a complete record
+     * @throws IOException when the peer sent close_notify or garbage
+     */
+    private boolean unwrap() throws IOException {
+        if (netIn.position() == 0) {
+            return false;
+        }
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case OK:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            case BUFFER_UNDERFLOW:
+                if (netIn.position() == netIn.capacity()) {
+                    netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                }
+                return false;
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+            case CLOSED:
+            default:
+                throw new EOFException("Peer closed the TLS session");
+        }
+    }
+
+    /**
+     * Encrypts application data into the network buffer. Only call this, when netOut was flushed, it will
+     * encrypt at most one TLS record.
+     *
+     * @param src the application data
+     * @return number of bytes consumed from src
+     * @throws SSLException when the engine was closed
+     */
+    public int wrap(ByteBuffer src) throws IOException {
+        netOut.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(src, netOut);
+        } finally {
+            netOut.flip();
+        }
+        switch (result.getStatus()) {
+            case OK:
+                return result.bytesConsumed();
+            case BUFFER_OVERFLOW:
+                netOut = enlargeReadable(netOut, engine.getSession().getPacketBufferSize());
+                return 0;
+            case CLOSED:
+            default:
+                throw new SSLException("TLS session closed, can't write");
+        }
+    }
+
+    /**
+     * Encrypts and writes application data.
+     *
+     * @param src the application data, the position is advanced by the number of bytes written
+     * @return true if src was completely written, false if the socket buffer is full
+     * @throws IOException
+     */
+    public boolean write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (!flush()) {
+                return false;
+            }
+            wrap(src);
+        }
+        return flush();
+    }
+
+    /**
+     * Writes pending encrypted data to the socket
+     *
+     * @return true if no encrypted data is pending anymore
+     * @throws IOException
+     */
+    public boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the handshake tasks on an executor from now on
+     *
+     * @param taskExecutor
+     * @param tasksDone called by the executor's thread after the tasks ran, handshake() can continue then
+     */
+    public void setTaskExecutor(Executor taskExecutor, Runnable tasksDone) {
+        this.taskExecutor = taskExecutor;
+        this.tasksDone = tasksDone;
+    }
+
+    /**
+     * @return true while the handshake waits for its tasks, there is nothing to read or write until they are done
+     */
+    public boolean isRunningTasks() {
+        return runningTasks;
+    }
+
+    public boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * Sends close_notify, as far as possible without blocking, and closes the channel
+     */
+    public void close() {
+        try {
+            engine.closeOutbound();
+            if (flush()) {
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException e) {
+            // the connection is closed anyway
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public ByteBuffer getAppIn() {
+        return appIn;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+
+    private static ByteBuffer enlargeReadable(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+        enlarged.put(buffer);
+        enlarged.flip();
+        return enlarged;
+    }
+}
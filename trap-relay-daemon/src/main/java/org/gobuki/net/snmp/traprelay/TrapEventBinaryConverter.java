@@ -0,0 +1,200 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.smi.*;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Converts trap events to the compact binary format, about half the size of the JSON format and parsed without
+ * any text processing:
+ *
+ *   byte    format version (1)
+ *   varint  receive time, ms since the epoch
+ *   byte    source address length (4 or 16) | address | varint port,
+ *           or 0 | varint length | address as text for other transports
+ *   varint  security level
+ *   varint  security model
+ *   varint  length | security name
+ *   varint  number of variable bindings, each one
+ *     varint  number of arcs | varint arcs
+ *     byte    SMI syntax (BER tag of the value)
+ *     value   INTEGER: zigzag varint
+ *             Counter32, Gauge32, TimeTicks, Counter64: varint
+ *             OCTET STRING, Opaque, IpAddress: varint length | bytes
+ *             OBJECT IDENTIFIER: varint number of arcs | varint arcs
+ *             NULL, noSuchObject, noSuchInstance, endOfMibView: nothing
+ *             other syntaxes are sent as OCTET STRING with the value's text
+ *
+ * Varints are unsigned, 7 bits per byte, least significant group first, the high bit set on all but the last byte.
+ *
+ * Like the TrapEventJsonConverter, each receiver thread encodes into its own reusable buffer and the result is
+ * copied once into a pooled TrapPayload.
+ */
+public class TrapEventBinaryConverter implements TrapEventConverter<TrapPayload> {
+
+    public static final int VERSION = 1;
+
+    TrapPayloadPool payloadPool;
+
+    private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    public TrapEventBinaryConverter(TrapPayloadPool payloadPool) {
+        this.payloadPool = payloadPool;
+    }
+
+    public TrapPayload convertTrap(CommandResponderEvent event) {
+        return convertTrap(event, System.currentTimeMillis());
+    }
+
+    public TrapPayload convertTrap(CommandResponderEvent event, long timestamp) {
+
+        Output out = outputs.get();
+        out.reset();
+
+        out.write(VERSION);
+        out.writeVarint(timestamp);
+        out.writeAddress(event.getPeerAddress());
+
+        out.writeVarint(event.getSecurityLevel() & 0xFFFFFFFFL);
+        out.writeVarint(event.getSecurityModel() & 0xFFFFFFFFL);
+        byte[] securityName = event.getSecurityName();
+        out.writeBytes(securityName != null ? securityName : new byte[0]);
+
+        List<? extends VariableBinding> varBinds = event.getPDU().getVariableBindings();
+        int count = varBinds != null ? varBinds.size() : 0;
+        out.writeVarint(count);
+        for (int i = 0; i < count; i++) {
+            VariableBinding var = varBinds.get(i);
+            out.writeOid(var.getOid());
+            out.writeVariable(var.getVariable());
+        }
+
+        TrapPayload payload = payloadPool.allocate(out.length);
+        System.arraycopy(out.buf, 0, payload.data, 0, out.length);
+        return payload;
+    }
+
+    /**
+     * Growable per thread output buffer
+     */
+    static class Output {
+
+        byte[] buf = new byte[512];
+        int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        void ensureCapacity(int additional) {
+            if (length + additional > buf.length) {
+                byte[] enlarged = new byte[Math.max(buf.length * 2, length + additional)];
+                System.arraycopy(buf, 0, enlarged, 0, length);
+                buf = enlarged;
+            }
+        }
+
+        void write(int b) {
+            ensureCapacity(1);
+            buf[length++] = (byte) b;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[length++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, length, bytes.length);
+            length += bytes.length;
+        }
+
+        void writeAddress(Address address) {
+            if (address instanceof TransportIpAddress) {
+                TransportIpAddress ipAddress = (TransportIpAddress) address;
+                InetAddress inetAddress = ipAddress.getInetAddress();
+                if (inetAddress != null) {
+                    byte[] bytes = inetAddress.getAddress();
+                    write(bytes.length);
+                    ensureCapacity(bytes.length);
+                    System.arraycopy(bytes, 0, buf, length, bytes.length);
+                    length += bytes.length;
+                    writeVarint(ipAddress.getPort());
+                    return;
+                }
+            }
+            write(0);
+            writeBytes(String.valueOf(address).getBytes(ClientSession.UTF8));
+        }
+
+        void writeOid(OID oid) {
+            int[] arcs = oid.getValue();
+            writeVarint(arcs.length);
+            for (int arc : arcs) {
+                writeVarint(arc & 0xFFFFFFFFL);
+            }
+        }
+
+        void writeVariable(Variable variable) {
+            int syntax = variable.getSyntax();
+            switch (syntax) {
+                case SMIConstants.SYNTAX_INTEGER:
+                    write(syntax);
+                    int i = variable.toInt();
+                    // zigzag, small negative numbers stay short
+                    writeVarint(((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+                    break;
+                case SMIConstants.SYNTAX_COUNTER32:
+                case SMIConstants.SYNTAX_GAUGE32:
+                case SMIConstants.SYNTAX_TIMETICKS:
+                case SMIConstants.SYNTAX_COUNTER64:
+                    write(syntax);
+                    writeVarint(variable.toLong());
+                    break;
+                case SMIConstants.SYNTAX_OCTET_STRING:
+                case SMIConstants.SYNTAX_OPAQUE:
+                    if (!(variable instanceof OctetString)) {
+                        writeText(variable);
+                        break;
+                    }
+                    write(syntax);
+                    writeBytes(((OctetString) variable).getValue());
+                    break;
+                case SMIConstants.SYNTAX_IPADDRESS:
+                    write(syntax);
+                    writeBytes(((IpAddress) variable).getInetAddress().getAddress());
+                    break;
+                case SMIConstants.SYNTAX_OBJECT_IDENTIFIER:
+                    write(syntax);
+                    writeOid((OID) variable);
+                    break;
+                case SMIConstants.SYNTAX_NULL:
+                case SMIConstants.EXCEPTION_NO_SUCH_OBJECT:
+                case SMIConstants.EXCEPTION_NO_SUCH_INSTANCE:
+                case SMIConstants.EXCEPTION_END_OF_MIB_VIEW:
+                    write(syntax);
+                    break;
+                default:
+                    writeText(variable);
+            }
+        }
+
+        private void writeText(Variable variable) {
+            write(SMIConstants.SYNTAX_OCTET_STRING);
+            writeBytes(variable.toString().getBytes(ClientSession.UTF8));
+        }
+    }
+}
@@ -5,4 +5,11 @@ import org.snmp4j.CommandResponderEvent;
 public interface TrapEventConverter<T> {
 
     public T convertTrap(CommandResponderEvent event);
+
+    /**
+     * @param event
+     * @param timestamp System.currentTimeMillis() when the trap was received, the trap may be converted later
+     * @return the converted trap
+     */
+    public T convertTrap(CommandResponderEvent event, long timestamp);
 }
@@ -1,64 +1,587 @@
 package org.gobuki.net.snmp.traprelay;
 
-import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import org.snmp4j.CommandResponderEvent;
-import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.smi.*;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Iterator;
-import java.util.Vector;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
 
-public class TrapEventJsonConverter implements TrapEventConverter<String> {
+/**
+ * Converts trap events to single line JSON, UTF-8 encoded:
+ *
+ *   JSONTRAP:{ "trapSrc": "...", "timestamp": "yyyy-MM-dd'T'HH:mm:ss.SSSZ", "secLevel": "...", "secModel": "...",
+ *              "secName": "...", "variables": { "&lt;oid&gt;": "&lt;value&gt;", ... } }
+ *
+ * With a MibSymbolTable, two more objects follow the variables, with the OIDs that have a symbol:
+ *
+ *   "names": { "&lt;oid&gt;": "&lt;name&gt;[.&lt;instance&gt;]", ... }      name of the variable, e.g. "ifOperStatus.3"
+ *   "labels": { "&lt;oid&gt;": "&lt;label&gt;", ... }                     label of an enumerated INTEGER value, name of
+ *                                                          an OBJECT IDENTIFIER value, e.g. "linkDown"
+ *
+ * The converter is called concurrently by the trap receiver threads. Each thread writes into its own reusable
+ * buffer, the result is copied once into a pooled TrapPayload. Numbers, OIDs, addresses and octet strings are
+ * written as bytes directly, without intermediate Strings. The output is the same as formatting the values with
+ * VariableBinding.toValueString() and escaping them with Jackson's JsonStringEncoder.
+ */
+public class TrapEventJsonConverter implements TrapEventConverter<TrapPayload> {
 
-    SimpleDateFormat sdf;
+    static final byte[] PREFIX = ascii("JSONTRAP:{ \"trapSrc\": \"");
+    static final byte[] TIMESTAMP = ascii("\", \"timestamp\": \"");
+    static final byte[] SEC_LEVEL = ascii("\", \"secLevel\": \"");
+    static final byte[] SEC_MODEL = ascii("\", \"secModel\": \"");
+    static final byte[] SEC_NAME = ascii("\", \"secName\": \"");
+    static final byte[] VARIABLES = ascii("\", \"variables\": { ");
+    static final byte[] OID_VALUE_SEPARATOR = ascii("\": \"");
+    static final byte[] VARIABLE_SEPARATOR = ascii(", ");
+    static final byte[] SUFFIX = ascii(" } }");
+    static final byte[] NAMES = ascii(" }, \"names\": { ");
+    static final byte[] LABELS = ascii(" }, \"labels\": { ");
 
-    public TrapEventJsonConverter() {
-        sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    static final byte[] HEX_LOWER = ascii("0123456789abcdef");
+    static final byte[] HEX_UPPER = ascii("0123456789ABCDEF");
+
+    // UTF-8 encoded replacement character for malformed octet strings
+    static final byte[] REPLACEMENT = new byte[]{(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+
+    TrapPayloadPool payloadPool;
+
+    // resolves the OIDs to names, null without symbols
+    MibSymbolTable symbols;
+
+    private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    public TrapEventJsonConverter(TrapPayloadPool payloadPool) {
+        this(payloadPool, null);
+    }
+
+    /**
+     * @param payloadPool
+     * @param symbols adds the names of the OIDs, null for none
+     */
+    public TrapEventJsonConverter(TrapPayloadPool payloadPool, MibSymbolTable symbols) {
+        this.payloadPool = payloadPool;
+        this.symbols = symbols;
+    }
+
+    public TrapPayload convertTrap(CommandResponderEvent event) {
+        return convertTrap(event, System.currentTimeMillis());
     }
 
-    public String convertTrap(CommandResponderEvent event) {
+    public TrapPayload convertTrap(CommandResponderEvent event, long timestamp) {
 
-        StringBuilder msg = new StringBuilder();
-        // Json encoder for string escaping
-        JsonStringEncoder jsonEncoder = new JsonStringEncoder();
+        Output out = outputs.get();
+        out.reset();
 
         // Host address of the trap originator
-        msg.append("JSONTRAP:{ \"trapSrc\": \"");
-        msg.append(event.getPeerAddress());
+        out.write(PREFIX);
+        out.writeAddress(event.getPeerAddress());
 
-        msg.append("\", \"timestamp\": \"");
-        msg.append(sdf.format(new Date()));
+        out.write(TIMESTAMP);
+        out.writeTimestamp(timestamp);
 
-        msg.append("\", \"secLevel\": \"");
-        msg.append(event.getSecurityLevel());
+        out.write(SEC_LEVEL);
+        out.writeDecimal(event.getSecurityLevel());
 
-        msg.append("\", \"secModel\": \"");
-        msg.append(event.getSecurityModel());
+        out.write(SEC_MODEL);
+        out.writeDecimal(event.getSecurityModel());
 
-        msg.append("\", \"secName\": \"");
-        jsonEncoder.quoteAsString(new String(event.getSecurityName()), msg);
+        out.write(SEC_NAME);
+        out.writeJsonBytes(event.getSecurityName());
 
-        msg.append("\", \"variables\": { ");
+        out.write(VARIABLES);
 
         // Var binds
-        Vector<? extends VariableBinding> varBinds = event.getPDU().getVariableBindings();
-        if (varBinds != null && !varBinds.isEmpty()) {
-            Iterator<? extends VariableBinding> varIter = varBinds.iterator();
-            while (varIter.hasNext()) {
-                VariableBinding var = varIter.next();
-                msg.append("\"").append(var.getOid().format()).append("\": \"");
-                jsonEncoder.quoteAsString(var.toValueString(), msg);
-                msg.append("\"");
-
-                if (varIter.hasNext()) {
-                    msg.append(", ");
+        List<? extends VariableBinding> varBinds = event.getPDU().getVariableBindings();
+        if (varBinds != null) {
+            for (int i = 0; i < varBinds.size(); i++) {
+                VariableBinding var = varBinds.get(i);
+                if (i > 0) {
+                    out.write(VARIABLE_SEPARATOR);
+                }
+                out.write('"');
+                out.writeOid(var.getOid(), i);
+                out.write(OID_VALUE_SEPARATOR);
+                out.writeVariable(var.getVariable());
+                out.write('"');
+            }
+        }
+
+        if (symbols != null && varBinds != null) {
+            writeNames(out, varBinds);
+        }
+
+        out.write(SUFFIX);
+
+        TrapPayload payload = payloadPool.allocate(out.length);
+        System.arraycopy(out.buf, 0, payload.data, 0, out.length);
+        return payload;
+    }
+
+    /**
+     * Writes the names and labels of the variables, if any. Closes the variables object, SUFFIX closes the last one.
+     * The OIDs are copied from the variables, not formatted again.
+     */
+    private void writeNames(Output out, List<? extends VariableBinding> varBinds) {
+        boolean first = true;
+        for (int i = 0; i < varBinds.size(); i++) {
+            OID oid = varBinds.get(i).getOid();
+            MibSymbolTable.Match match = symbols.resolve(oid);
+            if (!match.isResolved()) {
+                continue;
+            }
+            out.write(first ? NAMES : VARIABLE_SEPARATOR);
+            first = false;
+            out.write('"');
+            out.copyOid(i);
+            out.write(OID_VALUE_SEPARATOR);
+            out.writeName(symbols, match, oid.getValue());
+            out.write('"');
+        }
+        first = true;
+        for (int i = 0; i < varBinds.size(); i++) {
+            VariableBinding var = varBinds.get(i);
+            Variable value = var.getVariable();
+            MibSymbolTable.Match match;
+            byte[] label = null;
+            if (value.getClass() == OID.class) {
+                match = symbols.resolve((OID) value);
+                if (!match.isResolved()) {
+                    continue;
+                }
+            } else if (value.getClass() == Integer32.class) {
+                match = symbols.resolve(var.getOid());
+                if (!match.isResolved() || (label = symbols.getLabel(match.getSymbol(), value.toInt())) == null) {
+                    continue;
+                }
+            } else {
+                continue;
+            }
+            out.write(first ? LABELS : VARIABLE_SEPARATOR);
+            first = false;
+            out.write('"');
+            out.copyOid(i);
+            out.write(OID_VALUE_SEPARATOR);
+            if (label != null) {
+                out.write(label);
+            } else {
+                out.writeName(symbols, match, ((OID) value).getValue());
+            }
+            out.write('"');
+        }
+    }
+
+    static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Growable per thread output buffer with the formatting routines
+     */
+    static class Output {
+
+        byte[] buf = new byte[1024];
+        int length;
+
+        // the formatted timestamp of the last conversion, reused within the same millisecond
+        // and patched within the same second
+        Calendar calendar = Calendar.getInstance();
+        byte[] timestamp = new byte[32];
+        int timestampLength;
+        long timestampMillis = Long.MIN_VALUE;
+        boolean timestampPatchable;
+
+        // scratch space for formatting numbers backwards
+        byte[] digits = new byte[20];
+
+        // start and end of the OID of each variable in buf, for the names
+        int[] oidBounds = new int[128];
+
+        void reset() {
+            length = 0;
+        }
+
+        void ensureCapacity(int additional) {
+            if (length + additional > buf.length) {
+                byte[] enlarged = new byte[Math.max(buf.length * 2, length + additional)];
+                System.arraycopy(buf, 0, enlarged, 0, length);
+                buf = enlarged;
+            }
+        }
+
+        void write(int b) {
+            ensureCapacity(1);
+            buf[length++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        void write(byte[] bytes, int offset, int len) {
+            ensureCapacity(len);
+            System.arraycopy(bytes, offset, buf, length, len);
+            length += len;
+        }
+
+        void writeDecimal(long value) {
+            if (value < 0) {
+                if (value == Long.MIN_VALUE) {
+                    writeAscii(Long.toString(value));
+                    return;
+                }
+                write('-');
+                value = -value;
+            }
+            int i = digits.length;
+            do {
+                digits[--i] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value > 0);
+            write(digits, i, digits.length - i);
+        }
+
+        void writeDecimal(long value, int minDigits) {
+            for (long limit = 10; minDigits > 1; minDigits--, limit *= 10) {
+                if (value < limit) {
+                    write('0');
+                }
+            }
+            writeDecimal(value);
+        }
+
+        void writeAscii(String s) {
+            ensureCapacity(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buf[length++] = (byte) s.charAt(i);
+            }
+        }
+
+        /**
+         * yyyy-MM-dd'T'HH:mm:ss.SSSZ in the default time zone
+         */
+        void writeTimestamp(long millis) {
+            if (millis != timestampMillis) {
+                if (timestampPatchable && millis / 1000 == timestampMillis / 1000 && millis >= 0) {
+                    // same second, only the milliseconds changed
+                    int ms = (int) (millis % 1000);
+                    timestamp[20] = (byte) ('0' + ms / 100);
+                    timestamp[21] = (byte) ('0' + ms / 10 % 10);
+                    timestamp[22] = (byte) ('0' + ms % 10);
+                } else {
+                    formatTimestamp(millis);
+                }
+                timestampMillis = millis;
+            }
+            write(timestamp, 0, timestampLength);
+        }
+
+        private void formatTimestamp(long millis) {
+            calendar.setTimeInMillis(millis);
+            int start = length;
+            writeDecimal(calendar.get(Calendar.YEAR), 4);
+            write('-');
+            writeDecimal(calendar.get(Calendar.MONTH) + 1, 2);
+            write('-');
+            writeDecimal(calendar.get(Calendar.DAY_OF_MONTH), 2);
+            write('T');
+            writeDecimal(calendar.get(Calendar.HOUR_OF_DAY), 2);
+            write(':');
+            writeDecimal(calendar.get(Calendar.MINUTE), 2);
+            write(':');
+            writeDecimal(calendar.get(Calendar.SECOND), 2);
+            write('.');
+            writeDecimal(calendar.get(Calendar.MILLISECOND), 3);
+            int offsetMinutes = (calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / 60000;
+            write(offsetMinutes < 0 ? '-' : '+');
+            offsetMinutes = Math.abs(offsetMinutes);
+            writeDecimal(offsetMinutes / 60, 2);
+            writeDecimal(offsetMinutes % 60, 2);
+
+            timestampLength = length - start;
+            // the milliseconds are at a fixed position unless the year has more than 4 digits
+            timestampPatchable = timestampLength == 28;
+            System.arraycopy(buf, start, timestamp, 0, timestampLength);
+            length = start;
+        }
+
+        /**
+         * Same as Address.toString(), "a.b.c.d/port" for IPv4 transport addresses
+         */
+        void writeAddress(Address address) {
+            if (address instanceof TransportIpAddress) {
+                TransportIpAddress ipAddress = (TransportIpAddress) address;
+                InetAddress inetAddress = ipAddress.getInetAddress();
+                if (inetAddress instanceof Inet4Address) {
+                    writeIpv4(inetAddress);
+                    write('/');
+                    writeDecimal(ipAddress.getPort());
+                    return;
+                }
+            }
+            writeAscii(String.valueOf(address));
+        }
+
+        private void writeIpv4(InetAddress inetAddress) {
+            // Inet4Address.hashCode() is the address, getAddress() would copy it
+            int ip = inetAddress.hashCode();
+            writeDecimal((ip >>> 24) & 0xFF);
+            write('.');
+            writeDecimal((ip >>> 16) & 0xFF);
+            write('.');
+            writeDecimal((ip >>> 8) & 0xFF);
+            write('.');
+            writeDecimal(ip & 0xFF);
+        }
+
+        /**
+         * Writes the OID of a variable and records where it is, for copyOid()
+         */
+        void writeOid(OID oid, int variable) {
+            if (variable * 2 + 1 >= oidBounds.length) {
+                oidBounds = Arrays.copyOf(oidBounds, variable * 4 + 2);
+            }
+            oidBounds[variable * 2] = length;
+            writeOid(oid);
+            oidBounds[variable * 2 + 1] = length;
+        }
+
+        /**
+         * Writes the OID of a variable again, copied from where writeOid() put it
+         */
+        void copyOid(int variable) {
+            int start = oidBounds[variable * 2];
+            int len = oidBounds[variable * 2 + 1] - start;
+            ensureCapacity(len);
+            System.arraycopy(buf, start, buf, length, len);
+            length += len;
+        }
+
+        void writeOid(OID oid) {
+            int[] arcs = oid.getValue();
+            for (int i = 0; i < arcs.length; i++) {
+                if (i > 0) {
+                    write('.');
+                }
+                writeDecimal(arcs[i] & 0xFFFFFFFFL);
+            }
+        }
+
+        /**
+         * Writes the name of a resolved OID followed by its instance arcs, e.g. "ifOperStatus.3"
+         */
+        void writeName(MibSymbolTable symbols, MibSymbolTable.Match match, int[] arcs) {
+            write(symbols.getName(match.getSymbol()));
+            for (int i = match.getLength(); i < arcs.length; i++) {
+                write('.');
+                writeDecimal(arcs[i] & 0xFFFFFFFFL);
+            }
+        }
+
+        /**
+         * Writes the value like Variable.toString(), JSON escaped
+         */
+        void writeVariable(Variable variable) {
+            Class<?> type = variable.getClass();
+            if (type == Integer32.class) {
+                writeDecimal(variable.toInt());
+            } else if (type == Counter32.class || type == Gauge32.class || type == UnsignedInteger32.class) {
+                writeDecimal(variable.toLong());
+            } else if (type == TimeTicks.class) {
+                writeTimeTicks(variable.toLong());
+            } else if (type == OctetString.class) {
+                OctetString octetString = (OctetString) variable;
+                if (octetString.isPrintable()) {
+                    writeJsonBytes(octetString.getValue());
+                } else {
+                    writeHex(octetString.getValue());
+                }
+            } else if (type == OID.class) {
+                writeOid((OID) variable);
+            } else if (type == IpAddress.class && ((IpAddress) variable).getInetAddress() instanceof Inet4Address) {
+                writeIpv4(((IpAddress) variable).getInetAddress());
+            } else if (type == Counter64.class && variable.toLong() >= 0) {
+                writeDecimal(variable.toLong());
+            } else {
+                writeJsonString(variable.toString());
+            }
+        }
+
+        /**
+         * Same as TimeTicks.toString(): "[&lt;d&gt; day(s), ]&lt;h&gt;:mm:ss.hh"
+         */
+        private void writeTimeTicks(long hundredths) {
+            long days = hundredths / 8640000;
+            if (days >= 1000) {
+                // MessageFormat would group the digits, leave this to TimeTicks
+                writeJsonString(new TimeTicks(hundredths).toString());
+                return;
+            }
+            if (days == 1) {
+                writeAscii("1 day, ");
+            } else if (days > 1) {
+                writeDecimal(days);
+                writeAscii(" days, ");
+            }
+            writeDecimal(hundredths / 360000 % 24);
+            write(':');
+            writeDecimal(hundredths / 6000 % 60, 2);
+            write(':');
+            writeDecimal(hundredths / 100 % 60, 2);
+            write('.');
+            writeDecimal(hundredths % 100, 2);
+        }
+
+        /**
+         * Same as OctetString.toHexString(), "0a:1b:..."
+         */
+        private void writeHex(byte[] value) {
+            ensureCapacity(value.length * 3);
+            for (int i = 0; i < value.length; i++) {
+                if (i > 0) {
+                    buf[length++] = ':';
                 }
+                buf[length++] = HEX_LOWER[(value[i] >> 4) & 0x0F];
+                buf[length++] = HEX_LOWER[value[i] & 0x0F];
             }
         }
 
-        msg.append(" } }");
+        /**
+         * Writes UTF-8 encoded text, JSON escaped. Malformed sequences are replaced with U+FFFD,
+         * like new String(bytes) would do.
+         */
+        void writeJsonBytes(byte[] value) {
+            ensureCapacity(value.length);
+            int i = 0;
+            while (i < value.length) {
+                int b = value[i] & 0xFF;
+                if (b < 0x80) {
+                    writeJsonChar(b);
+                    i++;
+                } else {
+                    int sequenceLength = utf8SequenceLength(value, i);
+                    if (sequenceLength > 0) {
+                        write(value, i, sequenceLength);
+                        i += sequenceLength;
+                    } else {
+                        write(REPLACEMENT);
+                        i++;
+                    }
+                }
+            }
+        }
 
-        return msg.toString();
+        void writeJsonString(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    writeJsonChar(c);
+                } else if (c < 0x800) {
+                    write(0xC0 | (c >> 6));
+                    write(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    write(0xF0 | (codePoint >> 18));
+                    write(0x80 | ((codePoint >> 12) & 0x3F));
+                    write(0x80 | ((codePoint >> 6) & 0x3F));
+                    write(0x80 | (codePoint & 0x3F));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    write(REPLACEMENT);
+                } else {
+                    write(0xE0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3F));
+                    write(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        /**
+         * Escapes like JsonStringEncoder.quoteAsString()
+         */
+        private void writeJsonChar(int c) {
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                write(c);
+                return;
+            }
+            write('\\');
+            switch (c) {
+                case '"':
+                case '\\':
+                    write(c);
+                    break;
+                case '\b':
+                    write('b');
+                    break;
+                case '\t':
+                    write('t');
+                    break;
+                case '\n':
+                    write('n');
+                    break;
+                case '\f':
+                    write('f');
+                    break;
+                case '\r':
+                    write('r');
+                    break;
+                default:
+                    write('u');
+                    write('0');
+                    write('0');
+                    write(HEX_UPPER[c >> 4]);
+                    write(HEX_UPPER[c & 0x0F]);
+            }
+        }
+
+        /**
+         * @return length of the well formed UTF-8 sequence starting at offset, 0 if it is malformed
+         */
+        private static int utf8SequenceLength(byte[] value, int offset) {
+            int b = value[offset] & 0xFF;
+            int length;
+            int minCodePoint;
+            int codePoint;
+            if (b >= 0xC2 && b <= 0xDF) {
+                length = 2;
+                minCodePoint = 0x80;
+                codePoint = b & 0x1F;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                length = 3;
+                minCodePoint = 0x800;
+                codePoint = b & 0x0F;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                length = 4;
+                minCodePoint = 0x10000;
+                codePoint = b & 0x07;
+            } else {
+                return 0;
+            }
+            if (offset + length > value.length) {
+                return 0;
+            }
+            for (int i = 1; i < length; i++) {
+                int continuation = value[offset + i] & 0xFF;
+                if ((continuation & 0xC0) != 0x80) {
+                    return 0;
+                }
+                codePoint = (codePoint << 6) | (continuation & 0x3F);
+            }
+            if (codePoint < minCodePoint || codePoint > 0x10FFFF || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                return 0;
+            }
+            return length;
+        }
     }
 }
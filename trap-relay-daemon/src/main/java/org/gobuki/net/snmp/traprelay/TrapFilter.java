@@ -0,0 +1,187 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The traps a client subscribed to with the selectors of its REGISTER command.
+ *
+ *   all                     every trap, the same as no selector
+ *   1.3.6.1.4.1.9           traps whose trap OID starts with these arcs, a leading dot is allowed
+ *   10.1.0.0/16, 2001:db8::/32
+ *                           traps sent by an agent in this network, the prefix length is required
+ *
+ * A trap matches if its OID starts with one of the OID prefixes and its source is in one of the networks.
+ * Without OID prefixes any OID matches, without networks any source.
+ *
+ * Live traps are matched for all sessions at once by the SubscriptionIndex. This class matches a single trap,
+ * for traps which were received before the client registered.
+ */
+public class TrapFilter {
+
+    List<int[]> oidPrefixes;
+
+    // network addresses and prefix lengths
+    List<byte[]> networks;
+    List<Integer> prefixLengths;
+
+    public TrapFilter() {
+        oidPrefixes = new ArrayList<int[]>();
+        networks = new ArrayList<byte[]>();
+        prefixLengths = new ArrayList<Integer>();
+    }
+
+    /**
+     * @param selectors the selectors of a REGISTER command
+     * @return the filter, null if the client wants all traps
+     * @throws ProtocolException if a selector is malformed
+     */
+    public static TrapFilter parse(List<String> selectors) throws ProtocolException {
+        TrapFilter filter = new TrapFilter();
+        for (String selector : selectors) {
+            if ("all".equals(selector)) {
+                continue;
+            }
+            if (selector.indexOf('/') != -1) {
+                filter.addNetwork(selector);
+            } else {
+                filter.oidPrefixes.add(parseOid(selector));
+            }
+        }
+        if (filter.oidPrefixes.isEmpty() && filter.networks.isEmpty()) {
+            return null;
+        }
+        return filter;
+    }
+
+    private static int[] parseOid(String selector) throws ProtocolException {
+        String s = selector.startsWith(".") ? selector.substring(1) : selector;
+        String[] arcs = s.split("\\.");
+        int[] oid = new int[arcs.length];
+        try {
+            for (int i = 0; i < arcs.length; i++) {
+                // arcs are unsigned 32 bit values, SNMP4J keeps them in ints
+                long arc = Long.parseLong(arcs[i]);
+                if (arc < 0 || arc > 0xFFFFFFFFL) {
+                    throw new NumberFormatException();
+                }
+                oid[i] = (int) arc;
+            }
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid selector: " + selector);
+        }
+        return oid;
+    }
+
+    private void addNetwork(String selector) throws ProtocolException {
+        int slash = selector.indexOf('/');
+        String host = selector.substring(0, slash);
+        // only literal addresses, a host name must not cause a DNS lookup
+        if (host.indexOf(':') == -1 && !host.matches("[0-9]+(\\.[0-9]+){3}")) {
+            throw new ProtocolException("Invalid network: " + selector);
+        }
+        byte[] address;
+        int prefixLength;
+        try {
+            address = InetAddress.getByName(host).getAddress();
+            prefixLength = Integer.parseInt(selector.substring(slash + 1));
+        } catch (UnknownHostException e) {
+            throw new ProtocolException("Invalid network: " + selector);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid network: " + selector);
+        }
+        if (prefixLength < 0 || prefixLength > address.length * 8) {
+            throw new ProtocolException("Invalid prefix length: " + selector);
+        }
+        networks.add(address);
+        prefixLengths.add(prefixLength);
+    }
+
+    /**
+     * @param oid trap OID
+     * @param oidLength number of arcs used
+     * @param address source address, 4 or 16 bytes
+     * @param addressLength number of bytes used
+     * @return true if the client subscribed to the trap
+     */
+    public boolean matches(int[] oid, int oidLength, byte[] address, int addressLength) {
+        return matchesOid(oid, oidLength) && matchesAddress(address, addressLength);
+    }
+
+    public boolean matches(TrapRoute route) {
+        return matches(route.oid, route.oid.length, route.address, route.address.length);
+    }
+
+    private boolean matchesOid(int[] oid, int oidLength) {
+        if (oidPrefixes.isEmpty()) {
+            return true;
+        }
+        for (int[] prefix : oidPrefixes) {
+            if (isPrefix(prefix, oid, oidLength)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPrefix(int[] prefix, int[] oid, int oidLength) {
+        if (prefix.length > oidLength) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (prefix[i] != oid[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesAddress(byte[] address, int addressLength) {
+        if (networks.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < networks.size(); i++) {
+            byte[] network = networks.get(i);
+            if (network.length == addressLength && inNetwork(address, network, prefixLengths.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean inNetwork(byte[] address, byte[] network, int prefixLength) {
+        for (int bit = 0; bit < prefixLength; bit++) {
+            if (bit(address, bit) != bit(network, bit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int bit(byte[] address, int bit) {
+        return (address[bit >>> 3] >>> (7 - (bit & 7))) & 1;
+    }
+
+    public boolean hasOidPrefixes() {
+        return !oidPrefixes.isEmpty();
+    }
+
+    public boolean hasNetworks() {
+        return !networks.isEmpty();
+    }
+
+    public List<int[]> getOidPrefixes() {
+        return oidPrefixes;
+    }
+
+    public List<byte[]> getNetworks() {
+        return networks;
+    }
+
+    public List<Integer> getPrefixLengths() {
+        return prefixLengths;
+    }
+}
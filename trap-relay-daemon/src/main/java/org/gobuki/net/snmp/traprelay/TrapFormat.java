@@ -0,0 +1,41 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.net.ProtocolException;
+
+/**
+ * Wire formats a client can choose with the FORMAT option of the REGISTER command.
+ *
+ * JSON is the original line based format. BINARY sends length prefixed frames with traps encoded by the
+ * TrapEventBinaryConverter, see ClientSession for the framing. RAW sends the same frames with the SNMP messages as
+ * received, undecoded (RawTrapConverter); it is the only format of a daemon in passthrough mode.
+ *
+ * The ordinal is the index of the format's payload in a TrapRecord and in a journal record.
+ */
+public enum TrapFormat {
+
+    JSON("json"), BINARY("binary"), RAW("raw");
+
+    final String keyword;
+
+    TrapFormat(String keyword) {
+        this.keyword = keyword;
+    }
+
+    /**
+     * @param value the value of the FORMAT option, case insensitive
+     * @return the format
+     * @throws ProtocolException if the format isn't known
+     */
+    public static TrapFormat parse(String value) throws ProtocolException {
+        for (TrapFormat format : values()) {
+            if (format.keyword.equalsIgnoreCase(value)) {
+                return format;
+            }
+        }
+        throw new ProtocolException("Unknown format: " + value);
+    }
+
+    public String getKeyword() {
+        return keyword;
+    }
+}
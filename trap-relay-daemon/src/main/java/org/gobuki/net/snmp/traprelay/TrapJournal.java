@@ -0,0 +1,220 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append only journal of all received traps, so clients can resume after a reconnect or a restart of the daemon
+ * with "REGISTER ... FROM &lt;seq&gt;" or "FROM &lt;timestamp&gt;".
+ *
+ * The journal is a directory of JournalSegment files, named after the sequence number of their first trap. Only
+ * the newest segment is written to. Segments are memory mapped, so sessions read old traps directly from the page
+ * cache without copying them onto the heap first, and a crash of the daemon loses nothing the OS has seen.
+ *
+ * Old segments are deleted when the journal grows beyond retentionBytes or when their newest trap is older than
+ * retentionMillis.
+ *
+ * Appending is synchronized, the DeliveryEngine appends each trap before it is published to the TrapRingBuffer,
+ * so a trap which can be sent from the ring is always in the journal, too.
+ */
+public class TrapJournal {
+
+    File directory;
+
+    int segmentSize;
+    long retentionBytes;
+    long retentionMillis;
+
+    // size of all segment files
+    long totalBytes;
+
+    // oldest first, the last one is written to. Copied on write, sessions look up segments without locking.
+    final List<JournalSegment> segments;
+
+    public TrapJournal(File directory, int segmentSize, long retentionBytes, long retentionMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.segments = new CopyOnWriteArrayList<JournalSegment>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create journal directory " + directory);
+        }
+        recover();
+    }
+
+    /**
+     * Creates the journal, if a journal directory is configured
+     *
+     * @param config
+     * @return null if the journal is disabled
+     * @throws IOException
+     */
+    public static TrapJournal create(TrapRelayConfig config) throws IOException {
+        String dir = config.getString("journalDir", "");
+        if (dir.length() == 0) {
+            return null;
+        }
+        int segmentSize = config.getInt("journalSegmentSize", 64 * 1024 * 1024);
+        long retentionBytes = config.getLong("journalRetentionBytes", 1024L * 1024 * 1024);
+        long retentionMillis = config.getLong("journalRetentionHours", 24) * 3600 * 1000;
+        return new TrapJournal(new File(dir), Math.max(1024 * 1024, segmentSize), retentionBytes, retentionMillis);
+    }
+
+    /**
+     * Maps the existing segments after a restart
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // the zero padded names sort by sequence number
+        Arrays.sort(files);
+        List<JournalSegment> recovered = new ArrayList<JournalSegment>();
+        for (File file : files) {
+            JournalSegment segment = JournalSegment.open(file);
+            if (segment == null) {
+                continue;
+            }
+            if (segment.lastSequence < segment.firstSequence) {
+                // nothing was written before the daemon stopped
+                segment.delete();
+                continue;
+            }
+            if (!recovered.isEmpty() && recovered.get(recovered.size() - 1).lastSequence + 1 != segment.firstSequence) {
+                System.out.println("Trap journal: gap before " + segment + ", dropping the older segments");
+                recovered.clear();
+            }
+            recovered.add(segment);
+        }
+        segments.addAll(recovered);
+        for (JournalSegment segment : recovered) {
+            totalBytes += segment.capacity();
+        }
+        if (!segments.isEmpty()) {
+            System.out.println("Trap journal: recovered traps " + getFirstSequence() + " to " + getLastSequence()
+                    + " from " + segments.size() + " segment(s) in " + directory);
+        }
+    }
+
+    /**
+     * Writes a trap to the journal
+     *
+     * @param sequence must be getLastSequence() + 1
+     * @param timestamp receive time, ms
+     * @param payloads the converted trap by format ordinal
+     * @param route the trap's OID and source
+     */
+    public synchronized void append(long sequence, long timestamp, TrapPayload[] payloads, TrapRoute route)
+            throws IOException {
+        JournalSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || !active.append(sequence, timestamp, payloads, route)) {
+            if (active != null) {
+                active.force();
+            }
+            int size = Math.max(segmentSize, JournalSegment.recordSize(payloads, route) + 4);
+            active = JournalSegment.create(directory, sequence, size);
+            segments.add(active);
+            totalBytes += active.capacity();
+            active.append(sequence, timestamp, payloads, route);
+        }
+        applyRetention(timestamp);
+    }
+
+    /**
+     * Deletes the oldest segments beyond the size limit or older than the age limit. The active segment is kept.
+     *
+     * @param now
+     */
+    private void applyRetention(long now) {
+        while (segments.size() > 1) {
+            JournalSegment oldest = segments.get(0);
+            if (totalBytes <= retentionBytes && now - oldest.lastTimestamp <= retentionMillis) {
+                return;
+            }
+            // sessions still reading the segment keep their mapping
+            segments.remove(0);
+            totalBytes -= oldest.capacity();
+            if (!oldest.delete()) {
+                System.out.println("Trap journal: can't delete " + oldest);
+            }
+        }
+    }
+
+    /**
+     * @param sequence
+     * @return the segment containing the trap, null if the trap isn't in the journal
+     */
+    public JournalSegment segmentOf(long sequence) {
+        // a snapshot, the list may change concurrently
+        Object[] snapshot = segments.toArray();
+        int low = 0;
+        int high = snapshot.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            JournalSegment segment = (JournalSegment) snapshot[middle];
+            if (sequence < segment.firstSequence) {
+                high = middle - 1;
+            } else if (sequence > segment.lastSequence) {
+                low = middle + 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the first trap received at or after a time, using the sparse time index of the segments
+     *
+     * @param timestamp ms
+     * @return its sequence number, getLastSequence() + 1 if all traps are older
+     */
+    public long sequenceAt(long timestamp) {
+        Object[] snapshot = segments.toArray();
+        for (Object o : snapshot) {
+            JournalSegment segment = (JournalSegment) o;
+            if (segment.lastTimestamp >= timestamp) {
+                return segment.sequenceAt(timestamp);
+            }
+        }
+        return getLastSequence() + 1;
+    }
+
+    /**
+     * @return sequence number of the oldest trap in the journal, 0 if the journal is empty
+     */
+    public long getFirstSequence() {
+        try {
+            return segments.get(0).firstSequence;
+        } catch (IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return sequence number of the newest trap in the journal, 0 if the journal is empty
+     */
+    public long getLastSequence() {
+        Object[] snapshot = segments.toArray();
+        return snapshot.length == 0 ? 0 : ((JournalSegment) snapshot[snapshot.length - 1]).lastSequence;
+    }
+
+    /**
+     * Writes the active segment to disk
+     */
+    public synchronized void close() {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).force();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+}
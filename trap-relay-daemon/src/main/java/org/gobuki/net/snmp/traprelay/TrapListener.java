@@ -10,26 +10,79 @@ import org.snmp4j.security.USM;
 import org.snmp4j.smi.*;
 import org.snmp4j.transport.DefaultTcpTransportMapping;
 import org.snmp4j.transport.DefaultUdpTransportMapping;
-import org.snmp4j.util.MultiThreadedMessageDispatcher;
-import org.snmp4j.util.ThreadPool;
+import org.snmp4j.transport.TransportListener;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class TrapListener implements CommandResponder {
+public class TrapListener implements CommandResponder, TransportListener {
 
-    private MultiThreadedMessageDispatcher dispatcher;
+    private ShardedMessageDispatcher dispatcher;
     private Snmp snmp;
     private Address snmpTrapListenAddress;
-    private ThreadPool threadPool;
+
+    // security model of SNMPv3 traps, only users added here are accepted
+    USM usm;
 
     List<TrapEventHandler> trapEventHandlers;
 
+    // get the undecoded messages in passthrough mode
+    List<RawTrapHandler> rawTrapHandlers;
+
+    // true to hand the messages to the raw trap handlers without decoding them
+    boolean passthrough;
+
+    // shards decoding received messages, each agent's in order on one of them
+    int dispatcherThreads;
+
+    // messages waiting for each shard before further ones are dropped
+    int dispatcherQueueSize;
+
+    // UDP sockets bound to the listen port, more than one needs SO_REUSEPORT
+    int udpSockets;
+
+    // SO_RCVBUF in bytes, 0 for the system default
+    int udpReceiveBufferSize;
+
+    // how often kernel drops of the UDP sockets are checked, 0 to disable
+    int udpStatsIntervalSeconds;
+
+    // port of the UDP sockets, -1 if not listening on UDP
+    int udpPort = -1;
+
+    // drops reported last, by socket inode
+    Map<Long, Long> reportedDrops;
+
+    // drops the datagrams of agents sending too fast, before they are decoded
+    TrapRateLimiter rateLimiter;
+
+    // answers informs when they are received and drops their retransmissions
+    InformResponder informResponder;
+
     public TrapListener() {
+        this(new TrapRelayConfig());
+    }
+
+    public TrapListener(TrapRelayConfig config) {
         trapEventHandlers = new ArrayList<TrapEventHandler>();
+        rawTrapHandlers = new ArrayList<RawTrapHandler>();
+        passthrough = config.getBoolean("passthrough", false);
+        dispatcherThreads = Math.max(1, config.getInt("dispatcherThreads", 2));
+        dispatcherQueueSize = Math.max(2, config.getInt("dispatcherQueueSize", 4096));
+        udpSockets = Math.max(1, config.getInt("udpSockets", 1));
+        udpReceiveBufferSize = config.getInt("udpReceiveBufferSize", 0);
+        udpStatsIntervalSeconds = config.getInt("udpStatsIntervalSeconds", 60);
+        reportedDrops = new HashMap<Long, Long>();
+        rateLimiter = new TrapRateLimiter(config);
+        informResponder = new InformResponder(config);
     }
 
     /**
@@ -40,12 +93,32 @@ public class TrapListener implements CommandResponder {
     public void run(String strListenAddress) {
         try {
 
-            threadPool = ThreadPool.create("Trap Receiver Pool", 2);
-            dispatcher = new MultiThreadedMessageDispatcher(threadPool, new MessageDispatcherImpl());
+            if (passthrough) {
+                listenUndecoded(strListenAddress);
+                return;
+            }
+            InformResponder responder = informResponder.isEnabled() ? informResponder : null;
+            if (rateLimiter.isEnabled()) {
+                dispatcher = new RateLimitingMessageDispatcher(new MessageDispatcherImpl(), dispatcherThreads,
+                        dispatcherQueueSize, responder, rateLimiter);
+                for (String limit : rateLimiter.describe()) {
+                    System.out.println("Rate limit " + limit);
+                }
+            } else {
+                dispatcher = new ShardedMessageDispatcher(new MessageDispatcherImpl(), dispatcherThreads,
+                        dispatcherQueueSize, responder);
+            }
             snmpTrapListenAddress = GenericAddress.parse(strListenAddress);
             TransportMapping<? extends Address> transport;
-            if (snmpTrapListenAddress instanceof UdpAddress) {
-                transport = new DefaultUdpTransportMapping((UdpAddress) snmpTrapListenAddress);
+            if (snmpTrapListenAddress instanceof UdpAddress && udpSockets > 1) {
+                transport = new MultiSocketUdpTransportMapping((UdpAddress) snmpTrapListenAddress, udpSockets,
+                        udpReceiveBufferSize);
+            } else if (snmpTrapListenAddress instanceof UdpAddress) {
+                DefaultUdpTransportMapping udpTransport = new DefaultUdpTransportMapping((UdpAddress) snmpTrapListenAddress);
+                if (udpReceiveBufferSize > 0) {
+                    udpTransport.setReceiveBufferSize(udpReceiveBufferSize);
+                }
+                transport = udpTransport;
             } else {
                 transport = new DefaultTcpTransportMapping((TcpAddress) snmpTrapListenAddress);
             }
@@ -53,12 +126,26 @@ public class TrapListener implements CommandResponder {
             snmp.getMessageDispatcher().addMessageProcessingModel(new MPv1());
             snmp.getMessageDispatcher().addMessageProcessingModel(new MPv2c());
             snmp.getMessageDispatcher().addMessageProcessingModel(new MPv3());
-            USM usm = new USM(SecurityProtocols.getInstance(),
+            // MD5/SHA and DES/AES, without them no authenticated SNMPv3 trap can be decoded
+            SecurityProtocols.getInstance().addDefaultProtocols();
+            usm = new USM(SecurityProtocols.getInstance(),
                     new OctetString(MPv3.createLocalEngineID()), 0);
             SecurityModels.getInstance().addSecurityModel(usm);
             snmp.listen();
 
             snmp.addCommandResponder(this);
+            System.out.println("Decoding traps with " + dispatcherThreads + " shard(s), each agent's traps in order");
+            if (informResponder.isEnabled()) {
+                System.out.println("Responding to informs, " + informResponder.requestIds
+                        + " request IDs per agent kept to drop retransmissions");
+            }
+
+            if (snmpTrapListenAddress instanceof UdpAddress) {
+                udpPort = ((UdpAddress) snmpTrapListenAddress).getPort();
+                if (udpStatsIntervalSeconds > 0) {
+                    startDropMonitor();
+                }
+            }
 
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -66,18 +153,149 @@ public class TrapListener implements CommandResponder {
     }
 
     /**
-     * Delegates handling of received trap events to the registered handlers
+     * Starts listening without SNMP stack, the messages are passed on undecoded by the receive threads
+     */
+    private void listenUndecoded(String strListenAddress) throws IOException {
+        snmpTrapListenAddress = GenericAddress.parse(strListenAddress);
+        TransportMapping<? extends Address> transport;
+        if (snmpTrapListenAddress instanceof UdpAddress) {
+            MultiSocketUdpTransportMapping udpTransport = new MultiSocketUdpTransportMapping(
+                    (UdpAddress) snmpTrapListenAddress, udpSockets, udpReceiveBufferSize);
+            // the handlers copy what they keep, the receive buffer is reused right away
+            udpTransport.setCopyMessages(false);
+            transport = udpTransport;
+        } else {
+            transport = new DefaultTcpTransportMapping((TcpAddress) snmpTrapListenAddress);
+        }
+        for (String limit : rateLimiter.describe()) {
+            System.out.println("Rate limit " + limit);
+        }
+        transport.addTransportListener(this);
+        transport.listen();
+        System.out.println("Relaying traps undecoded (passthrough)");
+        if (informResponder.isEnabled()) {
+            System.out.println("Responding to SNMPv2c informs, SNMPv3 informs are relayed without response");
+        }
+
+        if (snmpTrapListenAddress instanceof UdpAddress) {
+            udpPort = ((UdpAddress) snmpTrapListenAddress).getPort();
+            if (udpStatsIntervalSeconds > 0) {
+                startDropMonitor();
+            }
+        }
+    }
+
+    /**
+     * Periodically reports datagrams the kernel dropped, because the receive buffers of the sockets were full
+     *
+     */
+    private void startDropMonitor() {
+        if (getSocketStatistics().isEmpty()) {
+            // no /proc/net/udp on this platform
+            return;
+        }
+        long period = udpStatsIntervalSeconds * 1000L;
+        new Timer("UDP Drop Monitor", true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                reportDrops();
+            }
+        }, period, period);
+    }
+
+    void reportDrops() {
+        for (UdpSocketStatistics socket : getSocketStatistics()) {
+            Long reported = reportedDrops.get(socket.getInode());
+            if (reported == null || reported < socket.getDrops()) {
+                if (socket.getDrops() > 0) {
+                    System.out.println("UDP port " + udpPort + " " + socket + " (+"
+                            + (socket.getDrops() - (reported == null ? 0 : reported)) + ")");
+                }
+                reportedDrops.put(socket.getInode(), socket.getDrops());
+            }
+        }
+    }
+
+    /**
+     * @return kernel statistics of the sockets receiving traps, one per socket. Empty if not available.
+     */
+    public List<UdpSocketStatistics> getSocketStatistics() {
+        if (udpPort < 0) {
+            return new ArrayList<UdpSocketStatistics>();
+        }
+        return UdpSocketStatistics.read(udpPort);
+    }
+
+    /**
+     * Delegates handling of received trap events to the registered handlers. SNMPv3 informs are answered first,
+     * retransmitted informs aren't handled again.
      *
      * @param event
      */
     @Override
     public void processPdu(CommandResponderEvent event) {
+        if (informResponder.isEnabled() && !informResponder.admit(event)) {
+            return;
+        }
         for (TrapEventHandler eventHandler : trapEventHandlers) {
             eventHandler.handleTrapEvent(event);
         }
     }
 
+    /**
+     * Delegates the undecoded messages of the passthrough mode to the raw trap handlers, on the receive thread.
+     * SNMPv2c informs are answered first, retransmitted informs aren't handled again.
+     */
+    @Override
+    public void processMessage(TransportMapping sourceTransport, Address incomingAddress, ByteBuffer wholeMessage,
+                               TransportStateReference tmStateReference) {
+        if (rateLimiter.isEnabled() && incomingAddress instanceof IpAddress
+                && !rateLimiter.tryAcquire(((IpAddress) incomingAddress).getInetAddress(),
+                System.nanoTime())) {
+            return;
+        }
+        if (informResponder.isEnabled()
+                && !informResponder.admit(sourceTransport, incomingAddress, wholeMessage, tmStateReference)) {
+            return;
+        }
+        for (RawTrapHandler handler : rawTrapHandlers) {
+            handler.handleRawTrap(incomingAddress, wholeMessage);
+        }
+    }
+
+    /**
+     * @return messages dropped because the queue of their shard was full
+     */
+    public long getDispatcherDrops() {
+        return dispatcher != null ? dispatcher.getDropped() : 0;
+    }
+
+    /**
+     * Runs a task in order with the traps of an agent, on the agent's shard. It runs on the calling thread if no
+     * shards were started (passthrough) or the shard's queue is full.
+     *
+     * @param agent the address the agent's traps come from
+     * @param task
+     */
+    public void executeInOrder(Address agent, Runnable task) {
+        ShardedMessageDispatcher shards = dispatcher;
+        if (shards == null || agent == null || !shards.execute(agent, task)) {
+            task.run();
+        }
+    }
+
     public void addTrapEventHandler(TrapEventHandler handler) {
         trapEventHandlers.add(handler);
     }
+
+    public void addRawTrapHandler(RawTrapHandler handler) {
+        rawTrapHandlers.add(handler);
+    }
+
+    /**
+     * @return true if traps are relayed undecoded, to the raw trap handlers
+     */
+    public boolean isPassthrough() {
+        return passthrough;
+    }
 }
\ No newline at end of file
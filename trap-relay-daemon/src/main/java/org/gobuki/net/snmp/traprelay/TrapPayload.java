@@ -0,0 +1,108 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A converted trap, UTF-8 encoded, shared by all client sessions.
+ *
+ * The content never changes after the payload was published. Every holder (the daemon while distributing it,
+ * each session until the trap was acknowledged) owns a reference. When the last reference is released the
+ * backing array goes back to the pool it came from and must not be touched anymore.
+ */
+public class TrapPayload {
+
+    final byte[] data;
+    int length;
+
+    final AtomicInteger refCount;
+
+    // where the array is returned to, null for unpooled payloads
+    final TrapPayloadPool pool;
+
+    TrapPayload(byte[] data, int length, TrapPayloadPool pool) {
+        this.data = data;
+        this.length = length;
+        this.pool = pool;
+        this.refCount = new AtomicInteger(1);
+    }
+
+    /**
+     * Wraps already encoded bytes, the payload is not pooled
+     *
+     * @param data
+     * @return
+     */
+    public static TrapPayload wrap(byte[] data) {
+        return new TrapPayload(data, data.length, null);
+    }
+
+    /**
+     * Adds a reference
+     *
+     * @return this
+     * @throws IllegalStateException if the payload was already released
+     */
+    public TrapPayload retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("Trap payload already released");
+        }
+        return this;
+    }
+
+    /**
+     * Adds a reference unless the payload was already released.
+     *
+     * @return false if the payload was released and is not usable anymore
+     */
+    public boolean tryRetain() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference. The last release recycles the payload.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        } else if (count < 0) {
+            throw new IllegalStateException("Trap payload released too often");
+        }
+    }
+
+    /**
+     * @return a new read only view of the encoded trap, without line terminator
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the encoded trap into a buffer, which must have enough room
+     *
+     * @param dst
+     */
+    public void writeTo(ByteBuffer dst) {
+        dst.put(data, 0, length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(data, 0, length, ClientSession.UTF8);
+    }
+}
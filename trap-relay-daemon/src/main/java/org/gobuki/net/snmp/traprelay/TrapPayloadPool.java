@@ -0,0 +1,121 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Recycles the byte arrays of released trap payloads.
+ *
+ * Arrays are kept in power of two size classes from 256 bytes to 64 KiB, each class holds at most
+ * maxPooledPerClass arrays. Larger payloads are allocated and dropped as usual.
+ */
+public class TrapPayloadPool {
+
+    static final int MIN_SIZE_SHIFT = 8;
+    static final int MAX_SIZE_SHIFT = 16;
+
+    final byte[][][] freeArrays;
+    final int[] freeCount;
+
+    final int maxPooledPerClass;
+
+    // per thread encoder for payloads converted to Strings
+    private final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return ClientSession.UTF8.newEncoder();
+        }
+    };
+
+    public TrapPayloadPool(int maxPooledPerClass) {
+        this.maxPooledPerClass = maxPooledPerClass;
+        int classes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        freeArrays = new byte[classes][maxPooledPerClass][];
+        freeCount = new int[classes];
+    }
+
+    /**
+     * @param length number of bytes the payload will hold
+     * @return a payload with one reference, owned by the caller
+     */
+    public TrapPayload allocate(int length) {
+        int sizeClass = sizeClass(length);
+        byte[] data = null;
+        if (sizeClass >= 0) {
+            synchronized (this) {
+                if (freeCount[sizeClass] > 0) {
+                    int i = --freeCount[sizeClass];
+                    data = freeArrays[sizeClass][i];
+                    freeArrays[sizeClass][i] = null;
+                }
+            }
+            if (data == null) {
+                data = new byte[1 << (sizeClass + MIN_SIZE_SHIFT)];
+            }
+        } else {
+            data = new byte[length];
+        }
+        return new TrapPayload(data, length, this);
+    }
+
+    /**
+     * Creates a payload from bytes in a buffer
+     *
+     * @param src the bytes between position and limit are copied
+     * @return a payload with one reference, owned by the caller
+     */
+    public TrapPayload copyOf(ByteBuffer src) {
+        TrapPayload payload = allocate(src.remaining());
+        src.get(payload.data, 0, payload.length);
+        return payload;
+    }
+
+    /**
+     * UTF-8 encodes a converted trap
+     *
+     * @param strTrapInfo
+     * @return a payload with one reference, owned by the caller
+     */
+    public TrapPayload encode(String strTrapInfo) {
+        CharsetEncoder encoder = encoders.get();
+        // worst case, avoids a second pass
+        TrapPayload payload = allocate((int) (strTrapInfo.length() * encoder.maxBytesPerChar()));
+        ByteBuffer dst = ByteBuffer.wrap(payload.data, 0, payload.length);
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(strTrapInfo), dst, true);
+        if (!result.isError()) {
+            encoder.flush(dst);
+        }
+        payload.length = dst.position();
+        return payload;
+    }
+
+    void recycle(TrapPayload payload) {
+        int sizeClass = sizeClass(payload.data.length);
+        if (sizeClass < 0 || payload.data.length != 1 << (sizeClass + MIN_SIZE_SHIFT)) {
+            return;
+        }
+        synchronized (this) {
+            if (freeCount[sizeClass] < maxPooledPerClass) {
+                freeArrays[sizeClass][freeCount[sizeClass]++] = payload.data;
+            }
+        }
+    }
+
+    /**
+     * @param length
+     * @return index of the smallest size class holding length bytes, -1 if it is too large to be pooled
+     */
+    static int sizeClass(int length) {
+        int shift = MIN_SIZE_SHIFT;
+        while ((1 << shift) < length) {
+            shift++;
+            if (shift > MAX_SIZE_SHIFT) {
+                return -1;
+            }
+        }
+        return shift - MIN_SIZE_SHIFT;
+    }
+}
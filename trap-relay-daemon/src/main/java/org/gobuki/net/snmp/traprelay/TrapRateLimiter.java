@@ -0,0 +1,306 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limits per agent, checked for each received datagram before it is decoded, so an agent flooding the daemon
+ * costs little more than the receive itself and the other agents' traps still get decoded.
+ *
+ * The setting rateLimits lists networks with the rate (traps/s) and burst each agent in the network may send:
+ *
+ *   rateLimits=10.1.0.0/16=50/100, 0.0.0.0/0=1000/2000, ::/0=1000/2000
+ *
+ * The longest matching prefix applies, agents outside all networks aren't limited. A rate of 0 drops everything.
+ *
+ * Each agent has a token bucket, kept as the theoretical arrival time of the generic cell rate algorithm: a
+ * single long, the time at which the bucket is full again. A datagram is accepted if that time is less than
+ * (burst - 1) intervals ahead, and moves it one interval (1 / rate) further. Buckets are kept in STRIPES
+ * independently locked open addressing tables keyed by the InetAddress of the datagram, so the UDP reader threads
+ * rarely contend and don't copy the address. A full bucket (time in the past) is the same as no bucket at all, so
+ * these are removed in place whenever a table runs full, without losing anything. If a table is still full, new
+ * agents aren't limited until buckets refill; the table isn't scanned again before the earliest of them can.
+ */
+public class TrapRateLimiter {
+
+    static final int STRIPES = 64;
+
+    /**
+     * Limit of the agents in a network
+     */
+    static class Rule {
+        String network;
+        byte[] address;
+        int prefixLength;
+        // ns between two traps at the rate, Long.MAX_VALUE to drop everything
+        long intervalNanos;
+        // how far the theoretical arrival time may be ahead: (burst - 1) intervals
+        long toleranceNanos;
+    }
+
+    /**
+     * Buckets of the agents whose address hashes to the stripe
+     */
+    static class Stripe {
+        final InetAddress[] keys;
+        // the keys' address bytes, for the rules and the drop statistics
+        final byte[][] addresses;
+        final long[] arrivals;
+        final Rule[] rules;
+        final int mask;
+        final int maxSize;
+        int size;
+
+        // none of the buckets is full again before this time, a lower bound of their arrival times
+        long earliestArrival;
+
+        Stripe(int maxSize) {
+            this.maxSize = maxSize;
+            // at most half full
+            int capacity = Integer.highestOneBit(Math.max(2, maxSize * 2 - 1)) << 1;
+            keys = new InetAddress[capacity];
+            addresses = new byte[capacity][];
+            arrivals = new long[capacity];
+            rules = new Rule[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * @return the slot of the address, a free one if there is room, -1 otherwise
+         */
+        int find(InetAddress address, int hash, long now) {
+            int slot = hash & mask;
+            for (InetAddress key; (key = keys[slot]) != null; slot = (slot + 1) & mask) {
+                if (key.equals(address)) {
+                    return slot;
+                }
+            }
+            if (size < maxSize) {
+                return slot;
+            }
+            if (now - earliestArrival < 0 || !evict(now)) {
+                return -1;
+            }
+            return find(address, hash, now);
+        }
+
+        /**
+         * Creates the bucket of an agent in a free slot
+         */
+        void add(int slot, InetAddress address, byte[] bytes, Rule rule, long now) {
+            if (size == 0 || now - earliestArrival < 0) {
+                earliestArrival = now;
+            }
+            keys[slot] = address;
+            addresses[slot] = bytes;
+            arrivals[slot] = now;
+            rules[slot] = rule;
+            size++;
+        }
+
+        /**
+         * Removes the buckets which are full again and finds the earliest arrival time of the others
+         *
+         * @return false if no bucket was removed
+         */
+        boolean evict(long now) {
+            int before = size;
+            boolean first = true;
+            int i = 0;
+            while (i < keys.length) {
+                if (keys[i] == null) {
+                    i++;
+                    continue;
+                }
+                if (arrivals[i] - now <= 0) {
+                    // a bucket of the same probe sequence may move here, look at this slot again
+                    remove(i);
+                    continue;
+                }
+                if (first || arrivals[i] - earliestArrival < 0) {
+                    earliestArrival = arrivals[i];
+                    first = false;
+                }
+                i++;
+            }
+            return size < before;
+        }
+
+        /**
+         * Empties a slot and moves following buckets of the probe sequence back, so no sequence is broken
+         */
+        private void remove(int slot) {
+            keys[slot] = null;
+            addresses[slot] = null;
+            rules[slot] = null;
+            size--;
+            int empty = slot;
+            for (int i = (slot + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+                int home = hash(keys[i]) & mask;
+                // move the bucket if its home slot isn't cyclically within (empty, i]
+                if (((i - home) & mask) >= ((i - empty) & mask)) {
+                    keys[empty] = keys[i];
+                    addresses[empty] = addresses[i];
+                    arrivals[empty] = arrivals[i];
+                    rules[empty] = rules[i];
+                    keys[i] = null;
+                    addresses[i] = null;
+                    rules[i] = null;
+                    empty = i;
+                }
+            }
+        }
+    }
+
+    // bucket of agents without limit, never dropping anything
+    static final Rule NO_LIMIT = new Rule();
+
+    // longest prefix first
+    final Rule[] rules;
+
+    final Stripe[] stripes;
+
+    // datagrams dropped, in total and by source
+    final AtomicLong dropped = new AtomicLong();
+    final TrapSourceCounters droppedBySource;
+
+    public TrapRateLimiter(TrapRelayConfig config) {
+        rules = parseRules(config.getString("rateLimits", ""));
+        int maxSources = Math.max(STRIPES, config.getInt("rateLimitMaxSources", 65536));
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(maxSources / STRIPES);
+        }
+        droppedBySource = new TrapSourceCounters(config.getInt("statsMaxSources", 4096));
+    }
+
+    private static Rule[] parseRules(String setting) {
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String entry : setting.split("[\\s,]+")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            try {
+                int equals = entry.indexOf('=');
+                if (equals == -1) {
+                    throw new ProtocolException("network=rate/burst expected");
+                }
+                Rule rule = new Rule();
+                rule.network = entry.substring(0, equals);
+                // parsed like the network selectors of the clients
+                TrapFilter filter = TrapFilter.parse(Collections.singletonList(rule.network));
+                if (filter == null || filter.hasOidPrefixes()) {
+                    throw new ProtocolException("network expected");
+                }
+                rule.address = filter.getNetworks().get(0);
+                rule.prefixLength = filter.getPrefixLengths().get(0);
+                String[] limit = entry.substring(equals + 1).split("/");
+                double rate = Double.parseDouble(limit[0]);
+                long burst = limit.length > 1 ? Long.parseLong(limit[1]) : Math.max(1, (long) Math.ceil(rate));
+                rule.intervalNanos = rate > 0 ? (long) (1e9 / rate) : Long.MAX_VALUE;
+                rule.toleranceNanos = rate > 0 ? (Math.max(1, burst) - 1) * rule.intervalNanos : 0;
+                rules.add(rule);
+            } catch (ProtocolException e) {
+                System.err.println("Invalid rate limit '" + entry + "': " + e.getMessage() + ", ignored");
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid rate limit '" + entry + "', ignored");
+            }
+        }
+        Collections.sort(rules, new Comparator<Rule>() {
+            @Override
+            public int compare(Rule a, Rule b) {
+                return b.prefixLength - a.prefixLength;
+            }
+        });
+        return rules.toArray(new Rule[rules.size()]);
+    }
+
+    /**
+     * @return false without rate limits
+     */
+    public boolean isEnabled() {
+        return rules.length > 0;
+    }
+
+    /**
+     * Takes a token from the bucket of an agent
+     *
+     * @param address source address of a datagram. It is kept, its bytes are only copied for a new agent.
+     * @param now System.nanoTime()
+     * @return false if the agent exceeded its limit, the datagram is dropped then
+     */
+    public boolean tryAcquire(InetAddress address, long now) {
+        int hash = hash(address);
+        // the low bits pick the slot within the stripe
+        Stripe stripe = stripes[(hash >>> 24) & (STRIPES - 1)];
+        synchronized (stripe) {
+            int slot = stripe.find(address, hash, now);
+            if (slot == -1) {
+                return true;
+            }
+            if (stripe.keys[slot] == null) {
+                byte[] bytes = address.getAddress();
+                Rule rule = match(bytes);
+                // not limited, kept so the rules aren't searched again
+                stripe.add(slot, address, bytes, rule != null ? rule : NO_LIMIT, now);
+            }
+            Rule rule = stripe.rules[slot];
+            if (rule == NO_LIMIT) {
+                return true;
+            }
+            long arrival = Math.max(stripe.arrivals[slot], now);
+            if (rule.intervalNanos == Long.MAX_VALUE || arrival - now > rule.toleranceNanos) {
+                dropped.incrementAndGet();
+                // the same array for all datagrams of the agent
+                droppedBySource.count(stripe.addresses[slot]);
+                return false;
+            }
+            stripe.arrivals[slot] = arrival + rule.intervalNanos;
+            return true;
+        }
+    }
+
+    private Rule match(byte[] address) {
+        for (Rule rule : rules) {
+            if (rule.address.length == address.length
+                    && TrapFilter.inNetwork(address, rule.address, rule.prefixLength)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return hash of an address with all bits mixed, addresses of a network differ in the last bytes only
+     */
+    static int hash(InetAddress address) {
+        int hash = address.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    /**
+     * @return the limits, "network rate/s burst n" or "network drop", longest prefix first
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<String>();
+        for (Rule rule : rules) {
+            lines.add(rule.network + " " + (rule.intervalNanos == Long.MAX_VALUE ? "drop"
+                    : String.format(Locale.ROOT, "%.1f/s burst %d", 1e9 / rule.intervalNanos,
+                    rule.toleranceNanos / rule.intervalNanos + 1)));
+        }
+        return lines;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
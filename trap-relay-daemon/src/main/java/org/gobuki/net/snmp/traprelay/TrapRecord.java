@@ -0,0 +1,141 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponderEvent;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A slot of the TrapRingBuffer: a converted trap together with the sequence number the daemon assigned when it
+ * was received.
+ *
+ * The trap is kept as received and in each TrapFormat a subscribed client read it in, indexed by the format's
+ * ordinal. A format is converted when the first session reads the trap in it and kept for the others, so each
+ * trap is converted at most once per format, and not at all if no client is subscribed to it. Formats nobody
+ * read yet are null.
+ *
+ * Sequence numbers increase monotonically over all traps, so a client can acknowledge cumulatively.
+ * Slots are reused. The sequence is written last when a trap is stored and checked again after a reader got
+ * its reference, so a reader never uses a trap which was overwritten in between.
+ */
+public class TrapRecord {
+
+    // 0 while the slot is empty or being overwritten
+    volatile long sequence;
+    final AtomicReferenceArray<TrapPayload> payloads = new AtomicReferenceArray<TrapPayload>(TrapFormat.values().length);
+    volatile TrapRoute route;
+
+    // the received trap and when it was received, converted on demand. Guarded by this, like the conversion.
+    CommandResponderEvent event;
+    long receivedMillis;
+
+    // the converter of each format, shared by all slots
+    final Map<TrapFormat, TrapEventConverter<TrapPayload>> converters;
+
+    // System.nanoTime() when the trap was published
+    volatile long publishedNanos;
+
+    /**
+     * @param converters the converter of each format, converters may be added until traps are published
+     */
+    TrapRecord(Map<TrapFormat, TrapEventConverter<TrapPayload>> converters) {
+        this.converters = converters;
+    }
+
+    /**
+     * Stores a new trap in this slot and releases the slot's references of the previous one
+     *
+     * @param sequence
+     * @param payloads the ring's references by format ordinal, null elements for formats not converted yet. null
+     *                 if none is converted yet.
+     * @param event the received trap, for the other formats
+     * @param receivedMillis System.currentTimeMillis() when it was received
+     * @param route
+     * @param publishedNanos
+     */
+    synchronized void set(long sequence, TrapPayload[] payloads, CommandResponderEvent event, long receivedMillis,
+                          TrapRoute route, long publishedNanos) {
+        this.sequence = 0;
+        for (int i = 0; i < this.payloads.length(); i++) {
+            // readers still holding the previous trap have their own reference
+            TrapPayload previous = this.payloads.getAndSet(i, payloads != null ? payloads[i] : null);
+            if (previous != null) {
+                previous.release();
+            }
+        }
+        this.event = event;
+        this.receivedMillis = receivedMillis;
+        this.route = route;
+        this.publishedNanos = publishedNanos;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @param expectedSequence
+     * @param format
+     * @return the retained payload, converted if this is the first read in the format. null if the slot doesn't
+     *         hold that trap anymore or there is no converter for the format.
+     */
+    TrapPayload acquire(long expectedSequence, TrapFormat format) {
+        if (sequence != expectedSequence) {
+            return null;
+        }
+        TrapPayload p = payloads.get(format.ordinal());
+        if (p == null) {
+            return convert(expectedSequence, format);
+        }
+        if (!p.tryRetain()) {
+            return null;
+        }
+        if (sequence != expectedSequence) {
+            p.release();
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * Converts the trap to a format on the first read, sessions of other selector threads reading it at the same
+     * time wait for the result
+     *
+     * @return the retained payload, null if the slot doesn't hold the trap anymore or the format has no converter
+     */
+    private synchronized TrapPayload convert(long expectedSequence, TrapFormat format) {
+        if (sequence != expectedSequence) {
+            return null;
+        }
+        TrapPayload p = payloads.get(format.ordinal());
+        if (p == null) {
+            TrapEventConverter<TrapPayload> converter = converters.get(format);
+            if (event == null || converter == null) {
+                return null;
+            }
+            // the slot's reference, released when the slot is overwritten
+            p = converter.convertTrap(event, receivedMillis);
+            payloads.set(format.ordinal(), p);
+        }
+        return p.retain();
+    }
+
+    /**
+     * Read the route before acquiring the payload, acquire() then verifies that both belong to the same trap
+     *
+     * @return the route of the trap in this slot
+     */
+    public TrapRoute getRoute() {
+        return route;
+    }
+
+    /**
+     * Like the route, read it before acquiring the payload
+     *
+     * @return System.nanoTime() when the trap in this slot was published
+     */
+    public long getPublishedNanos() {
+        return publishedNanos;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+}
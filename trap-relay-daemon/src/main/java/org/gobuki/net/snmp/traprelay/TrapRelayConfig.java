@@ -0,0 +1,102 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Daemon settings.
+ *
+ * Values are read from an optional properties file (traprelay.properties in the working directory by default)
+ * and can be overridden with system properties prefixed with "traprelay.", e.g. -Dtraprelay.selectorThreads=4
+ */
+public class TrapRelayConfig {
+
+    public static final String DEFAULT_CONFIG_FILE = "traprelay.properties";
+
+    public static final String SYSTEM_PROPERTY_PREFIX = "traprelay.";
+
+    Properties properties;
+
+    public TrapRelayConfig() {
+        this(new Properties());
+    }
+
+    public TrapRelayConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Loads the settings from a properties file. A missing file is not an error, all settings have defaults.
+     *
+     * @param fileName
+     * @return the loaded configuration
+     */
+    public static TrapRelayConfig load(String fileName) {
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(fileName);
+            properties.load(in);
+            System.out.println("Loaded settings from " + fileName);
+        } catch (IOException e) {
+            // no config file, use defaults
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return new TrapRelayConfig(properties);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        return value != null ? value.trim() : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for setting '" + key + "': " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for setting '" + key + "': " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    public void set(String key, String value) {
+        properties.setProperty(key, value);
+    }
+}
@@ -1,15 +1,19 @@
 package org.gobuki.net.snmp.traprelay;
 
 import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.smi.Address;
 
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
 import java.io.*;
 import java.net.*;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -51,7 +55,6 @@ import java.util.concurrent.atomic.AtomicInteger;
  *         > https://stackoverflow.com/questions/28743482/java-sslserversocket-with-only-tls
  *    - only allow connection with client ceritifcate
  *    - allow simultaneous client connections
- *    - create indidual queues for each snmp agent sending traps - limit maximum ammount
  *    - extend REGISTER command to take an argument. So clients can register for SNMP trap events
  *      from sources they want to monitor.
  *    - add an UNREGISTER command
@@ -70,28 +73,72 @@ import java.util.concurrent.atomic.AtomicInteger;
  *    sending register first, the server will hang in an infinite loop waiting for queue events.
  *
  */
-public class TrapRelayDaemon implements TrapEventHandler {
+public class TrapRelayDaemon implements TrapEventHandler, RawTrapHandler {
 
     public static final String REQUIRED_ENCRYPTION_PROTOCOL = "TLSv1.2";
 
-    // Listening for SNMP trap events on udp/162
+    public static final String DEFAULT_TRAP_LISTEN_ADDRESS = "udp:0.0.0.0/162";
+
+    // connections the kernel queues until they are accepted, clients reconnecting at once after a restart
+    public static final int DEFAULT_ACCEPT_BACKLOG = 1024;
+
+    // Listening for SNMP trap events, on udp/162 by default
     TrapListener trapListener;
 
-    TrapEventConverter<String> trapEventConverter;
+    // one converter for each wire format clients may register with
+    Map<TrapFormat, TrapEventConverter<TrapPayload>> trapEventConverters;
+
+    // frames the undecoded messages in passthrough mode
+    RawTrapConverter rawConverter;
+
+    // recycles the encoded traps
+    TrapPayloadPool payloadPool;
+
+    TrapRelayConfig config;
+
+    SSLContext sslContext;
+
+    ServerSocketChannel serverSocketChannel;
 
-    SSLServerSocket sslServerSocket;
+    // the only protocol enabled for client connections
+    String[] enabledProtocols;
 
     AtomicInteger clientCount;
 
-    // If no trap events and no client commands were received, sleep for this many ms
-    int sleepTime = 50;
+    // selector threads delivering traps to the clients
+    DeliveryEngine deliveryEngine;
 
-    Set<ClientConnectionHandlerThread> clientConnectionHandlerThreads;
+    // latencies and counters, see the STATS command
+    TrapRelayStatistics statistics;
+
+    // relays only the first of identical traps within a window, and a summary of the others
+    TrapSuppressor suppressor;
+
+    // names of the OIDs for the JSON format, null without mibSymbolFile
+    MibSymbolTable mibSymbols;
 
     public TrapRelayDaemon() {
-        trapListener = new TrapListener();
+        this(new TrapRelayConfig());
+    }
+
+    public TrapRelayDaemon(TrapRelayConfig config) {
+        this.config = config;
+        trapListener = new TrapListener(config);
         clientCount = new AtomicInteger(0);
-        clientConnectionHandlerThreads = new HashSet<ClientConnectionHandlerThread>();
+        trapEventConverters = new EnumMap<TrapFormat, TrapEventConverter<TrapPayload>>(TrapFormat.class);
+        payloadPool = new TrapPayloadPool(config.getInt("payloadPoolSize", 1024));
+        rawConverter = new RawTrapConverter(payloadPool);
+        statistics = new TrapRelayStatistics(config);
+        mibSymbols = MibSymbolTable.load(config);
+        suppressor = new TrapSuppressor(config, new TrapEventHandler() {
+            @Override
+            public void handleTrapEvent(CommandResponderEvent summary) {
+                if (hasReceivers()) {
+                    statistics.summaries.incrementAndGet();
+                    relay(summary, TrapRoute.of(summary), System.nanoTime());
+                }
+            }
+        });
     }
 
     /*
@@ -102,19 +149,46 @@ public class TrapRelayDaemon implements TrapEventHandler {
      */
     public void listenForClientConnections(String listeningAddress, int listeningPort) {
 
-        SSLServerSocketFactory sslServerSocketFactory =
-                (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
+        if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                System.err.println("No TLS implementation available: " + e.getMessage());
+                System.err.println("exiting");
+                System.exit(2);
+            }
+        }
+
+        // reconnecting clients resume their session: no key exchange and no certificate validation
+        SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+        sessionContext.setSessionCacheSize(config.getInt("tlsSessionCacheSize", 20000));
+        sessionContext.setSessionTimeout(config.getInt("tlsSessionTimeoutSeconds", 86400));
 
         System.out.println("Supported cipher suites:");
-        for (String suite : sslServerSocketFactory.getSupportedCipherSuites()) {
+        for (String suite : sslContext.getSupportedSSLParameters().getCipherSuites()) {
             System.out.println("\t" + suite);
         }
 
         try {
-            // open new server listening socket
-            sslServerSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(listeningPort, 2, InetAddress.getByName(listeningAddress));
-            sslServerSocket.setNeedClientAuth(true);
             requireProtocol(REQUIRED_ENCRYPTION_PROTOCOL);
+
+            deliveryEngine = new DeliveryEngine(config, clientCount, statistics, trapEventConverters);
+            deliveryEngine.start();
+            statistics.start(deliveryEngine, trapListener);
+            System.out.println("Delivering traps with " + deliveryEngine.getSelectorThreads() + " selector thread(s), "
+                    + "ring size " + deliveryEngine.getRing().size() + ", slow consumer policy "
+                    + deliveryEngine.getSlowConsumerPolicy() + ", " + deliveryEngine.getHandshakeThreads()
+                    + " TLS handshake thread(s)");
+            if (suppressor.isEnabled()) {
+                suppressor.start(trapListener);
+                System.out.println("Suppressing identical traps within " + suppressor.getWindowMillis() + " ms");
+            }
+
+            // open new server listening socket
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.socket().setReuseAddress(true);
+            serverSocketChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(listeningAddress), listeningPort),
+                    config.getInt("acceptBacklog", DEFAULT_ACCEPT_BACKLOG));
         } catch (ProtocolException e) {
             System.err.println(e.getMessage());
             System.err.println("exiting");
@@ -125,31 +199,35 @@ public class TrapRelayDaemon implements TrapEventHandler {
             System.exit(2);
         }
 
-        // client connection loop, waits for new connections until a connection is opened
-        // accepts new connections when the connections is closed
+        // client connection loop, accepts new connections and hands them over to the selector threads, which do the
+        // TLS handshake and all further communication. Accepting never waits for a handshake.
         System.out.println("Waiting for client connections");
         acceptClientConnections: while (true) {
             try {
-                SSLSocket sslClientSocket = (SSLSocket) sslServerSocket.accept();
-
-                ClientConnectionHandlerThread t = new ClientConnectionHandlerThread(sslClientSocket, trapListener, clientCount);
-                clientConnectionHandlerThreads.add(t);
-                t.start();
-
-                System.out.println("connection opened; client count:" + clientCount.incrementAndGet());
-                TimeUnit.MILLISECONDS.sleep(sleepTime);
+                SocketChannel clientChannel = serverSocketChannel.accept();
+                deliveryEngine.addConnection(clientChannel, createSslEngine());
             } catch (IOException e) {
                 System.out.println(e);
                 break acceptClientConnections;
-            } catch (InterruptedException e) {
-                System.out.println("interrupted");
-                break acceptClientConnections;
             }
         }
     }
 
     /**
-     * Checks if a protocol is supported. If yes, it enables only this protocol for the sslServerSocket,
+     * Creates the server side TLS engine for a new client connection. Clients must authenticate with a certificate.
+     *
+     * @return
+     */
+    private SSLEngine createSslEngine() {
+        SSLEngine sslEngine = sslContext.createSSLEngine();
+        sslEngine.setUseClientMode(false);
+        sslEngine.setNeedClientAuth(true);
+        sslEngine.setEnabledProtocols(enabledProtocols);
+        return sslEngine;
+    }
+
+    /**
+     * Checks if a protocol is supported. If yes, it enables only this protocol for client connections,
      * throws an exception otherwise.
      *
      * @param protocol
@@ -158,7 +236,7 @@ public class TrapRelayDaemon implements TrapEventHandler {
     private void requireProtocol(String protocol) throws ProtocolException {
         System.out.println("Server supports these encryption protocols:");
         boolean protocolIsSupported = false;
-        for (String supportedProtocol : sslServerSocket.getSupportedProtocols()) {
+        for (String supportedProtocol : sslContext.getSupportedSSLParameters().getProtocols()) {
             System.out.println("\t" + supportedProtocol);
             if (supportedProtocol.equalsIgnoreCase(protocol)) {
                 protocolIsSupported = true;
@@ -166,34 +244,108 @@ public class TrapRelayDaemon implements TrapEventHandler {
             }
         }
         if (protocolIsSupported) {
-            sslServerSocket.setEnabledProtocols(new String[]{protocol});
+            enabledProtocols = new String[]{protocol};
             System.out.println("Set '" + protocol + "' as only supported protocol.");
         } else {
             throw new ProtocolException("Required protocol not supported by server: " + protocol);
         }
     }
 
-    public void setTrapEventConverter(TrapEventConverter converter) {
-        this.trapEventConverter = converter;
+    /**
+     * @param sslContext TLS context for the client connections, instead of the default one configured with the
+     *                   javax.net.ssl system properties
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public void setTrapEventConverter(TrapEventConverter<TrapPayload> converter) {
+        setTrapEventConverter(TrapFormat.JSON, converter);
+    }
+
+    public void setTrapEventConverter(TrapFormat format, TrapEventConverter<TrapPayload> converter) {
+        this.trapEventConverters.put(format, converter);
     }
 
     /**
      * Is called when the TrapListener recevied a trap.
-     * Distributes the trap event to all clients.
+     * Relays it unless it is a duplicate within the suppression window.
      *
      * @param event
      */
     @Override
     public void handleTrapEvent(CommandResponderEvent event) {
 
-        for (ClientConnectionHandlerThread clientThread : clientConnectionHandlerThreads) {
-            if (clientThread.isAlive()) {
-                clientThread.offerTrap(trapEventConverter.convertTrap(event));
-            } else {
-                clientConnectionHandlerThreads.remove(clientThread);
+        long receivedAt = System.nanoTime();
+        TrapRoute route = TrapRoute.of(event);
+        statistics.received(route);
+        if (!hasReceivers()) {
+            statistics.discarded.incrementAndGet();
+            return;
+        }
+        if (suppressor.isEnabled() && !suppressor.admit(event, route, receivedAt)) {
+            statistics.suppressed.incrementAndGet();
+            return;
+        }
+        relay(event, route, receivedAt);
+    }
+
+    /**
+     * Is called by the TrapListener in passthrough mode, on the receive thread. The message is framed for the RAW
+     * format and published without being decoded, duplicates aren't suppressed.
+     *
+     * @param source
+     * @param message only valid until this returns
+     */
+    @Override
+    public void handleRawTrap(Address source, ByteBuffer message) {
+
+        long receivedAt = System.nanoTime();
+        TrapRoute route = TrapRoute.of(source, message);
+        statistics.received(route);
+        if (!hasReceivers()) {
+            statistics.discarded.incrementAndGet();
+            return;
+        }
+        long receivedMillis = System.currentTimeMillis();
+        TrapPayload[] payloads = new TrapPayload[TrapFormat.values().length];
+        payloads[TrapFormat.RAW.ordinal()] = rawConverter.convert(source, message, receivedMillis);
+        long convertedAt = System.nanoTime();
+        statistics.receiveToConvert.record(convertedAt - receivedAt);
+        deliveryEngine.publish(payloads, null, receivedMillis, route);
+        statistics.convertToEnqueue.record(System.nanoTime() - convertedAt);
+    }
+
+    /**
+     * @return true if a client is registered or traps are journaled
+     */
+    private boolean hasReceivers() {
+        return deliveryEngine != null
+                && (deliveryEngine.getJournal() != null || !deliveryEngine.getRegisteredSessions().isEmpty());
+    }
+
+    /**
+     * Publishes the trap event for all clients. It is converted to a format when the first subscribed client reads
+     * it, only the journal needs all formats right away.
+     *
+     * @param event
+     * @param route
+     * @param receivedAt System.nanoTime() when the trap was received
+     */
+    void relay(CommandResponderEvent event, TrapRoute route, long receivedAt) {
+        long receivedMillis = System.currentTimeMillis();
+        TrapPayload[] payloads = null;
+        if (deliveryEngine.getJournal() != null) {
+            // clients may resume from the journal in any format
+            payloads = new TrapPayload[TrapFormat.values().length];
+            for (Map.Entry<TrapFormat, TrapEventConverter<TrapPayload>> converter : trapEventConverters.entrySet()) {
+                payloads[converter.getKey().ordinal()] = converter.getValue().convertTrap(event, receivedMillis);
             }
-            // TODO: else remove?!
         }
+        long convertedAt = System.nanoTime();
+        statistics.receiveToConvert.record(convertedAt - receivedAt);
+        deliveryEngine.publish(payloads, event, receivedMillis, route);
+        statistics.convertToEnqueue.record(System.nanoTime() - convertedAt);
     }
 
     public static void main(String args[]) {
@@ -216,12 +368,15 @@ public class TrapRelayDaemon implements TrapEventHandler {
             System.exit(2);
         }
 
-        TrapRelayDaemon trapDaemon = new TrapRelayDaemon();
-        trapDaemon.setTrapEventConverter(new TrapEventJsonConverter());
+        TrapRelayDaemon trapDaemon = new TrapRelayDaemon(TrapRelayConfig.load(TrapRelayConfig.DEFAULT_CONFIG_FILE));
+        trapDaemon.setTrapEventConverter(TrapFormat.JSON, new TrapEventJsonConverter(trapDaemon.payloadPool,
+                trapDaemon.mibSymbols));
+        trapDaemon.setTrapEventConverter(TrapFormat.BINARY, new TrapEventBinaryConverter(trapDaemon.payloadPool));
         trapDaemon.trapListener.addTrapEventHandler(trapDaemon);
+        trapDaemon.trapListener.addRawTrapHandler(trapDaemon);
         // Start SNMP trap receiver threads
 
-        trapDaemon.trapListener.run("udp:0.0.0.0/162");
+        trapDaemon.trapListener.run(trapDaemon.config.getString("trapListenAddress", DEFAULT_TRAP_LISTEN_ADDRESS));
 
         // Start server thread for TCP clients to connect
         trapDaemon.listenForClientConnections(args[0], Integer.parseInt(args[1]));
@@ -0,0 +1,339 @@
+package org.gobuki.net.snmp.traprelay;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where traps spend their time and how many get lost, for the STATS command and JMX.
+ *
+ * Latencies are recorded for each stage a trap passes:
+ *
+ *   receiveToConvert   SNMP4J handed the decoded PDU over - ready to publish (converted to all formats with the journal)
+ *   convertToEnqueue   converted - published to the ring (waiting for the lock, journal, BLOCK policy)
+ *   enqueueToWrite     published - copied to a client's output batch, per client that gets the trap. The first
+ *                      client reading the trap in a format converts it.
+ *   writeToAck         copied to a client's output batch - acknowledged by the client
+ *
+ * The TLS handshakes of the clients are recorded as well, from accepting the connection until the handshake is
+ * finished, as "handshake", and the responses to informs, from receiving the inform (decoding it for SNMPv3) until
+ * the response is sent, as "informResponse", see InformResponder.
+ *
+ * All counters are atomics or fields of the thread owning them, recording never locks or allocates. The trap
+ * rates are sampled every statsIntervalSeconds.
+ *
+ * With the setting jmx (default true) the statistics are registered as MBeans, see TrapRelayStatisticsMBean and
+ * LatencyHistogramMBean.
+ */
+public class TrapRelayStatistics implements TrapRelayStatisticsMBean {
+
+    static final String JMX_DOMAIN = "org.gobuki.net.snmp.traprelay";
+
+    final LatencyHistogram receiveToConvert = new LatencyHistogram("receiveToConvert");
+    final LatencyHistogram convertToEnqueue = new LatencyHistogram("convertToEnqueue");
+    final LatencyHistogram enqueueToWrite = new LatencyHistogram("enqueueToWrite");
+    final LatencyHistogram writeToAck = new LatencyHistogram("writeToAck");
+    final LatencyHistogram handshake = new LatencyHistogram("handshake");
+
+    // TLS handshakes resuming a cached session and connections closed during the handshake
+    final AtomicLong resumedHandshakes = new AtomicLong();
+    final AtomicLong failedHandshakes = new AtomicLong();
+
+    // traps handed over by SNMP4J
+    final AtomicLong received = new AtomicLong();
+
+    // traps thrown away because no client was registered and there is no journal
+    final AtomicLong discarded = new AtomicLong();
+
+    final AtomicLong published = new AtomicLong();
+
+    // duplicates not relayed and summaries relayed instead, see TrapSuppressor
+    final AtomicLong suppressed = new AtomicLong();
+    final AtomicLong summaries = new AtomicLong();
+
+    // deliveries left out because the trap didn't satisfy the client's WHERE expression, once per client
+    final AtomicLong filtered = new AtomicLong();
+
+    // traps skipped by slow clients and clients disconnected for being too slow, see SlowConsumerPolicy
+    final AtomicLong skipped = new AtomicLong();
+    final AtomicLong slowConsumerDisconnects = new AtomicLong();
+
+    // traps sent to clients that disconnected since, the open sessions count their own
+    final AtomicLong sentByClosedSessions = new AtomicLong();
+
+    final TrapSourceCounters sources;
+
+    final int intervalSeconds;
+    final boolean jmx;
+
+    // written by the sampling timer only
+    volatile double receivedPerSecond;
+    long sampledReceived;
+    long sampledAt;
+
+    DeliveryEngine engine;
+    TrapListener trapListener;
+
+    public TrapRelayStatistics(TrapRelayConfig config) {
+        sources = new TrapSourceCounters(config.getInt("statsMaxSources", 4096));
+        intervalSeconds = config.getInt("statsIntervalSeconds", 10);
+        jmx = config.getBoolean("jmx", true);
+    }
+
+    /**
+     * Starts sampling the rates and registers the MBeans
+     *
+     * @param engine
+     * @param trapListener
+     */
+    public void start(DeliveryEngine engine, TrapListener trapListener) {
+        this.engine = engine;
+        this.trapListener = trapListener;
+        sampledAt = System.nanoTime();
+        if (intervalSeconds > 0) {
+            long period = intervalSeconds * 1000L;
+            new Timer("Statistics Sampler", true).schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    sample();
+                }
+            }, period, period);
+        }
+        if (jmx) {
+            registerMBeans();
+        }
+    }
+
+    void sample() {
+        long now = System.nanoTime();
+        long count = received.get();
+        receivedPerSecond = (count - sampledReceived) / ((now - sampledAt) / 1e9);
+        sampledReceived = count;
+        sampledAt = now;
+        sources.sample();
+        if (trapListener != null) {
+            trapListener.rateLimiter.droppedBySource.sample();
+        }
+    }
+
+    private void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(JMX_DOMAIN + ":type=Statistics"));
+            for (LatencyHistogram histogram : getHistograms()) {
+                server.registerMBean(histogram,
+                        new ObjectName(JMX_DOMAIN + ":type=Latency,stage=" + histogram.getName()));
+            }
+        } catch (JMException e) {
+            System.err.println("Can't register the statistics MBeans: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Counts a trap handed over by SNMP4J
+     *
+     * @param route
+     */
+    void received(TrapRoute route) {
+        received.incrementAndGet();
+        sources.count(route.getAddress());
+    }
+
+    /**
+     * @param session a closing session
+     */
+    void closed(ClientSession session) {
+        sentByClosedSessions.addAndGet(session.sent);
+    }
+
+    public LatencyHistogram[] getHistograms() {
+        if (trapListener == null) {
+            return new LatencyHistogram[]{receiveToConvert, convertToEnqueue, enqueueToWrite, writeToAck, handshake};
+        }
+        return new LatencyHistogram[]{receiveToConvert, convertToEnqueue, enqueueToWrite, writeToAck, handshake,
+                trapListener.informResponder.latency};
+    }
+
+    /**
+     * @return the answer to the STATS command, "STAT &lt;name&gt; &lt;value&gt;" lines
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("STAT received " + getReceived());
+        lines.add("STAT received_per_second " + String.format(Locale.ROOT, "%.1f", getReceivedPerSecond()));
+        lines.add("STAT discarded " + getDiscarded());
+        lines.add("STAT published " + getPublished());
+        lines.add("STAT suppressed " + getSuppressed());
+        lines.add("STAT summaries " + getSummaries());
+        lines.add("STAT filtered " + getFiltered());
+        lines.add("STAT sent " + getSent());
+        lines.add("STAT skipped " + getSkipped());
+        lines.add("STAT slow_consumer_disconnects " + getSlowConsumerDisconnects());
+        lines.add("STAT kernel_drops " + getKernelDrops());
+        lines.add("STAT rate_limited " + getRateLimited());
+        lines.add("STAT dispatcher_drops " + getDispatcherDrops());
+        lines.add("STAT inform_responses " + getInformResponses());
+        lines.add("STAT inform_retransmits " + getInformRetransmits());
+        lines.add("STAT resumed_handshakes " + getResumedHandshakes());
+        lines.add("STAT failed_handshakes " + getFailedHandshakes());
+        lines.add("STAT clients " + getClientCount());
+        for (LatencyHistogram histogram : getHistograms()) {
+            lines.add("STAT latency " + histogram.getName() + " " + histogram);
+        }
+        for (String session : getSessions()) {
+            lines.add("STAT client " + session);
+        }
+        for (String source : sources.describe()) {
+            lines.add("STAT source " + source);
+        }
+        for (String source : getRateLimitedSources()) {
+            lines.add("STAT rate_limited_source " + source);
+        }
+        return lines;
+    }
+
+    @Override
+    public long getReceived() {
+        return received.get();
+    }
+
+    @Override
+    public double getReceivedPerSecond() {
+        return receivedPerSecond;
+    }
+
+    @Override
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    @Override
+    public long getPublished() {
+        return published.get();
+    }
+
+    @Override
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    @Override
+    public long getSummaries() {
+        return summaries.get();
+    }
+
+    @Override
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    @Override
+    public long getSent() {
+        long sent = sentByClosedSessions.get();
+        if (engine != null) {
+            for (ClientSession session : engine.getRegisteredSessions()) {
+                sent += session.sent;
+            }
+        }
+        return sent;
+    }
+
+    @Override
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.get();
+    }
+
+    @Override
+    public long getKernelDrops() {
+        long drops = 0;
+        if (trapListener != null) {
+            for (UdpSocketStatistics socket : trapListener.getSocketStatistics()) {
+                drops += socket.getDrops();
+            }
+        }
+        return drops;
+    }
+
+    @Override
+    public long getRateLimited() {
+        return trapListener != null ? trapListener.rateLimiter.getDropped() : 0;
+    }
+
+    @Override
+    public long getDispatcherDrops() {
+        return trapListener != null ? trapListener.getDispatcherDrops() : 0;
+    }
+
+    @Override
+    public long getInformResponses() {
+        return trapListener != null ? trapListener.informResponder.getResponses() : 0;
+    }
+
+    @Override
+    public long getInformRetransmits() {
+        return trapListener != null ? trapListener.informResponder.getRetransmits() : 0;
+    }
+
+    @Override
+    public String[] getRateLimitedSources() {
+        if (trapListener == null) {
+            return new String[0];
+        }
+        List<String> lines = trapListener.rateLimiter.droppedBySource.describe();
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    @Override
+    public long getFailedHandshakes() {
+        return failedHandshakes.get();
+    }
+
+    @Override
+    public int getClientCount() {
+        return engine != null ? engine.getRegisteredSessions().size() : 0;
+    }
+
+    @Override
+    public String[] getSessions() {
+        List<String> sessions = new ArrayList<String>();
+        if (engine != null) {
+            for (ClientSession session : engine.getRegisteredSessions()) {
+                sessions.add(session.getClientName() + " queued=" + session.getQueueDepth() + " inFlight="
+                        + session.inFlight.size() + " sent=" + session.sent + " skipped=" + session.skipped
+                        + (session.compressedBytes > 0 ? String.format(Locale.ROOT, " compression=%.1f",
+                        (double) session.uncompressedBytes / session.compressedBytes) : ""));
+            }
+        }
+        return sessions.toArray(new String[sessions.size()]);
+    }
+
+    @Override
+    public String[] getSources() {
+        List<String> lines = sources.describe();
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public void resetLatencies() {
+        for (LatencyHistogram histogram : getHistograms()) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.gobuki.net.snmp.traprelay;
+
+/**
+ * JMX view of the TrapRelayStatistics, registered as org.gobuki.net.snmp.traprelay:type=Statistics
+ */
+public interface TrapRelayStatisticsMBean {
+
+    long getReceived();
+
+    double getReceivedPerSecond();
+
+    long getDiscarded();
+
+    long getPublished();
+
+    long getSuppressed();
+
+    long getSummaries();
+
+    long getFiltered();
+
+    long getSent();
+
+    long getSkipped();
+
+    long getSlowConsumerDisconnects();
+
+    long getKernelDrops();
+
+    long getRateLimited();
+
+    /**
+     * @return received messages dropped because the queue of their dispatcher shard was full
+     */
+    long getDispatcherDrops();
+
+    /**
+     * @return informs answered, retransmissions included
+     */
+    long getInformResponses();
+
+    /**
+     * @return retransmitted informs answered again but not relayed, their request ID was seen recently
+     */
+    long getInformRetransmits();
+
+    /**
+     * @return TLS handshakes which resumed a cached session instead of a full key exchange
+     */
+    long getResumedHandshakes();
+
+    /**
+     * @return connections closed before their TLS handshake finished
+     */
+    long getFailedHandshakes();
+
+    int getClientCount();
+
+    /**
+     * @return one line per registered client: queued and unacknowledged traps, traps sent and skipped
+     */
+    String[] getSessions();
+
+    /**
+     * @return one line per source address: traps received and the rate of the last sampling interval
+     */
+    String[] getSources();
+
+    /**
+     * @return one line per source address over its rate limit: datagrams dropped and the rate of the last sampling
+     * interval
+     */
+    String[] getRateLimitedSources();
+
+    void resetLatencies();
+}
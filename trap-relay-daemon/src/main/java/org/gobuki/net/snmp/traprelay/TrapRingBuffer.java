@@ -0,0 +1,110 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponderEvent;
+
+import java.util.Map;
+
+/**
+ * Bounded broadcast buffer of the most recently received traps.
+ *
+ * All client sessions read from the same preallocated slots, each session only keeps the sequence number of the
+ * next trap it has to send (its cursor). Memory is bounded by the ring size, no matter how many clients are
+ * connected or how far behind they are.
+ *
+ * Traps are published by the receiver threads one at a time (the caller synchronizes). The trap with sequence
+ * number n is stored in slot n % size and overwrites the trap n - size. Readers never block the writer, they
+ * detect an overwritten slot by its sequence number.
+ *
+ * The slots keep the received traps and convert them to a format when it is first read, see TrapRecord.
+ */
+public class TrapRingBuffer {
+
+    final TrapRecord[] slots;
+    final int mask;
+
+    // sequence number of the first trap published to this ring
+    final long firstSequence;
+
+    // sequence number of the latest published trap, 0 if none was published yet
+    volatile long published;
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     * @param lastSequence sequence number of the last trap published before, e.g. the last one in the journal
+     * @param converters the converter of each format
+     */
+    public TrapRingBuffer(int size, long lastSequence, Map<TrapFormat, TrapEventConverter<TrapPayload>> converters) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        slots = new TrapRecord[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new TrapRecord(converters);
+        }
+        mask = capacity - 1;
+        published = lastSequence;
+        firstSequence = lastSequence + 1;
+    }
+
+    /**
+     * @return the sequence number the next published trap will get
+     */
+    public long nextSequence() {
+        return published + 1;
+    }
+
+    /**
+     * Stores a trap in the next slot, releasing the trap it overwrites. Callers must not publish concurrently.
+     *
+     * @param payloads the formats converted already by ordinal, null if none. The ring takes over the caller's
+     *                 references.
+     * @param event the received trap, converted to the other formats when they are read
+     * @param receivedMillis System.currentTimeMillis() when it was received
+     * @param route the trap's route with its recipients
+     * @param publishedNanos System.nanoTime() of publishing, for the latency statistics
+     * @return the sequence number of the trap
+     */
+    public long publish(TrapPayload[] payloads, CommandResponderEvent event, long receivedMillis, TrapRoute route,
+                        long publishedNanos) {
+        long sequence = published + 1;
+        slots[(int) sequence & mask].set(sequence, payloads, event, receivedMillis, route, publishedNanos);
+        published = sequence;
+        return sequence;
+    }
+
+    /**
+     * Gets a reference to a published trap's payload.
+     *
+     * @param sequence must not be larger than getPublished()
+     * @param format
+     * @return the retained payload, the caller must release it. null if the trap was overwritten already or the
+     *         format has no converter.
+     */
+    public TrapPayload acquire(long sequence, TrapFormat format) {
+        return slots[(int) sequence & mask].acquire(sequence, format);
+    }
+
+    /**
+     * @param sequence
+     * @return the slot the trap is stored in, it may hold a newer trap already
+     */
+    public TrapRecord slot(long sequence) {
+        return slots[(int) sequence & mask];
+    }
+
+    /**
+     * @return sequence number of the latest published trap
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return sequence number of the oldest trap which is still in the ring
+     */
+    public long getOldestAvailable() {
+        return Math.max(firstSequence, published - slots.length + 1);
+    }
+
+    public int size() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,281 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * What traps are routed by: the trap OID and the address of the agent which sent it.
+ *
+ * The arrays are the binary values of the received PDU, they are never formatted or copied for matching.
+ * The engine adds the set of matching sessions before the trap is published, afterwards the route is immutable.
+ */
+public class TrapRoute {
+
+    static final int[] EMPTY_OID = new int[0];
+    static final byte[] EMPTY_ADDRESS = new byte[0];
+
+    // prefix of the trap OIDs of the generic SNMPv1 traps, RFC 3584 3.1
+    static final int[] SNMP_TRAPS = {1, 3, 6, 1, 6, 3, 1, 1, 5};
+
+    static final int[] SNMP_TRAP_OID = SnmpConstants.snmpTrapOID.getValue();
+
+    // BER tags read from undecoded messages
+    static final int SEQUENCE = 0x30;
+    static final int INTEGER = 0x02;
+    static final int OCTET_STRING = 0x04;
+    static final int OBJECT_IDENTIFIER = 0x06;
+    static final int V1_TRAP = 0xA4;
+    static final int INFORM = 0xA6;
+    static final int V2_TRAP = 0xA7;
+
+    final int[] oid;
+
+    // 4 or 16 bytes, empty if the transport has no IP address
+    final byte[] address;
+
+    // bit n is set if the session with subscription slot n gets the trap
+    long[] recipients;
+
+    public TrapRoute(int[] oid, byte[] address) {
+        this.oid = oid;
+        this.address = address;
+    }
+
+    /**
+     * @param event a received trap or notification
+     * @return its route
+     */
+    public static TrapRoute of(CommandResponderEvent event) {
+        return new TrapRoute(trapOid(event.getPDU()), address(event.getPeerAddress()));
+    }
+
+    /**
+     * Routes a message relayed undecoded, in passthrough mode. The trap OID of SNMPv1 traps and SNMPv2c
+     * notifications is read from the BER encoding without decoding the rest of the message. SNMPv3 messages are
+     * routed by their source only, their PDU may be encrypted.
+     *
+     * @param source the agent's address
+     * @param message the SNMP message, not consumed
+     * @return its route
+     */
+    public static TrapRoute of(Address source, ByteBuffer message) {
+        int[] oid;
+        try {
+            oid = rawTrapOid(message, message.position(), message.limit());
+        } catch (IndexOutOfBoundsException e) {
+            // truncated message, routed by its source
+            oid = EMPTY_OID;
+        }
+        return new TrapRoute(oid, address(source));
+    }
+
+    /**
+     * @return the trap OID, EMPTY_OID if the message isn't an SNMPv1 trap or an SNMPv2c notification
+     */
+    static int[] rawTrapOid(ByteBuffer message, int position, int limit) {
+        int[] header = new int[2];
+        // message: version, community, PDU
+        if ((position = readHeader(message, position, header)) < 0 || header[0] != SEQUENCE
+                || (position = readHeader(message, position, header)) < 0 || header[0] != INTEGER) {
+            return EMPTY_OID;
+        }
+        long version = readInteger(message, position, header[1]);
+        position += header[1];
+        if (version > 1 || (position = readHeader(message, position, header)) < 0 || header[0] != OCTET_STRING) {
+            return EMPTY_OID;
+        }
+        position += header[1];
+        if ((position = readHeader(message, position, header)) < 0) {
+            return EMPTY_OID;
+        }
+        int pduType = header[0];
+        if (pduType == V1_TRAP) {
+            // enterprise, agent-addr, generic-trap, specific-trap
+            if ((position = readHeader(message, position, header)) < 0 || header[0] != OBJECT_IDENTIFIER) {
+                return EMPTY_OID;
+            }
+            int[] enterprise = readOid(message, position, header[1]);
+            position += header[1];
+            if ((position = readHeader(message, position, header)) < 0) {
+                return EMPTY_OID;
+            }
+            position += header[1];
+            if ((position = readHeader(message, position, header)) < 0 || header[0] != INTEGER) {
+                return EMPTY_OID;
+            }
+            int generic = (int) readInteger(message, position, header[1]);
+            position += header[1];
+            if ((position = readHeader(message, position, header)) < 0 || header[0] != INTEGER) {
+                return EMPTY_OID;
+            }
+            int specific = (int) readInteger(message, position, header[1]);
+            if (generic == PDUv1.ENTERPRISE_SPECIFIC) {
+                int[] oid = Arrays.copyOf(enterprise, enterprise.length + 2);
+                oid[enterprise.length + 1] = specific;
+                return oid;
+            }
+            int[] oid = Arrays.copyOf(SNMP_TRAPS, SNMP_TRAPS.length + 1);
+            oid[SNMP_TRAPS.length] = generic + 1;
+            return oid;
+        }
+        if (pduType != V2_TRAP && pduType != INFORM) {
+            return EMPTY_OID;
+        }
+        // request-id, error-status, error-index, variable bindings
+        for (int i = 0; i < 3; i++) {
+            if ((position = readHeader(message, position, header)) < 0) {
+                return EMPTY_OID;
+            }
+            position += header[1];
+        }
+        if ((position = readHeader(message, position, header)) < 0 || header[0] != SEQUENCE) {
+            return EMPTY_OID;
+        }
+        int end = Math.min(limit, position + header[1]);
+        while (position < end) {
+            if ((position = readHeader(message, position, header)) < 0 || header[0] != SEQUENCE) {
+                return EMPTY_OID;
+            }
+            int next = position + header[1];
+            if ((position = readHeader(message, position, header)) < 0 || header[0] != OBJECT_IDENTIFIER) {
+                return EMPTY_OID;
+            }
+            if (isOid(message, position, header[1], SNMP_TRAP_OID)) {
+                position += header[1];
+                if ((position = readHeader(message, position, header)) < 0 || header[0] != OBJECT_IDENTIFIER) {
+                    return EMPTY_OID;
+                }
+                return readOid(message, position, header[1]);
+            }
+            position = next;
+        }
+        return EMPTY_OID;
+    }
+
+    /**
+     * Reads the tag and the length of a BER element
+     *
+     * @param header gets the tag and the length
+     * @return position of the content, -1 for lengths this doesn't read
+     */
+    static int readHeader(ByteBuffer message, int position, int[] header) {
+        header[0] = message.get(position++) & 0xFF;
+        int length = message.get(position++) & 0xFF;
+        if ((length & 0x80) != 0) {
+            int bytes = length & 0x7F;
+            if (bytes == 0 || bytes > 3) {
+                return -1;
+            }
+            length = 0;
+            for (int i = 0; i < bytes; i++) {
+                length = (length << 8) | (message.get(position++) & 0xFF);
+            }
+        }
+        header[1] = length;
+        return position;
+    }
+
+    static long readInteger(ByteBuffer message, int position, int length) {
+        long value = message.get(position);
+        for (int i = 1; i < length && i < 8; i++) {
+            value = (value << 8) | (message.get(position + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private static int[] readOid(ByteBuffer message, int position, int length) {
+        int[] arcs = new int[length + 1];
+        int count = 0;
+        int end = position + length;
+        long arc = 0;
+        while (position < end) {
+            int b = message.get(position++);
+            arc = (arc << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                if (count == 0) {
+                    // the first subidentifier holds the first two arcs
+                    int first = arc < 80 ? (int) arc / 40 : 2;
+                    arcs[count++] = first;
+                    arcs[count++] = (int) (arc - first * 40);
+                } else {
+                    arcs[count++] = (int) arc;
+                }
+                arc = 0;
+            }
+        }
+        return Arrays.copyOf(arcs, count);
+    }
+
+    private static boolean isOid(ByteBuffer message, int position, int length, int[] oid) {
+        return Arrays.equals(readOid(message, position, length), oid);
+    }
+
+    /**
+     * The trap OID of SNMPv2 notifications is the value of snmpTrapOID.0, SNMPv1 traps are mapped like RFC 3584
+     * does it.
+     */
+    static int[] trapOid(PDU pdu) {
+        if (pdu instanceof PDUv1) {
+            PDUv1 v1 = (PDUv1) pdu;
+            if (v1.getGenericTrap() == PDUv1.ENTERPRISE_SPECIFIC) {
+                int[] enterprise = v1.getEnterprise().getValue();
+                int[] oid = new int[enterprise.length + 2];
+                System.arraycopy(enterprise, 0, oid, 0, enterprise.length);
+                oid[enterprise.length + 1] = v1.getSpecificTrap();
+                return oid;
+            }
+            int[] oid = new int[SNMP_TRAPS.length + 1];
+            System.arraycopy(SNMP_TRAPS, 0, oid, 0, SNMP_TRAPS.length);
+            oid[SNMP_TRAPS.length] = v1.getGenericTrap() + 1;
+            return oid;
+        }
+        if (pdu != null) {
+            Vector<? extends VariableBinding> variableBindings = pdu.getVariableBindings();
+            for (int i = 0; i < variableBindings.size(); i++) {
+                VariableBinding vb = variableBindings.get(i);
+                Variable value = vb.getVariable();
+                if (value instanceof OID && SnmpConstants.snmpTrapOID.equals(vb.getOid())) {
+                    return ((OID) value).getValue();
+                }
+            }
+        }
+        return EMPTY_OID;
+    }
+
+    static byte[] address(Address address) {
+        // UdpAddress and TcpAddress are IpAddresses, too
+        if (address instanceof IpAddress) {
+            return ((IpAddress) address).getInetAddress().getAddress();
+        }
+        return EMPTY_ADDRESS;
+    }
+
+    /**
+     * @param slot subscription slot of a session
+     * @return true if the session was subscribed to this trap when it was published
+     */
+    public boolean isRecipient(int slot) {
+        long[] bits = recipients;
+        int word = slot >>> 6;
+        return bits != null && word < bits.length && (bits[word] & (1L << slot)) != 0;
+    }
+
+    public int[] getOid() {
+        return oid;
+    }
+
+    public byte[] getAddress() {
+        return address;
+    }
+}
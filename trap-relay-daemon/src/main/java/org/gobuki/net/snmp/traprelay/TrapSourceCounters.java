@@ -0,0 +1,122 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Number of traps received per source address.
+ *
+ * A fixed size open addressing table. The keys are the address arrays of the TrapRoutes (never modified), a new
+ * source claims its slot with a compare and set, so counting is lock-free and doesn't allocate. Sources which
+ * don't fit into the table any more are counted together as "other".
+ *
+ * Rates are computed by sample(), called periodically by a single thread.
+ */
+public class TrapSourceCounters {
+
+    final AtomicReferenceArray<byte[]> addresses;
+    final AtomicLongArray counts;
+    final int mask;
+
+    // traps of sources which didn't fit into the table, or without IP address
+    final AtomicLong other = new AtomicLong();
+
+    // written by sample() only
+    long[] sampledCounts;
+    double[] rates;
+    long sampledAt;
+
+    /**
+     * @param capacity maximum number of sources counted separately, rounded up to a power of two
+     */
+    public TrapSourceCounters(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        addresses = new AtomicReferenceArray<byte[]>(size);
+        counts = new AtomicLongArray(size);
+        mask = size - 1;
+        sampledCounts = new long[size];
+        rates = new double[size];
+        sampledAt = System.nanoTime();
+    }
+
+    /**
+     * @param address source address of a trap, 4 or 16 bytes. The array is kept, it must not be modified.
+     */
+    public void count(byte[] address) {
+        if (address.length == 0) {
+            other.incrementAndGet();
+            return;
+        }
+        int slot = Arrays.hashCode(address) & mask;
+        for (int probe = 0; probe <= mask; probe++) {
+            byte[] key = addresses.get(slot);
+            if (key == null) {
+                if (!addresses.compareAndSet(slot, null, address)) {
+                    // claimed by another thread in the meantime, look at it again
+                    probe--;
+                    continue;
+                }
+                key = address;
+            }
+            if (key == address || Arrays.equals(key, address)) {
+                counts.incrementAndGet(slot);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        other.incrementAndGet();
+    }
+
+    /**
+     * Updates the rates with the traps counted since the previous sample
+     */
+    synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - sampledAt) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        for (int i = 0; i <= mask; i++) {
+            long count = counts.get(i);
+            rates[i] = (count - sampledCounts[i]) / seconds;
+            sampledCounts[i] = count;
+        }
+        sampledAt = now;
+    }
+
+    /**
+     * @return "address count rate/s" of each source, in no particular order
+     */
+    public synchronized List<String> describe() {
+        List<String> sources = new ArrayList<String>();
+        for (int i = 0; i <= mask; i++) {
+            byte[] address = addresses.get(i);
+            if (address != null) {
+                sources.add(format(address) + " " + counts.get(i) + " " + String.format(Locale.ROOT, "%.1f/s", rates[i]));
+            }
+        }
+        if (other.get() > 0) {
+            sources.add("other " + other.get());
+        }
+        return sources;
+    }
+
+    private static String format(byte[] address) {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            return Arrays.toString(address);
+        }
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,314 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.VariableBinding;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+/**
+ * Suppresses trap storms, e.g. of a flapping link: of identical traps received within suppressionWindowMillis only
+ * the first one is relayed. When the window is over, the duplicates are relayed as one summary, a copy of the
+ * first trap with three more variables:
+ *
+ *   1.3.6.1.4.1.8072.9999.9999.2.1   number of duplicates suppressed (Gauge32)
+ *   1.3.6.1.4.1.8072.9999.9999.2.2   time the first trap was received, yyyy-MM-dd'T'HH:mm:ss.SSSZ
+ *   1.3.6.1.4.1.8072.9999.9999.2.3   time the last duplicate was received
+ *
+ * Traps are identical if they come from the same address, have the same trap OID and the same values of the
+ * variables selected by suppressionVarbinds (OID prefixes separated by spaces or commas, default all variables
+ * but sysUpTime.0).
+ *
+ * The windows are kept in an open addressing hash table of suppressionMaxEntries entries, allocated up front.
+ * When it is full, traps of new kinds are relayed without suppression until windows end.
+ *
+ * A summary is relayed before the next trap of its kind if that ends the window. Otherwise a timer ends the window,
+ * and the summary is relayed on the shard of its agent, so it still follows the agent's traps received before.
+ */
+public class TrapSuppressor {
+
+    // NET-SNMP-MIB::netSnmpPlaypen.2
+    static final OID SUPPRESSED_COUNT = new OID("1.3.6.1.4.1.8072.9999.9999.2.1");
+    static final OID FIRST_SEEN = new OID("1.3.6.1.4.1.8072.9999.9999.2.2");
+    static final OID LAST_SEEN = new OID("1.3.6.1.4.1.8072.9999.9999.2.3");
+
+    // a window of traps of one kind
+    static class Window {
+        long fingerprint;
+        TrapRoute route;
+        // the relayed trap, compared with the following ones and copied for the summary
+        CommandResponderEvent first;
+        // System.nanoTime() when the window ends
+        long end;
+        // System.currentTimeMillis()
+        long firstSeen;
+        long lastSeen;
+        long duplicates;
+    }
+
+    final long windowNanos;
+
+    // variables compared, null for all but sysUpTime.0
+    final OID[] varbindPrefixes;
+
+    final int maxEntries;
+    final Window[] table;
+    final int mask;
+    int size;
+
+    // gets the summaries
+    final TrapEventHandler summaryHandler;
+
+    Timer timer;
+
+    // runs the summaries of the timer on the agents' shards, null to relay them on the timer thread
+    TrapListener trapListener;
+
+    /**
+     * @param config
+     * @param summaryHandler relays the summaries
+     */
+    public TrapSuppressor(TrapRelayConfig config, TrapEventHandler summaryHandler) {
+        this.windowNanos = config.getLong("suppressionWindowMillis", 0) * 1000000L;
+        this.summaryHandler = summaryHandler;
+        String varbinds = config.getString("suppressionVarbinds", "");
+        if (varbinds.isEmpty()) {
+            varbindPrefixes = null;
+        } else {
+            String[] oids = varbinds.split("[\\s,]+");
+            varbindPrefixes = new OID[oids.length];
+            for (int i = 0; i < oids.length; i++) {
+                varbindPrefixes[i] = new OID(oids[i]);
+            }
+        }
+        maxEntries = Math.max(1, config.getInt("suppressionMaxEntries", 4096));
+        // at most half full, probe sequences stay short
+        int capacity = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+        table = new Window[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return false if suppressionWindowMillis is 0, all traps are relayed then
+     */
+    public boolean isEnabled() {
+        return windowNanos > 0;
+    }
+
+    /**
+     * Starts ending the windows which are over, a few times per window
+     *
+     * @param trapListener relays the summaries in order with the traps of their agent
+     */
+    public void start(TrapListener trapListener) {
+        this.trapListener = trapListener;
+        long period = Math.max(10, windowNanos / 1000000L / 4);
+        timer = new Timer("Trap Suppression", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                expire(System.nanoTime());
+            }
+        }, period, period);
+    }
+
+    /**
+     * Decides if a received trap is relayed. If it is the first of a kind after a window with duplicates, the
+     * summary of that window is relayed before.
+     *
+     * @param event the received trap
+     * @param route its route
+     * @param now System.nanoTime()
+     * @return true to relay the trap, false if it was counted as duplicate
+     */
+    public boolean admit(CommandResponderEvent event, TrapRoute route, long now) {
+        long fingerprint = fingerprint(event, route);
+        CommandResponderEvent summary = null;
+        synchronized (this) {
+            int i = (int) fingerprint & mask;
+            Window window;
+            while ((window = table[i]) != null
+                    && (window.fingerprint != fingerprint || !isDuplicate(window, event, route))) {
+                i = (i + 1) & mask;
+            }
+            if (window == null) {
+                if (size >= maxEntries) {
+                    return true;
+                }
+                window = new Window();
+                open(window, fingerprint, event, route, now);
+                table[i] = window;
+                size++;
+            } else if (now - window.end < 0) {
+                window.duplicates++;
+                window.lastSeen = System.currentTimeMillis();
+                return false;
+            } else {
+                // the window is over, this trap starts the next one
+                summary = summarize(window);
+                open(window, fingerprint, event, route, now);
+            }
+        }
+        if (summary != null) {
+            summaryHandler.handleTrapEvent(summary);
+        }
+        return true;
+    }
+
+    private void open(Window window, long fingerprint, CommandResponderEvent event, TrapRoute route, long now) {
+        window.fingerprint = fingerprint;
+        window.route = route;
+        window.first = event;
+        window.end = now + windowNanos;
+        window.firstSeen = System.currentTimeMillis();
+        window.lastSeen = window.firstSeen;
+        window.duplicates = 0;
+    }
+
+    /**
+     * Removes the windows which are over and relays their summaries
+     *
+     * @param now System.nanoTime()
+     */
+    void expire(long now) {
+        List<CommandResponderEvent> summaries = new ArrayList<CommandResponderEvent>();
+        synchronized (this) {
+            int i = 0;
+            while (i < table.length) {
+                Window window = table[i];
+                if (window == null || now - window.end < 0) {
+                    i++;
+                    continue;
+                }
+                CommandResponderEvent summary = summarize(window);
+                if (summary != null) {
+                    summaries.add(summary);
+                }
+                // an entry of the same probe sequence may move here, look at this slot again
+                remove(i);
+            }
+        }
+        for (final CommandResponderEvent summary : summaries) {
+            if (trapListener == null) {
+                summaryHandler.handleTrapEvent(summary);
+                continue;
+            }
+            trapListener.executeInOrder(summary.getPeerAddress(), new Runnable() {
+                @Override
+                public void run() {
+                    summaryHandler.handleTrapEvent(summary);
+                }
+            });
+        }
+    }
+
+    /**
+     * Empties a slot and moves following entries of the probe sequence back, so no sequence is broken
+     */
+    private void remove(int slot) {
+        table[slot] = null;
+        size--;
+        int empty = slot;
+        for (int i = (slot + 1) & mask; table[i] != null; i = (i + 1) & mask) {
+            int home = (int) table[i].fingerprint & mask;
+            // move the entry if its home slot isn't cyclically within (empty, i]
+            if (((i - home) & mask) >= ((i - empty) & mask)) {
+                table[empty] = table[i];
+                table[i] = null;
+                empty = i;
+            }
+        }
+    }
+
+    /**
+     * @return the summary of a window, null if there were no duplicates
+     */
+    private CommandResponderEvent summarize(Window window) {
+        if (window.duplicates == 0) {
+            return null;
+        }
+        PDU pdu = (PDU) window.first.getPDU().clone();
+        pdu.add(new VariableBinding(SUPPRESSED_COUNT, new Gauge32(Math.min(window.duplicates, 0xffffffffL))));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        pdu.add(new VariableBinding(FIRST_SEEN, new OctetString(format.format(new Date(window.firstSeen)))));
+        pdu.add(new VariableBinding(LAST_SEEN, new OctetString(format.format(new Date(window.lastSeen)))));
+        CommandResponderEvent summary = new CommandResponderEvent(this, window.first);
+        summary.setPDU(pdu);
+        return summary;
+    }
+
+    /**
+     * @return a hash of what makes traps identical
+     */
+    long fingerprint(CommandResponderEvent event, TrapRoute route) {
+        long hash = Arrays.hashCode(route.getAddress());
+        hash = hash * 31 + Arrays.hashCode(route.getOid());
+        Vector<? extends VariableBinding> variables = event.getPDU().getVariableBindings();
+        for (int i = 0; i < variables.size(); i++) {
+            VariableBinding variable = variables.get(i);
+            if (isCompared(variable.getOid())) {
+                hash = hash * 31 + variable.getOid().hashCode();
+                hash = hash * 31 + variable.getVariable().hashCode();
+            }
+        }
+        // spread the bits, the table index uses the lowest
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private boolean isDuplicate(Window window, CommandResponderEvent event, TrapRoute route) {
+        if (!Arrays.equals(window.route.getAddress(), route.getAddress())
+                || !Arrays.equals(window.route.getOid(), route.getOid())) {
+            return false;
+        }
+        Vector<? extends VariableBinding> first = window.first.getPDU().getVariableBindings();
+        Vector<? extends VariableBinding> variables = event.getPDU().getVariableBindings();
+        int j = 0;
+        for (int i = 0; i < variables.size(); i++) {
+            VariableBinding variable = variables.get(i);
+            if (!isCompared(variable.getOid())) {
+                continue;
+            }
+            while (j < first.size() && !isCompared(first.get(j).getOid())) {
+                j++;
+            }
+            if (j == first.size() || !variable.equals(first.get(j))) {
+                return false;
+            }
+            j++;
+        }
+        while (j < first.size() && !isCompared(first.get(j).getOid())) {
+            j++;
+        }
+        return j == first.size();
+    }
+
+    private boolean isCompared(OID oid) {
+        if (varbindPrefixes == null) {
+            return !SnmpConstants.sysUpTime.equals(oid);
+        }
+        for (OID prefix : varbindPrefixes) {
+            if (oid.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getWindowMillis() {
+        return windowNanos / 1000000L;
+    }
+}
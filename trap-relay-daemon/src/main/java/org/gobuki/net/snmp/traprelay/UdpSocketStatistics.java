@@ -0,0 +1,111 @@
+package org.gobuki.net.snmp.traprelay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kernel statistics of the UDP sockets bound to a port, read from /proc/net/udp and /proc/net/udp6 (Linux only).
+ *
+ * The drops column counts datagrams the kernel discarded because the socket's receive buffer was full. Those
+ * traps never reach the daemon, so this is the number to size udpSockets and udpReceiveBufferSize against.
+ */
+public class UdpSocketStatistics {
+
+    static final String[] PROC_FILES = {"/proc/net/udp", "/proc/net/udp6"};
+
+    final long inode;
+
+    // bytes waiting in the receive buffer
+    final long receiveQueue;
+
+    final long drops;
+
+    public UdpSocketStatistics(long inode, long receiveQueue, long drops) {
+        this.inode = inode;
+        this.receiveQueue = receiveQueue;
+        this.drops = drops;
+    }
+
+    /**
+     * @param port local port
+     * @return statistics of all sockets bound to the port, empty if /proc/net isn't available
+     */
+    public static List<UdpSocketStatistics> read(int port) {
+        List<UdpSocketStatistics> statistics = new ArrayList<UdpSocketStatistics>();
+        for (String procFile : PROC_FILES) {
+            if (!new File(procFile).canRead()) {
+                continue;
+            }
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(procFile));
+                try {
+                    // header: sl local_address rem_address st tx_queue:rx_queue tr tm->when retrnsmt uid timeout inode ref pointer drops
+                    String line = reader.readLine();
+                    while ((line = reader.readLine()) != null) {
+                        UdpSocketStatistics socket = parse(line, port);
+                        if (socket != null) {
+                            statistics.add(socket);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // the socket table isn't essential
+            }
+        }
+        return statistics;
+    }
+
+    static UdpSocketStatistics parse(String line, int port) {
+        String[] columns = line.trim().split("\\s+");
+        if (columns.length < 13) {
+            return null;
+        }
+        String localAddress = columns[1];
+        int colon = localAddress.lastIndexOf(':');
+        try {
+            if (colon == -1 || Integer.parseInt(localAddress.substring(colon + 1), 16) != port) {
+                return null;
+            }
+            String queues = columns[4];
+            long receiveQueue = Long.parseLong(queues.substring(queues.indexOf(':') + 1), 16);
+            return new UdpSocketStatistics(Long.parseLong(columns[9]), receiveQueue, Long.parseLong(columns[12]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param port
+     * @return the sum of the drops of all sockets bound to the port
+     */
+    public static long totalDrops(int port) {
+        long drops = 0;
+        for (UdpSocketStatistics socket : read(port)) {
+            drops += socket.drops;
+        }
+        return drops;
+    }
+
+    public long getInode() {
+        return inode;
+    }
+
+    public long getReceiveQueue() {
+        return receiveQueue;
+    }
+
+    public long getDrops() {
+        return drops;
+    }
+
+    @Override
+    public String toString() {
+        return "socket " + inode + ": " + drops + " datagrams dropped, " + receiveQueue + " bytes queued";
+    }
+}
@@ -0,0 +1,136 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.security.SecurityModel;
+import org.snmp4j.smi.*;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExpressionIndexTest {
+
+    static final String OPER_STATUS = "1.3.6.1.2.1.2.2.1.8";
+
+    static final String DESCRIPTION = "1.3.6.1.2.1.2.2.1.2";
+
+    static CommandResponderEvent trap(VariableBinding... variables) {
+        PDU pdu = new PDU();
+        pdu.setType(PDU.NOTIFICATION);
+        pdu.addAll(variables);
+        return new CommandResponderEvent(new MessageDispatcherImpl(), null, new UdpAddress("10.1.2.3/161"),
+                MPv2c.ID, SecurityModel.SECURITY_MODEL_SNMPv2c, "public".getBytes(), SecurityLevel.NOAUTH_NOPRIV,
+                null, pdu, 65535, null);
+    }
+
+    static CommandResponderEvent linkDown(int ifIndex, String description) {
+        return trap(new VariableBinding(new OID(OPER_STATUS + "." + ifIndex), new Integer32(2)),
+                new VariableBinding(new OID(DESCRIPTION + "." + ifIndex), new OctetString(description)));
+    }
+
+    static FilterExpression expression(String source) throws ProtocolException {
+        return FilterExpression.parse(source);
+    }
+
+    /**
+     * @return per slot whether the trap satisfies the slot's expression
+     */
+    static boolean[] evaluate(ExpressionIndex.Evaluation evaluation, CommandResponderEvent event, int slots) {
+        evaluation.begin(event);
+        boolean[] matches = new boolean[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            matches[slot] = evaluation.matches(slot);
+        }
+        return matches;
+    }
+
+    @Test
+    public void evaluatesTheExpressionOfEachSlot() throws Exception {
+        ExpressionIndex index = new ExpressionIndex();
+        index.add(0, expression("$" + OPER_STATUS + " == 2"));
+        index.add(1, expression("$" + DESCRIPTION + " =~ \"^Gi\" && $" + OPER_STATUS + " != 1"));
+        index.add(2, null);
+        index.add(3, expression("$" + DESCRIPTION + " > \"M\" || $1.3.6.1.4.1.9 == 1"));
+        index.add(4, expression("!($1.3.6.1.4.1.9 == 1)"));
+        index.add(5, expression("$" + OPER_STATUS + " < 10 && $" + OPER_STATUS + " >= 2"));
+        ExpressionIndex.Evaluation evaluation = index.newEvaluation();
+
+        assertEquals("[true, true, true, false, true, true]",
+                Arrays.toString(evaluate(evaluation, linkDown(1, "GigabitEthernet0/1"), 6)));
+        assertEquals("[true, false, true, true, true, true]",
+                Arrays.toString(evaluate(evaluation, linkDown(2, "Vlan10"), 6)));
+        // a comparison with a variable the trap doesn't have is false, also when negated
+        assertEquals("[false, false, true, false, true, false]", Arrays.toString(evaluate(evaluation, trap(), 6)));
+        // slots beyond the expressions have none
+        assertTrue(evaluation.matches(100));
+    }
+
+    @Test
+    public void sharesEqualSubExpressions() throws Exception {
+        ExpressionIndex index = new ExpressionIndex();
+        index.add(0, expression("$" + OPER_STATUS + " == 2"));
+        // the reference, the literal and the comparison
+        assertEquals(3, index.size());
+        index.add(1, expression("$" + OPER_STATUS + "==2"));
+        assertEquals(3, index.size());
+        index.add(2, expression("$" + OPER_STATUS + " == 2 && $" + DESCRIPTION + " =~ \"^Gi\""));
+        assertEquals(7, index.size());
+        index.remove(0);
+        assertEquals(7, index.size());
+        index.remove(2);
+        assertEquals(3, index.size());
+        index.remove(1);
+        assertEquals(0, index.size());
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void reusesTheIdsOfRemovedNodes() throws Exception {
+        ExpressionIndex index = new ExpressionIndex();
+        ExpressionIndex.Evaluation evaluation = index.newEvaluation();
+        index.add(0, expression("$" + OPER_STATUS + " == 1"));
+        assertFalse(evaluate(evaluation, linkDown(1, "Gi0/1"), 1)[0]);
+        index.remove(0);
+        index.add(0, expression("$" + DESCRIPTION + " == \"Gi0/1\""));
+        assertEquals(3, index.nextId);
+        // the results of the removed nodes are from the previous trap
+        assertTrue(evaluate(evaluation, linkDown(1, "Gi0/1"), 1)[0]);
+    }
+
+    @Test
+    public void searchesOnlyTheBeginningOfLongValues() throws Exception {
+        ExpressionIndex index = new ExpressionIndex();
+        index.add(0, expression("$" + DESCRIPTION + " =~ \"x\""));
+        ExpressionIndex.Evaluation evaluation = index.newEvaluation();
+        char[] text = new char[FilterExpression.MAX_MATCHED_LENGTH];
+        Arrays.fill(text, 'a');
+        assertFalse(evaluate(evaluation, linkDown(1, new String(text) + "x"), 1)[0]);
+        text[text.length - 1] = 'x';
+        assertTrue(evaluate(evaluation, linkDown(1, new String(text)), 1)[0]);
+    }
+
+    @Test
+    public void growsTheEvaluationWithTheIndex() throws Exception {
+        ExpressionIndex index = new ExpressionIndex();
+        ExpressionIndex.Evaluation evaluation = index.newEvaluation();
+        for (int slot = 0; slot < 100; slot++) {
+            index.add(slot, expression("$" + OPER_STATUS + "." + slot + " == 2"));
+        }
+        boolean[] matches = evaluate(evaluation, linkDown(42, "Gi0/42"), 100);
+        for (int slot = 0; slot < 100; slot++) {
+            assertEquals(slot == 42, matches[slot]);
+        }
+        // the overflowed epoch starts the marks over
+        evaluation.epoch = -1;
+        assertFalse(evaluate(evaluation, linkDown(7, "Gi0/7"), 100)[42]);
+        assertTrue(evaluation.matches(7));
+    }
+}
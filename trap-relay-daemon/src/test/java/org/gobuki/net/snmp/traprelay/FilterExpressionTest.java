@@ -0,0 +1,73 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FilterExpressionTest {
+
+    static void assertRejected(String source) {
+        try {
+            FilterExpression.parse(source);
+            fail("accepted " + source);
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void compilesToACanonicalTree() throws Exception {
+        FilterExpression expression = FilterExpression.parse(
+                " $1.3.6.1.2.1.2.2.1.8==2&&($1.3.6.1.4.1.9 =~ \"^LINK \\\"x\\\"\" || !($.1.3.6.1.2 < 4))");
+        assertEquals("(($1.3.6.1.2.1.2.2.1.8 == 2) && (($1.3.6.1.4.1.9 =~ \"^LINK \\\"x\\\"\")"
+                + " || !($1.3.6.1.2 < 4)))", expression.root.toString());
+    }
+
+    @Test
+    public void acceptsArcsUpToTheUnsigned32BitMaximum() throws Exception {
+        assertEquals("($1.3.4294967295 == 1)", FilterExpression.parse("$1.3.4294967295 == 1").root.toString());
+    }
+
+    @Test
+    public void rejectsMalformedExpressions() {
+        assertRejected("");
+        assertRejected("$1.3.6.1");
+        assertRejected("$1.3.6.1 == ");
+        assertRejected("$1.3.6.1 == 2 &&");
+        assertRejected("($1.3.6.1 == 2");
+        assertRejected("$1.3.6.1 == 2)");
+        assertRejected("$1.3.6.1 = 2");
+        assertRejected("$1.3.99999999999999999999 == 1");
+        assertRejected("$1.3.4294967296 == 1");
+        assertRejected("1 != 2");
+        assertRejected("$1.3.6.1 == \"open");
+        assertRejected("$1.3.6.1 =~ 2");
+        assertRejected("$1.3.6.1 =~ \"[\"");
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i <= FilterExpression.MAX_DEPTH; i++) {
+            deep.append('(');
+        }
+        assertRejected(deep.append("$1.3.6.1 == 2").toString());
+    }
+
+    @Test
+    public void rejectsPatternsWithNestedQuantifiers() {
+        assertRejected("$1.3.6.1 =~ \"(a+)+$\"");
+        assertRejected("$1.3.6.1 =~ \"^(\\\\w*,){3}x\"");
+        assertRejected("$1.3.6.1 =~ \"((ab)*c)*\"");
+        assertRejected("$1.3.6.1 =~ \"(?:x(a|b{2,})y)+\"");
+        assertTrue(FilterExpression.hasNestedQuantifier("((a+))*"));
+
+        assertFalse(FilterExpression.hasNestedQuantifier("(a+)?b"));
+        assertFalse(FilterExpression.hasNestedQuantifier("(ab)+c*"));
+        assertFalse(FilterExpression.hasNestedQuantifier("(a{1,3})+"));
+        assertFalse(FilterExpression.hasNestedQuantifier("(\\(+)x+"));
+        assertFalse(FilterExpression.hasNestedQuantifier("([)+]x)*"));
+        assertFalse(FilterExpression.hasNestedQuantifier("([]a+)]b)*"));
+    }
+}
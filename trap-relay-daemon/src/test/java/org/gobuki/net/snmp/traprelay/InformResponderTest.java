@@ -0,0 +1,243 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.ScopedPDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.UserTarget;
+import org.snmp4j.asn1.BER;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.CounterSupport;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.*;
+import org.snmp4j.smi.*;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class InformResponderTest {
+
+    static final OctetString USER = new OctetString("informer");
+
+    static final OctetString PASSPHRASE = new OctetString("informer-passphrase");
+
+    /**
+     * @return the BER encoding of an SNMPv2c message
+     */
+    static byte[] v2cMessage(int type, int requestId, int errorStatus) throws IOException {
+        PDU pdu = new PDU();
+        pdu.setType(type);
+        pdu.setRequestID(new Integer32(requestId));
+        pdu.setErrorStatus(errorStatus);
+        pdu.setErrorIndex(errorStatus > 0 ? 1 : 0);
+        pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(100)));
+        pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID("1.3.6.1.6.3.1.1.5.3")));
+        Integer32 version = new Integer32(SnmpConstants.version2c);
+        OctetString community = new OctetString("public");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BER.encodeHeader(out, BER.SEQUENCE, version.getBERLength() + community.getBERLength() + pdu.getBERLength());
+        version.encodeBER(out);
+        community.encodeBER(out);
+        pdu.encodeBER(out);
+        return out.toByteArray();
+    }
+
+    static byte[] v2cInform(int requestId) throws IOException {
+        return v2cMessage(PDU.INFORM, requestId, 0);
+    }
+
+    /**
+     * @return the first datagram the agent receives, null if none within a second
+     */
+    static byte[] receive(DatagramSocket agent) throws IOException {
+        byte[] buffer = new byte[65535];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        agent.setSoTimeout(1000);
+        try {
+            agent.receive(packet);
+        } catch (java.net.SocketTimeoutException e) {
+            return null;
+        }
+        return Arrays.copyOf(buffer, packet.getLength());
+    }
+
+    static UdpAddress addressOf(DatagramSocket agent) {
+        return new UdpAddress(agent.getLocalAddress(), agent.getLocalPort());
+    }
+
+    @Test
+    public void findsThePduOfAnSnmpV2cInform() throws IOException {
+        byte[] message = v2cMessage(PDU.INFORM, 1234567, 5);
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        int[] pdu = new int[6];
+        assertTrue(InformResponder.findInform(buffer, 0, pdu, new int[2]));
+        assertEquals((byte) PDU.INFORM, message[pdu[0]]);
+        assertEquals(1234567, pdu[1]);
+        assertEquals(1, pdu[3]);
+        assertEquals(5, message[pdu[2]]);
+        assertEquals(1, message[pdu[4]]);
+
+        assertFalse(InformResponder.findInform(ByteBuffer.wrap(v2cMessage(PDU.NOTIFICATION, 1, 0)), 0, pdu,
+                new int[2]));
+        byte[] v1 = v2cInform(1);
+        // the version of SNMPv1 is 0
+        v1[4] = 0;
+        assertFalse(InformResponder.findInform(ByteBuffer.wrap(v1), 0, pdu, new int[2]));
+        // truncated
+        assertFalse(new InformResponder(new TrapRelayConfig()).isInform(ByteBuffer.wrap(message, 0, 20).slice()));
+    }
+
+    @Test
+    public void answersWithTheInformAsResponse() throws IOException {
+        InformResponder responder = new InformResponder(new TrapRelayConfig());
+        DatagramSocket agent = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping(new UdpAddress("127.0.0.1/0"));
+        try {
+            // the message starts within the buffer
+            byte[] inform = v2cMessage(PDU.INFORM, 42, 5);
+            ByteBuffer buffer = ByteBuffer.allocate(inform.length + 3);
+            buffer.position(3);
+            buffer.put(inform).position(3);
+            assertTrue(responder.admit(transport, addressOf(agent), buffer, null));
+            assertEquals(3, buffer.position());
+            assertArrayEquals(v2cMessage(PDU.RESPONSE, 42, 0), receive(agent));
+
+            // a retransmission is answered again, but not relayed
+            buffer.position(3);
+            assertFalse(responder.admit(transport, addressOf(agent), buffer, null));
+            assertArrayEquals(v2cMessage(PDU.RESPONSE, 42, 0), receive(agent));
+            assertEquals(2, responder.getResponses());
+            assertEquals(1, responder.getRetransmits());
+
+            // other messages are passed on without response
+            assertTrue(responder.admit(transport, addressOf(agent),
+                    ByteBuffer.wrap(v2cMessage(PDU.NOTIFICATION, 43, 0)), null));
+            assertEquals(2, responder.getResponses());
+        } finally {
+            transport.close();
+            agent.close();
+        }
+    }
+
+    @Test
+    public void forgetsTheLastInform() throws IOException {
+        InformResponder responder = new InformResponder(new TrapRelayConfig());
+        UdpAddress agent = new UdpAddress("10.1.2.3/161");
+        for (int requestId = 1; requestId <= 2; requestId++) {
+            assertTrue(responder.isInform(ByteBuffer.wrap(v2cInform(requestId))));
+            assertTrue(responder.isFirst(agent));
+        }
+        responder.forget(agent);
+        assertTrue(responder.isFirst(agent));
+        assertFalse(responder.isFirst(agent));
+        // only the last one is forgotten
+        assertTrue(responder.isInform(ByteBuffer.wrap(v2cInform(1))));
+        responder.forget(agent);
+        assertFalse(responder.isFirst(agent));
+    }
+
+    @Test
+    public void forgetsTheLastInformAfterTheRingWrapped() throws IOException {
+        TrapRelayConfig config = new TrapRelayConfig();
+        config.set("informRequestIds", "4");
+        InformResponder responder = new InformResponder(config);
+        UdpAddress agent = new UdpAddress("10.1.2.3/161");
+        for (int requestId = 1; requestId <= 6; requestId++) {
+            assertTrue(responder.isInform(ByteBuffer.wrap(v2cInform(requestId))));
+            assertTrue(responder.isFirst(agent));
+        }
+        responder.forget(agent);
+        // 6 was dropped by a full queue, its retransmission is relayed
+        assertTrue(responder.isInform(ByteBuffer.wrap(v2cInform(6))));
+        assertTrue(responder.isFirst(agent));
+        for (int requestId = 3; requestId <= 6; requestId++) {
+            assertTrue(responder.isInform(ByteBuffer.wrap(v2cInform(requestId))));
+            assertFalse("request " + requestId, responder.isFirst(agent));
+        }
+        // pushed out of the ring
+        assertTrue(responder.isInform(ByteBuffer.wrap(v2cInform(2))));
+        assertTrue(responder.isFirst(agent));
+    }
+
+    @Test
+    public void answersAnSnmpV3InformAndRelaysItOnce() throws Exception {
+        DatagramSocket probe = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        int port = probe.getLocalPort();
+        probe.close();
+        TrapRelayConfig config = new TrapRelayConfig();
+        config.set("dispatcherThreads", "1");
+        config.set("udpStatsIntervalSeconds", "0");
+        TrapListener listener = new TrapListener(config);
+        final List<CommandResponderEvent> relayed =
+                Collections.synchronizedList(new ArrayList<CommandResponderEvent>());
+        listener.addTrapEventHandler(new TrapEventHandler() {
+            @Override
+            public void handleTrapEvent(CommandResponderEvent event) {
+                relayed.add(event);
+            }
+        });
+        listener.run("udp:127.0.0.1/" + port);
+        listener.usm.addUser(USER, new UsmUser(USER, AuthSHA.ID, PASSPHRASE, PrivAES128.ID, PASSPHRASE));
+
+        // a USM of its own, the listener's is the global one; the receiver of an inform is authoritative
+        byte[] engineId = MPv3.createLocalEngineID(new OctetString("informer"));
+        USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(engineId), 0);
+        usm.addUser(USER, new UsmUser(USER, AuthSHA.ID, PASSPHRASE, PrivAES128.ID, PASSPHRASE));
+        MessageDispatcher dispatcher = new MessageDispatcherImpl();
+        dispatcher.addMessageProcessingModel(new MPv3(engineId, null, SecurityProtocols.getInstance(),
+                SecurityModels.getCollection(new SecurityModel[]{usm}), CounterSupport.getInstance()));
+        Snmp snmp = new Snmp(dispatcher, new DefaultUdpTransportMapping(new UdpAddress("127.0.0.1/0")));
+        try {
+            snmp.listen();
+            UserTarget target = new UserTarget();
+            target.setAddress(new UdpAddress("127.0.0.1/" + port));
+            target.setVersion(SnmpConstants.version3);
+            target.setSecurityLevel(SecurityLevel.AUTH_PRIV);
+            target.setSecurityName(USER);
+            target.setTimeout(5000);
+            target.setRetries(0);
+            ScopedPDU inform = new ScopedPDU();
+            inform.setType(PDU.INFORM);
+            inform.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(100)));
+            inform.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID("1.3.6.1.6.3.1.1.5.3")));
+
+            for (int i = 0; i < 2; i++) {
+                // the same request ID both times, the second one is a retransmission
+                inform.setRequestID(new Integer32(4711));
+                ResponseEvent event = snmp.send(inform, target);
+                assertNotNull("no response", event.getResponse());
+                assertEquals(PDU.RESPONSE, event.getResponse().getType());
+                assertEquals(4711, event.getResponse().getRequestID().toInt());
+            }
+            // counted after the response was sent
+            long deadline = System.currentTimeMillis() + 5000;
+            while (listener.informResponder.getRetransmits() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, relayed.size());
+            assertEquals(2, listener.informResponder.getResponses());
+            assertEquals(1, listener.informResponder.getRetransmits());
+        } finally {
+            snmp.close();
+        }
+    }
+}
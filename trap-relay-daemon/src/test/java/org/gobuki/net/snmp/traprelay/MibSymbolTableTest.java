@@ -0,0 +1,135 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+import org.snmp4j.smi.OID;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MibSymbolTableTest {
+
+    static MibSymbolTable table(int cacheSize, String... lines) throws IOException {
+        StringBuilder file = new StringBuilder();
+        for (String line : lines) {
+            file.append(line).append('\n');
+        }
+        MibSymbolTable table = new MibSymbolTable(cacheSize);
+        table.read(new BufferedReader(new StringReader(file.toString())));
+        return table;
+    }
+
+    static MibSymbolTable interfaces() throws IOException {
+        return table(16,
+                "# OID name [value=label ...]",
+                "",
+                "1.3.6.1.2.1.2.2.1 ifEntry",
+                "1.3.6.1.2.1.2.2.1.1 ifIndex",
+                "  1.3.6.1.2.1.2.2.1.8\tifOperStatus 3=testing 1=up 2=down  ",
+                "1.3.6.1.6.3.1.1.5.3 linkDown");
+    }
+
+    /**
+     * @return the name of the OID's symbol followed by the instance, null if unresolved
+     */
+    static String name(MibSymbolTable table, String oid) {
+        int[] arcs = new OID(oid).getValue();
+        MibSymbolTable.Match match = table.resolve(arcs);
+        if (!match.isResolved()) {
+            return null;
+        }
+        StringBuilder name = new StringBuilder(new String(table.getName(match.getSymbol()), ClientSession.UTF8));
+        for (int i = match.getLength(); i < arcs.length; i++) {
+            name.append('.').append(arcs[i] & 0xFFFFFFFFL);
+        }
+        return name.toString();
+    }
+
+    static String label(MibSymbolTable table, String oid, int value) {
+        MibSymbolTable.Match match = table.resolve(new OID(oid));
+        byte[] label = table.getLabel(match.getSymbol(), value);
+        return label != null ? new String(label, ClientSession.UTF8) : null;
+    }
+
+    @Test
+    public void resolvesToTheLongestPrefix() throws IOException {
+        MibSymbolTable table = interfaces();
+        assertEquals(4, table.size());
+        assertEquals("ifOperStatus.3", name(table, "1.3.6.1.2.1.2.2.1.8.3"));
+        assertEquals("ifOperStatus", name(table, "1.3.6.1.2.1.2.2.1.8"));
+        // no symbol of its own, the entry's is the longest
+        assertEquals("ifEntry.7.3", name(table, "1.3.6.1.2.1.2.2.1.7.3"));
+        assertEquals("linkDown", name(table, "1.3.6.1.6.3.1.1.5.3"));
+        assertEquals("ifIndex.4294967295", name(table, "1.3.6.1.2.1.2.2.1.1.4294967295"));
+        // inner nodes of the trie have no symbol
+        assertNull(name(table, "1.3.6.1.2.1.2.2"));
+        assertNull(name(table, "1.3.6.1.4.1.9"));
+        assertFalse(table.resolve(new int[0]).isResolved());
+    }
+
+    @Test
+    public void findsTheLabelsOfEnumeratedValues() throws IOException {
+        MibSymbolTable table = interfaces();
+        assertEquals("up", label(table, "1.3.6.1.2.1.2.2.1.8.3", 1));
+        assertEquals("down", label(table, "1.3.6.1.2.1.2.2.1.8.3", 2));
+        assertEquals("testing", label(table, "1.3.6.1.2.1.2.2.1.8.3", 3));
+        assertNull(label(table, "1.3.6.1.2.1.2.2.1.8.3", 4));
+        assertNull(label(table, "1.3.6.1.2.1.2.2.1.1.3", 1));
+    }
+
+    @Test
+    public void skipsMalformedLines() throws IOException {
+        MibSymbolTable table = table(16,
+                "1.3.x broken",
+                "1.3..6 broken",
+                "1.3.6.1.4.1.9",
+                "1.3.6.1.4.1.4294967296 tooLarge",
+                "1.3.6.1.4.1.2636 juniper 1up",
+                "1.3.6.1.4.1.8072 netSnmp x=up",
+                "1.3.6.1.4.1.9 ci\"sco\\");
+        assertEquals(3, table.size());
+        assertNull(name(table, "1.3.6.1.4.1.1.0"));
+        // the labels are invalid, the name is kept
+        assertEquals("juniper", name(table, "1.3.6.1.4.1.2636"));
+        assertNull(label(table, "1.3.6.1.4.1.2636", 1));
+        assertEquals("netSnmp", name(table, "1.3.6.1.4.1.8072"));
+        // JSON escaped
+        assertEquals("ci\\\"sco\\\\.1", name(table, "1.3.6.1.4.1.9.1"));
+    }
+
+    @Test
+    public void replacesTheSymbolOfTheSameOid() throws IOException {
+        MibSymbolTable table = table(16,
+                "1.3.6.1.2.1.2.2.1.8 ifOperStatus 1=up 2=down",
+                "1.3.6.1.2.1.2.2.1.8 operStatus");
+        assertEquals(1, table.size());
+        assertEquals("operStatus.3", name(table, "1.3.6.1.2.1.2.2.1.8.3"));
+        assertNull(label(table, "1.3.6.1.2.1.2.2.1.8.3", 1));
+    }
+
+    @Test
+    public void growsTheTrieAndCachesTheResolutions() throws IOException {
+        MibSymbolTable table = new MibSymbolTable(1);
+        StringBuilder file = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            file.append("1.3.6.1.4.1.").append(i).append(".1 enterprise").append(i).append('\n');
+        }
+        table.read(new BufferedReader(new StringReader(file.toString())));
+        assertEquals(5000, table.size());
+        for (int i = 0; i < 5000; i += 7) {
+            assertEquals("enterprise" + i + ".2", name(table, "1.3.6.1.4.1." + i + ".1.2"));
+        }
+        // a hit compares the arcs, a new array with the same arcs is found too
+        MibSymbolTable.Match match = table.resolve(new OID("1.3.6.1.4.1.42.1.3"));
+        assertSame(match, table.resolve(new OID("1.3.6.1.4.1.42.1.3")));
+        // the single entry is replaced by other OIDs
+        assertTrue(table.resolve(new OID("1.3.6.1.4.1.43.1.3")).isResolved());
+        assertEquals("enterprise42.3", name(table, "1.3.6.1.4.1.42.1.3"));
+    }
+}
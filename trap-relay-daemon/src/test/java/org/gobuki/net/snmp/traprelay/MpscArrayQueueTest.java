@@ -0,0 +1,75 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MpscArrayQueueTest {
+
+    @Test
+    public void takesTheElementsInOrderUntilFull() {
+        MpscArrayQueue<Integer> queue = new MpscArrayQueue<Integer>(3);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        // around the end of the array a few times
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.offer(round * 4 + i));
+            }
+            assertFalse(queue.offer(-1));
+            assertEquals(4, queue.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(round * 4 + i), queue.poll());
+            }
+            assertNull(queue.poll());
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void keepsTheOrderOfEachProducer() throws InterruptedException {
+        final int producers = 4;
+        final int elements = 200000;
+        final MpscArrayQueue<long[]> queue = new MpscArrayQueue<long[]>(64);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < elements; i++) {
+                        long[] element = {producer, i};
+                        while (!queue.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        int[] next = new int[producers];
+        for (int taken = 0; taken < producers * elements; ) {
+            long[] element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[(int) element[0]]++, element[1]);
+            taken++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+        for (int p = 0; p < producers; p++) {
+            assertEquals(elements, next[p]);
+        }
+    }
+}
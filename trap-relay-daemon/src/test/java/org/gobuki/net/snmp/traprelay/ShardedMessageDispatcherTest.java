@@ -0,0 +1,171 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.After;
+import org.junit.Test;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedMessageDispatcherTest {
+
+    ShardedMessageDispatcher dispatcher;
+
+    @After
+    public void stop() {
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void assignsAnAgentToOneShardWhateverThePort() {
+        for (int i = 0; i < 100; i++) {
+            assertEquals(ShardedMessageDispatcher.shardIndex(new UdpAddress("10.1.2." + i + "/161"), 4),
+                    ShardedMessageDispatcher.shardIndex(new UdpAddress("10.1.2." + i + "/50000"), 4));
+        }
+    }
+
+    @Test
+    public void runsTheTasksOfAnAgentInOrderOnItsShard() throws InterruptedException {
+        dispatcher = new ShardedMessageDispatcher(new MessageDispatcherImpl(), 4, 1024, null);
+        final UdpAddress agent = new UdpAddress("10.1.2.3/161");
+        final Thread shard = dispatcher.shards[ShardedMessageDispatcher.shardIndex(agent, 4)].thread;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            final int task = i;
+            assertTrue(dispatcher.execute(agent, new Runnable() {
+                @Override
+                public void run() {
+                    if (Thread.currentThread() == shard) {
+                        order.add(task);
+                    }
+                }
+            }));
+        }
+        dispatcher.execute(agent, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(100, order.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    @Test
+    public void refusesTasksWhenTheShardIsFull() throws InterruptedException {
+        dispatcher = new ShardedMessageDispatcher(new MessageDispatcherImpl(), 1, 2, null);
+        UdpAddress agent = new UdpAddress("10.1.2.3/161");
+        CountDownLatch release = fill(agent);
+        assertEquals(2, dispatcher.getQueued());
+        assertFalse(dispatcher.execute(agent, new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+        release.countDown();
+        drain(agent);
+        assertEquals(0, dispatcher.getQueued());
+    }
+
+    @Test
+    public void answersInformsOnlyOnceTheyAreQueued() throws Exception {
+        InformResponder responder = new InformResponder(new TrapRelayConfig());
+        dispatcher = new ShardedMessageDispatcher(new MessageDispatcherImpl(), 1, 2, responder);
+        DatagramSocket agent = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping(new UdpAddress("127.0.0.1/0"));
+        try {
+            UdpAddress source = InformResponderTest.addressOf(agent);
+            byte[] inform = InformResponderTest.v2cInform(42);
+            CountDownLatch release = fill(source);
+
+            dispatcher.processMessage(transport, source, ByteBuffer.wrap(inform), null);
+            assertEquals(1, dispatcher.getDropped());
+            assertNull(InformResponderTest.receive(agent));
+            assertEquals(0, responder.getResponses());
+
+            release.countDown();
+            drain(source);
+            // the agent's retransmission is relayed
+            dispatcher.processMessage(transport, source, ByteBuffer.wrap(inform), null);
+            assertNotNull(InformResponderTest.receive(agent));
+            assertEquals(1, responder.getResponses());
+            assertEquals(0, responder.getRetransmits());
+            dispatcher.processMessage(transport, source, ByteBuffer.wrap(inform), null);
+            assertNotNull(InformResponderTest.receive(agent));
+            assertEquals(1, responder.getRetransmits());
+            assertEquals(1, dispatcher.getDropped());
+        } finally {
+            transport.close();
+            agent.close();
+        }
+    }
+
+    /**
+     * Blocks the agent's shard and fills its queue
+     *
+     * @return releases the shard
+     */
+    CountDownLatch fill(UdpAddress agent) throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.execute(agent, new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        while (dispatcher.execute(agent, nothing)) {
+            // until the queue is full
+        }
+        return release;
+    }
+
+    /**
+     * Waits until the agent's shard processed everything queued so far
+     */
+    void drain(UdpAddress agent) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        // the queue may still be full right after the shard was released
+        while (!dispatcher.execute(agent, task)) {
+            Thread.yield();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
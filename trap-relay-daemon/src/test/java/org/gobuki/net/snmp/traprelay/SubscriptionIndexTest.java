@@ -0,0 +1,154 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SubscriptionIndexTest {
+
+    static TrapFilter filter(String... selectors) throws ProtocolException {
+        return TrapFilter.parse(Arrays.asList(selectors));
+    }
+
+    static TrapRoute route(String oid, String address) throws UnknownHostException {
+        String[] arcs = oid.split("\\.");
+        int[] oidArcs = new int[arcs.length];
+        for (int i = 0; i < arcs.length; i++) {
+            oidArcs[i] = (int) Long.parseLong(arcs[i]);
+        }
+        return new TrapRoute(oidArcs, InetAddress.getByName(address).getAddress());
+    }
+
+    /**
+     * @return the matched slots, sorted
+     */
+    static int[] match(SubscriptionIndex.Match match, TrapRoute route) {
+        match.match(route);
+        int[] matches = Arrays.copyOf(match.getMatches(), match.getMatchCount());
+        Arrays.sort(matches);
+        return matches;
+    }
+
+    @Test
+    public void matchesOidPrefixesAndNetworks() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex();
+        int all = index.add(filter("all"));
+        int cisco = index.add(filter("1.3.6.1.4.1.9", ".1.3.6.1.4.1.9.9"));
+        int lab = index.add(filter("10.1.0.0/16", "2001:db8::/32"));
+        int ciscoInLab = index.add(filter("1.3.6.1.4.1.9", "10.1.2.0/24"));
+        int linkDown = index.add(filter("1.3.6.1.6.3.1.1.5.3"));
+        assertNull(index.filters[all]);
+
+        assertArrayEquals(new int[]{all, cisco, lab, ciscoInLab},
+                match(index.newMatch(), route("1.3.6.1.4.1.9.9.41.2.0.1", "10.1.2.3")));
+        assertArrayEquals(new int[]{all, cisco, lab}, match(index.newMatch(), route("1.3.6.1.4.1.9.0.1", "10.1.3.3")));
+        assertArrayEquals(new int[]{all, linkDown}, match(index.newMatch(), route("1.3.6.1.6.3.1.1.5.3", "192.168.0.1")));
+        assertArrayEquals(new int[]{all, lab}, match(index.newMatch(), route("1.3.6.1.6.3.1.1.5.4", "2001:db8::1")));
+        // a shorter OID than the prefix
+        assertArrayEquals(new int[]{all}, match(index.newMatch(), route("1.3.6.1.4.1", "192.168.0.1")));
+    }
+
+    @Test
+    public void reusesTheSlotsOfRemovedSubscriptions() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex();
+        int first = index.add(filter("1.3.6.1.4.1.9"));
+        int second = index.add(filter("10.1.0.0/16"));
+        index.remove(first);
+        TrapRoute route = route("1.3.6.1.4.1.9.0.1", "10.1.2.3");
+        assertArrayEquals(new int[]{second}, match(index.newMatch(), route));
+        assertEquals(first, index.add(null));
+        assertArrayEquals(new int[]{first, second}, match(index.newMatch(), route));
+        index.remove(second);
+        // removing twice or a slot never used is ignored
+        index.remove(second);
+        index.remove(1000);
+        assertArrayEquals(new int[]{first}, match(index.newMatch(), route));
+    }
+
+    @Test
+    public void growsBeyondTheInitialCapacity() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex();
+        int sessions = 3 * index.capacity();
+        for (int i = 0; i < sessions; i++) {
+            assertEquals(i, index.add(filter("1.3.6.1.4.1." + (i % 3))));
+        }
+        int[] matches = match(index.newMatch(), route("1.3.6.1.4.1.1.7", "10.1.2.3"));
+        assertEquals(sessions / 3, matches.length);
+        for (int slot : matches) {
+            assertEquals(1, slot % 3);
+        }
+    }
+
+    @Test
+    public void startsTheMarksOverWhenTheEpochOverflows() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex();
+        int slot = index.add(filter("1.3.6.1.4.1.9", "10.0.0.0/8"));
+        TrapRoute route = route("1.3.6.1.4.1.9.0.1", "10.1.2.3");
+        SubscriptionIndex.Match match = index.newMatch();
+        match.match(route);
+        match.epoch = Integer.MAX_VALUE - 1;
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(new int[]{slot}, match(match, route));
+        }
+    }
+
+    @Test
+    public void matchesLikeTheFilters() throws Exception {
+        Random random = new Random(42);
+        String[] prefixes = {"1.3.6.1.4.1.9", "1.3.6.1.4.1.9.9", "1.3.6.1.4.1.2636", "1.3.6.1.6.3.1.1.5", "1.3.6.1.2"};
+        String[] networks = {"10.0.0.0/8", "10.1.0.0/16", "10.1.2.0/24", "10.1.2.3/32", "0.0.0.0/0",
+                "192.168.0.0/16", "2001:db8::/32", "2001:db8:1::/48"};
+        SubscriptionIndex index = new SubscriptionIndex();
+        List<TrapFilter> filters = new ArrayList<TrapFilter>();
+        for (int i = 0; i < 200; i++) {
+            List<String> selectors = new ArrayList<String>();
+            for (int j = random.nextInt(3); j > 0; j--) {
+                selectors.add(prefixes[random.nextInt(prefixes.length)]);
+            }
+            for (int j = random.nextInt(3); j > 0; j--) {
+                selectors.add(networks[random.nextInt(networks.length)]);
+            }
+            TrapFilter filter = TrapFilter.parse(selectors);
+            filters.add(filter);
+            assertEquals(i, index.add(filter));
+        }
+        boolean[] removed = new boolean[filters.size()];
+        for (int i = 0; i < 50; i++) {
+            int slot = random.nextInt(filters.size());
+            index.remove(slot);
+            removed[slot] = true;
+        }
+
+        String[] oids = {"1.3.6.1.4.1.9.9.41.2.0.1", "1.3.6.1.4.1.9.0.1", "1.3.6.1.4.1.2636.4.1.1",
+                "1.3.6.1.6.3.1.1.5.3", "1.3.6.1.4.1", "1.3.6.1.2.1.10.166.0.1"};
+        String[] addresses = {"10.1.2.3", "10.1.2.4", "10.1.3.1", "10.2.0.1", "192.168.1.1", "172.16.0.1",
+                "2001:db8::1", "2001:db8:1::1", "2001:db9::1"};
+        for (String oid : oids) {
+            for (String address : addresses) {
+                TrapRoute route = route(oid, address);
+                List<Integer> expected = new ArrayList<Integer>();
+                for (int slot = 0; slot < filters.size(); slot++) {
+                    TrapFilter filter = filters.get(slot);
+                    if (!removed[slot] && (filter == null || filter.matches(route))) {
+                        expected.add(slot);
+                    }
+                }
+                int[] expectedSlots = new int[expected.size()];
+                for (int i = 0; i < expectedSlots.length; i++) {
+                    expectedSlots[i] = expected.get(i);
+                }
+                assertArrayEquals(oid + " from " + address, expectedSlots, match(index.newMatch(), route));
+            }
+        }
+    }
+}
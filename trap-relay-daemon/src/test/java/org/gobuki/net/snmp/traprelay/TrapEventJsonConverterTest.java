@@ -0,0 +1,116 @@
+package org.gobuki.net.snmp.traprelay;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.security.SecurityModel;
+import org.snmp4j.smi.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class TrapEventJsonConverterTest {
+
+    // the TrapPayload handle and its reference count, the array comes from the pool
+    static final long MAX_BYTES_PER_TRAP = 48;
+
+    static CommandResponderEvent linkDown() {
+        PDU pdu = new PDU();
+        pdu.setType(PDU.NOTIFICATION);
+        pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(123456789L)));
+        pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID("1.3.6.1.6.3.1.1.5.3")));
+        pdu.add(new VariableBinding(new OID("1.3.6.1.2.1.2.2.1.1.3"), new Integer32(3)));
+        pdu.add(new VariableBinding(new OID("1.3.6.1.2.1.2.2.1.2.3"), new OctetString("Gi1/0/3 \"uplink\"")));
+        pdu.add(new VariableBinding(new OID("1.3.6.1.2.1.2.2.1.10.3"), new Counter32(3735928559L)));
+        pdu.add(new VariableBinding(new OID("1.3.6.1.2.1.31.1.1.1.6.3"), new Counter64(98765432109876L)));
+        pdu.add(new VariableBinding(new OID("1.3.6.1.2.1.4.20.1.1.10.1.2.3"), new IpAddress("10.1.2.3")));
+        pdu.add(new VariableBinding(new OID("1.3.6.1.2.1.1.2.0"), new OID("1.3.6.1.4.1.9.1.1208")));
+        return new CommandResponderEvent(new MessageDispatcherImpl(), null, new UdpAddress("10.1.2.3/161"),
+                MPv2c.ID, SecurityModel.SECURITY_MODEL_SNMPv2c, "public".getBytes(), SecurityLevel.NOAUTH_NOPRIV,
+                null, pdu, 65535, null);
+    }
+
+    @Test
+    public void convertsTheVariables() {
+        TrapEventJsonConverter converter = new TrapEventJsonConverter(new TrapPayloadPool(16));
+        String json = converter.convertTrap(linkDown(), 0).toString();
+        assertTrue(json, json.startsWith("JSONTRAP:{ \"trapSrc\": \"10.1.2.3/161\", \"timestamp\": \""));
+        assertTrue(json, json.contains("\"1.3.6.1.2.1.2.2.1.2.3\": \"Gi1/0/3 \\\"uplink\\\"\""));
+        assertTrue(json, json.contains("\"1.3.6.1.2.1.4.20.1.1.10.1.2.3\": \"10.1.2.3\""));
+        assertTrue(json, json.endsWith("\"1.3.6.1.2.1.1.2.0\": \"1.3.6.1.4.1.9.1.1208\" } }"));
+    }
+
+    @Test
+    public void addsTheNamesAndLabelsOfTheSymbols() throws Exception {
+        MibSymbolTable symbols = new MibSymbolTable(16);
+        symbols.read(new BufferedReader(new StringReader("1.3.6.1.6.3.1.1.4.1 snmpTrapOID\n"
+                + "1.3.6.1.6.3.1.1.5.3 linkDown\n"
+                + "1.3.6.1.2.1.2.2.1.1 ifIndex\n"
+                + "1.3.6.1.2.1.2.2.1.8 ifOperStatus 1=up 2=down\n")));
+        CommandResponderEvent event = linkDown();
+        event.getPDU().add(new VariableBinding(new OID("1.3.6.1.2.1.2.2.1.8.3"), new Integer32(2)));
+        event.getPDU().add(new VariableBinding(new OID("1.3.6.1.2.1.2.2.1.8.4"), new Integer32(7)));
+        TrapEventJsonConverter converter = new TrapEventJsonConverter(new TrapPayloadPool(16), symbols);
+        String json = converter.convertTrap(event, 0).toString();
+        assertTrue(json, json.endsWith("\"1.3.6.1.2.1.2.2.1.8.4\": \"7\" }, \"names\": { "
+                + "\"1.3.6.1.6.3.1.1.4.1.0\": \"snmpTrapOID.0\", \"1.3.6.1.2.1.2.2.1.1.3\": \"ifIndex.3\", "
+                + "\"1.3.6.1.2.1.2.2.1.8.3\": \"ifOperStatus.3\", \"1.3.6.1.2.1.2.2.1.8.4\": \"ifOperStatus.4\" }, "
+                + "\"labels\": { \"1.3.6.1.6.3.1.1.4.1.0\": \"linkDown\", \"1.3.6.1.2.1.2.2.1.8.3\": \"down\" } }"));
+
+        // and it is valid JSON
+        JsonNode trap = new ObjectMapper().readTree(json.substring("JSONTRAP:".length()));
+        assertEquals("ifOperStatus.3", trap.get("names").get("1.3.6.1.2.1.2.2.1.8.3").asText());
+        assertEquals(2, trap.get("labels").size());
+        assertEquals(10, trap.get("variables").size());
+    }
+
+    @Test
+    public void allocatesOnlyThePayloadHandlePerTrap() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        TrapEventJsonConverter converter = new TrapEventJsonConverter(new TrapPayloadPool(16));
+        CommandResponderEvent event = linkDown();
+        long timestamp = 1500000000000L;
+        // until the conversion is compiled, the interpreter allocates what escape analysis removes later
+        for (int i = 0; i < 50000; i++) {
+            converter.convertTrap(event, timestamp + i).release();
+        }
+
+        int traps = 20000;
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < traps; i++) {
+            // a new millisecond for every trap, the timestamp is patched
+            converter.convertTrap(event, timestamp + i).release();
+        }
+        long bytesPerTrap = (allocations.getThreadAllocatedBytes(threadId) - before) / traps;
+        assertTrue("allocated " + bytesPerTrap + " bytes per trap", bytesPerTrap <= MAX_BYTES_PER_TRAP);
+    }
+
+    @Test
+    public void patchesTheTimestampWithinASecond() {
+        TrapEventJsonConverter converter = new TrapEventJsonConverter(new TrapPayloadPool(16));
+        CommandResponderEvent event = linkDown();
+        String first = converter.convertTrap(event, 1500000000000L).toString();
+        String second = converter.convertTrap(event, 1500000000123L).toString();
+        int start = first.indexOf("\"timestamp\": \"") + 14;
+        assertEquals(first.substring(0, start + 20), second.substring(0, start + 20));
+        assertEquals("000", first.substring(start + 20, start + 23));
+        assertEquals("123", second.substring(start + 20, start + 23));
+    }
+}
@@ -0,0 +1,137 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrapJournalTest {
+
+    // a few hundred records per segment, more than one index entry each
+    static final int SEGMENT_SIZE = 64 * 1024;
+
+    static final int TRAPS = 3000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static TrapJournal open(File directory) throws IOException {
+        return new TrapJournal(directory, SEGMENT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    static long timestamp(long sequence) {
+        return 1500000000000L + 10 * sequence;
+    }
+
+    /**
+     * Appends traps 1 to TRAPS, received 10 ms apart
+     */
+    static void fill(TrapJournal journal) throws IOException {
+        TrapRoute route = new TrapRoute(new int[]{1, 3, 6, 1, 6, 3, 1, 1, 5, 3}, new byte[]{10, 1, 2, 3});
+        for (long sequence = 1; sequence <= TRAPS; sequence++) {
+            TrapPayload[] payloads = new TrapPayload[TrapFormat.values().length];
+            payloads[TrapFormat.JSON.ordinal()] = TrapPayload.wrap(("trap " + sequence).getBytes(ClientSession.UTF8));
+            journal.append(sequence, timestamp(sequence), payloads, route);
+        }
+    }
+
+    static String read(JournalReader reader, long sequence) {
+        ByteBuffer payload = reader.read(sequence, TrapFormat.JSON);
+        if (payload == null) {
+            return null;
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, ClientSession.UTF8);
+    }
+
+    @Test
+    public void recoversTheSegmentsAfterARestart() throws IOException {
+        File directory = folder.newFolder();
+        TrapJournal written = open(directory);
+        fill(written);
+        assertTrue(written.segments.size() > 2);
+        written.close();
+
+        TrapJournal journal = open(directory);
+        assertEquals(written.segments.size(), journal.segments.size());
+        assertEquals(1, journal.getFirstSequence());
+        assertEquals(TRAPS, journal.getLastSequence());
+        JournalReader reader = new JournalReader(journal);
+        for (long sequence = 1; sequence <= TRAPS; sequence++) {
+            assertEquals("trap " + sequence, read(reader, sequence));
+        }
+        assertNull(read(reader, TRAPS + 1));
+        assertNull(reader.read(1, TrapFormat.BINARY));
+    }
+
+    @Test
+    public void stopsRecoveringAtATornRecord() throws IOException {
+        File directory = folder.newFolder();
+        TrapJournal written = open(directory);
+        fill(written);
+        JournalSegment last = written.segmentOf(TRAPS);
+        long torn = last.firstSequence + 10;
+        // as if the daemon stopped while writing the record
+        last.buffer.putInt(last.positionOf(torn), Integer.MAX_VALUE);
+        written.close();
+
+        TrapJournal journal = open(directory);
+        assertEquals(1, journal.getFirstSequence());
+        assertEquals(torn - 1, journal.getLastSequence());
+        assertEquals("trap " + (torn - 1), read(new JournalReader(journal), torn - 1));
+    }
+
+    @Test
+    public void dropsTheSegmentsBeforeAGap() throws IOException {
+        File directory = folder.newFolder();
+        TrapJournal written = open(directory);
+        fill(written);
+        JournalSegment second = written.segments.get(1);
+        written.close();
+        assertTrue(second.delete());
+
+        TrapJournal journal = open(directory);
+        assertEquals(second.lastSequence + 1, journal.getFirstSequence());
+        assertEquals(TRAPS, journal.getLastSequence());
+        JournalReader reader = new JournalReader(journal);
+        assertNull(read(reader, 1));
+        assertEquals("trap " + TRAPS, read(reader, TRAPS));
+    }
+
+    @Test
+    public void findsTheFirstTrapReceivedAtOrAfterATime() throws IOException {
+        TrapJournal journal = open(folder.newFolder());
+        fill(journal);
+        assertEquals(1, journal.sequenceAt(0));
+        assertEquals(1, journal.sequenceAt(timestamp(1)));
+        assertEquals(2, journal.sequenceAt(timestamp(1) + 1));
+        for (long sequence = 2; sequence <= TRAPS; sequence += 97) {
+            assertEquals(sequence, journal.sequenceAt(timestamp(sequence)));
+            assertEquals(sequence, journal.sequenceAt(timestamp(sequence) - 5));
+        }
+        // the first trap of a segment and the one before
+        long first = journal.segments.get(1).firstSequence;
+        assertEquals(first, journal.sequenceAt(timestamp(first)));
+        assertEquals(first - 1, journal.sequenceAt(timestamp(first - 1)));
+        assertEquals(TRAPS + 1, journal.sequenceAt(timestamp(TRAPS) + 1));
+    }
+
+    @Test
+    public void deletesTheOldestSegmentsBeyondTheRetention() throws IOException {
+        TrapJournal journal = new TrapJournal(folder.newFolder(), SEGMENT_SIZE, 2L * SEGMENT_SIZE, Long.MAX_VALUE);
+        fill(journal);
+        assertEquals(2, journal.segments.size());
+        assertTrue(journal.getFirstSequence() > 1);
+        assertEquals(TRAPS, journal.getLastSequence());
+        assertFalse(new File(journal.directory, JournalSegment.fileName(1)).exists());
+    }
+}
@@ -0,0 +1,103 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrapRateLimiterTest {
+
+    static final long MS = 1000000L;
+
+    static TrapRateLimiter limiter(String rateLimits) {
+        TrapRelayConfig config = new TrapRelayConfig();
+        config.set("rateLimits", rateLimits);
+        return new TrapRateLimiter(config);
+    }
+
+    static InetAddress address(String address) throws UnknownHostException {
+        return InetAddress.getByName(address);
+    }
+
+    @Test
+    public void acceptsTheBurstThenTheRate() throws Exception {
+        TrapRateLimiter limiter = limiter("10.1.0.0/16=10/5");
+        InetAddress agent = address("10.1.2.3");
+        long now = 123456789L;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(agent, now));
+        }
+        assertFalse(limiter.tryAcquire(agent, now));
+        assertFalse(limiter.tryAcquire(agent, now + 99 * MS));
+        assertTrue(limiter.tryAcquire(agent, now + 100 * MS));
+        assertFalse(limiter.tryAcquire(agent, now + 100 * MS));
+        // a new InetAddress of the same agent shares the bucket
+        assertFalse(limiter.tryAcquire(address("10.1.2.3"), now + 150 * MS));
+        assertTrue(limiter.tryAcquire(agent, now + 10000 * MS));
+        assertEquals(4, limiter.getDropped());
+    }
+
+    @Test
+    public void appliesTheLongestMatchingPrefix() throws Exception {
+        TrapRateLimiter limiter = limiter("0.0.0.0/0=1000/2000, 10.1.2.0/24=0, ::/0=1/1");
+        assertEquals(Arrays.asList("10.1.2.0/24 drop", "0.0.0.0/0 1000.0/s burst 2000", "::/0 1.0/s burst 1"),
+                limiter.describe());
+        long now = 0;
+        assertFalse(limiter.tryAcquire(address("10.1.2.3"), now));
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(limiter.tryAcquire(address("10.1.3.3"), now));
+        }
+        assertFalse(limiter.tryAcquire(address("10.1.3.3"), now));
+        assertTrue(limiter.tryAcquire(address("2001:db8::1"), now));
+        assertFalse(limiter.tryAcquire(address("2001:db8::1"), now));
+        assertTrue(limiter.tryAcquire(address("2001:db8::2"), now));
+    }
+
+    @Test
+    public void doesNotLimitAgentsOutsideTheNetworks() throws Exception {
+        TrapRateLimiter limiter = limiter("10.1.0.0/16=1/1");
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire(address("192.168.0.1"), 0));
+        }
+        assertFalse(limiter(" , ").isEnabled());
+        assertEquals(0, limiter("invalid=1/1, 10.0.0.0/8=x").describe().size());
+    }
+
+    @Test
+    public void removesFullBucketsOnlyWhenTheEarliestCanBeFull() throws Exception {
+        TrapRateLimiter.Rule rule = new TrapRateLimiter.Rule();
+        rule.intervalNanos = 100 * MS;
+        TrapRateLimiter.Stripe stripe = new TrapRateLimiter.Stripe(4);
+        long now = 1000 * MS;
+        for (int i = 1; i <= 4; i++) {
+            InetAddress agent = address("10.1.2." + i);
+            int slot = stripe.find(agent, TrapRateLimiter.hash(agent), now);
+            stripe.add(slot, agent, agent.getAddress(), rule, now);
+            // each one full again i intervals later
+            stripe.arrivals[slot] = now + i * rule.intervalNanos;
+        }
+        InetAddress newcomer = address("10.1.3.1");
+        int hash = TrapRateLimiter.hash(newcomer);
+        assertEquals(-1, stripe.find(newcomer, hash, now));
+        assertEquals(now + 100 * MS, stripe.earliestArrival);
+        // not scanned again before the first bucket is full
+        assertEquals(-1, stripe.find(newcomer, hash, now + 50 * MS));
+        assertEquals(now + 100 * MS, stripe.earliestArrival);
+        assertEquals(4, stripe.size);
+
+        int slot = stripe.find(newcomer, hash, now + 250 * MS);
+        assertTrue(slot >= 0);
+        assertEquals(2, stripe.size);
+        assertEquals(now + 300 * MS, stripe.earliestArrival);
+        for (int i = 1; i <= 4; i++) {
+            InetAddress agent = address("10.1.2." + i);
+            int found = stripe.find(agent, TrapRateLimiter.hash(agent), now + 250 * MS);
+            assertEquals(i > 2, found >= 0 && stripe.keys[found] != null);
+        }
+    }
+}
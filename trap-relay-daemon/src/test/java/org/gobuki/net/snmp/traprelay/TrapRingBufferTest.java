@@ -0,0 +1,135 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+import org.snmp4j.CommandResponderEvent;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TrapRingBufferTest {
+
+    /**
+     * Converts every trap to the same text and counts the conversions
+     */
+    static class CountingConverter implements TrapEventConverter<TrapPayload> {
+        int conversions;
+
+        @Override
+        public TrapPayload convertTrap(CommandResponderEvent event) {
+            return convertTrap(event, 0);
+        }
+
+        @Override
+        public TrapPayload convertTrap(CommandResponderEvent event, long timestamp) {
+            conversions++;
+            return TrapPayload.wrap(("trap " + timestamp).getBytes(ClientSession.UTF8));
+        }
+    }
+
+    static Map<TrapFormat, TrapEventConverter<TrapPayload>> converters(TrapEventConverter<TrapPayload> json) {
+        Map<TrapFormat, TrapEventConverter<TrapPayload>> converters =
+                new EnumMap<TrapFormat, TrapEventConverter<TrapPayload>>(TrapFormat.class);
+        converters.put(TrapFormat.JSON, json);
+        return converters;
+    }
+
+    static TrapPayload[] json(TrapPayload payload) {
+        TrapPayload[] payloads = new TrapPayload[TrapFormat.values().length];
+        payloads[TrapFormat.JSON.ordinal()] = payload;
+        return payloads;
+    }
+
+    static TrapRoute route() {
+        return new TrapRoute(new int[]{1, 3, 6, 1, 6, 3, 1, 1, 5, 3}, new byte[]{10, 1, 2, 3});
+    }
+
+    /**
+     * Publishes a trap into every slot
+     */
+    static void overwrite(TrapRingBuffer ring) {
+        for (int i = 0; i < ring.size(); i++) {
+            ring.publish(json(TrapPayload.wrap(new byte[1])), null, 0, route(), 0);
+        }
+    }
+
+    @Test
+    public void continuesTheSequenceAndRoundsTheSizeUp() {
+        TrapRingBuffer ring = new TrapRingBuffer(12, 100, converters(new CountingConverter()));
+        assertEquals(16, ring.size());
+        assertEquals(101, ring.nextSequence());
+        assertEquals(101, ring.getOldestAvailable());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(101 + i, ring.publish(json(TrapPayload.wrap(new byte[1])), null, 0, route(), 0));
+        }
+        assertEquals(120, ring.getPublished());
+        assertEquals(105, ring.getOldestAvailable());
+    }
+
+    @Test
+    public void releasesTheOverwrittenTrap() {
+        TrapRingBuffer ring = new TrapRingBuffer(2, 0, converters(new CountingConverter()));
+        TrapPayload first = TrapPayload.wrap(new byte[1]);
+        ring.publish(json(first), null, 0, route(), 0);
+        TrapPayload held = ring.acquire(1, TrapFormat.JSON);
+        assertSame(first, held);
+        assertEquals(2, first.refCount.get());
+
+        overwrite(ring);
+        assertNull(ring.acquire(1, TrapFormat.JSON));
+        // the reader's reference keeps it usable
+        assertEquals(1, first.refCount.get());
+        held.release();
+        assertEquals(0, first.refCount.get());
+    }
+
+    @Test
+    public void convertsOncePerFormatOnTheFirstRead() {
+        CountingConverter converter = new CountingConverter();
+        TrapRingBuffer ring = new TrapRingBuffer(4, 0, converters(converter));
+        CommandResponderEvent event = TrapEventJsonConverterTest.linkDown();
+        ring.publish(null, event, 1500000000000L, route(), 0);
+        assertEquals(0, converter.conversions);
+
+        TrapPayload a = ring.acquire(1, TrapFormat.JSON);
+        TrapPayload b = ring.acquire(1, TrapFormat.JSON);
+        assertSame(a, b);
+        assertEquals("trap 1500000000000", a.toString());
+        assertEquals(1, converter.conversions);
+        // no converter
+        assertNull(ring.acquire(1, TrapFormat.BINARY));
+        a.release();
+        b.release();
+    }
+
+    @Test
+    public void checksTheSequenceAgainAfterRetaining() {
+        final TrapRingBuffer ring = new TrapRingBuffer(2, 0, converters(new CountingConverter()));
+        // the slot is overwritten while a reader retains the payload it read before
+        TrapPayload raced = new TrapPayload(new byte[1], 1, null) {
+            @Override
+            public boolean tryRetain() {
+                boolean retained = super.tryRetain();
+                overwrite(ring);
+                return retained;
+            }
+        };
+        ring.publish(json(raced), null, 0, route(), 0);
+        assertNull(ring.acquire(1, TrapFormat.JSON));
+        // the slot's and the reader's reference are both gone
+        assertEquals(0, raced.refCount.get());
+        assertEquals(1 + ring.size(), ring.slot(1).getSequence());
+    }
+
+    @Test
+    public void doesNotRetainAReleasedPayload() {
+        TrapPayload payload = TrapPayload.wrap(new byte[1]);
+        payload.release();
+        assertFalse(payload.tryRetain());
+        assertEquals(0, payload.refCount.get());
+    }
+}
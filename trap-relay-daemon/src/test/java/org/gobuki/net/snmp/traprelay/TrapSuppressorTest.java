@@ -0,0 +1,139 @@
+package org.gobuki.net.snmp.traprelay;
+
+import org.junit.Test;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.security.SecurityModel;
+import org.snmp4j.smi.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TrapSuppressorTest {
+
+    static final long WINDOW = 1000000000L;
+
+    static final TrapRoute ROUTE = new TrapRoute(new int[]{1, 3, 6, 1, 6, 3, 1, 1, 5, 3}, new byte[]{10, 1, 2, 3});
+
+    /**
+     * Collects the summaries
+     */
+    static class Summaries implements TrapEventHandler {
+        final List<CommandResponderEvent> events = new ArrayList<CommandResponderEvent>();
+
+        @Override
+        public void handleTrapEvent(CommandResponderEvent event) {
+            events.add(event);
+        }
+    }
+
+    /**
+     * @param ifIndex what tells the traps apart
+     * @param upTime ignored by default
+     */
+    static CommandResponderEvent linkDown(int ifIndex, long upTime) {
+        PDU pdu = new PDU();
+        pdu.setType(PDU.NOTIFICATION);
+        pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(upTime)));
+        pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID("1.3.6.1.6.3.1.1.5.3")));
+        pdu.add(new VariableBinding(new OID("1.3.6.1.2.1.2.2.1.1." + ifIndex), new Integer32(ifIndex)));
+        return new CommandResponderEvent(new MessageDispatcherImpl(), null, new UdpAddress("10.1.2.3/161"),
+                MPv2c.ID, SecurityModel.SECURITY_MODEL_SNMPv2c, "public".getBytes(), SecurityLevel.NOAUTH_NOPRIV,
+                null, pdu, 65535, null);
+    }
+
+    static TrapRelayConfig config(int maxEntries) {
+        TrapRelayConfig config = new TrapRelayConfig();
+        config.set("suppressionWindowMillis", Long.toString(WINDOW / 1000000L));
+        config.set("suppressionMaxEntries", Integer.toString(maxEntries));
+        return config;
+    }
+
+    @Test
+    public void relaysTheDuplicatesAsOneSummary() {
+        Summaries summaries = new Summaries();
+        TrapSuppressor suppressor = new TrapSuppressor(config(16), summaries);
+        assertTrue(suppressor.admit(linkDown(3, 100), ROUTE, 0));
+        assertFalse(suppressor.admit(linkDown(3, 200), ROUTE, 10));
+        assertFalse(suppressor.admit(linkDown(3, 300), ROUTE, 20));
+        assertTrue(suppressor.admit(linkDown(4, 300), ROUTE, 20));
+
+        suppressor.expire(WINDOW - 1);
+        assertEquals(0, summaries.events.size());
+        suppressor.expire(WINDOW);
+        assertEquals(1, summaries.events.size());
+        assertEquals(1, suppressor.size);
+        // the window of ifIndex 4 had no duplicates
+        suppressor.expire(WINDOW + 20);
+        assertEquals(1, summaries.events.size());
+        assertEquals(0, suppressor.size);
+        PDU summary = summaries.events.get(0).getPDU();
+        assertEquals(new Integer32(3), summary.getVariable(new OID("1.3.6.1.2.1.2.2.1.1.3")));
+        assertEquals(new Gauge32(2), summary.getVariable(TrapSuppressor.SUPPRESSED_COUNT));
+        assertEquals(new TimeTicks(100), summary.getVariable(SnmpConstants.sysUpTime));
+    }
+
+    @Test
+    public void startsTheNextWindowWithTheFirstTrapAfterTheEnd() {
+        Summaries summaries = new Summaries();
+        TrapSuppressor suppressor = new TrapSuppressor(config(16), summaries);
+        assertTrue(suppressor.admit(linkDown(3, 100), ROUTE, 0));
+        assertFalse(suppressor.admit(linkDown(3, 100), ROUTE, 10));
+        // before the timer ended the window
+        assertTrue(suppressor.admit(linkDown(3, 100), ROUTE, WINDOW));
+        assertEquals(1, summaries.events.size());
+        assertFalse(suppressor.admit(linkDown(3, 100), ROUTE, WINDOW + 10));
+        assertEquals(1, suppressor.size);
+    }
+
+    @Test
+    public void relaysNewKindsWhenTheTableIsFull() {
+        TrapSuppressor suppressor = new TrapSuppressor(config(2), new Summaries());
+        assertTrue(suppressor.admit(linkDown(1, 0), ROUTE, 0));
+        assertTrue(suppressor.admit(linkDown(2, 0), ROUTE, 0));
+        assertTrue(suppressor.admit(linkDown(3, 0), ROUTE, 0));
+        assertTrue(suppressor.admit(linkDown(3, 0), ROUTE, 0));
+        assertFalse(suppressor.admit(linkDown(2, 0), ROUTE, 0));
+    }
+
+    @Test
+    public void keepsTheProbeSequencesWhenRemoving() {
+        // the home slot of each kind, in a table of 8: 1 and 2 collide, 3 and 4 are displaced by them
+        final int[] homes = {0, 6, 6, 7, 0};
+        TrapSuppressor suppressor = new TrapSuppressor(config(4), new Summaries()) {
+            @Override
+            long fingerprint(CommandResponderEvent event, TrapRoute route) {
+                int ifIndex = event.getPDU().get(2).getVariable().toInt();
+                return homes[ifIndex] + 8L * ifIndex;
+            }
+        };
+        assertEquals(8, suppressor.table.length);
+        assertTrue(suppressor.admit(linkDown(1, 0), ROUTE, 0));
+        for (int ifIndex = 2; ifIndex <= 4; ifIndex++) {
+            assertTrue(suppressor.admit(linkDown(ifIndex, 0), ROUTE, WINDOW / 2));
+        }
+        Object[] before = suppressor.table.clone();
+
+        // only the window of 1 is over, 2 moves to its home slot and 3 and 4 follow
+        suppressor.expire(WINDOW);
+        assertEquals(3, suppressor.size);
+        assertSame(before[7], suppressor.table[6]);
+        assertSame(before[0], suppressor.table[7]);
+        assertSame(before[1], suppressor.table[0]);
+        assertNull(suppressor.table[1]);
+        for (int ifIndex = 2; ifIndex <= 4; ifIndex++) {
+            assertFalse(suppressor.admit(linkDown(ifIndex, 0), ROUTE, WINDOW));
+        }
+        assertEquals(3, suppressor.size);
+    }
+}